@@ -0,0 +1,282 @@
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The AsyncLogger class writes the server's log on a background thread, so the threads that handle packets never
+ * format a date, build a string or wait for the console.
+ *
+ * Logging a message only claims a preallocated slot in a ring buffer and stores references in it: the level, the time
+ * in milliseconds and the parts of the message. The writer thread drains the ring, formats each record (the timestamp
+ * is formatted at most once per second and reused) and writes it to a buffered stdout or stderr, flushing whenever the
+ * ring is empty. While the ring stays empty the writer parks without a timeout, and a producer that publishes a record
+ * while the writer is parked, or about to park, unparks it, so an idle server does not wake the writer at all. When
+ * the ring is full the record is dropped rather than blocking the caller, and the number of
+ * dropped records is logged once there is room again.
+ *
+ * Records below the configured level are discarded before they reach the ring, and per-request records can be sampled
+ * so only one in every sampleRate requests is logged. Whatever is still in the ring is written when the JVM exits.
+ */
+final class AsyncLogger {
+
+    enum Level {
+        DEBUG, INFO, WARN, ERROR
+    }
+
+    private final Level threshold;
+    private final int sampleRate;
+    private final Record[] ring;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread writer;
+    // Set by the writer before it checks the ring one last time and parks, so producers know to unpark it
+    private volatile boolean writerParked;
+
+    // Only used by the writer thread
+    private long head;
+    private long droppedReported;
+    private final PrintStream out = new PrintStream(
+            new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16), false);
+    private final PrintStream err = new PrintStream(
+            new BufferedOutputStream(new FileOutputStream(FileDescriptor.err), 1 << 12), false);
+    private final SimpleDateFormat timestampFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+    private final StringBuilder line = new StringBuilder(256);
+    private long cachedSecond = Long.MIN_VALUE;
+    private String cachedTimestamp;
+
+    /**
+     * Constructs a logger and starts its writer thread.
+     *
+     * @param threshold the lowest level that is logged
+     * @param sampleRate log one in this many per-request records (1 logs them all)
+     * @param capacity the number of records the ring holds, rounded up to a power of two
+     */
+    AsyncLogger(Level threshold, int sampleRate, int capacity) {
+        this.threshold = threshold;
+        this.sampleRate = Math.max(1, sampleRate);
+        int size = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1);
+        ring = new Record[size];
+        mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            ring[i] = new Record(i);
+        }
+
+        writer = new Thread(this::writeLoop, "gofundme-logger");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::drain, "gofundme-logger-shutdown"));
+    }
+
+    boolean isEnabled(Level level) {
+        return level.compareTo(threshold) >= 0;
+    }
+
+    /**
+     * Logs a message with a timestamp.
+     *
+     * @param level the level of the message
+     * @param message the message
+     */
+    void log(Level level, String message) {
+        if (isEnabled(level)) {
+            enqueue(level, true, message, null, null, 0);
+        }
+    }
+
+    /**
+     * Logs a message without a timestamp, for the startup banner and similar console output.
+     *
+     * @param level the level of the message
+     * @param message the message
+     */
+    void println(Level level, String message) {
+        if (isEnabled(level)) {
+            enqueue(level, false, message, null, null, 0);
+        }
+    }
+
+    /**
+     * Logs something a client did, as "message detail from IP = address, Port = port", or "message IP = address,
+     * Port = port" without a detail. The address is only turned into text on the writer thread.
+     *
+     * @param level the level of the message
+     * @param message the message, for example "Received request:"
+     * @param detail the detail, for example the request type, or null
+     * @param address the address of the client
+     * @param port the port of the client
+     */
+    void logClient(Level level, String message, String detail, InetAddress address, int port) {
+        if (isEnabled(level)) {
+            enqueue(level, true, message, detail, address, port);
+        }
+    }
+
+    /**
+     * Logs a request, subject to sampling.
+     *
+     * @param requestType the request type
+     * @param address the address of the client
+     * @param port the port of the client
+     */
+    void logRequest(String requestType, InetAddress address, int port) {
+        if (isEnabled(Level.INFO) && (sampleRate == 1 || ThreadLocalRandom.current().nextInt(sampleRate) == 0)) {
+            enqueue(Level.INFO, true, "Received request:", requestType, address, port);
+        }
+    }
+
+    /**
+     * Claims the next slot of the ring (a bounded multi-producer queue in the style of Vyukov's) and fills it in.
+     * Each slot's sequence says whose turn it is: the producer of position p waits for sequence p, publishes by
+     * setting it to p + 1, and the writer frees the slot for the next lap by setting it to p + ring length.
+     */
+    private void enqueue(Level level, boolean timestamped, String message, String detail, InetAddress address,
+                         int port) {
+        long position = tail.get();
+        while (true) {
+            Record record = ring[(int) position & mask];
+            long difference = record.sequence - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    record.level = level;
+                    record.timeMillis = timestamped ? System.currentTimeMillis() : 0;
+                    record.message = message;
+                    record.detail = detail;
+                    record.address = address;
+                    record.port = port;
+                    record.sequence = position + 1;
+                    if (writerParked) {
+                        LockSupport.unpark(writer);
+                    }
+                    return;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                dropped.incrementAndGet(); // Full: the writer is a whole lap behind
+                return;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    /**
+     * The body of the writer thread. Before parking, the writer sets writerParked and then looks at the ring once more,
+     * while a producer publishes its record and then reads writerParked. Both are volatile, so either the writer sees
+     * the record or the producer sees the flag and unparks the writer.
+     */
+    private void writeLoop() {
+        while (true) {
+            if (drain()) {
+                continue;
+            }
+            writerParked = true;
+            if (!hasRecords()) {
+                LockSupport.park(this);
+            }
+            writerParked = false;
+        }
+    }
+
+    /**
+     * Tells whether the ring holds a record the writer has not written yet.
+     */
+    private synchronized boolean hasRecords() {
+        return ring[(int) head & mask].sequence == head + 1;
+    }
+
+    /**
+     * Writes every record in the ring and flushes.
+     *
+     * @return true if anything was written
+     */
+    private synchronized boolean drain() {
+        boolean wroteOut = false;
+        boolean wroteErr = false;
+        while (true) {
+            Record record = ring[(int) head & mask];
+            if (record.sequence != head + 1) {
+                break;
+            }
+
+            format(record);
+            if (record.level.compareTo(Level.WARN) >= 0) {
+                err.append(line);
+                wroteErr = true;
+            } else {
+                out.append(line);
+                wroteOut = true;
+            }
+
+            record.message = null;
+            record.detail = null;
+            record.address = null;
+            record.sequence = head + ring.length;
+            head++;
+        }
+
+        long droppedNow = dropped.get();
+        if (droppedNow != droppedReported) {
+            err.println(timestamp(System.currentTimeMillis()) + ": " + (droppedNow - droppedReported)
+                    + " log record(s) dropped, the log could not keep up");
+            droppedReported = droppedNow;
+            wroteErr = true;
+        }
+
+        if (wroteOut) {
+            out.flush();
+        }
+        if (wroteErr) {
+            err.flush();
+        }
+        return wroteOut || wroteErr;
+    }
+
+    private void format(Record record) {
+        line.setLength(0);
+        if (record.timeMillis != 0) {
+            line.append(timestamp(record.timeMillis)).append(": ");
+        }
+        line.append(record.message);
+        if (record.address != null) {
+            if (record.detail != null) {
+                line.append(' ').append(record.detail).append(" from");
+            }
+            line.append(" IP = ").append(record.address.getHostAddress()).append(", Port = ").append(record.port);
+        }
+        line.append(System.lineSeparator());
+    }
+
+    private String timestamp(long timeMillis) {
+        long second = timeMillis / 1000;
+        if (second != cachedSecond) {
+            cachedTimestamp = timestampFormat.format(new Date(timeMillis));
+            cachedSecond = second;
+        }
+        return cachedTimestamp;
+    }
+
+    /**
+     * One slot of the ring.
+     */
+    private static final class Record {
+        volatile long sequence;
+        Level level;
+        long timeMillis;
+        String message;
+        String detail;
+        InetAddress address;
+        int port;
+
+        Record(long sequence) {
+            this.sequence = sequence;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The BatchRequest class builds a BATCH request, which carries many DONATE and CHECK_DETAILS operations in one
+ * datagram, and reads the results out of the response.
+ *
+ * Request: writeUTF("BATCH"), int operation count, then per operation a byte type followed by its fields:
+ * - DONATE: int event id, double amount
+ * - CHECK_DETAILS: int event id
+ * Response: int result count, then per operation, in request order, a byte status and, for a CHECK_DETAILS with
+ * status OK, the event's name, target amount, current amount and deadline as in a CHECK_DETAILS response.
+ * The server applies all donations of a batch in one pass before reading any details, so details reflect them.
+ */
+final class BatchRequest {
+
+    static final byte DONATE = 1;
+    static final byte CHECK_DETAILS = 2;
+
+    static final byte STATUS_OK = Protocol.STATUS_OK;
+    static final byte STATUS_INVALID_EVENT = Protocol.STATUS_INVALID_EVENT;
+    static final byte STATUS_EVENT_ENDED = Protocol.STATUS_EVENT_ENDED;
+    static final byte STATUS_INVALID_AMOUNT = Protocol.STATUS_INVALID_REQUEST;
+
+    /**
+     * The largest number of operations the server accepts in one batch. Together with the request size limit this
+     * keeps a batch of donations in a single datagram.
+     */
+    static final int MAX_OPERATIONS = 512;
+
+    private final List<Byte> types = new ArrayList<>();
+    private final ByteArrayOutputStream operations = new ByteArrayOutputStream();
+    private final DataOutputStream dos = new DataOutputStream(operations);
+
+    /**
+     * Adds a donation to the batch.
+     *
+     * @param eventId the id of the event
+     * @param amount the donation in dollars
+     * @return this batch
+     * @throws IOException never, the batch is built in memory
+     */
+    BatchRequest addDonation(int eventId, double amount) throws IOException {
+        types.add(DONATE);
+        dos.writeByte(DONATE);
+        dos.writeInt(eventId);
+        dos.writeDouble(amount);
+        return this;
+    }
+
+    /**
+     * Adds a details lookup to the batch.
+     *
+     * @param eventId the id of the event
+     * @return this batch
+     * @throws IOException never, the batch is built in memory
+     */
+    BatchRequest addDetails(int eventId) throws IOException {
+        types.add(CHECK_DETAILS);
+        dos.writeByte(CHECK_DETAILS);
+        dos.writeInt(eventId);
+        return this;
+    }
+
+    int size() {
+        return types.size();
+    }
+
+    boolean hasDonations() {
+        return types.contains(DONATE);
+    }
+
+    /**
+     * Encodes the batch as a BATCH request.
+     *
+     * @return the request bytes
+     * @throws IOException never, the request is built in memory
+     */
+    byte[] encode() throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream request = new DataOutputStream(baos);
+        request.writeUTF("BATCH");
+        request.write(fields());
+        return baos.toByteArray();
+    }
+
+    /**
+     * Encodes the operation count and the operations, which are the fields of a version 1 BATCH request.
+     *
+     * @return the fields
+     * @throws IOException never, the fields are built in memory
+     */
+    byte[] fields() throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream request = new DataOutputStream(baos);
+        request.writeInt(types.size());
+        request.write(operations.toByteArray());
+        return baos.toByteArray();
+    }
+
+    /**
+     * Reads the results of this batch from the response.
+     *
+     * @param response the BATCH response
+     * @return one result per operation, in the order they were added
+     * @throws IOException if the response is malformed or does not match the batch
+     */
+    List<Result> decode(byte[] response) throws IOException {
+        return decode(new DataInputStream(new ByteArrayInputStream(response)));
+    }
+
+    /**
+     * Reads the results of this batch from a stream over the response, such as the payload of a version 1 reply.
+     *
+     * @param dis the stream over the response
+     * @return one result per operation, in the order they were added
+     * @throws IOException if the response is malformed or does not match the batch
+     */
+    List<Result> decode(DataInputStream dis) throws IOException {
+        int count = dis.readInt();
+        if (count != types.size()) {
+            throw new IOException("Batch response has " + count + " results for " + types.size() + " operations");
+        }
+
+        List<Result> results = new ArrayList<>(count);
+        for (byte type : types) {
+            byte status = dis.readByte();
+            if (type == CHECK_DETAILS && status == STATUS_OK) {
+                results.add(new Result(type, status, dis.readUTF(), dis.readDouble(), dis.readDouble(),
+                        dis.readLong()));
+            } else {
+                results.add(new Result(type, status, null, 0, 0, 0));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * The result of one operation of a batch. The event fields are only set for a successful CHECK_DETAILS.
+     */
+    static final class Result {
+        final byte type;
+        final byte status;
+        final String name;
+        final double targetAmount;
+        final double currentAmount;
+        final long deadline;
+
+        Result(byte type, byte status, String name, double targetAmount, double currentAmount, long deadline) {
+            this.type = type;
+            this.status = status;
+            this.name = name;
+            this.targetAmount = targetAmount;
+            this.currentAmount = currentAmount;
+            this.deadline = deadline;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.function.Supplier;
+
+/**
+ * The BufferPool class keeps a bounded number of reusable buffers so the server does not allocate new buffers for
+ * every packet. When the pool is empty a new buffer is created, and buffers released into a full pool are left to the
+ * garbage collector, so the pool never blocks and never fails.
+ *
+ * @param <T> the type of buffer held by the pool
+ */
+final class BufferPool<T> {
+
+    private final ArrayBlockingQueue<T> buffers;
+    private final Supplier<T> factory;
+
+    /**
+     * Constructs a new pool.
+     *
+     * @param capacity the maximum number of idle buffers kept by the pool
+     * @param factory creates a new buffer when the pool is empty
+     */
+    BufferPool(int capacity, Supplier<T> factory) {
+        this.buffers = new ArrayBlockingQueue<>(capacity);
+        this.factory = factory;
+    }
+
+    /**
+     * Takes a buffer from the pool, or creates a new one if the pool is empty.
+     *
+     * @return a buffer for the exclusive use of the caller until it is released
+     */
+    T acquire() {
+        T buffer = buffers.poll();
+        return buffer != null ? buffer : factory.get();
+    }
+
+    /**
+     * Returns a buffer to the pool. The caller must not use the buffer after releasing it.
+     *
+     * @param buffer the buffer to return
+     */
+    void release(T buffer) {
+        buffers.offer(buffer);
+    }
+}
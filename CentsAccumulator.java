@@ -0,0 +1,75 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The CentsAccumulator class is the exact running total of the donations to one event, in whole cents, built for
+ * many threads adding to it at once in the style of LongAdder.
+ *
+ * It starts as a single counter updated with compare-and-set, which is all a quiet event ever needs. The first time
+ * two donations collide on it, it inflates into STRIPES cells, each on its own cache line, and from then on every
+ * thread adds to the cell picked by its thread id. So donations to a popular event no longer queue up on one cache
+ * line, while the thousands of quiet events cost one long each.
+ *
+ * A read adds up the base and the cells. The result is exact, since it is integer arithmetic, and it includes every
+ * add that finished before the read started; adds that run at the same time as the read may or may not be included.
+ */
+final class CentsAccumulator {
+
+    private static final int STRIPES =
+            Math.min(64, Integer.highestOneBit(Math.max(2, Runtime.getRuntime().availableProcessors()) * 2 - 1));
+    private static final int PADDING = 8; // Longs per 64-byte cache line
+    private static final VarHandle BASE;
+
+    static {
+        try {
+            BASE = MethodHandles.lookup().findVarHandle(CentsAccumulator.class, "base", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private volatile long base;
+    private volatile AtomicLongArray cells;
+
+    /**
+     * Adds to the total.
+     *
+     * @param cents the amount to add, in cents
+     */
+    void add(long cents) {
+        AtomicLongArray current = cells;
+        if (current == null) {
+            long value = base;
+            if (BASE.compareAndSet(this, value, value + cents)) {
+                return;
+            }
+            current = inflate();
+        }
+        int stripe = (int) (Thread.currentThread().getId() * 0x9E3779B9L >>> 16) & (STRIPES - 1);
+        current.getAndAdd(stripe * PADDING, cents);
+    }
+
+    /**
+     * Returns the total.
+     *
+     * @return the sum of every add so far, in cents
+     */
+    long sum() {
+        long sum = base;
+        AtomicLongArray current = cells;
+        if (current != null) {
+            for (int stripe = 0; stripe < STRIPES; stripe++) {
+                sum += current.get(stripe * PADDING);
+            }
+        }
+        return sum;
+    }
+
+    private synchronized AtomicLongArray inflate() {
+        if (cells == null) {
+            cells = new AtomicLongArray(STRIPES * PADDING);
+        }
+        return cells;
+    }
+}
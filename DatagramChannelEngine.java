@@ -0,0 +1,268 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * The DatagramChannelEngine class serves requests on a non-blocking java.nio DatagramChannel driven by a Selector.
+ * Requests are received into pooled direct ByteBuffers and responses are written into pooled direct ResponseBuffers,
+ * so in the steady state a request costs no buffer allocations at all.
+ *
+ * The selector thread only moves bytes: it receives packets and hands them to the worker pool, and sends any
+ * responses that could not be sent straight away because the socket send buffer was full. Workers process the
+ * request, try to send the response themselves and only queue it for the selector thread when the send would block.
+ * Framed responses are copied chunk by chunk into pooled buffers of their own and sent the same way.
+ */
+final class DatagramChannelEngine implements ServerEngine {
+
+    private static final int POOLED_BUFFERS = 1024;
+
+    private final BufferPool<ByteBuffer> requestBuffers =
+            new BufferPool<>(POOLED_BUFFERS, () -> ByteBuffer.allocateDirect(GoFundMeServer.MAX_REQUEST_SIZE));
+    private final BufferPool<ResponseBuffer> responseBuffers =
+            new BufferPool<>(POOLED_BUFFERS, () -> new ResponseBuffer(GoFundMeServer.RESPONSE_BUFFER_SIZE, true));
+    private final ConcurrentLinkedQueue<PendingSend> pendingSends = new ConcurrentLinkedQueue<>();
+
+    private DatagramChannel channel;
+    private Selector selector;
+    private volatile SelectionKey key; // Set last, so a push that sees it can send
+    private ResponseBuffer busyResponse = responseBuffers.acquire(); // Only used by the selector thread
+
+    @Override
+    public void serve(int port, ExecutorService workers) throws IOException {
+        channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress(port));
+        channel.configureBlocking(false);
+        selector = Selector.open();
+        key = channel.register(selector, SelectionKey.OP_READ);
+        GoFundMeServer.logServerStarted(port, "DatagramChannel");
+
+        while (true) {
+            selector.select();
+            Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+            while (selectedKeys.hasNext()) {
+                SelectionKey selected = selectedKeys.next();
+                selectedKeys.remove();
+                if (selected.isValid() && selected.isWritable()) {
+                    flushPendingSends();
+                }
+                if (selected.isValid() && selected.isReadable()) {
+                    receiveAll(workers);
+                }
+            }
+        }
+    }
+
+    /**
+     * Receives every packet that is waiting on the channel and hands each one to the worker pool.
+     *
+     * @param workers the worker pool
+     * @throws IOException if the channel fails
+     */
+    private void receiveAll(ExecutorService workers) throws IOException {
+        while (true) {
+            ByteBuffer request = requestBuffers.acquire();
+            request.clear();
+            SocketAddress source = channel.receive(request);
+            if (source == null) {
+                requestBuffers.release(request);
+                return;
+            }
+            request.flip();
+            GoFundMeServer.metrics.recordReceived(request.remaining());
+
+            InetSocketAddress client = (InetSocketAddress) source;
+            if (!GoFundMeServer.admit(request, client.getAddress(), client.getPort(), busyResponse)) {
+                requestBuffers.release(request);
+                send(busyResponse, client);
+                busyResponse = responseBuffers.acquire();
+                continue;
+            }
+
+            ReceivedPacket packet = new ReceivedPacket(request, client);
+            try {
+                workers.execute(packet);
+            } catch (RejectedExecutionException e) {
+                packet.dropped();
+            }
+        }
+    }
+
+    @Override
+    public void push(byte[] datagram, InetSocketAddress client) {
+        if (key == null) {
+            return;
+        }
+        ResponseBuffer buffer = responseBuffers.acquire();
+        buffer.clear();
+        buffer.putBytes(datagram);
+        sendOrQueue(buffer, client);
+    }
+
+    /**
+     * Processes a single request on a worker thread and sends the response, or queues it for the selector thread if
+     * the socket send buffer is full.
+     *
+     * @param request the request, positioned at its first byte
+     * @param client the address of the client
+     */
+    private void handlePacket(ByteBuffer request, InetSocketAddress client) {
+        ResponseBuffer response = responseBuffers.acquire();
+        response.clear();
+        try {
+            GoFundMeServer.processData(request, response, client.getAddress(), client.getPort());
+        } finally {
+            requestBuffers.release(request);
+        }
+        send(response, client);
+    }
+
+    /**
+     * Sends a response, split into chunks by ResponseFramer if it is framed or into the datagrams it was written as,
+     * and returns its buffer to the pool.
+     *
+     * @param response the response
+     * @param client the address of the client
+     */
+    private void send(ResponseBuffer response, InetSocketAddress client) {
+        if (response.hasDatagrams()) {
+            ByteBuffer contents = response.contents();
+            int start = 0;
+            for (int i = 0; i < response.datagramCount(); i++) {
+                int end = response.datagramEnd(i);
+                ResponseBuffer datagram = responseBuffers.acquire();
+                datagram.clear();
+                datagram.putBytes(contents.limit(end).position(start));
+                sendOrQueue(datagram, client);
+                start = end;
+            }
+            responseBuffers.release(response);
+            return;
+        }
+        if (!response.isFramed() && response.length() == 0) {
+            responseBuffers.release(response); // A shed request too short to answer
+            return;
+        }
+        if (!response.isFramed()) {
+            sendOrQueue(response, client);
+            return;
+        }
+
+        ByteBuffer contents = response.contents();
+        int count = ResponseFramer.chunkCount(contents.limit());
+        for (int i = 0; i < count; i++) {
+            ResponseBuffer chunk = responseBuffers.acquire();
+            chunk.clear();
+            ResponseFramer.writeChunk(contents, response.requestId(), i, chunk);
+            sendOrQueue(chunk, client);
+        }
+        responseBuffers.release(response);
+    }
+
+    /**
+     * Sends a datagram straight away if possible, or queues it for the selector thread. The buffer goes back to the
+     * pool once it has been sent.
+     *
+     * @param datagram the datagram to send
+     * @param client the address of the client
+     */
+    private void sendOrQueue(ResponseBuffer datagram, InetSocketAddress client) {
+        ByteBuffer contents = datagram.contents();
+        try {
+            int length = contents.remaining();
+            if (pendingSends.isEmpty() && channel.send(contents, client) > 0) {
+                GoFundMeServer.metrics.recordSent(length);
+                responseBuffers.release(datagram);
+                return;
+            }
+        } catch (IOException e) {
+            logSendFailure(client, e);
+            responseBuffers.release(datagram);
+            return;
+        }
+
+        // The send would block (or earlier responses are still waiting): let the selector thread send it when the
+        // channel becomes writable, keeping responses in order
+        pendingSends.add(new PendingSend(datagram, contents, client));
+        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        selector.wakeup();
+    }
+
+    /**
+     * Sends queued responses until the queue is empty or the channel would block again.
+     */
+    private void flushPendingSends() {
+        PendingSend pending;
+        while ((pending = pendingSends.peek()) != null) {
+            try {
+                int length = pending.contents.remaining();
+                if (channel.send(pending.contents, pending.client) == 0) {
+                    return;
+                }
+                GoFundMeServer.metrics.recordSent(length);
+            } catch (IOException e) {
+                logSendFailure(pending.client, e);
+            }
+            pendingSends.poll();
+            responseBuffers.release(pending.response);
+        }
+        key.interestOps(SelectionKey.OP_READ);
+
+        // A worker may have queued a response after the queue looked empty but before write interest was cleared
+        if (!pendingSends.isEmpty()) {
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    private static void logSendFailure(InetSocketAddress client, IOException e) {
+        GoFundMeServer.metrics.recordSendFailure();
+        GoFundMeServer.log.log(AsyncLogger.Level.WARN, "Could not send response to IP = "
+                + client.getAddress().getHostAddress() + ", Port = " + client.getPort() + ": " + e.getMessage());
+    }
+
+    /**
+     * A received request on its way to a worker. If the worker pool drops it, its pooled buffer is released by the
+     * pool's overflow handler (or by receiveAll when the pool throws instead).
+     */
+    private final class ReceivedPacket implements ServerEngine.PacketTask {
+        private final ByteBuffer request;
+        private final InetSocketAddress client;
+
+        ReceivedPacket(ByteBuffer request, InetSocketAddress client) {
+            this.request = request;
+            this.client = client;
+        }
+
+        @Override
+        public void run() {
+            handlePacket(request, client);
+        }
+
+        @Override
+        public void dropped() {
+            requestBuffers.release(request);
+        }
+    }
+
+    /**
+     * A response waiting for the channel to become writable.
+     */
+    private static final class PendingSend {
+        final ResponseBuffer response;
+        final ByteBuffer contents;
+        final InetSocketAddress client;
+
+        PendingSend(ResponseBuffer response, ByteBuffer contents, InetSocketAddress client) {
+            this.response = response;
+            this.contents = contents;
+            this.client = client;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * The DatagramSocketEngine class serves requests on a blocking java.net.DatagramSocket.
+ * The calling thread receives packets and hands a copy of each one to the worker pool. Each worker writes responses
+ * into its own reusable heap ResponseBuffer and sends them on the shared socket, since DatagramSocket.send is
+ * thread-safe.
+ */
+final class DatagramSocketEngine implements ServerEngine {
+
+    private static final ThreadLocal<ResponseBuffer> RESPONSE_BUFFERS =
+            ThreadLocal.withInitial(() -> new ResponseBuffer(GoFundMeServer.RESPONSE_BUFFER_SIZE, false));
+    private static final ThreadLocal<ResponseBuffer> CHUNK_BUFFERS = ThreadLocal.withInitial(
+            () -> new ResponseBuffer(ResponseFramer.HEADER_SIZE + ResponseFramer.CHUNK_PAYLOAD_SIZE, false));
+
+    private volatile DatagramSocket serverSocket;
+    private final ResponseBuffer busyResponse = new ResponseBuffer(64, false); // Only used by the receive thread
+
+    @Override
+    public void serve(int port, ExecutorService workers) throws IOException {
+        serverSocket = new DatagramSocket(port);
+        GoFundMeServer.logServerStarted(port, "DatagramSocket");
+
+        byte[] receiveData = new byte[GoFundMeServer.MAX_REQUEST_SIZE];
+        ByteBuffer receivedRequest = ByteBuffer.wrap(receiveData);
+
+        while (true) {
+            DatagramPacket receivePacket = new DatagramPacket(receiveData, receiveData.length);
+            serverSocket.receive(receivePacket);
+            InetAddress clientAddress = receivePacket.getAddress();
+            int clientPort = receivePacket.getPort();
+            GoFundMeServer.metrics.recordReceived(receivePacket.getLength());
+
+            receivedRequest.clear().limit(receivePacket.getLength());
+            if (!GoFundMeServer.admit(receivedRequest, clientAddress, clientPort, busyResponse)) {
+                send(busyResponse, clientAddress, clientPort);
+                continue;
+            }
+
+            // The receive buffer is reused, so the worker gets its own copy of the request
+            byte[] requestData = Arrays.copyOf(receivePacket.getData(), receivePacket.getLength());
+            workers.execute(() -> handlePacket(requestData, clientAddress, clientPort));
+        }
+    }
+
+    @Override
+    public void push(byte[] datagram, InetSocketAddress client) {
+        DatagramSocket socket = serverSocket;
+        if (socket == null) {
+            return;
+        }
+        try {
+            socket.send(new DatagramPacket(datagram, datagram.length, client));
+            GoFundMeServer.metrics.recordSent(datagram.length);
+        } catch (IOException e) {
+            GoFundMeServer.metrics.recordSendFailure();
+            GoFundMeServer.log.log(AsyncLogger.Level.WARN, "Could not push to IP = "
+                    + client.getAddress().getHostAddress() + ", Port = " + client.getPort() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Processes a single request on a worker thread and sends the response back to the client.
+     *
+     * @param requestData the bytes of the request packet
+     * @param clientAddress the IP address of the client
+     * @param clientPort the port number of the client
+     */
+    private void handlePacket(byte[] requestData, InetAddress clientAddress, int clientPort) {
+        ResponseBuffer response = RESPONSE_BUFFERS.get();
+        response.clear();
+        GoFundMeServer.processData(ByteBuffer.wrap(requestData), response, clientAddress, clientPort);
+        send(response, clientAddress, clientPort);
+    }
+
+    /**
+     * Sends a response, split into chunks by ResponseFramer if it is framed or into the datagrams it was written as.
+     *
+     * @param response the response
+     * @param clientAddress the IP address of the client
+     * @param clientPort the port number of the client
+     */
+    private void send(ResponseBuffer response, InetAddress clientAddress, int clientPort) {
+        if (!response.isFramed() && response.length() == 0) {
+            return; // A shed request too short to answer
+        }
+        try {
+            if (response.hasDatagrams()) {
+                int start = 0;
+                for (int i = 0; i < response.datagramCount(); i++) {
+                    int end = response.datagramEnd(i);
+                    serverSocket.send(new DatagramPacket(response.array(), start, end - start, clientAddress,
+                            clientPort));
+                    GoFundMeServer.metrics.recordSent(end - start);
+                    start = end;
+                }
+                return;
+            }
+            if (!response.isFramed()) {
+                DatagramPacket sendPacket = new DatagramPacket(response.array(), response.length(), clientAddress,
+                        clientPort);
+                serverSocket.send(sendPacket);
+                GoFundMeServer.metrics.recordSent(response.length());
+                return;
+            }
+
+            ByteBuffer contents = response.contents();
+            ResponseBuffer chunk = CHUNK_BUFFERS.get();
+            int count = ResponseFramer.chunkCount(contents.limit());
+            for (int i = 0; i < count; i++) {
+                chunk.clear();
+                ResponseFramer.writeChunk(contents, response.requestId(), i, chunk);
+                serverSocket.send(new DatagramPacket(chunk.array(), chunk.length(), clientAddress, clientPort));
+                GoFundMeServer.metrics.recordSent(chunk.length());
+            }
+        } catch (IOException e) {
+            GoFundMeServer.metrics.recordSendFailure();
+            GoFundMeServer.log.log(AsyncLogger.Level.WARN, "Could not send response to IP = "
+                    + clientAddress.getHostAddress() + ", Port = " + clientPort + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,210 @@
+import java.util.Arrays;
+
+/**
+ * The DonationDedup class remembers the result of every donation that carried an idempotency key, so a DONATE that is
+ * received again (because the client did not get the reply and sent it once more) gets the original result instead of
+ * being applied twice.
+ *
+ * Keys are random, non-zero longs chosen by the client. They are kept in open-addressing tables of primitive longs
+ * with a parallel byte array for the results, so millions of keys cost about nine bytes each and no objects at all.
+ * The tables are split into stripes, each with its own lock, so concurrent donations rarely contend.
+ *
+ * Each stripe has two generations. New keys go into the current one; when it is older than the window, or full, it
+ * becomes the previous generation and the old previous generation is dropped. A key is therefore remembered for at
+ * least one window (unless the table fills up first) and at most two, and the memory used is bounded by the capacity.
+ */
+final class DonationDedup {
+
+    /** Returned by claim when the key is new: the caller must apply the donation and then call complete or release. */
+    static final int CLAIMED = -1;
+    /** Returned by claim when the same key is being applied right now by another request. */
+    static final int IN_PROGRESS = -2;
+
+    private static final byte PENDING = -1;
+    private static final byte RELEASED = -2;
+    private static final int STRIPES = 64;
+
+    private final long windowMillis;
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    /**
+     * Constructs a dedup table.
+     *
+     * @param windowMillis how long a key is remembered at least
+     * @param capacity the number of keys each generation holds, across all stripes
+     */
+    DonationDedup(long windowMillis, int capacity) {
+        this.windowMillis = windowMillis;
+        int slotsPerStripe = Integer.highestOneBit(Math.max(16, capacity / STRIPES) * 2 - 1) * 2;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(slotsPerStripe);
+        }
+    }
+
+    /**
+     * Looks a key up and claims it if it is new.
+     *
+     * @param key the idempotency key, not 0
+     * @return CLAIMED if the key is new, IN_PROGRESS if it is being applied, or the result stored by complete
+     */
+    int claim(long key) {
+        long hash = mix(key);
+        Stripe stripe = stripes[(int) (hash >>> 58)];
+        synchronized (stripe) {
+            stripe.rotateIfDue(System.currentTimeMillis(), windowMillis);
+
+            int slot = stripe.current.find(key, hash);
+            Generation generation = stripe.current;
+            if (slot < 0) {
+                slot = stripe.previous.find(key, hash);
+                generation = stripe.previous;
+            }
+            if (slot >= 0) {
+                byte value = generation.values[slot];
+                if (value == PENDING) {
+                    return IN_PROGRESS;
+                }
+                if (value != RELEASED) {
+                    return value;
+                }
+                generation.values[slot] = PENDING;
+                return CLAIMED;
+            }
+
+            if (stripe.current.isFull()) {
+                stripe.rotate(System.currentTimeMillis());
+            }
+            stripe.current.insert(key, hash, PENDING);
+            return CLAIMED;
+        }
+    }
+
+    /**
+     * Stores the result of a claimed key, to be replayed for duplicates.
+     *
+     * @param key the idempotency key
+     * @param result the result, 0 to 127
+     */
+    void complete(long key, byte result) {
+        set(key, result);
+    }
+
+    /**
+     * Gives up a claimed key whose donation failed, so a duplicate applies it again.
+     *
+     * @param key the idempotency key
+     */
+    void release(long key) {
+        set(key, RELEASED);
+    }
+
+    private void set(long key, byte value) {
+        long hash = mix(key);
+        Stripe stripe = stripes[(int) (hash >>> 58)];
+        synchronized (stripe) {
+            int slot = stripe.current.find(key, hash);
+            if (slot >= 0) {
+                stripe.current.values[slot] = value;
+                return;
+            }
+            slot = stripe.previous.find(key, hash);
+            if (slot >= 0) {
+                stripe.previous.values[slot] = value;
+            }
+            // Otherwise the key was evicted while the donation was applied; a duplicate would now apply it again
+        }
+    }
+
+    /**
+     * Spreads the bits of a key (the finalizer of MurmurHash3), since client keys need not be random in every bit.
+     */
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    /**
+     * The two generations of one stripe. Guarded by the stripe's lock.
+     */
+    private static final class Stripe {
+        Generation current;
+        Generation previous;
+        long currentStart = System.currentTimeMillis();
+
+        Stripe(int slots) {
+            current = new Generation(slots);
+            previous = new Generation(slots);
+        }
+
+        void rotateIfDue(long now, long windowMillis) {
+            if (now - currentStart >= 2 * windowMillis) {
+                current.clear(); // Idle for two windows: every key has expired
+                previous.clear();
+                currentStart = now;
+            } else if (now - currentStart >= windowMillis) {
+                rotate(now);
+            }
+        }
+
+        void rotate(long now) {
+            Generation dropped = previous;
+            previous = current;
+            dropped.clear();
+            current = dropped;
+            currentStart = now;
+        }
+    }
+
+    /**
+     * One open-addressing table with linear probing. A key of 0 marks an empty slot. Never more than half full.
+     */
+    private static final class Generation {
+        final long[] keys;
+        final byte[] values;
+        final int mask;
+        int size;
+
+        Generation(int slots) {
+            keys = new long[slots];
+            values = new byte[slots];
+            mask = slots - 1;
+        }
+
+        int find(long key, long hash) {
+            for (int slot = (int) hash & mask; ; slot = (slot + 1) & mask) {
+                long found = keys[slot];
+                if (found == key) {
+                    return slot;
+                }
+                if (found == 0) {
+                    return -1;
+                }
+            }
+        }
+
+        void insert(long key, long hash, byte value) {
+            int slot = (int) hash & mask;
+            while (keys[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            values[slot] = value;
+            size++;
+        }
+
+        boolean isFull() {
+            return size >= keys.length / 2;
+        }
+
+        void clear() {
+            if (size > 0) {
+                Arrays.fill(keys, 0);
+                size = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,646 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * The EventLog class makes the EventStore durable with a write-ahead log and periodic snapshots.
+ *
+ * Every CREATE_EVENT and DONATE is appended to the log before it is applied to the store. Appends only copy the record
+ * into an in-memory staging buffer; a single flusher thread writes everything staged so far to the current log
+ * segment with one FileChannel.write and one fsync, so any number of concurrent donations share a single fsync (group
+ * commit). The fsync policy decides whether callers wait for that fsync:
+ * - always: a mutation is acknowledged only once it is on disk (the default)
+ * - interval: the log is fsynced every fsyncIntervalMillis and callers never wait, so a crash can lose that much
+ * - never: the log is written to the operating system but never explicitly fsynced
+ *
+ * A snapshot is a compacted copy of every event. Taking one rolls the log over to a new segment, so the snapshot
+ * covers exactly the segments before it and those segments can then be deleted. On startup the latest snapshot is
+ * loaded and the segments after it are replayed, which keeps restart time proportional to the traffic since the last
+ * snapshot rather than to the whole history.
+ *
+ * Each log record is laid out as: int length, int CRC32, long LSN, byte type, then the fields of the record. A record
+ * with a bad length or checksum marks a torn write at the end of a segment; replay of that segment stops there.
+ *
+ * If writing or forcing the log fails, the flusher stops for good. From then on every append throws, whatever the
+ * fsync policy, so no mutation is accepted that could not be persisted and staged records do not pile up in memory;
+ * awaitDurable throws for every record that was not written before the failure. The server has to be restarted, and
+ * recovery then replays whatever whole records reached the disk.
+ *
+ * A Listener set with setListener is handed every batch of records right after the flusher has written it (and forced
+ * it, if the policy says so), which is how a ReplicationPrimary streams the log to replicas without reading it back.
+ */
+final class EventLog {
+
+    /**
+     * When the log is forced to disk, and whether mutations wait for it.
+     */
+    enum FsyncPolicy {
+        ALWAYS,
+        INTERVAL,
+        NEVER
+    }
+
+    private static final byte CREATE_RECORD = 1;
+    private static final byte DONATE_RECORD = 2;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int SNAPSHOT_MAGIC = 0x47464D53; // "GFMS"
+    private static final String SNAPSHOT_FILE = "events.snapshot";
+    private static final String SEGMENT_PREFIX = "wal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private final Path directory;
+    private final FsyncPolicy fsyncPolicy;
+    private final long fsyncIntervalMillis;
+    private final CRC32 crc = new CRC32();
+
+    // Guarded by this: the staging buffer records are appended to, and the LSN of the last record appended
+    private ResponseBuffer staging = new ResponseBuffer(64 * 1024, false);
+    private ResponseBuffer spare = new ResponseBuffer(64 * 1024, false);
+    private long lastLsn;
+    private long snapshotLsn;
+    private boolean rollRequested;
+    private long segment;
+
+    // Guarded by durableMonitor: the LSN of the last record written (and forced, if the policy says so)
+    private final Object durableMonitor = new Object();
+    private long durableLsn;
+    private volatile IOException flushFailure; // Set once by the flusher, which then stops
+
+    private FileChannel channel;
+    private long lastForce;
+    private volatile Listener listener;
+
+    /**
+     * Receives the records the flusher has written, in LSN order.
+     */
+    interface Listener {
+        /**
+         * Called on the flusher thread after a batch of records is written. It must not keep the buffer, which is
+         * reused for the next batch, and should return quickly, since the next batch waits for it.
+         *
+         * @param records whole log records, in the on-disk layout
+         * @param lastLsn the LSN of the last record
+         */
+        void written(ByteBuffer records, long lastLsn);
+    }
+
+    /**
+     * Constructs a log stored in the given directory. Call recover before using it.
+     *
+     * @param directory the directory that holds the snapshot and the log segments
+     * @param fsyncPolicy when the log is forced to disk
+     * @param fsyncIntervalMillis how often the log is forced with the INTERVAL policy
+     */
+    EventLog(Path directory, FsyncPolicy fsyncPolicy, long fsyncIntervalMillis) {
+        this.directory = directory;
+        this.fsyncPolicy = fsyncPolicy;
+        this.fsyncIntervalMillis = fsyncIntervalMillis;
+    }
+
+    /**
+     * Rebuilds the store from the latest snapshot and the log segments written after it, then opens a new segment for
+     * the records that follow and starts the flusher thread.
+     *
+     * @param store the empty store to rebuild
+     * @return the number of log records replayed on top of the snapshot
+     * @throws IOException if the snapshot or a segment cannot be read, or the new segment cannot be created
+     */
+    int recover(EventStore store) throws IOException {
+        Files.createDirectories(directory);
+
+        long firstSegment = loadSnapshot(store);
+        int replayed = 0;
+        long lastSegment = firstSegment - 1;
+        for (long replaySegment : listSegments()) {
+            Path path = segmentPath(replaySegment);
+            if (Files.size(path) == 0) {
+                Files.delete(path);
+            } else if (replaySegment >= firstSegment) {
+                replayed += replaySegment(path, store);
+            }
+            lastSegment = Math.max(lastSegment, replaySegment);
+        }
+
+        // Never append after a possibly torn tail: start a fresh segment instead
+        segment = lastSegment + 1;
+        channel = openSegment(segment);
+        durableLsn = lastLsn;
+
+        Thread flusher = new Thread(this::flushLoop, "gofundme-wal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+        return replayed;
+    }
+
+    /**
+     * Appends a CREATE_EVENT record.
+     *
+     * @param event the new event
+     * @return the LSN of the record, to pass to awaitDurable
+     * @throws IOException if the event name cannot be encoded, or writing the log failed earlier
+     */
+    synchronized long logCreate(FundraisingEvent event) throws IOException {
+        int start = beginRecord(CREATE_RECORD);
+        staging.putInt(event.id);
+        staging.putUTF(event.name);
+        staging.putDouble(event.targetAmount()); // Dollars on disk, as before cents were used in memory
+        staging.putLong(event.deadline);
+        return endRecord(start);
+    }
+
+    /**
+     * Appends a DONATE record.
+     *
+     * @param id the id of the event
+     * @param cents the donation in cents
+     * @return the LSN of the record, to pass to awaitDurable
+     * @throws IOException if writing the log failed earlier
+     */
+    synchronized long logDonation(int id, long cents) throws IOException {
+        int start = beginRecord(DONATE_RECORD);
+        staging.putInt(id);
+        staging.putLong(cents);
+        return endRecord(start);
+    }
+
+    /**
+     * Appends a DONATE record for each accepted donation of a batch, in one go.
+     *
+     * @param count the number of donations
+     * @param ids the ids of the events
+     * @param cents the donations in cents
+     * @return the LSN of the last record, to pass to awaitDurable
+     * @throws IOException if writing the log failed earlier
+     */
+    synchronized long logDonations(int count, int[] ids, long[] cents) throws IOException {
+        checkFailure();
+        for (int i = 0; i < count; i++) {
+            int start = beginRecord(DONATE_RECORD);
+            staging.putInt(ids[i]);
+            staging.putLong(cents[i]);
+            endRecord(start);
+        }
+        return lastLsn;
+    }
+
+    private int beginRecord(byte type) throws IOException {
+        checkFailure();
+        int start = staging.length();
+        staging.putInt(0); // length, filled in by endRecord
+        staging.putInt(0); // checksum, filled in by endRecord
+        staging.putLong(++lastLsn);
+        staging.putByte(type);
+        return start;
+    }
+
+    private long endRecord(int start) {
+        int bodyStart = start + RECORD_HEADER_SIZE;
+        int bodyLength = staging.length() - bodyStart;
+        crc.reset();
+        crc.update(staging.array(), bodyStart, bodyLength);
+        staging.setInt(start, bodyLength);
+        staging.setInt(start + 4, (int) crc.getValue());
+        notifyAll();
+        return lastLsn;
+    }
+
+    /**
+     * Throws if the flusher has stopped after a failure, so nothing more is staged that it would never write.
+     */
+    private void checkFailure() throws IOException {
+        IOException failure = flushFailure;
+        if (failure != null) {
+            throw new IOException("The write-ahead log failed earlier: " + failure.getMessage(), failure);
+        }
+    }
+
+    /**
+     * Waits until the record with the given LSN is durable. With the ALWAYS policy this blocks until the flusher has
+     * forced the record to disk; with the other policies it returns immediately unless the log has failed. An
+     * interrupt does not cut the wait short, since the record is written all the same and the caller has to know
+     * whether it was; the thread's interrupt status is set again on return.
+     *
+     * @param lsn the LSN returned by logCreate or logDonation
+     * @throws IOException if writing the log failed before the record was written
+     */
+    void awaitDurable(long lsn) throws IOException {
+        if (fsyncPolicy != FsyncPolicy.ALWAYS && flushFailure == null) {
+            return;
+        }
+
+        boolean interrupted = false;
+        try {
+            synchronized (durableMonitor) {
+                while (fsyncPolicy == FsyncPolicy.ALWAYS && durableLsn < lsn && flushFailure == null) {
+                    try {
+                        durableMonitor.wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (durableLsn < lsn) {
+                    checkFailure();
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Writes a snapshot of the store and deletes the log segments it makes redundant.
+     * The store is paused only while the log rolls over and the events are copied; the snapshot is written to disk
+     * after mutations have resumed.
+     *
+     * @param store the store to snapshot
+     * @throws IOException if the snapshot cannot be written
+     */
+    void snapshot(EventStore store) throws IOException {
+        long[] lsnAndSegment = new long[2];
+        List<EventStore.EventState> events = store.checkpoint(() -> {
+            lsnAndSegment[0] = lastLsn();
+            lsnAndSegment[1] = rollSegment();
+            return store.copyState();
+        });
+        if (lsnAndSegment[1] < 0) {
+            checkFailure();
+            return;
+        }
+
+        Path temporary = directory.resolve(SNAPSHOT_FILE + ".tmp");
+        CRC32 checksum = new CRC32();
+        try (OutputStream file = Files.newOutputStream(temporary);
+             DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(
+                     new CheckedOutputStream(file, checksum)))) {
+            dos.writeInt(SNAPSHOT_MAGIC);
+            dos.writeLong(lsnAndSegment[0]);
+            dos.writeLong(lsnAndSegment[1]);
+            dos.writeInt(events.size());
+            for (EventStore.EventState event : events) {
+                dos.writeInt(event.id);
+                dos.writeUTF(event.name);
+                dos.writeDouble(event.targetCents / 100.0);
+                dos.writeLong(event.deadline);
+                dos.writeLong(event.raisedCents);
+            }
+            dos.flush();
+            dos.writeLong(checksum.getValue());
+        }
+        try (FileChannel snapshotChannel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+            snapshotChannel.force(true);
+        }
+        Files.move(temporary, directory.resolve(SNAPSHOT_FILE), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        synchronized (this) {
+            snapshotLsn = lsnAndSegment[0];
+        }
+
+        for (long oldSegment : listSegments()) {
+            if (oldSegment < lsnAndSegment[1]) {
+                Files.deleteIfExists(segmentPath(oldSegment));
+            }
+        }
+    }
+
+    /**
+     * Returns the LSN of the last record appended. Called from EventStore.checkpoint, it is the LSN a copy of the
+     * store matches.
+     *
+     * @return the last LSN, or 0 if nothing was ever logged
+     */
+    synchronized long lastLsn() {
+        return lastLsn;
+    }
+
+    /**
+     * Asks the flusher to write out everything staged so far, forcing it if the policy says so, and waits for it.
+     * Called from EventStore.checkpoint, with nothing being appended, it returns the LSN a copy of the store matches
+     * once every record of that copy has been written.
+     *
+     * @return the LSN of the last record written, or -1 if writing the log failed
+     */
+    long flush() {
+        long target;
+        synchronized (this) {
+            target = lastLsn;
+            notifyAll();
+        }
+        boolean interrupted = false;
+        synchronized (durableMonitor) {
+            while (durableLsn < target && flushFailure == null) {
+                try {
+                    durableMonitor.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return flushFailure == null ? target : -1;
+    }
+
+    /**
+     * Sets the listener that is handed each batch of records once it is written, replacing any earlier one.
+     *
+     * @param listener the listener, or null for none
+     */
+    void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Asks the flusher to write out everything staged so far and switch to a new segment, and waits for it.
+     * Called with the store paused, so nothing is appended while the log rolls over.
+     *
+     * @return the number of the new segment, or -1 if nothing was logged since the last snapshot or the log failed
+     */
+    private synchronized long rollSegment() {
+        if (lastLsn == snapshotLsn) {
+            return -1;
+        }
+        rollRequested = true;
+        notifyAll();
+        while (rollRequested) {
+            if (flushFailure != null) {
+                return -1;
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return -1;
+            }
+        }
+        return segment;
+    }
+
+    /**
+     * The body of the flusher thread: repeatedly takes everything staged, writes it with one write call, forces it
+     * according to the fsync policy, and wakes the callers waiting for it.
+     */
+    private void flushLoop() {
+        while (true) {
+            ResponseBuffer batch;
+            long batchLsn;
+            boolean roll;
+            synchronized (this) {
+                while (staging.length() == 0 && !rollRequested) {
+                    try {
+                        wait(fsyncPolicy == FsyncPolicy.INTERVAL ? fsyncIntervalMillis : 0);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    if (fsyncPolicy == FsyncPolicy.INTERVAL && staging.length() == 0) {
+                        break;
+                    }
+                }
+                batch = staging;
+                staging = spare;
+                spare = batch;
+                batchLsn = lastLsn;
+                roll = rollRequested;
+            }
+
+            try {
+                ByteBuffer contents = batch.contents();
+                while (contents.hasRemaining()) {
+                    channel.write(contents);
+                }
+                forceIfDue(roll);
+                Listener written = listener;
+                if (written != null && contents.limit() > 0) {
+                    written.written(contents.rewind(), batchLsn);
+                }
+                batch.clear();
+
+                if (roll) {
+                    channel.close();
+                    channel = openSegment(segment + 1);
+                    synchronized (this) {
+                        segment++;
+                        rollRequested = false;
+                        notifyAll();
+                    }
+                }
+            } catch (IOException e) {
+                GoFundMeServer.log.log(AsyncLogger.Level.ERROR, "Write-ahead log failed: " + e.getMessage());
+                synchronized (durableMonitor) {
+                    flushFailure = e;
+                    durableMonitor.notifyAll();
+                }
+                synchronized (this) {
+                    staging.clear(); // Never written now; appends fail from here on
+                    notifyAll();
+                }
+                return;
+            }
+
+            synchronized (durableMonitor) {
+                durableLsn = batchLsn;
+                durableMonitor.notifyAll();
+            }
+        }
+    }
+
+    private void forceIfDue(boolean roll) throws IOException {
+        long now = System.currentTimeMillis();
+        boolean due;
+        switch (fsyncPolicy) {
+            case ALWAYS:
+                due = true;
+                break;
+            case INTERVAL:
+                due = roll || now - lastForce >= fsyncIntervalMillis;
+                break;
+            default:
+                due = roll;
+        }
+        if (due) {
+            channel.force(false);
+            lastForce = now;
+        }
+    }
+
+    /**
+     * Loads the snapshot, if there is one, into the store.
+     *
+     * @param store the store to load into
+     * @return the first log segment that is not covered by the snapshot
+     * @throws IOException if the snapshot exists but cannot be read or is corrupt
+     */
+    private long loadSnapshot(EventStore store) throws IOException {
+        Path snapshotPath = directory.resolve(SNAPSHOT_FILE);
+        if (!Files.exists(snapshotPath)) {
+            return 0;
+        }
+
+        CRC32 checksum = new CRC32();
+        try (InputStream file = Files.newInputStream(snapshotPath);
+             CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(file), checksum);
+             DataInputStream dis = new DataInputStream(checked)) {
+            if (dis.readInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("Not a snapshot file: " + snapshotPath);
+            }
+            lastLsn = dis.readLong();
+            snapshotLsn = lastLsn;
+            long firstSegment = dis.readLong();
+            int count = dis.readInt();
+            for (int i = 0; i < count; i++) {
+                int id = dis.readInt();
+                String name = dis.readUTF();
+                long targetCents = FundraisingEvent.toCents(dis.readDouble());
+                long deadline = dis.readLong();
+                long raisedCents = dis.readLong();
+                store.restoreEvent(id, name, targetCents, deadline, raisedCents);
+            }
+            long expected = checksum.getValue();
+            if (dis.readLong() != expected) {
+                throw new IOException("Snapshot checksum mismatch: " + snapshotPath);
+            }
+            return firstSegment;
+        }
+    }
+
+    /**
+     * Replays the records of one log segment into the store, stopping at the first torn or corrupt record.
+     *
+     * @param path the segment file
+     * @param store the store to apply the records to
+     * @return the number of records replayed
+     * @throws IOException if the segment cannot be read
+     */
+    private int replaySegment(Path path, EventStore store) throws IOException {
+        int replayed = 0;
+        try (FileChannel segmentChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (segmentChannel.size() == 0) {
+                return 0;
+            }
+            MappedByteBuffer records = segmentChannel.map(FileChannel.MapMode.READ_ONLY, 0, segmentChannel.size());
+            CRC32 checksum = new CRC32();
+
+            long lsn;
+            while ((lsn = applyRecord(records, checksum, store, 0)) > 0) {
+                lastLsn = Math.max(lastLsn, lsn);
+                replayed++;
+            }
+        }
+        return replayed;
+    }
+
+    /**
+     * Reads the log record at the position of a buffer, checks it and applies it to the store unless its LSN is at or
+     * below afterLsn. Used to replay segments and by replicas to apply the records streamed to them.
+     *
+     * @param records the buffer, positioned at the start of a record; on success it is moved past the record
+     * @param checksum a CRC32 to reuse for the check
+     * @param store the store to apply the record to
+     * @param afterLsn records with this LSN or less are skipped
+     * @return the LSN of the record, or -1 if the rest of the buffer is not a whole, valid record (a torn write)
+     */
+    static long applyRecord(ByteBuffer records, CRC32 checksum, EventStore store, long afterLsn) {
+        if (records.remaining() < RECORD_HEADER_SIZE) {
+            return -1;
+        }
+        int start = records.position();
+        int length = records.getInt(start);
+        int expectedCrc = records.getInt(start + 4);
+        if (length <= 0 || length > records.remaining() - RECORD_HEADER_SIZE) {
+            return -1;
+        }
+
+        ByteBuffer body = records.slice(start + RECORD_HEADER_SIZE, length);
+        checksum.reset();
+        checksum.update(body.duplicate());
+        if ((int) checksum.getValue() != expectedCrc) {
+            return -1;
+        }
+
+        try {
+            long lsn = body.getLong();
+            byte type = body.get();
+            if (lsn > afterLsn) {
+                if (type == CREATE_RECORD) {
+                    int id = body.getInt();
+                    String name = WireFormat.readUTF(body);
+                    store.restoreEvent(id, name, FundraisingEvent.toCents(body.getDouble()), body.getLong(), 0);
+                } else if (type == DONATE_RECORD) {
+                    store.applyDonation(body.getInt(), body.getLong());
+                }
+            }
+            records.position(start + RECORD_HEADER_SIZE + length);
+            return lsn;
+        } catch (IOException | RuntimeException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Returns the LSN of the log record at an index of a buffer of whole records.
+     *
+     * @param records the records
+     * @param index the index of the start of a record
+     * @return its LSN
+     */
+    static long recordLsn(ByteBuffer records, int index) {
+        return records.getLong(index + RECORD_HEADER_SIZE);
+    }
+
+    /**
+     * Returns the size of the log record at an index of a buffer of whole records, header included.
+     *
+     * @param records the records
+     * @param index the index of the start of a record
+     * @return its size in bytes
+     */
+    static int recordSize(ByteBuffer records, int index) {
+        return RECORD_HEADER_SIZE + records.getInt(index);
+    }
+
+    private List<Long> listSegments() throws IOException {
+        List<Long> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory,
+                SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    segments.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                            name.length() - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    // Not one of ours
+                }
+            }
+        }
+        segments.sort(null);
+        return segments;
+    }
+
+    private Path segmentPath(long segmentNumber) {
+        return directory.resolve(String.format("%s%016d%s", SEGMENT_PREFIX, segmentNumber, SEGMENT_SUFFIX));
+    }
+
+    private FileChannel openSegment(long segmentNumber) throws IOException {
+        return FileChannel.open(segmentPath(segmentNumber), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+    }
+}
@@ -0,0 +1,316 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.IntFunction;
+
+/**
+ * The EventNameIndex class finds events by the words of their names, for the SEARCH request, without scanning every
+ * event. Names are free text and need not be unique, so a search returns every matching event, in id order.
+ *
+ * A name is split into tokens: runs of letters and digits, lower-cased. Each token maps to a posting list of the ids
+ * of the events whose name contains it, kept sorted. The tokens themselves are kept in a skip list sorted by token,
+ * which serves as the prefix tree: the tokens starting with a prefix are the contiguous range from the prefix up to
+ * the prefix followed by the highest character, found in O(log n).
+ *
+ * A query is tokenized the same way. Every token but the last has to match a whole token of the name, and the last
+ * one any token it is a prefix of, so a query typed so far already finds the events. The matches are the
+ * intersection of one sorted id stream per query token (the union of the posting lists of every token in the range,
+ * for the prefix), walked by seeking each stream to the highest id any other stream is at, starting with the shortest.
+ * A page of matches after a cursor therefore costs a binary search per posting list and work proportional to the
+ * page and to the shortest posting list, not to the number of events.
+ *
+ * A short prefix such as "a" can match thousands of tokens, and a union of that many streams is slow to seek. So each
+ * event is also added to a posting list per prefix of up to SHORT_PREFIX_LENGTH characters of each of its tokens,
+ * the first levels of a prefix tree, and a prefix that short is looked up as a single posting list. A longer prefix
+ * that still matches more than MAX_UNION_TOKENS tokens is looked up through the posting list of its first
+ * SHORT_PREFIX_LENGTH characters instead, and the whole prefix is checked against the names of the events found.
+ *
+ * Events are only ever added, except that clear drops them all. A posting list is appended to under its own lock and
+ * read without one, so an event created during a search may or may not be found, as with the store's other live views.
+ * When two creations race and the higher id is indexed first, a search running at that moment can also miss the other
+ * event of that token.
+ */
+final class EventNameIndex {
+
+    /** The most tokens of a query that are used; the rest are ignored. */
+    static final int MAX_QUERY_TOKENS = 16;
+
+    /** The longest prefixes that have posting lists of their own. */
+    static final int SHORT_PREFIX_LENGTH = 2;
+
+    private static final int END = Integer.MAX_VALUE;
+    // The most tokens a prefix is looked up through; beyond this the prefix is checked against the names instead
+    private static final int MAX_UNION_TOKENS = 64;
+
+    private final ConcurrentSkipListMap<String, Postings> tokens = new ConcurrentSkipListMap<>();
+    private final ConcurrentHashMap<String, Postings> shortPrefixes = new ConcurrentHashMap<>();
+    private final IntFunction<String> names;
+
+    /**
+     * Constructs an empty index.
+     *
+     * @param names returns the name of the event with an id that was added, to check a prefix against
+     */
+    EventNameIndex(IntFunction<String> names) {
+        this.names = names;
+    }
+
+    /**
+     * Adds an event to the posting list of every token of its name, and of every prefix of those tokens up to
+     * SHORT_PREFIX_LENGTH characters. Adding an event again has no effect.
+     *
+     * @param id the id of the event
+     * @param name the name of the event
+     */
+    void add(int id, String name) {
+        for (String token : tokenize(name, Integer.MAX_VALUE)) {
+            // The prefixes first, so a search that finds the token also finds the posting list of its short prefix
+            for (int length = 1; length <= Math.min(SHORT_PREFIX_LENGTH, token.length()); length++) {
+                shortPrefixes.computeIfAbsent(token.substring(0, length), t -> new Postings()).add(id);
+            }
+            tokens.computeIfAbsent(token, t -> new Postings()).add(id);
+        }
+    }
+
+    /**
+     * Drops every event, as when a replica replaces its store with a snapshot.
+     */
+    void clear() {
+        tokens.clear();
+        shortPrefixes.clear();
+    }
+
+    /**
+     * Finds the events matching a query, in id order.
+     *
+     * @param query the words to look for
+     * @param afterId only ids above this one are returned, so the last id of one page is the cursor of the next
+     * @param limit the most ids to return
+     * @return the ids of the matching events, at most limit of them
+     */
+    int[] search(String query, int afterId, int limit) {
+        List<String> queryTokens = new ArrayList<>(tokenize(query, MAX_QUERY_TOKENS));
+        if (queryTokens.isEmpty() || limit <= 0) {
+            return new int[0];
+        }
+
+        String prefix = queryTokens.remove(queryTokens.size() - 1);
+        List<Postings> words = new ArrayList<>(queryTokens.size());
+        for (String token : queryTokens) {
+            Postings postings = tokens.get(token);
+            if (postings == null) {
+                return new int[0];
+            }
+            words.add(postings);
+        }
+        words.sort(Comparator.comparingInt(postings -> postings.size));
+
+        List<IdStream> streams = new ArrayList<>(words.size() + 1);
+        for (Postings postings : words) {
+            streams.add(postings.stream());
+        }
+        if (prefix.length() <= SHORT_PREFIX_LENGTH) {
+            Postings postings = shortPrefixes.get(prefix);
+            if (postings == null) {
+                return new int[0];
+            }
+            streams.add(postings.stream());
+            return intersect(streams.toArray(new IdStream[0]), afterId, limit, null);
+        }
+        List<Postings> prefixed = new ArrayList<>();
+        for (Postings postings : tokens.subMap(prefix, true, prefix + Character.MAX_VALUE, true).values()) {
+            prefixed.add(postings);
+            if (prefixed.size() > MAX_UNION_TOKENS) {
+                streams.add(shortPrefixes.get(prefix.substring(0, SHORT_PREFIX_LENGTH)).stream());
+                return intersect(streams.toArray(new IdStream[0]), afterId, limit, prefix);
+            }
+        }
+        if (prefixed.isEmpty()) {
+            return new int[0];
+        }
+        streams.add(prefixed.size() == 1 ? prefixed.get(0).stream() : new UnionStream(prefixed));
+        return intersect(streams.toArray(new IdStream[0]), afterId, limit, null);
+    }
+
+    /**
+     * Walks the intersection of sorted id streams.
+     *
+     * @param streams the streams, the shortest first
+     * @param afterId only ids above this one are returned
+     * @param limit the most ids to return
+     * @param prefix a prefix that some token of the name of each match has to start with, or null
+     * @return the ids in every stream, at most limit of them
+     */
+    private int[] intersect(IdStream[] streams, int afterId, int limit, String prefix) {
+        int[] ids = new int[limit];
+        int count = 0;
+        int candidate = afterId == END ? END : afterId + 1;
+        while (count < limit && candidate != END) {
+            // Seek every stream to the candidate; a stream that is past it makes its position the new candidate
+            int agreed = 0;
+            for (int i = 0; agreed < streams.length && candidate != END; i = (i + 1) % streams.length) {
+                int id = streams[i].seek(candidate);
+                if (id == candidate) {
+                    agreed++;
+                } else {
+                    candidate = id;
+                    agreed = 1;
+                }
+            }
+            if (candidate != END && (prefix == null || hasTokenStartingWith(names.apply(candidate), prefix))) {
+                ids[count++] = candidate;
+            }
+            if (candidate != END) {
+                candidate = candidate == END - 1 ? END : candidate + 1;
+            }
+        }
+        return count == limit ? ids : Arrays.copyOf(ids, count);
+    }
+
+    /**
+     * Returns the number of distinct tokens in the index.
+     *
+     * @return the number of tokens
+     */
+    int tokenCount() {
+        return tokens.size();
+    }
+
+    /**
+     * Tells whether a token of a name starts with a prefix, without splitting the name. The prefix is a token, so a
+     * match cannot run past the end of the token it starts in.
+     */
+    private static boolean hasTokenStartingWith(String name, String prefix) {
+        if (name == null) {
+            return false;
+        }
+        boolean previousWordChar = false;
+        for (int i = 0; i < name.length(); i++) {
+            boolean wordChar = Character.isLetterOrDigit(name.charAt(i));
+            if (wordChar && !previousWordChar && name.regionMatches(true, i, prefix, 0, prefix.length())) {
+                return true;
+            }
+            previousWordChar = wordChar;
+        }
+        return false;
+    }
+
+    /**
+     * Splits text into distinct lower-case tokens of letters and digits, in order of first appearance.
+     *
+     * @param text the text
+     * @param maxTokens the most tokens to return
+     * @return the tokens
+     */
+    static Set<String> tokenize(String text, int maxTokens) {
+        Set<String> result = new LinkedHashSet<>();
+        int start = -1;
+        for (int i = 0; i <= text.length() && result.size() < maxTokens; i++) {
+            boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                result.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * A sorted stream of ids that can only move forward.
+     */
+    private interface IdStream {
+        /**
+         * Moves to the first id at or above target.
+         *
+         * @param target the lowest id wanted
+         * @return that id, or END if there is none
+         */
+        int seek(int target);
+    }
+
+    /**
+     * The sorted ids of the events whose name contains one token. Ids are appended in the order events are created,
+     * which is id order except when two creations race, in which case the list is copied with the id in its place.
+     */
+    private static final class Postings {
+        private volatile int[] ids = new int[2];
+        private volatile int size;
+
+        synchronized void add(int id) {
+            int[] current = ids;
+            int count = size;
+            int index = Arrays.binarySearch(current, 0, count, id);
+            if (index >= 0) {
+                return;
+            }
+            int insertion = -index - 1;
+            if (insertion == count && count < current.length) {
+                current[count] = id;
+            } else {
+                // Readers may be walking the array, so it is never shifted in place
+                int[] grown = new int[count == current.length ? count * 2 : current.length];
+                System.arraycopy(current, 0, grown, 0, insertion);
+                grown[insertion] = id;
+                System.arraycopy(current, insertion, grown, insertion + 1, count - insertion);
+                ids = grown;
+            }
+            size = count + 1; // Written last, so a reader that sees the new size also sees the id
+        }
+
+        IdStream stream() {
+            int count = size;
+            int[] snapshot = ids;
+            return new IdStream() {
+                private int position;
+
+                @Override
+                public int seek(int target) {
+                    if (position < count && snapshot[position] < target) {
+                        int index = Arrays.binarySearch(snapshot, position, count, target);
+                        position = index >= 0 ? index : -index - 1;
+                    }
+                    return position < count ? snapshot[position] : END;
+                }
+            };
+        }
+    }
+
+    /**
+     * The union of several streams, for a prefix that several tokens start with. The streams wait in a heap ordered by
+     * their current id, so a seek only touches the streams that are behind the target.
+     */
+    private static final class UnionStream implements IdStream {
+        private final PriorityQueue<int[]> heap = new PriorityQueue<>((a, b) -> Integer.compare(a[0], b[0]));
+        private final List<IdStream> streams = new ArrayList<>();
+
+        UnionStream(List<Postings> postingLists) {
+            for (Postings postings : postingLists) {
+                streams.add(postings.stream());
+            }
+            for (int i = 0; i < streams.size(); i++) {
+                heap.add(new int[] {Integer.MIN_VALUE, i});
+            }
+        }
+
+        @Override
+        public int seek(int target) {
+            while (!heap.isEmpty() && heap.peek()[0] < target) {
+                int[] entry = heap.poll();
+                entry[0] = streams.get(entry[1]).seek(target);
+                if (entry[0] != END) {
+                    heap.add(entry);
+                }
+            }
+            return heap.isEmpty() ? END : heap.peek()[0];
+        }
+    }
+}
@@ -0,0 +1,839 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntPredicate;
+import java.util.function.Supplier;
+
+/**
+ * The EventStore class holds every fundraising event, keyed by id.
+ * It replaces a single ArrayList guarded by one global lock: lookups and donations go straight to the event in a
+ * ConcurrentHashMap, so donations to different events never contend, and donations to the same event are applied
+ * with an atomic add on the event's cents counter.
+ *
+ * Every mutation bumps a store-wide version number. Readers that need a consistent view of several events (such as
+ * the event list) read the version before and after reading the events, and retry if it changed in between, so
+ * readers never block writers.
+ *
+ * Each event is also stamped with the version of its last change, and a change index maps that version to the event.
+ * Clients that keep a local copy of the events ask for the changes since the version they last saw, which is a walk
+ * over the tail of the change index instead of a copy of every event. Because a change takes its version before it is
+ * indexed, concurrent changes can finish out of order; a ring of completed versions tracks the highest version below
+ * which every change is indexed, and a query never reads past it, so no change is ever skipped.
+ *
+ * Current and past events are kept in two skip lists ordered by deadline, then id, so the event list is a walk over
+ * both with no sorting. An event is added to one of them when it is created and moved from current to past by
+ * expireDue once its deadline passes. Moves happen one sweep at a time and are bracketed by an index sequence number
+ * (odd while a sweep is moving events), which list readers check along with the version.
+ *
+ * Recording a change costs a bump of the store version and an update of the change index, and it makes every cached
+ * response of the event stale, so a viral event taking donations from every worker at once would spend most of its
+ * time there. An event that takes more than the hot event rate (see aggregateHotEvents) is therefore aggregated: its
+ * donations are still checked against the deadline, logged and added to its CentsAccumulator, whose per-thread cells
+ * buffer them, but the change is only recorded once per fold, by foldHotEvents. Cached CHECK_DETAILS and LIST_EVENTS
+ * responses and LIST_CHANGES_SINCE then lag the event's total by at most the fold interval.
+ *
+ * Event names are indexed by an EventNameIndex as events are added, so SEARCH finds events by the words of their
+ * names without scanning the store.
+ *
+ * Every recorded change also moves the event on the Leaderboards, which keep the events ranked by amount raised,
+ * fraction of the target raised and donations in the last hour, so LEADERBOARD reads the top of a ranking instead of
+ * sorting the store. The donation counts age, so decayLeaderboards has to be called regularly.
+ *
+ * In a sharded deployment each server owns only the event ids its HashRing maps to it, and setIdFilter makes the
+ * store skip the ids owned by other shards when it numbers new events, so ids stay unique across the shards.
+ *
+ * When an EventLog is attached, every mutation is appended to it and applied only once its log record is durable, all
+ * while holding the shared side of a checkpoint lock. A mutation that throws was therefore never applied, so a client
+ * is never told a change failed that the store then serves. Taking a snapshot holds the exclusive side for just long
+ * enough to roll the log and copy the events, so a snapshot always matches the log exactly.
+ */
+final class EventStore {
+
+    /**
+     * Receives every change recorded by the store, after the event has been stamped with its new version.
+     */
+    interface ChangeListener {
+        void changed(FundraisingEvent event);
+    }
+
+    /**
+     * The outcome of a donation.
+     */
+    enum DonationResult {
+        SUCCESS,
+        INVALID_EVENT,
+        EVENT_ENDED,
+        // Added last, because the idempotency table stores outcomes by ordinal
+        INVALID_AMOUNT
+    }
+
+    private final ConcurrentHashMap<Integer, FundraisingEvent> events = new ConcurrentHashMap<>();
+    private final AtomicInteger nextId = new AtomicInteger();
+    private volatile IntPredicate idFilter = id -> true;
+    private volatile boolean readOnly;
+    private final AtomicLong version = new AtomicLong();
+    private static final int COMPLETION_RING_SIZE = 1 << 14;
+    private final AtomicLongArray completedVersions = new AtomicLongArray(COMPLETION_RING_SIZE);
+    private final AtomicLong indexedVersion = new AtomicLong();
+    private final ConcurrentSkipListMap<Long, Integer> changeIndex = new ConcurrentSkipListMap<>();
+    private volatile long epoch = new Random().nextLong();
+
+    private static final Comparator<FundraisingEvent> BY_DEADLINE =
+            Comparator.<FundraisingEvent>comparingLong(e -> e.deadline).thenComparingInt(e -> e.id);
+    private final ConcurrentSkipListSet<FundraisingEvent> currentEvents = new ConcurrentSkipListSet<>(BY_DEADLINE);
+    private final ConcurrentSkipListSet<FundraisingEvent> pastEvents = new ConcurrentSkipListSet<>(BY_DEADLINE);
+    private final AtomicLong indexSequence = new AtomicLong();
+    private final EventNameIndex nameIndex = new EventNameIndex(id -> {
+        FundraisingEvent event = events.get(id);
+        return event != null ? event.name : null;
+    });
+    private final Leaderboards leaderboards = new Leaderboards();
+
+    {
+        // Slot i first holds the version that "completed" one lap before version i; version 0 never exists
+        for (int slot = 1; slot < COMPLETION_RING_SIZE; slot++) {
+            completedVersions.set(slot, slot - COMPLETION_RING_SIZE);
+        }
+    }
+    private final ReentrantReadWriteLock checkpointLock = new ReentrantReadWriteLock();
+    private final LongAdder lockWaits = new LongAdder();
+    private final LongAdder lockWaitNanos = new LongAdder();
+    private EventLog journal;
+    private volatile ChangeListener changeListener;
+
+    private static final long HOT_WINDOW_MILLIS = 100;
+    private static final long HOT_GRACE_MILLIS = 60000;
+    private final Set<FundraisingEvent> hotEvents = ConcurrentHashMap.newKeySet();
+    private volatile int hotThreshold; // Donations per HOT_WINDOW_MILLIS that make an event hot, or 0 for never
+
+    /**
+     * Attaches the write-ahead log that every later mutation is recorded in.
+     *
+     * @param journal the log, already recovered into this store
+     */
+    void setJournal(EventLog journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Sets the listener told about every change, such as the Subscriptions that push new totals to clients. It is
+     * called on the thread that made the change, so it has to be quick.
+     *
+     * @param listener the listener, or null for none
+     */
+    void setChangeListener(ChangeListener listener) {
+        this.changeListener = listener;
+    }
+
+    /**
+     * Restricts the ids given to new events, such as to the ids a shard owns. Events already in the store keep theirs.
+     *
+     * @param filter accepts the ids this store may give out
+     */
+    void setIdFilter(IntPredicate filter) {
+        this.idFilter = filter;
+    }
+
+    /**
+     * Makes the store read-only, as on a replica: createEvent and donate then fail with a ReadOnlyException, while
+     * restoreEvent and applyDonation still apply the changes streamed from the primary.
+     */
+    void setReadOnly() {
+        this.readOnly = true;
+    }
+
+    private void checkWritable() throws ReadOnlyException {
+        if (readOnly) {
+            throw new ReadOnlyException();
+        }
+    }
+
+    /**
+     * Creates a new fundraising event and adds it to the store, provided the target is valid (see
+     * FundraisingEvent.isValidTarget).
+     *
+     * @param name the name of the event
+     * @param targetAmount the target amount to be raised
+     * @param deadline the deadline of the event, in milliseconds since the epoch
+     * @return the new event, or null if the target is not valid, in which case nothing was created
+     * @throws IOException if the event cannot be written to the log, in which case it was not created, or a
+     *         ReadOnlyException on a replica
+     */
+    FundraisingEvent createEvent(String name, double targetAmount, long deadline) throws IOException {
+        checkWritable();
+        long targetCents = FundraisingEvent.toCents(targetAmount);
+        if (!FundraisingEvent.isValidTarget(targetCents)) {
+            return null;
+        }
+        if (journal == null) {
+            FundraisingEvent event = new FundraisingEvent(allocateId(), name, targetCents, deadline);
+            addEvent(event);
+            recordChange(event);
+            return event;
+        }
+
+        lockForUpdate();
+        try {
+            FundraisingEvent event = new FundraisingEvent(allocateId(), name, targetCents, deadline);
+            journal.awaitDurable(journal.logCreate(event));
+            addEvent(event);
+            recordChange(event);
+            return event;
+        } finally {
+            checkpointLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Adds a donation to an event, provided the event exists, its deadline has not passed and the amount is a valid
+     * donation (see FundraisingEvent.isValidDonation). Only applying the donation, once it is logged, can throw an
+     * unchecked exception, so the donation counts as accepted if one is thrown.
+     *
+     * @param id the id of the event
+     * @param amount the donation in dollars
+     * @return the outcome of the donation
+     * @throws IOException if the donation cannot be written to the log, in which case it was not applied, or a
+     *         ReadOnlyException on a replica
+     */
+    DonationResult donate(int id, double amount) throws IOException {
+        checkWritable();
+        FundraisingEvent event = events.get(id);
+        if (event == null) {
+            return DonationResult.INVALID_EVENT;
+        }
+
+        // Check if the event deadline has passed
+        if (event.hasEnded(System.currentTimeMillis())) {
+            return DonationResult.EVENT_ENDED;
+        }
+
+        long cents = FundraisingEvent.toCents(amount);
+        if (!FundraisingEvent.isValidDonation(cents)) {
+            return DonationResult.INVALID_AMOUNT;
+        }
+        if (journal == null) {
+            addDonation(event, cents);
+            return DonationResult.SUCCESS;
+        }
+
+        lockForUpdate();
+        try {
+            journal.awaitDurable(journal.logDonation(id, cents));
+            addDonation(event, cents);
+        } finally {
+            checkpointLock.readLock().unlock();
+        }
+        return DonationResult.SUCCESS;
+    }
+
+    /**
+     * Applies the donations of a batch in a single pass: every donation is checked, then all the accepted ones are
+     * logged with one append, waited for with one wait for the log, and applied.
+     *
+     * @param count the number of donations
+     * @param ids the ids of the events
+     * @param amounts the donations in dollars
+     * @param results receives the outcome of each donation
+     * @throws IOException if the donations cannot be written to the log, in which case none was applied, or a
+     *         ReadOnlyException on a replica
+     */
+    void donate(int count, int[] ids, double[] amounts, DonationResult[] results) throws IOException {
+        if (count > 0) {
+            checkWritable();
+        }
+        long now = System.currentTimeMillis();
+        FundraisingEvent[] accepted = new FundraisingEvent[count];
+        int[] acceptedIds = new int[count];
+        long[] acceptedCents = new long[count];
+        int acceptedCount = 0;
+
+        for (int i = 0; i < count; i++) {
+            FundraisingEvent event = events.get(ids[i]);
+            long cents = FundraisingEvent.toCents(amounts[i]);
+            if (event == null) {
+                results[i] = DonationResult.INVALID_EVENT;
+            } else if (event.hasEnded(now)) {
+                results[i] = DonationResult.EVENT_ENDED;
+            } else if (!FundraisingEvent.isValidDonation(cents)) {
+                results[i] = DonationResult.INVALID_AMOUNT;
+            } else {
+                results[i] = DonationResult.SUCCESS;
+                accepted[acceptedCount] = event;
+                acceptedIds[acceptedCount] = event.id;
+                acceptedCents[acceptedCount] = cents;
+                acceptedCount++;
+            }
+        }
+        if (acceptedCount == 0) {
+            return;
+        }
+
+        if (journal == null) {
+            applyDonations(acceptedCount, accepted, acceptedCents);
+            return;
+        }
+
+        lockForUpdate();
+        try {
+            journal.awaitDurable(journal.logDonations(acceptedCount, acceptedIds, acceptedCents));
+            applyDonations(acceptedCount, accepted, acceptedCents);
+        } finally {
+            checkpointLock.readLock().unlock();
+        }
+    }
+
+    private void applyDonations(int count, FundraisingEvent[] accepted, long[] cents) {
+        for (int i = 0; i < count; i++) {
+            addDonation(accepted[i], cents[i]);
+        }
+    }
+
+    /**
+     * Adds an accepted donation to an event and records the change, unless the event is aggregated, in which case
+     * the change is left for the next fold. An event that is not aggregated yet becomes so once it takes donations
+     * faster than the hot event rate.
+     */
+    private void addDonation(FundraisingEvent event, long cents) {
+        event.addDonation(cents);
+        if (event.aggregated) {
+            // Set after the add, so a fold that clears the flag after this read already sees the amount
+            if (!event.unfolded) {
+                event.unfolded = true;
+            }
+            return;
+        }
+
+        recordChange(event);
+        int threshold = hotThreshold;
+        if (threshold > 0 && event.countDonation(System.currentTimeMillis(), HOT_WINDOW_MILLIS, threshold)) {
+            event.aggregated = true;
+            hotEvents.add(event);
+        }
+    }
+
+    /**
+     * Turns hot event aggregation on or off. Call foldHotEvents at the interval the aggregated totals may lag by.
+     *
+     * @param donationsPerSecond the donation rate above which an event is aggregated, or 0 to turn it off
+     */
+    void aggregateHotEvents(int donationsPerSecond) {
+        hotThreshold = donationsPerSecond <= 0 ? 0
+                : (int) Math.max(2, donationsPerSecond * HOT_WINDOW_MILLIS / 1000);
+    }
+
+    /**
+     * Records the change of every aggregated event that took donations since the last fold. An aggregated event stays
+     * aggregated until a grace period after its deadline, when no donation can still be on its way in.
+     *
+     * @param now the current time in milliseconds since the epoch
+     * @return the number of events whose change was recorded
+     */
+    int foldHotEvents(long now) {
+        int folded = 0;
+        for (FundraisingEvent event : hotEvents) {
+            if (event.hasEnded(now - HOT_GRACE_MILLIS)) {
+                event.aggregated = false;
+                hotEvents.remove(event);
+            }
+            if (event.unfolded) {
+                event.unfolded = false;
+                recordChange(event);
+                folded++;
+            }
+        }
+        return folded;
+    }
+
+    /**
+     * Returns the number of events whose donations are aggregated.
+     *
+     * @return the number of hot events
+     */
+    int hotEventCount() {
+        return hotEvents.size();
+    }
+
+    /**
+     * Takes the read side of the checkpoint lock for a logged mutation. Only when the lock is not free straight away
+     * (a snapshot holds or is waiting for the write side) is the wait timed, so the usual case costs nothing extra.
+     * The untimed tryLock would barge past a waiting snapshot, so the zero-timeout one is used instead.
+     */
+    private void lockForUpdate() {
+        ReentrantReadWriteLock.ReadLock lock = checkpointLock.readLock();
+        try {
+            if (lock.tryLock(0, TimeUnit.NANOSECONDS)) {
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        long start = System.nanoTime();
+        lock.lock();
+        lockWaitNanos.add(System.nanoTime() - start);
+        lockWaits.increment();
+    }
+
+    /**
+     * Returns how many logged mutations had to wait for the checkpoint lock.
+     *
+     * @return the number of waits
+     */
+    long lockWaits() {
+        return lockWaits.sum();
+    }
+
+    /**
+     * Returns the total time logged mutations spent waiting for the checkpoint lock.
+     *
+     * @return the wait in nanoseconds
+     */
+    long lockWaitNanos() {
+        return lockWaitNanos.sum();
+    }
+
+    /**
+     * Adds a new event to the id map, the name index, the leaderboards and the current or past deadline index. The
+     * caller records the change that ranks it.
+     *
+     * @param event the new event
+     */
+    private void addEvent(FundraisingEvent event) {
+        leaderboards.add(event);
+        events.put(event.id, event);
+        nameIndex.add(event.id, event.name);
+        if (event.deadline > System.currentTimeMillis()) {
+            currentEvents.add(event); // if the deadline passes meanwhile, the next sweep moves it
+        } else {
+            pastEvents.add(event);
+        }
+    }
+
+    /**
+     * Moves every current event whose deadline is at or before now to the past events, and records the move as a
+     * change of the event. Only the head of the current index is examined, so a sweep with nothing to do costs a
+     * single comparison.
+     *
+     * @param now the current time in milliseconds since the epoch
+     * @return the number of events moved
+     */
+    int expireDue(long now) {
+        FundraisingEvent head = firstOrNull(currentEvents);
+        if (head == null || head.deadline > now) {
+            return 0;
+        }
+
+        int moved = 0;
+        synchronized (indexSequence) {
+            indexSequence.incrementAndGet();
+            try {
+                while ((head = firstOrNull(currentEvents)) != null && head.deadline <= now) {
+                    pastEvents.add(head);
+                    currentEvents.remove(head);
+                    recordChange(head);
+                    moved++;
+                }
+            } finally {
+                indexSequence.incrementAndGet();
+            }
+        }
+        return moved;
+    }
+
+    private static FundraisingEvent firstOrNull(ConcurrentSkipListSet<FundraisingEvent> index) {
+        try {
+            return index.first();
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the events whose deadline had not passed at the last sweep, in deadline order.
+     *
+     * @return a live, weakly consistent view of the current events
+     */
+    Iterable<FundraisingEvent> currentEvents() {
+        return currentEvents;
+    }
+
+    /**
+     * Returns the events whose deadline had passed at the last sweep, in deadline order.
+     *
+     * @return a live, weakly consistent view of the past events
+     */
+    Iterable<FundraisingEvent> pastEvents() {
+        return pastEvents;
+    }
+
+    /**
+     * Returns the index sequence number, which is odd while a sweep is moving events between the deadline indexes
+     * and changes after every sweep that moved something.
+     *
+     * @return the index sequence number
+     */
+    long indexSequence() {
+        return indexSequence.get();
+    }
+
+    /**
+     * Gives a change to an event a new store version, moves the event to that version in the change index and to its
+     * new place on the leaderboards.
+     *
+     * @param event the event that changed
+     */
+    private void recordChange(FundraisingEvent event) {
+        long changeVersion = version.incrementAndGet();
+        long previousVersion = event.stamp(changeVersion);
+        if (previousVersion < changeVersion) {
+            changeIndex.put(changeVersion, event.id);
+            if (previousVersion > 0) {
+                changeIndex.remove(previousVersion);
+            }
+        }
+
+        // Only waits if the change a whole ring earlier is still in flight, which in practice never happens
+        int slot = (int) (changeVersion & (COMPLETION_RING_SIZE - 1));
+        while (completedVersions.get(slot) != changeVersion - COMPLETION_RING_SIZE) {
+            Thread.onSpinWait();
+        }
+        completedVersions.set(slot, changeVersion);
+
+        leaderboards.update(event, System.currentTimeMillis());
+        ChangeListener listener = changeListener;
+        if (listener != null) {
+            listener.changed(event);
+        }
+    }
+
+    /**
+     * Returns the highest version such that every change up to and including it has been indexed.
+     *
+     * @return the indexed version
+     */
+    private long indexedVersion() {
+        long indexed = indexedVersion.get();
+        long next = indexed;
+        while (completedVersions.get((int) ((next + 1) & (COMPLETION_RING_SIZE - 1))) >= next + 1) {
+            next++;
+        }
+        if (next > indexed) {
+            indexedVersion.accumulateAndGet(next, Math::max);
+        }
+        return next;
+    }
+
+    /**
+     * Returns the events that changed after the given version, oldest change first.
+     *
+     * @param sinceVersion the version the caller is up to date with
+     * @param limit the maximum number of events to return
+     * @return the changed events, and the version to ask from next time
+     */
+    Changes changesSince(long sinceVersion, int limit) {
+        long highVersion = indexedVersion();
+
+        List<FundraisingEvent> changed = new ArrayList<>();
+        for (Map.Entry<Long, Integer> change : changeIndex.tailMap(sinceVersion, false).entrySet()) {
+            long changeVersion = change.getKey();
+            if (changeVersion > highVersion) {
+                break;
+            }
+
+            FundraisingEvent event = events.get(change.getValue());
+            if (event == null || event.version() != changeVersion) {
+                // Superseded by a later change that raced with this one
+                changeIndex.remove(changeVersion, change.getValue());
+                continue;
+            }
+            if (changed.size() == limit) {
+                return new Changes(changed, changeVersion - 1, true);
+            }
+            changed.add(event);
+        }
+        return new Changes(changed, highVersion, false);
+    }
+
+    /**
+     * Returns the next id the id filter accepts. The ids it skips are used up, so highestId can be above the highest
+     * id of any event.
+     */
+    private int allocateId() {
+        IntPredicate filter = idFilter;
+        int id;
+        do {
+            id = nextId.getAndIncrement();
+        } while (!filter.test(id));
+        return id;
+    }
+
+    /**
+     * Adds an event read back from a snapshot or the log, keeping its original id. Used only during recovery and
+     * replication.
+     *
+     * @param id the id of the event
+     * @param name the name of the event
+     * @param targetCents the target amount to be raised, in cents
+     * @param deadline the deadline of the event, in milliseconds since the epoch
+     * @param raisedCents the amount already raised, in cents
+     */
+    void restoreEvent(int id, String name, long targetCents, long deadline, long raisedCents) {
+        FundraisingEvent event = new FundraisingEvent(id, name, targetCents, deadline);
+        event.addDonation(raisedCents);
+        addEvent(event);
+        nextId.accumulateAndGet(id + 1, Math::max);
+        recordChange(event);
+    }
+
+    /**
+     * Replaces every event with those of a snapshot, as a replica does when its primary sends one. Events missing
+     * from the snapshot are dropped and the others are loaded as the snapshot has them, instead of patching the events
+     * already here, since the primary may have given an id to another event after losing the one the replica has.
+     * The store gets a new epoch, so clients fetch every event again. The reload is bracketed by the index sequence
+     * like an expiry sweep, so a list read meanwhile is retried, while a lookup may briefly miss an event.
+     *
+     * @param snapshot the state of every event
+     */
+    void reload(List<EventState> snapshot) {
+        synchronized (indexSequence) {
+            indexSequence.incrementAndGet();
+            try {
+                leaderboards.clear();
+                nameIndex.clear();
+                events.clear();
+                currentEvents.clear();
+                pastEvents.clear();
+                changeIndex.clear();
+                hotEvents.clear();
+                nextId.set(0);
+                epoch = new Random().nextLong();
+                for (EventState event : snapshot) {
+                    restoreEvent(event.id, event.name, event.targetCents, event.deadline, event.raisedCents);
+                }
+            } finally {
+                indexSequence.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Applies a donation read back from the log. The deadline was checked when the donation was first accepted, so
+     * it is not checked again. Used only during recovery.
+     *
+     * @param id the id of the event
+     * @param cents the donation in cents
+     */
+    void applyDonation(int id, long cents) {
+        FundraisingEvent event = events.get(id);
+        if (event != null) {
+            event.addDonation(cents);
+            recordChange(event);
+        }
+    }
+
+    /**
+     * Runs an action with every mutation paused, for example to roll the log and copy the store for a snapshot.
+     *
+     * @param action the action to run
+     * @param <T> the type of the action's result
+     * @return the result of the action
+     */
+    <T> T checkpoint(Supplier<T> action) {
+        checkpointLock.writeLock().lock();
+        try {
+            return action.get();
+        } finally {
+            checkpointLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Copies the state of every event. Call it from checkpoint to get a copy that matches the log.
+     *
+     * @return the state of all events, in no particular order
+     */
+    List<EventState> copyState() {
+        List<EventState> copy = new ArrayList<>(events.size());
+        for (FundraisingEvent event : events.values()) {
+            copy.add(new EventState(event.id, event.name, event.targetCents, event.deadline, event.raisedCents()));
+        }
+        return copy;
+    }
+
+    /**
+     * Returns the event with the given id.
+     *
+     * @param id the id of the event
+     * @return the event, or null if there is no event with that id
+     */
+    FundraisingEvent get(int id) {
+        return events.get(id);
+    }
+
+    /**
+     * Finds the events whose name contains the words of a query, the last word matching as a prefix (see
+     * EventNameIndex).
+     *
+     * @param query the words to look for
+     * @param afterId only events with a higher id are returned
+     * @param limit the most events to return
+     * @return the matching events, in id order
+     */
+    List<FundraisingEvent> search(String query, int afterId, int limit) {
+        int[] ids = nameIndex.search(query, afterId, limit);
+        List<FundraisingEvent> matches = new ArrayList<>(ids.length);
+        for (int id : ids) {
+            FundraisingEvent event = events.get(id);
+            if (event != null) {
+                matches.add(event);
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Returns the highest ranked events of a leaderboard (see Leaderboards).
+     *
+     * @param board LEADERBOARD_RAISED, LEADERBOARD_PERCENT_OF_TARGET or LEADERBOARD_RECENT_DONATIONS (see Protocol)
+     * @param limit the most events to return, at most Leaderboards.CAPACITY
+     * @return the entries of the events, highest score first
+     * @throws IllegalArgumentException if there is no such board
+     */
+    List<Leaderboards.Entry> leaderboard(int board, int limit) {
+        return leaderboards.top(board, limit);
+    }
+
+    /**
+     * Drops the donations that left the window of the recent donations leaderboard. Call it every few seconds.
+     *
+     * @param now the current time in milliseconds since the epoch
+     * @return the number of events that took a donation in the last hour, before this decay
+     */
+    int decayLeaderboards(long now) {
+        return leaderboards.decay(now);
+    }
+
+    /**
+     * Returns the number of events that took a donation in the last hour.
+     *
+     * @return the number of events that took a donation in the last hour
+     */
+    int recentlyDonatedEvents() {
+        return leaderboards.recentlyDonatedCount();
+    }
+
+    /**
+     * Returns the number of distinct words in the names of the events.
+     *
+     * @return the number of indexed words
+     */
+    int indexedWords() {
+        return nameIndex.tokenCount();
+    }
+
+    /**
+     * Returns a live view of all events. Iterating it never blocks writers; use version() to detect whether the store
+     * changed while iterating.
+     *
+     * @return all events in the store, in no particular order
+     */
+    Collection<FundraisingEvent> events() {
+        return events.values();
+    }
+
+    /**
+     * Returns true if the store holds no events.
+     *
+     * @return true if no event has been created yet
+     */
+    boolean isEmpty() {
+        return events.isEmpty();
+    }
+
+    /**
+     * Returns the highest id given to an event so far.
+     *
+     * @return the highest id, or -1 if no event has been created
+     */
+    int highestId() {
+        return nextId.get() - 1;
+    }
+
+    /**
+     * Returns a random number chosen when the store was created. Versions are only comparable between responses with
+     * the same epoch: after a restart a client has to fetch every event again.
+     *
+     * @return the epoch of this store
+     */
+    long epoch() {
+        return epoch;
+    }
+
+    /**
+     * Returns the store version, which increases with every successful mutation.
+     *
+     * @return the current version
+     */
+    long version() {
+        return version.get();
+    }
+
+    /**
+     * Thrown by the mutations of a read-only store.
+     */
+    static final class ReadOnlyException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        ReadOnlyException() {
+            super("The store is a read-only replica.");
+        }
+    }
+
+    /**
+     * The result of changesSince: the changed events and the version to continue from.
+     */
+    static final class Changes {
+        final List<FundraisingEvent> events;
+        final long nextVersion;
+        final boolean more;
+
+        Changes(List<FundraisingEvent> events, long nextVersion, boolean more) {
+            this.events = events;
+            this.nextVersion = nextVersion;
+            this.more = more;
+        }
+    }
+
+    /**
+     * An immutable copy of the state of one event, as stored in a snapshot.
+     */
+    static final class EventState {
+        final int id;
+        final String name;
+        final long targetCents;
+        final long deadline;
+        final long raisedCents;
+
+        EventState(int id, String name, long targetCents, long deadline, long raisedCents) {
+            this.id = id;
+            this.name = name;
+            this.targetCents = targetCents;
+            this.deadline = deadline;
+            this.raisedCents = raisedCents;
+        }
+    }
+}
@@ -0,0 +1,192 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Represents a fundraising event with an ID, name, target amount, deadline, and current amount raised.
+ * Everything but the amount raised is fixed when the event is created. Money is kept in whole cents: the target as a
+ * long and the amount raised in a CentsAccumulator, so donations to the same event are applied atomically without any
+ * lock, even when many arrive at once, and never lose cents to floating point rounding. Amounts are only turned into
+ * dollars, as doubles, at the edge of the wire format.
+ */
+final class FundraisingEvent {
+
+    /** The largest donation accepted, in cents: one billion dollars. */
+    static final long MAX_DONATION_CENTS = 100_000_000_000L;
+
+    /** The largest target accepted, in cents: one trillion dollars. */
+    static final long MAX_TARGET_CENTS = 100_000_000_000_000L;
+
+    final int id;
+    final String name;
+    final long targetCents;
+    final long deadline;
+    private final CentsAccumulator raisedCents = new CentsAccumulator();
+    private final AtomicLong version = new AtomicLong();
+    private final LongAdder donations = new LongAdder();
+
+    // The encoded list entry of the event, maintained by ResponseCache
+    volatile ResponseCache.EncodedEvent encoded;
+
+    // Whether a client subscribed to the event's total, maintained by Subscriptions
+    volatile boolean watched;
+
+    // The place of the event on the leaderboards, maintained by Leaderboards
+    volatile Leaderboards.Standing standing;
+
+    // Hot-event aggregation, maintained by EventStore: whether the event's changes are folded on an interval, and
+    // whether donations arrived since the last fold
+    volatile boolean aggregated;
+    volatile boolean unfolded;
+
+    // A rough count of recent donations, to spot a hot event. Updated without synchronization, so concurrent
+    // donations may be miscounted, which only moves the moment the event is found hot.
+    private int recentDonations;
+    private long recentWindowStart;
+
+    /**
+     * Constructs a new fundraising event with the given id, name, target amount, and deadline.
+     *
+     * @param id the id of the event, assigned by the EventStore
+     * @param name the name of the fundraising event
+     * @param targetCents the target amount to be raised, in cents
+     * @param deadline the deadline for the fundraising event, in milliseconds since the epoch
+     */
+    FundraisingEvent(int id, String name, long targetCents, long deadline) {
+        this.id = id;
+        this.name = name;
+        this.targetCents = targetCents;
+        this.deadline = deadline;
+    }
+
+    /**
+     * Returns the target amount in dollars, for the wire format.
+     *
+     * @return the target amount
+     */
+    double targetAmount() {
+        return targetCents / 100.0;
+    }
+
+    /**
+     * Returns the current amount raised in dollars, for the wire format.
+     *
+     * @return the amount raised so far
+     */
+    double currentAmount() {
+        return raisedCents.sum() / 100.0;
+    }
+
+    /**
+     * Returns the current amount raised in cents.
+     *
+     * @return the amount raised so far, in cents
+     */
+    long raisedCents() {
+        return raisedCents.sum();
+    }
+
+    /**
+     * Returns the number of donations added to the event since it was created or restored.
+     *
+     * @return the number of donations
+     */
+    long donationCount() {
+        return donations.sum();
+    }
+
+    /**
+     * Returns true if the deadline of the event has passed at the given time.
+     *
+     * @param now the current time in milliseconds since the epoch
+     * @return true if the event no longer accepts donations
+     */
+    boolean hasEnded(long now) {
+        return deadline < now;
+    }
+
+    /**
+     * Counts a donation towards deciding whether the event is hot.
+     *
+     * @param now the current time in milliseconds since the epoch
+     * @param windowMillis the length of the counting window
+     * @param threshold the number of donations within one window that makes the event hot
+     * @return true once the threshold is reached
+     */
+    boolean countDonation(long now, long windowMillis, int threshold) {
+        if (now - recentWindowStart >= windowMillis) {
+            recentWindowStart = now;
+            recentDonations = 0;
+        }
+        return ++recentDonations >= threshold;
+    }
+
+    /**
+     * Atomically adds a donation to the amount raised and to the donation count.
+     *
+     * @param cents the donation in cents
+     */
+    void addDonation(long cents) {
+        raisedCents.add(cents);
+        donations.increment();
+    }
+
+    /**
+     * Returns the store version of the last change to this event.
+     *
+     * @return the version of the last change, or 0 if the event has not been stamped yet
+     */
+    long version() {
+        return version.get();
+    }
+
+    /**
+     * Records that the event changed in the given store version. Versions only move forward: if a later version was
+     * already stamped by a concurrent change, this one is ignored.
+     *
+     * @param newVersion the store version of the change
+     * @return the version the event had before, which is greater than or equal to newVersion if it was ignored
+     */
+    long stamp(long newVersion) {
+        while (true) {
+            long current = version.get();
+            if (current >= newVersion || version.compareAndSet(current, newVersion)) {
+                return current;
+            }
+        }
+    }
+
+    /**
+     * Converts a dollar amount from the wire to whole cents, rounding to the nearest cent.
+     *
+     * @param amount the amount in dollars
+     * @return the amount in cents
+     */
+    static long toCents(double amount) {
+        return Math.round(amount * 100.0);
+    }
+
+    /**
+     * Tells whether a donation in cents can be added to a total. NaN rounds to 0 and an infinite or huge amount to
+     * Long.MAX_VALUE or Long.MIN_VALUE, so checking the cents also rejects amounts that are not finite. Keeping every
+     * donation positive and at most MAX_DONATION_CENTS means a total only grows, and cannot wrap before more than
+     * 90 million maximal donations.
+     *
+     * @param cents the donation in cents, as returned by toCents
+     * @return true if the donation is positive and at most MAX_DONATION_CENTS
+     */
+    static boolean isValidDonation(long cents) {
+        return cents > 0 && cents <= MAX_DONATION_CENTS;
+    }
+
+    /**
+     * Tells whether a target in cents can be set for a new event. As with isValidDonation, NaN rounds to 0 and an
+     * amount that is infinite or too large for a long rounds to Long.MAX_VALUE or Long.MIN_VALUE, so checking the
+     * cents also rejects amounts that are not finite.
+     *
+     * @param cents the target in cents, as returned by toCents
+     * @return true if the target is positive and at most MAX_TARGET_CENTS
+     */
+    static boolean isValidTarget(long cents) {
+        return cents > 0 && cents <= MAX_TARGET_CENTS;
+    }
+}
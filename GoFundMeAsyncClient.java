@@ -0,0 +1,757 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.PortUnreachableException;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * The GoFundMeAsyncClient class is a client library for the version 1 protocol (see Protocol) that keeps any number of
+ * requests in flight on a single DatagramSocket. Every request returns a CompletableFuture that is completed with the
+ * reply whose request id matches, so callers can pipeline requests instead of waiting for each reply in turn. The
+ * socket is connected to the server, so datagrams from any other address never reach the client, and a guessed
+ * request id cannot complete a request with a forged reply.
+ *
+ * A receiver thread reassembles the chunks of each response. A request that gets no reply within its timeout is sent
+ * again, with the timeout doubled each time up to a maximum; when only some chunks of a response arrived, just the
+ * missing ones are requested with RESEND. A request that only reads can be sent as often as needed, and so can a
+ * DONATE, which carries a random idempotency key so the server applies it only once. Other requests that change the
+ * store (CREATE_EVENT, BATCH with donations) are never sent twice, since the server would apply them twice: they fail
+ * with a TimeoutException once their retries are used up instead. A STATUS_IN_PROGRESS reply means the server is
+ * still applying the original of a retransmitted DONATE, so the client keeps waiting and asks again later.
+ * A STATUS_BUSY reply means the server shed the request without applying it, so any request, even one that changes
+ * the store, is sent again after its timeout, which keeps doubling; if the server is still busy when the retries are
+ * used up, the future is completed with the STATUS_BUSY reply.
+ *
+ * At most maxInFlight requests are outstanding at a time; send blocks the caller until a slot is free, so a fast caller
+ * cannot overrun the server's work queue and lose requests to it.
+ *
+ * A caller can subscribe to the totals of some events, which the server then pushes as they change. The receiver
+ * thread hands each pushed total to the PushListener unless a newer one was already seen. The subscription is sent
+ * again every SUBSCRIPTION_REFRESH_MILLIS, which keeps the client's session, and with it the subscription, alive on
+ * the server and brings the totals up to date after any lost push.
+ *
+ * The client prints nothing: an error the receiver thread cannot pin on one request goes to the ErrorListener, if any.
+ */
+final class GoFundMeAsyncClient implements AutoCloseable {
+
+    static final long DEFAULT_INITIAL_TIMEOUT_MILLIS = 250;
+    static final long DEFAULT_MAX_TIMEOUT_MILLIS = 4000;
+    static final int DEFAULT_MAX_ATTEMPTS = 6;
+    static final int DEFAULT_MAX_IN_FLIGHT = 256;
+    static final long SUBSCRIPTION_REFRESH_MILLIS = 10000;
+
+    private static final int MAX_RESEND_CHUNKS = 2000;
+
+    /**
+     * Receives the totals pushed for the events the client subscribed to, on the receiver thread.
+     */
+    interface PushListener {
+        void totalChanged(int eventId, double currentAmount);
+    }
+
+    /**
+     * Receives the errors of the receiver thread that no single request fails with, on the receiver thread.
+     */
+    interface ErrorListener {
+        void receiveFailed(IOException e);
+    }
+
+    private final DatagramSocket socket;
+    private final InetAddress serverAddress;
+    private final int serverPort;
+    private final long initialTimeoutMillis;
+    private final long maxTimeoutMillis;
+    private final int maxAttempts;
+    private final Semaphore inFlightSlots;
+    private final ConcurrentHashMap<Integer, PendingRequest> pending = new ConcurrentHashMap<>();
+    private final AtomicInteger nextRequestId = new AtomicInteger((int) System.nanoTime());
+    private final LongAdder retransmissions = new LongAdder();
+    private final ScheduledThreadPoolExecutor timers;
+    private final Thread receiver;
+    private volatile boolean closed;
+
+    private volatile int[] subscribedIds = new int[0];
+    private volatile PushListener pushListener;
+    private volatile ErrorListener errorListener;
+    private final ConcurrentHashMap<Integer, Long> pushedVersions = new ConcurrentHashMap<>();
+    private long subscribedEpoch;
+    private ScheduledFuture<?> subscriptionRefresh;
+
+    /**
+     * Constructs a client with the default timeouts.
+     *
+     * @param host the host name of the server
+     * @param port the port of the server
+     * @throws IOException if the host cannot be resolved or the socket cannot be opened
+     */
+    GoFundMeAsyncClient(String host, int port) throws IOException {
+        this(host, port, DEFAULT_INITIAL_TIMEOUT_MILLIS, DEFAULT_MAX_TIMEOUT_MILLIS, DEFAULT_MAX_ATTEMPTS,
+                DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    /**
+     * Constructs a client.
+     *
+     * @param host the host name of the server
+     * @param port the port of the server
+     * @param initialTimeoutMillis how long to wait for the first reply before sending a request again
+     * @param maxTimeoutMillis the longest the timeout grows to as it is doubled on each attempt
+     * @param maxAttempts how many times a request is sent (or its missing chunks requested) without any progress
+     *                    before it fails
+     * @param maxInFlight the most requests waiting for their reply at any time
+     * @throws IOException if the host cannot be resolved or the socket cannot be opened or connected
+     */
+    GoFundMeAsyncClient(String host, int port, long initialTimeoutMillis, long maxTimeoutMillis, int maxAttempts,
+                        int maxInFlight) throws IOException {
+        this.serverAddress = InetAddress.getByName(host);
+        this.serverPort = port;
+        this.initialTimeoutMillis = initialTimeoutMillis;
+        this.maxTimeoutMillis = maxTimeoutMillis;
+        this.maxAttempts = maxAttempts;
+        this.inFlightSlots = new Semaphore(maxInFlight);
+        this.socket = new DatagramSocket();
+        socket.connect(serverAddress, serverPort);
+
+        timers = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "gofundme-client-timers");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timers.setRemoveOnCancelPolicy(true);
+
+        receiver = new Thread(this::receiveLoop, "gofundme-client-receiver");
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    /**
+     * Sends a request and returns a future for its reply. Blocks while maxInFlight requests are already outstanding.
+     *
+     * @param opcode the opcode of the request
+     * @param fields the fields of the request
+     * @param retryable true if the request can safely be sent more than once
+     * @return a future completed with the reply, or exceptionally with a TimeoutException or IOException
+     */
+    CompletableFuture<Protocol.Reply> send(byte opcode, byte[] fields, boolean retryable) {
+        PendingRequest request = newRequest(opcode, fields, retryable);
+        try {
+            inFlightSlots.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            request.future.completeExceptionally(e);
+            return request.future;
+        }
+        return dispatch(request);
+    }
+
+    private PendingRequest newRequest(byte opcode, byte[] fields, boolean retryable) {
+        int requestId = nextRequestId.getAndIncrement();
+        return new PendingRequest(requestId, opcode, Protocol.encodeRequest(opcode, requestId, fields), retryable);
+    }
+
+    /**
+     * Sends a request that already holds an in-flight slot.
+     *
+     * @param request the request
+     * @return the future of the request
+     */
+    private CompletableFuture<Protocol.Reply> dispatch(PendingRequest request) {
+        int requestId = request.requestId;
+        request.future.whenComplete((reply, failure) -> inFlightSlots.release());
+        if (closed) {
+            request.future.completeExceptionally(new IOException("The client is closed."));
+            return request.future;
+        }
+
+        pending.put(requestId, request);
+        synchronized (request) {
+            sendPacket(request, request.packet);
+            schedule(request);
+        }
+        return request.future;
+    }
+
+    /**
+     * Creates an event.
+     *
+     * @param name the name of the event
+     * @param targetAmount the target amount
+     * @param deadline the deadline, in milliseconds since the epoch
+     * @return a future completed with the id of the new event, or failed with a ReplyException of
+     *         STATUS_INVALID_REQUEST for a target the server does not accept
+     */
+    CompletableFuture<Integer> createEvent(String name, double targetAmount, long deadline) {
+        return send(Protocol.CREATE_EVENT, fields(dos -> {
+            dos.writeUTF(name);
+            dos.writeDouble(targetAmount);
+            dos.writeLong(deadline);
+        }), false).thenApply(payload(DataInputStream::readInt));
+    }
+
+    /**
+     * Donates to an event. The donation carries a new random idempotency key, so it is safe to retransmit.
+     *
+     * @param eventId the id of the event
+     * @param amount the donation in dollars
+     * @return a future completed with the status of the reply: STATUS_OK, STATUS_INVALID_EVENT, STATUS_EVENT_ENDED or
+     *         STATUS_INVALID_REQUEST for an amount the server does not accept
+     */
+    CompletableFuture<Byte> donate(int eventId, double amount) {
+        long idempotencyKey;
+        do {
+            idempotencyKey = ThreadLocalRandom.current().nextLong();
+        } while (idempotencyKey == 0);
+        long key = idempotencyKey;
+        return send(Protocol.DONATE, fields(dos -> {
+            dos.writeInt(eventId);
+            dos.writeDouble(amount);
+            dos.writeLong(key);
+        }), true).thenApply(reply -> reply.status);
+    }
+
+    /**
+     * Gets the details of an event.
+     *
+     * @param eventId the id of the event
+     * @return a future completed with the reply, whose payload holds the name, target amount, current amount and
+     *         deadline when its status is STATUS_OK
+     */
+    CompletableFuture<Protocol.Reply> checkDetails(int eventId) {
+        return send(Protocol.CHECK_DETAILS, fields(dos -> dos.writeInt(eventId)), true);
+    }
+
+    /**
+     * Checks whether any event exists.
+     *
+     * @return a future completed with true if there is at least one event
+     */
+    CompletableFuture<Boolean> eventsExist() {
+        return send(Protocol.CHECK_EVENTS_EXIST, new byte[0], true)
+                .thenApply(payload(DataInputStream::readBoolean));
+    }
+
+    /**
+     * Gets the whole event list, current events and then past events, each sorted by deadline.
+     *
+     * @return a future completed with the payload of the reply, laid out as a LIST_EVENTS response
+     */
+    CompletableFuture<DataInputStream> listEvents() {
+        return send(Protocol.LIST_EVENTS, new byte[0], true).thenApply(GoFundMeAsyncClient::payloadOf);
+    }
+
+    /**
+     * Gets one page of the event list, in id order.
+     *
+     * @param afterId the last id of the previous page, or -1 for the first page
+     * @param limit the page size
+     * @return a future completed with the payload of the reply, laid out as a LIST_EVENTS_PAGE response
+     */
+    CompletableFuture<DataInputStream> listEventsPage(int afterId, int limit) {
+        return send(Protocol.LIST_EVENTS_PAGE, fields(dos -> {
+            dos.writeInt(afterId);
+            dos.writeInt(limit);
+        }), true).thenApply(GoFundMeAsyncClient::payloadOf);
+    }
+
+    /**
+     * Gets the events that changed after a store version.
+     *
+     * @param sinceVersion the version of the client's copy
+     * @param limit the maximum number of events
+     * @return a future completed with the payload of the reply, laid out as a LIST_CHANGES_SINCE response
+     */
+    CompletableFuture<DataInputStream> listChangesSince(long sinceVersion, int limit) {
+        return send(Protocol.LIST_CHANGES_SINCE, fields(dos -> {
+            dos.writeLong(sinceVersion);
+            dos.writeInt(limit);
+        }), true).thenApply(GoFundMeAsyncClient::payloadOf);
+    }
+
+    /**
+     * Finds the events whose name contains the words of a query, the last word matching as a prefix, in id order.
+     *
+     * @param query the words to look for
+     * @param afterId the last id of the previous page, or -1 for the first page
+     * @param limit the page size
+     * @return a future completed with the payload of the reply, laid out as a SEARCH response
+     */
+    CompletableFuture<DataInputStream> search(String query, int afterId, int limit) {
+        return send(Protocol.SEARCH, fields(dos -> {
+            dos.writeUTF(query);
+            dos.writeInt(afterId);
+            dos.writeInt(limit);
+        }), true).thenApply(GoFundMeAsyncClient::payloadOf);
+    }
+
+    /**
+     * Lists the events ranked highest on a leaderboard.
+     *
+     * @param board LEADERBOARD_RAISED, LEADERBOARD_PERCENT_OF_TARGET or LEADERBOARD_RECENT_DONATIONS (see Protocol)
+     * @param limit the most events to list
+     * @return a future completed with the payload of the reply, laid out as a LEADERBOARD response
+     */
+    CompletableFuture<DataInputStream> leaderboard(byte board, int limit) {
+        return send(Protocol.LEADERBOARD, fields(dos -> {
+            dos.writeByte(board);
+            dos.writeInt(limit);
+        }), true).thenApply(GoFundMeAsyncClient::payloadOf);
+    }
+
+    /**
+     * Sends a batch of operations. A batch with donations is not retryable.
+     *
+     * @param batch the batch
+     * @return a future completed with one result per operation
+     */
+    CompletableFuture<List<BatchRequest.Result>> batch(BatchRequest batch) {
+        return send(Protocol.BATCH, fields(dos -> dos.write(batch.fields())), !batch.hasDonations())
+                .thenApply(payload(batch::decode));
+    }
+
+    /**
+     * Subscribes to the totals of some events, replacing any earlier subscription. Each time the total of one of them
+     * changes, the server pushes it (at most once per push interval) and the listener is told.
+     *
+     * @param eventIds the ids of the events, at most Subscriptions.MAX_EVENTS_PER_CLIENT; none to unsubscribe
+     * @param listener told about the pushed totals, or null when unsubscribing
+     * @return a future completed with the current total of each event that exists, by id
+     */
+    CompletableFuture<Map<Integer, Double>> subscribe(int[] eventIds, PushListener listener) {
+        subscribedIds = eventIds.clone();
+        pushListener = listener;
+        synchronized (pushedVersions) {
+            if (subscriptionRefresh == null && eventIds.length > 0 && !closed) {
+                subscriptionRefresh = timers.scheduleWithFixedDelay(this::refreshSubscription,
+                        SUBSCRIPTION_REFRESH_MILLIS, SUBSCRIPTION_REFRESH_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        }
+        return send(Protocol.SUBSCRIBE, subscribeFields(eventIds), true)
+                .thenApply(payload(dis -> readSubscribed(dis, false)));
+    }
+
+    /**
+     * Sends the current subscription again, from the timer thread. It is skipped when every in-flight slot is taken,
+     * since waiting for one would hold up the timeouts that free them.
+     */
+    private void refreshSubscription() {
+        int[] eventIds = subscribedIds;
+        if (eventIds.length == 0 || !inFlightSlots.tryAcquire()) {
+            return;
+        }
+        dispatch(newRequest(Protocol.SUBSCRIBE, subscribeFields(eventIds), true))
+                .thenApply(payload(dis -> readSubscribed(dis, true)));
+    }
+
+    private static byte[] subscribeFields(int[] eventIds) {
+        return fields(dos -> {
+            dos.writeInt(eventIds.length);
+            for (int eventId : eventIds) {
+                dos.writeInt(eventId);
+            }
+        });
+    }
+
+    /**
+     * Reads the totals in a SUBSCRIBE reply, forgetting the versions of pushed totals if the server restarted.
+     *
+     * @param dis the payload of the reply
+     * @param notify true to tell the listener about the totals that are newer than the ones it was told about
+     * @return the totals, by event id
+     */
+    private Map<Integer, Double> readSubscribed(DataInputStream dis, boolean notify) throws IOException {
+        long epoch = dis.readLong();
+        synchronized (pushedVersions) {
+            if (epoch != subscribedEpoch) {
+                pushedVersions.clear();
+                subscribedEpoch = epoch;
+            }
+        }
+        int count = dis.readInt();
+        Map<Integer, Double> totals = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            int eventId = dis.readInt();
+            double currentAmount = dis.readDouble();
+            if (acceptTotal(eventId, dis.readLong()) && notify) {
+                notifyListener(eventId, currentAmount);
+            }
+            totals.put(eventId, currentAmount);
+        }
+        return totals;
+    }
+
+    /**
+     * Hands the totals of a pushed datagram (see Protocol) to the listener.
+     *
+     * @param push the datagram, positioned after the magic
+     */
+    private void receivePush(ByteBuffer push) {
+        int count = push.getInt();
+        for (int i = 0; i < count && push.remaining() >= Protocol.PUSH_UPDATE_SIZE; i++) {
+            int eventId = push.getInt();
+            double currentAmount = push.getDouble();
+            if (acceptTotal(eventId, push.getLong())) {
+                notifyListener(eventId, currentAmount);
+            }
+        }
+    }
+
+    /**
+     * Records the store version of a total unless a newer one was already seen for the event.
+     *
+     * @return true if the total is newer than any seen before
+     */
+    private boolean acceptTotal(int eventId, long version) {
+        while (true) {
+            Long previous = pushedVersions.putIfAbsent(eventId, version);
+            if (previous == null) {
+                return true;
+            }
+            if (previous >= version) {
+                return false;
+            }
+            if (pushedVersions.replace(eventId, previous, version)) {
+                return true;
+            }
+        }
+    }
+
+    private void notifyListener(int eventId, double currentAmount) {
+        PushListener listener = pushListener;
+        if (listener != null) {
+            listener.totalChanged(eventId, currentAmount);
+        }
+    }
+
+    /**
+     * Sets the listener told about errors receiving datagrams, such as a failed read from the socket. Requests are not
+     * failed by them; they are sent again as usual if their replies are lost.
+     *
+     * @param listener the listener, or null to ignore such errors
+     */
+    void setErrorListener(ErrorListener listener) {
+        errorListener = listener;
+    }
+
+    /**
+     * Returns the number of requests that are waiting for their reply.
+     *
+     * @return the number of requests in flight
+     */
+    int inFlight() {
+        return pending.size();
+    }
+
+    /**
+     * Returns the number of times a request was sent again, or its missing chunks were asked for, because its reply
+     * was late. Each one stands for a request or response datagram that was lost or delayed.
+     *
+     * @return the number of retransmissions so far
+     */
+    long retransmissions() {
+        return retransmissions.sum();
+    }
+
+    /**
+     * Closes the socket. Requests still in flight fail with an IOException.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        socket.close();
+        timers.shutdownNow();
+        for (PendingRequest request : pending.values()) {
+            fail(request, new IOException("The client is closed."));
+        }
+    }
+
+    /**
+     * Receives datagrams until the socket is closed and adds each chunk to the request it answers.
+     */
+    private void receiveLoop() {
+        byte[] buffer = new byte[ResponseFramer.HEADER_SIZE + ResponseFramer.CHUNK_PAYLOAD_SIZE];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        while (!closed) {
+            try {
+                packet.setLength(buffer.length);
+                socket.receive(packet);
+            } catch (PortUnreachableException e) {
+                continue; // Nothing listens on the server's port yet; the requests are sent again on their timers
+            } catch (SocketException e) {
+                return; // Closed
+            } catch (IOException e) {
+                ErrorListener listener = errorListener;
+                if (listener != null) {
+                    listener.receiveFailed(e);
+                }
+                continue;
+            }
+
+            if (packet.getLength() < Math.min(ResponseFramer.HEADER_SIZE, Protocol.PUSH_HEADER_SIZE)) {
+                continue;
+            }
+            ByteBuffer header = ByteBuffer.wrap(buffer, 0, packet.getLength());
+            int magic = header.getInt();
+            if (magic == Protocol.PUSH_MAGIC) {
+                receivePush(header);
+                continue;
+            }
+            if (magic != ResponseFramer.MAGIC) {
+                continue;
+            }
+            PendingRequest request = pending.get(header.getInt());
+            if (request == null) {
+                continue; // A late or duplicate reply to a request that has already completed
+            }
+            int sequence = header.getShort() & 0xFFFF;
+            int chunkCount = header.getShort() & 0xFFFF;
+
+            byte[] body;
+            synchronized (request) {
+                body = request.addChunk(sequence, chunkCount, buffer, packet.getLength());
+                if (body != null && body.length > 2 && body[2] == Protocol.STATUS_IN_PROGRESS) {
+                    request.chunks = null; // Ask again when the timer fires, without counting it as a failed attempt
+                    request.received = 0;
+                    request.receivedAtLastTimeout = -1;
+                    body = null;
+                } else if (body != null && body.length > 2 && body[2] == Protocol.STATUS_BUSY) {
+                    request.chunks = null; // Send it again when the timer fires; this counts as a failed attempt
+                    request.received = 0;
+                    request.busyReply = body;
+                    body = null;
+                }
+            }
+            if (body != null) {
+                complete(request, body);
+            }
+        }
+    }
+
+    /**
+     * Starts the timer of a request for its current attempt. Must be called while holding the request's lock.
+     *
+     * @param request the request
+     */
+    private void schedule(PendingRequest request) {
+        long timeout = Math.min(maxTimeoutMillis, initialTimeoutMillis << Math.min(request.attempts, 20));
+        request.receivedAtLastTimeout = request.received;
+        request.timer = timers.schedule(() -> onTimeout(request), timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Handles a request whose reply is late: asks again for what is missing, or fails the request once it has made no
+     * progress for maxAttempts attempts.
+     *
+     * @param request the request
+     */
+    private void onTimeout(PendingRequest request) {
+        synchronized (request) {
+            if (request.future.isDone()) {
+                return;
+            }
+            request.attempts = (request.received > request.receivedAtLastTimeout) ? 0 : request.attempts + 1;
+            if (request.attempts >= maxAttempts && request.busyReply != null) {
+                complete(request, request.busyReply);
+                return;
+            }
+            if (request.attempts >= maxAttempts) {
+                fail(request, new TimeoutException(Protocol.name(request.opcode) + " request " + request.requestId
+                        + (request.chunks == null ? " got no response." : " got an incomplete response.")));
+                return;
+            }
+
+            if (request.chunks != null) {
+                int[] missing = new int[Math.min(request.chunks.length, MAX_RESEND_CHUNKS)];
+                int count = 0;
+                for (int i = 0; i < request.chunks.length && count < missing.length; i++) {
+                    if (request.chunks[i] == null) {
+                        missing[count++] = i;
+                    }
+                }
+                sendPacket(request, Protocol.encodeRequest(Protocol.RESEND, request.requestId,
+                        Protocol.resendFields(missing, count)));
+                retransmissions.increment();
+            } else if (request.retryable || request.busyReply != null) {
+                // A request that was shed had no effect, but once sent again it may be applied, so after that it is
+                // only sent again if it is retryable or is shed once more
+                request.busyReply = null;
+                sendPacket(request, request.packet);
+                retransmissions.increment();
+            }
+            schedule(request);
+        }
+    }
+
+    private void sendPacket(PendingRequest request, byte[] data) {
+        try {
+            socket.send(new DatagramPacket(data, data.length, serverAddress, serverPort));
+        } catch (PortUnreachableException e) {
+            // An earlier datagram found nothing listening; this one is treated as lost and sent again on the timer
+        } catch (IOException e) {
+            fail(request, e);
+        }
+    }
+
+    private void complete(PendingRequest request, byte[] body) {
+        pending.remove(request.requestId, request);
+        cancelTimer(request);
+        try {
+            request.future.complete(Protocol.decodeReply(request.opcode, body));
+        } catch (IOException e) {
+            request.future.completeExceptionally(e);
+        }
+    }
+
+    private void fail(PendingRequest request, Throwable cause) {
+        pending.remove(request.requestId, request);
+        cancelTimer(request);
+        request.future.completeExceptionally(cause);
+    }
+
+    private static void cancelTimer(PendingRequest request) {
+        ScheduledFuture<?> timer = request.timer;
+        if (timer != null) {
+            timer.cancel(false);
+        }
+    }
+
+    /**
+     * Returns the payload of a reply that is expected to succeed.
+     *
+     * @param reply the reply
+     * @return a stream over the payload
+     * @throws ReplyException if the status of the reply is not STATUS_OK
+     */
+    static DataInputStream payloadOf(Protocol.Reply reply) {
+        if (!reply.isOk()) {
+            throw new ReplyException(reply.status);
+        }
+        return reply.payload();
+    }
+
+    /**
+     * Adapts a reader of the payload for use with thenApply. An IOException from the reader, meaning a malformed
+     * payload, fails the future with an UncheckedIOException.
+     *
+     * @param reader reads the value from the payload
+     * @return a function from the reply to the value
+     */
+    private static <T> Function<Protocol.Reply, T> payload(PayloadReader<T> reader) {
+        return reply -> {
+            try {
+                return reader.read(payloadOf(reply));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+    }
+
+    private static byte[] fields(FieldWriter writer) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try {
+            writer.write(new DataOutputStream(baos));
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage(), e); // A name too long for writeUTF
+        }
+        return baos.toByteArray();
+    }
+
+    @FunctionalInterface
+    private interface FieldWriter {
+        void write(DataOutputStream dos) throws IOException;
+    }
+
+    @FunctionalInterface
+    private interface PayloadReader<T> {
+        T read(DataInputStream dis) throws IOException;
+    }
+
+    /**
+     * Thrown from a future when the server answered with a status other than STATUS_OK where a payload was expected.
+     */
+    static final class ReplyException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        final byte status;
+
+        ReplyException(byte status) {
+            super("The server answered with status " + status + ".");
+            this.status = status;
+        }
+    }
+
+    /**
+     * A request waiting for its reply, and the chunks of the reply received so far. Guarded by its own lock.
+     */
+    private static final class PendingRequest {
+        final int requestId;
+        final byte opcode;
+        final byte[] packet;
+        final boolean retryable;
+        final CompletableFuture<Protocol.Reply> future = new CompletableFuture<>();
+        byte[][] chunks;
+        int received;
+        int receivedAtLastTimeout;
+        int attempts;
+        byte[] busyReply;
+        ScheduledFuture<?> timer;
+
+        PendingRequest(int requestId, byte opcode, byte[] packet, boolean retryable) {
+            this.requestId = requestId;
+            this.opcode = opcode;
+            this.packet = packet;
+            this.retryable = retryable;
+        }
+
+        /**
+         * Stores a chunk of the reply.
+         *
+         * @return the reassembled reply once every chunk has arrived, or null
+         */
+        byte[] addChunk(int sequence, int chunkCount, byte[] datagram, int length) {
+            if (chunks == null) {
+                chunks = new byte[chunkCount][];
+            }
+            if (sequence >= chunks.length || chunks[sequence] != null) {
+                return null;
+            }
+            byte[] chunk = new byte[length - ResponseFramer.HEADER_SIZE];
+            System.arraycopy(datagram, ResponseFramer.HEADER_SIZE, chunk, 0, chunk.length);
+            chunks[sequence] = chunk;
+            if (++received < chunks.length) {
+                return null;
+            }
+
+            int total = 0;
+            for (byte[] part : chunks) {
+                total += part.length;
+            }
+            byte[] body = new byte[total];
+            int offset = 0;
+            for (byte[] part : chunks) {
+                System.arraycopy(part, 0, body, offset, part.length);
+                offset += part.length;
+            }
+            return body;
+        }
+    }
+}
@@ -4,23 +4,34 @@ import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
 
 /**
  * The GoFundMeClient class is a client program that allows users to create, list, and donate to fundraising events.
- * It connects to a server using a DatagramSocket and sends requests to the server to perform actions.
- * The class contains methods for creating a new event, listing all events, donating to an event, and checking event details.
+ * It sends requests to the server through a GoFundMeAsyncClient to perform actions.
+ * The class contains methods for creating a new event, listing all events, donating to an event, checking event details,
+ * watching the total of an event, which the server pushes as donations arrive, and searching events by name.
  * The main method of the class prompts the user to choose an option from a menu and performs the corresponding action based on the user's choice.
- * The class also contains helper methods for sending and receiving datagram packets to and from the server.
+ * Requests are sent with the binary version 1 protocol (see Protocol) and each reply carries a status byte, which is
+ * turned into the messages shown to the user.
  */
 public class GoFundMeClient {
 
     private static final String SERVER_ADDRESS = "localhost";
     private static final int SERVER_PORT = 12345;
-    private static DatagramSocket clientSocket;
-    private static InetAddress serverAddress;
+    private static GoFundMeAsyncClient client;
+    private static final int PAGE_SIZE = 500;
+    private static final int LEADERBOARD_SIZE = 10;
+
+    // The local copy of the events, kept up to date by refreshLocalEvents
+    private static final Map<Integer, EventRecord> localEvents = new HashMap<>();
+    private static long localEpoch;
+    private static long localVersion = -1;
 
     /**
-     * This method is the main method of the GoFundMeClient class. It creates a DatagramSocket and connects to the server. 
+     * This method is the main method of the GoFundMeClient class. It creates the client used to talk to the server. 
      * It then prompts the user to choose an option from a menu and performs the corresponding action based on the user's choice.
      * The options include creating a new fundraising event, listing fundraising events, donating to an event, checking event details, and exiting the program.
      * 
@@ -29,8 +40,8 @@ public class GoFundMeClient {
      */
     public static void main(String[] args) throws InterruptedException {
         try {
-            clientSocket = new DatagramSocket();
-            serverAddress = InetAddress.getByName(SERVER_ADDRESS);
+            client = new GoFundMeAsyncClient(SERVER_ADDRESS, SERVER_PORT);
+            client.setErrorListener(e -> System.err.println("Could not receive a response: " + e.getMessage()));
             Scanner scanner = new Scanner(System.in);
 
             while (true) {
@@ -40,9 +51,12 @@ public class GoFundMeClient {
                 System.out.println("2. List fundraising events");
                 System.out.println("3. Donate to an event");
                 System.out.println("4. Check event details");
-                System.out.println("5. Exit");
+                System.out.println("5. Watch an event's total");
+                System.out.println("6. Search events by name");
+                System.out.println("7. Show a leaderboard");
+                System.out.println("8. Exit");
 
-                int choice = getIntInput(scanner, "Enter your choice: ", 1, 5);
+                int choice = getIntInput(scanner, "Enter your choice: ", 1, 8);
 
                 switch (choice) {
                     case 1:
@@ -58,8 +72,17 @@ public class GoFundMeClient {
                         checkDetails(scanner);
                         break;
                     case 5:
+                        watchEvent(scanner);
+                        break;
+                    case 6:
+                        searchEvents(scanner);
+                        break;
+                    case 7:
+                        showLeaderboard(scanner);
+                        break;
+                    case 8:
                         System.out.println("Exiting...");
-                        clientSocket.close();
+                        client.close();
                         return;
                     default:
                         System.out.println("Invalid choice. Please try again.");
@@ -74,26 +97,91 @@ public class GoFundMeClient {
     }
 
     /**
-     * Sends a datagram packet to the server with the specified data.
-     * 
-     * @param sendData the data to be sent in the packet
-     * @throws IOException if an I/O error occurs while sending the packet
+     * Sends a version 1 request through the asynchronous client and waits for the reply.
+     * The asynchronous client sends a request that only reads again when its reply is late, and asks again for any
+     * chunks of the reply that were lost; a request that changes the store is never sent twice, so it fails with an
+     * error instead when it gets no reply.
+     *
+     * @param opcode the opcode of the request
+     * @param fields the fields of the request
+     * @param retryable true if the request can safely be sent more than once
+     * @return the reply
+     * @throws IOException if no complete reply arrived
+     */
+    private static Protocol.Reply sendRequest(byte opcode, byte[] fields, boolean retryable) throws IOException {
+        return await(client.send(opcode, fields, retryable));
+    }
+
+    /**
+     * Waits for the result of a request sent through the asynchronous client.
+     *
+     * @param future the future of the request
+     * @return the result
+     * @throws IOException if the request failed
+     */
+    private static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the server.");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof TimeoutException) {
+                throw new IOException("No response from the server.", cause);
+            }
+            throw new IOException(cause.getMessage(), cause);
+        }
+    }
+
+    /**
+     * Returns the message shown to the user for a reply that was not successful.
+     *
+     * @param reply the reply
+     * @return the message
      */
-    private static void sendRequest(byte[] sendData) throws IOException {
-        DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length, serverAddress, SERVER_PORT);
-        clientSocket.send(sendPacket);
+    private static String failureMessage(Protocol.Reply reply) {
+        return failureMessage(reply.status);
     }
 
     /**
-     * Receives a response from the server.
-     * @return the response received from the server as a String.
-     * @throws IOException if an I/O error occurs.
+     * Returns the message shown to the user for a status other than STATUS_OK.
+     *
+     * @param status the status of the reply
+     * @return the message
      */
-    private static String receiveResponse() throws IOException {
-        byte[] receiveData = new byte[1024];
-        DatagramPacket receivePacket = new DatagramPacket(receiveData, receiveData.length);
-        clientSocket.receive(receivePacket);
-        return new String(receivePacket.getData(), 0, receivePacket.getLength());
+    private static String failureMessage(byte status) {
+        switch (status) {
+            case Protocol.STATUS_INVALID_EVENT:
+                return "Invalid event index.";
+            case Protocol.STATUS_EVENT_ENDED:
+                return "Donation failed. The event has already ended.";
+            case Protocol.STATUS_INVALID_REQUEST:
+                return "Invalid request type.";
+            case Protocol.STATUS_BUSY:
+                return "Server busy. Please try again later.";
+            case Protocol.STATUS_READ_ONLY:
+                return "This server is a read-only replica. Send changes to the primary.";
+            default:
+                return "Error processing request.";
+        }
+    }
+
+    /**
+     * Returns the payload of a reply to a request that only reads, which is expected to succeed.
+     *
+     * @param reply the reply
+     * @return a stream over the payload
+     * @throws IOException if the request failed
+     */
+    private static DataInputStream payloadOf(Protocol.Reply reply) throws IOException {
+        if (!reply.isOk()) {
+            throw new IOException(failureMessage(reply));
+        }
+        return reply.payload();
     }
 
     /**
@@ -111,88 +199,221 @@ public class GoFundMeClient {
 
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         DataOutputStream dos = new DataOutputStream(baos);
-        dos.writeUTF("CREATE_EVENT");
         dos.writeUTF(eventName);
         dos.writeDouble(targetAmount);
         dos.writeLong(deadline.getTime());
 
-        sendRequest(baos.toByteArray());
-        String response = receiveResponse();
-        System.out.println(response);
+        Protocol.Reply reply = sendRequest(Protocol.CREATE_EVENT, baos.toByteArray(), false);
+        if (reply.status == Protocol.STATUS_INVALID_REQUEST) {
+            System.out.println("Invalid target amount.");
+        } else {
+            System.out.println(reply.isOk() ? "Event created successfully." : failureMessage(reply));
+        }
     }
 
     /**
-     * Sends a request to the server to list all fundraising events and prints the details of each event.
-     * The method sends a "LIST_EVENTS" message to the server and receives the response data.
-     * The response data contains the number of current and past events, followed by the details of each event.
+     * Refreshes the local copy of the fundraising events and prints the current and past events, sorted by deadline.
      * If there are no current or past events, the method prints a message indicating so.
      * @throws IOException if an I/O error occurs while sending or receiving data.
      */
     private static void listEvents() throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream dos = new DataOutputStream(baos);
-        dos.writeUTF("LIST_EVENTS");
-
-        sendRequest(baos.toByteArray());
-
-        byte[] responseData = receiveResponseData();
-        ByteArrayInputStream bais = new ByteArrayInputStream(responseData);
-        DataInputStream dis = new DataInputStream(bais);
-
-        int numberOfCurrentEvents = dis.readInt();
-        int numberOfPastEvents = dis.readInt();
+        refreshLocalEvents();
+
+        List<EventRecord> currentEvents = new ArrayList<>();
+        List<EventRecord> pastEvents = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (EventRecord event : localEvents.values()) {
+            if (event.deadline > now) {
+                currentEvents.add(event);
+            } else {
+                pastEvents.add(event);
+            }
+        }
+        Comparator<EventRecord> byDeadline = Comparator.<EventRecord>comparingLong(e -> e.deadline)
+                .thenComparingInt(e -> e.id);
+        currentEvents.sort(byDeadline);
+        pastEvents.sort(byDeadline);
 
         System.out.println("---------------------------------");
 
         System.out.println("Current Events:");
-        if (numberOfCurrentEvents == 0) {
+        if (currentEvents.isEmpty()) {
             System.out.println("There are currently no ongoing fundraising events.");
         } else {
-            for (int i = 0; i < numberOfCurrentEvents; i++) {
-                printEventDetails(dis);
+            for (EventRecord event : currentEvents) {
+                printEventDetails(event);
             }
         }
 
         System.out.println("\nPast Events:");
-        if (numberOfPastEvents == 0) {
+        if (pastEvents.isEmpty()) {
             System.out.println("There are no past fundraising events.");
         } else {
-            for (int i = 0; i < numberOfPastEvents; i++) {
-                printEventDetails(dis);
+            for (EventRecord event : pastEvents) {
+                printEventDetails(event);
+            }
+        }
+    }
+
+    /**
+     * Prompts the user for words and prints the events whose name contains them, PAGE_SIZE at a time, asking after
+     * each page whether to show the next one. The last word also matches the start of a longer word.
+     *
+     * @param scanner a Scanner object used to read user input
+     * @throws IOException if an I/O error occurs while sending or receiving data.
+     */
+    private static void searchEvents(Scanner scanner) throws IOException {
+        System.out.println("---------------------------------");
+        String query = getStringInput(scanner, "Enter words of the event name: ");
+
+        int cursor = -1;
+        int found = 0;
+        do {
+            DataInputStream dis = await(client.search(query, cursor, PAGE_SIZE));
+            int count = dis.readInt();
+            for (int i = 0; i < count; i++) {
+                printEventDetails(readEvent(dis));
             }
+            found += count;
+            cursor = dis.readInt();
+        } while (cursor != -1 && getStringInput(scanner, "Show more? (y/n): ").equalsIgnoreCase("y"));
+
+        if (found == 0) {
+            System.out.println("No fundraising events match.");
         }
     }
 
     /**
-     * Reads and prints the details of an event from the given DataInputStream.
+     * Prompts the user for a leaderboard and prints its top LEADERBOARD_SIZE events, highest ranked first, with the
+     * score each is ranked by.
+     *
+     * @param scanner a Scanner object used to read user input
+     * @throws IOException if an I/O error occurs while sending or receiving data.
+     */
+    private static void showLeaderboard(Scanner scanner) throws IOException {
+        System.out.println("---------------------------------");
+        System.out.println("1. Most raised");
+        System.out.println("2. Closest to target");
+        System.out.println("3. Most donations in the last hour");
+        int board = getIntInput(scanner, "Choose a leaderboard: ", 1, 3) - 1;
+
+        DataInputStream dis = await(client.leaderboard((byte) board, LEADERBOARD_SIZE));
+        int count = dis.readInt();
+        for (int rank = 1; rank <= count; rank++) {
+            EventRecord event = readEvent(dis);
+            double score = dis.readDouble();
+            if (board == Protocol.LEADERBOARD_PERCENT_OF_TARGET) {
+                System.out.printf("#%d, %.1f%% of target: ", rank, score * 100);
+            } else if (board == Protocol.LEADERBOARD_RECENT_DONATIONS) {
+                System.out.printf("#%d, %.0f donations in the last hour: ", rank, score);
+            } else {
+                System.out.printf("#%d: ", rank);
+            }
+            printEventDetails(event);
+        }
+
+        if (count == 0) {
+            System.out.println("No fundraising events are ranked yet.");
+        }
+    }
+
+    /**
+     * Brings the local copy of the events up to date.
+     * The first time, and whenever the server has restarted since, every event is fetched page by page with
+     * LIST_EVENTS_PAGE. After that only the events that changed since the last refresh are fetched with
+     * LIST_CHANGES_SINCE, which is far cheaper for the server than listing every event again.
+     * @throws IOException if an I/O error occurs while sending or receiving data.
+     */
+    private static void refreshLocalEvents() throws IOException {
+        while (localVersion < 0 || !fetchChanges()) {
+            localEvents.clear();
+            localVersion = -1;
+
+            int cursor = -1;
+            do {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                DataOutputStream dos = new DataOutputStream(baos);
+                dos.writeInt(cursor);
+                dos.writeInt(PAGE_SIZE);
+
+                DataInputStream dis = payloadOf(sendRequest(Protocol.LIST_EVENTS_PAGE, baos.toByteArray(), true));
+                long epoch = dis.readLong();
+                long version = dis.readLong();
+                if (cursor == -1) {
+                    localEpoch = epoch;
+                    localVersion = version;
+                } else if (epoch != localEpoch) {
+                    localVersion = -1; // The server restarted part way through, start over
+                    break;
+                }
+
+                int count = dis.readInt();
+                for (int i = 0; i < count; i++) {
+                    EventRecord event = readEvent(dis);
+                    localEvents.put(event.id, event);
+                }
+                cursor = dis.readInt();
+            } while (cursor != -1);
+        }
+    }
+
+    /**
+     * Applies the changes since the version of the local copy.
+     * @return false if the server has restarted since the local copy was made, so it has to be fetched again
+     * @throws IOException if an I/O error occurs while sending or receiving data.
+     */
+    private static boolean fetchChanges() throws IOException {
+        boolean more;
+        do {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(baos);
+            dos.writeLong(localVersion);
+            dos.writeInt(PAGE_SIZE);
+
+            DataInputStream dis = payloadOf(sendRequest(Protocol.LIST_CHANGES_SINCE, baos.toByteArray(), true));
+            if (dis.readLong() != localEpoch) {
+                return false;
+            }
+            long nextVersion = dis.readLong();
+            more = dis.readBoolean();
+            int count = dis.readInt();
+            for (int i = 0; i < count; i++) {
+                EventRecord event = readEvent(dis);
+                localEvents.put(event.id, event);
+            }
+            localVersion = nextVersion;
+        } while (more);
+        return true;
+    }
+
+    /**
+     * Reads the details of an event from the given DataInputStream.
      * The details include the event ID, name, target amount, current amount raised, and deadline.
      * 
      * @param dis the DataInputStream to read the event details from
+     * @return the event
      * @throws IOException if there is an error reading from the DataInputStream
      */
-    private static void printEventDetails(DataInputStream dis) throws IOException {
+    private static EventRecord readEvent(DataInputStream dis) throws IOException {
         int id = dis.readInt();
         String name = dis.readUTF();
         double targetAmount = dis.readDouble();
         double currentAmount = dis.readDouble();
         long deadlineMillis = dis.readLong();
-        Date deadline = new Date(deadlineMillis);
-
-        // Display the id directly as it already starts from 1
-        System.out.printf("%d: %s (Target: $%.2f, Raised: $%.2f, Deadline: %s)\n",
-                id + 1, name, targetAmount, currentAmount, deadline.toString());
+        return new EventRecord(id, name, targetAmount, currentAmount, deadlineMillis);
     }
 
     /**
-     * Receives response data from the server.
-     * @return the received data as a byte array
-     * @throws IOException if an I/O error occurs
+     * Prints the details of an event: its ID, name, target amount, current amount raised, and deadline.
+     * 
+     * @param event the event to print
      */
-    private static byte[] receiveResponseData() throws IOException {
-        byte[] receiveData = new byte[1024];
-        DatagramPacket receivePacket = new DatagramPacket(receiveData, receiveData.length);
-        clientSocket.receive(receivePacket);
-        return Arrays.copyOf(receivePacket.getData(), receivePacket.getLength());
+    private static void printEventDetails(EventRecord event) {
+        Date deadline = new Date(event.deadline);
+
+        // Display the id directly as it already starts from 1
+        System.out.printf("%d: %s (Target: $%.2f, Raised: $%.2f, Deadline: %s)\n",
+                event.id + 1, event.name, event.targetAmount, event.currentAmount, deadline.toString());
     }
 
     /**
@@ -212,15 +433,14 @@ public class GoFundMeClient {
             int eventIndex = getIntInput(scanner, "Enter event index: ", 0, Integer.MAX_VALUE);
             double donationAmount = getDoubleInput(scanner, "Enter donation amount: ", 0);
 
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            DataOutputStream dos = new DataOutputStream(baos);
-            dos.writeUTF("DONATE");
-            dos.writeInt(eventIndex - 1);
-            dos.writeDouble(donationAmount);
-
-            sendRequest(baos.toByteArray());
-            String response = receiveResponse();
-            System.out.println(response);
+            byte status = await(client.donate(eventIndex - 1, donationAmount));
+            if (status == Protocol.STATUS_OK) {
+                System.out.println("Donation successful. Thank you for your contribution!");
+            } else if (status == Protocol.STATUS_INVALID_REQUEST) {
+                System.out.println("Invalid donation amount.");
+            } else {
+                System.out.println(failureMessage(status));
+            }
         } else {
             System.out.println("There are currently no fundraising events to donate to.");
         }
@@ -242,13 +462,14 @@ public class GoFundMeClient {
 
             ByteArrayOutputStream baos = new ByteArrayOutputStream();
             DataOutputStream dos = new DataOutputStream(baos);
-            dos.writeUTF("CHECK_DETAILS");
             dos.writeInt(eventIndex - 1);
 
-            sendRequest(baos.toByteArray());
-            byte[] responseData = receiveResponseData();
-            ByteArrayInputStream bais = new ByteArrayInputStream(responseData);
-            DataInputStream dis = new DataInputStream(bais);
+            Protocol.Reply reply = sendRequest(Protocol.CHECK_DETAILS, baos.toByteArray(), true);
+            if (!reply.isOk()) {
+                System.out.println(failureMessage(reply));
+                return;
+            }
+            DataInputStream dis = reply.payload();
 
             String name = dis.readUTF();
             double targetAmount = dis.readDouble();
@@ -263,17 +484,38 @@ public class GoFundMeClient {
         }
     }
 
-    private static boolean checkIfEventsExist() throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream dos = new DataOutputStream(baos);
-        dos.writeUTF("CHECK_EVENTS_EXIST");
+    /**
+     * Prompts the user for an event index and prints the event's current amount every time the server pushes a new
+     * one, until the user presses Enter. The subscription is dropped afterwards.
+     *
+     * @param scanner a Scanner object used to read user input
+     * @throws IOException if the subscription could not be sent to the server
+     */
+    private static void watchEvent(Scanner scanner) throws IOException {
+        if (checkIfEventsExist()) {
+            System.out.println("---------------------------------");
+
+            int eventIndex = getIntInput(scanner, "Enter event index: ", 0, Integer.MAX_VALUE);
 
-        sendRequest(baos.toByteArray());
-        byte[] responseData = receiveResponseData();
-        ByteArrayInputStream bais = new ByteArrayInputStream(responseData);
-        DataInputStream dis = new DataInputStream(bais);
+            Map<Integer, Double> totals = await(client.subscribe(new int[] {eventIndex - 1},
+                    (eventId, currentAmount) -> System.out.printf("Current Amount: %.2f\n", currentAmount)));
+            if (totals.isEmpty()) {
+                client.subscribe(new int[0], null);
+                System.out.println("Invalid event index.");
+                return;
+            }
+
+            System.out.printf("Current Amount: %.2f\n", totals.get(eventIndex - 1));
+            System.out.println("Watching for donations. Press Enter to stop.");
+            scanner.nextLine();
+            await(client.subscribe(new int[0], null));
+        } else {
+            System.out.println("There are currently no fundraising events to watch.");
+        }
+    }
 
-        return dis.readBoolean();
+    private static boolean checkIfEventsExist() throws IOException {
+        return payloadOf(sendRequest(Protocol.CHECK_EVENTS_EXIST, new byte[0], true)).readBoolean();
     }
 
     /**
@@ -400,4 +642,23 @@ public class GoFundMeClient {
         scanner.nextLine(); // Consume the newline character
         return value;
     }
+
+    /**
+     * The client's copy of a fundraising event, as last received from the server.
+     */
+    private static class EventRecord {
+        final int id;
+        final String name;
+        final double targetAmount;
+        final double currentAmount;
+        final long deadline;
+
+        EventRecord(int id, String name, double targetAmount, double currentAmount, long deadline) {
+            this.id = id;
+            this.name = name;
+            this.targetAmount = targetAmount;
+            this.currentAmount = currentAmount;
+            this.deadline = deadline;
+        }
+    }
 }
@@ -1,8 +1,12 @@
 import java.io.*;
 import java.net.*;
-import java.text.SimpleDateFormat;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The GoFundMeServer class represents a server that listens on a specified port for incoming client requests.
@@ -13,15 +17,122 @@ import java.util.concurrent.*;
  * - DONATE: donates to a fundraising event
  * - CHECK_DETAILS: checks the details of a fundraising event
  * - CHECK_EVENTS_EXIST: checks if any fundraising events exist
- * The server also periodically checks for clients that have not contacted the server within the timeout period and removes them from the lastContactMap.
+ * - LIST_EVENTS_PAGE: lists up to a given number of events after a cursor, in id order
+ * - LIST_CHANGES_SINCE: lists the events that changed after a given store version
+ * - CACHE_STATS: returns the hit and miss counts of the response cache
+ * - BATCH: applies many DONATE and CHECK_DETAILS operations sent in one datagram (see BatchRequest)
+ * - STATS: returns a text report of the server metrics (see ServerMetrics)
+ * - SUBSCRIBE: subscribes the client to the totals of some events, which are then pushed to it (see Subscriptions)
+ * - SEARCH: lists up to a given number of events whose name contains the words of a query, in id order
+ * - LEADERBOARD: lists the events ranked highest by amount raised, fraction of target raised or donations in the last
+ *   hour (see Leaderboards)
+ * Any request can be wrapped in a FRAMED envelope with a request id, in which case the response is split into
+ * datagrams by ResponseFramer, and RESEND asks for the chunks of such a response that the client did not receive.
+ * The same operations can also be requested with the binary version 1 protocol described in Protocol, which uses a
+ * one-byte opcode instead of a request type string and answers with a status byte; both protocols are served side by
+ * side.
+ * The server also keeps a SessionTable of the clients it heard from within gofundme.clientTimeoutMillis (30 seconds by
+ * default) and logs each client that connects and each one whose session expires. A client's subscriptions are
+ * dropped with its session, and the new totals of subscribed events are pushed every gofundme.pushIntervalMillis.
+ *
+ * Packets are received on the main thread and handed to a pool of worker threads through a bounded queue, so one slow
+ * request does not hold up every other client. The pool is configured with system properties:
+ * - gofundme.workers: number of worker threads (defaults to the number of available processors)
+ * - gofundme.queue: capacity of the work queue (defaults to 1024)
+ * - gofundme.virtualThreads: use virtual threads for the workers when the JVM supports them (defaults to false)
+ * - gofundme.overflow: what to do when the queue is full, either "drop" (the default) or "caller-runs"
+ * The socket itself is owned by a ServerEngine, chosen with the gofundme.engine property ("socket" or "nio").
+ *
+ * Events and donations are persisted by an EventLog in the gofundme.dataDir directory and recovered on startup.
+ * Persistence is turned off with gofundme.persistence=false; gofundme.fsync ("always", "interval" or "never"),
+ * gofundme.fsyncIntervalMillis and gofundme.snapshotIntervalMillis tune it.
+ * Encoded LIST_EVENTS and CHECK_DETAILS responses are cached by a ResponseCache unless gofundme.responseCache=false.
+ * Donations that carry an idempotency key are remembered by a DonationDedup for gofundme.dedupWindowMillis, up to
+ * gofundme.dedupCapacity keys, so a retransmitted DONATE is not applied twice.
+ * Packets are admitted on the receive thread before they are decoded (see admit): gofundme.clientRate and
+ * gofundme.clientBurst set a token bucket per client, gofundme.requestCosts the tokens each request type takes from it,
+ * and gofundme.typeRates a rate limit per request type. Shed packets are answered with a busy response.
+ * Events taking more than gofundme.hotEventRate donations a second are aggregated by the EventStore, and their cached
+ * totals lag by at most gofundme.hotEventStalenessMillis.
+ * The server listens on gofundme.port (12345 by default). Several servers can split the events between them: each one
+ * is started with the same gofundme.shards list and owns the event ids a HashRing maps to it (see joinShards), and
+ * clients route requests with a ShardedClient.
+ * A server with gofundme.replicationPort set streams its write-ahead log to replicas over TCP (see
+ * ReplicationPrimary). A server started with gofundme.replicaOf pointing at that port is a read-only Replica: it serves
+ * reads from its copy and answers changes with a read-only response. ReplicatedClient sends reads to the replicas and
+ * changes to the primary.
+ * Everything is logged through an AsyncLogger; gofundme.logLevel, gofundme.logSampleRate and gofundme.logBufferSize
+ * tune it.
  */
 public class GoFundMeServer {
 
-    private static final int PORT = 12345;
-    private static List<FundraisingEvent> events = new ArrayList<>();
-    private static DatagramSocket serverSocket;
-    private static final ConcurrentHashMap<String, Long> lastContactMap = new ConcurrentHashMap<>();
-    private static final long TIMEOUT_MILLIS = 30000; // For example, 30 seconds timeout
+    private static final int PORT = Integer.getInteger("gofundme.port", 12345);
+    static final int MAX_REQUEST_SIZE = 8192;
+    static final int RESPONSE_BUFFER_SIZE = 2048;
+
+    static final AsyncLogger log = new AsyncLogger(logLevel(System.getProperty("gofundme.logLevel", "info")),
+            Integer.getInteger("gofundme.logSampleRate", 1), Integer.getInteger("gofundme.logBufferSize", 8192));
+
+    static final ServerMetrics metrics = new ServerMetrics();
+
+    private static final EventStore store = new EventStore();
+    private static final ResponseCache responseCache =
+            Boolean.parseBoolean(System.getProperty("gofundme.responseCache", "true")) ? new ResponseCache(store) : null;
+    private static final DonationDedup donationDedup = new DonationDedup(
+            Long.getLong("gofundme.dedupWindowMillis", 120000), Integer.getInteger("gofundme.dedupCapacity", 1 << 20));
+    private static final long TIMEOUT_MILLIS = Long.getLong("gofundme.clientTimeoutMillis", 30000);
+    private static final long SESSION_TICK_MILLIS = 250;
+    private static final double CLIENT_RATE = Double.parseDouble(System.getProperty("gofundme.clientRate", "0"));
+    private static final double CLIENT_BURST = Double.parseDouble(
+            System.getProperty("gofundme.clientBurst", String.valueOf(2 * CLIENT_RATE)));
+    private static final double[] REQUEST_COSTS = perOpcode("gofundme.requestCosts",
+            System.getProperty("gofundme.requestCosts", "LIST_EVENTS=10,BATCH=10,STATS=5"), 1);
+    private static final TokenBucket[] TYPE_LIMITS = typeLimits(System.getProperty("gofundme.typeRates", ""));
+    private static final Subscriptions subscriptions = new Subscriptions();
+    private static final long PUSH_INTERVAL_MILLIS = Long.getLong("gofundme.pushIntervalMillis", 100);
+    private static final SessionTable sessions = new SessionTable(TIMEOUT_MILLIS, SESSION_TICK_MILLIS,
+            System.currentTimeMillis(), CLIENT_RATE, CLIENT_BURST);
+
+    private static final int WORKER_THREADS = Integer.getInteger("gofundme.workers",
+            Runtime.getRuntime().availableProcessors());
+    private static final int WORK_QUEUE_CAPACITY = Integer.getInteger("gofundme.queue", 1024);
+    private static final boolean USE_VIRTUAL_THREADS = Boolean.getBoolean("gofundme.virtualThreads");
+    private static final String OVERFLOW_POLICY = System.getProperty("gofundme.overflow", "drop");
+    private static final String ENGINE = System.getProperty("gofundme.engine", "socket");
+    private static final boolean PERSISTENCE = Boolean.parseBoolean(System.getProperty("gofundme.persistence", "true"));
+    private static final String DATA_DIR = System.getProperty("gofundme.dataDir", "gofundme-data");
+    private static final String FSYNC_POLICY = System.getProperty("gofundme.fsync", "always");
+    private static final long FSYNC_INTERVAL_MILLIS = Long.getLong("gofundme.fsyncIntervalMillis", 100);
+    private static final long SNAPSHOT_INTERVAL_MILLIS = Long.getLong("gofundme.snapshotIntervalMillis", 60000);
+    private static final long EXPIRY_SWEEP_MILLIS = 1000;
+    private static final long LEADERBOARD_DECAY_MILLIS = 10000;
+    private static final int HOT_EVENT_RATE = Integer.getInteger("gofundme.hotEventRate", 2000);
+    private static final long HOT_EVENT_STALENESS_MILLIS = Long.getLong("gofundme.hotEventStalenessMillis", 50);
+    private static final String SHARDS = System.getProperty("gofundme.shards", "");
+    private static final String SHARD_NAME = System.getProperty("gofundme.shardName", "localhost:" + PORT);
+    private static final int REPLICATION_PORT = Integer.getInteger("gofundme.replicationPort", 0);
+    private static final long REPLICATION_BACKLOG_BYTES = Long.getLong("gofundme.replicationBacklogBytes", 64L << 20);
+    private static final String REPLICA_OF = System.getProperty("gofundme.replicaOf", "");
+    private static ReplicationPrimary replicationPrimary;
+    private static Replica replica;
+    private static final AtomicLong droppedPackets = new AtomicLong();
+    private static ThreadPoolExecutor workerPool;
+    private static final int LIST_SNAPSHOT_ATTEMPTS = 3;
+    private static final int MAX_PAGE_SIZE = 1000;
+
+    private static final byte[] INVALID_REQUEST_TYPE = "Invalid request type.".getBytes();
+    private static final byte[] ERROR_PROCESSING_REQUEST = "Error processing request.".getBytes();
+    private static final byte[] EVENT_CREATED = "Event created successfully.".getBytes();
+    private static final byte[] INVALID_TARGET_AMOUNT = "Invalid target amount.".getBytes();
+    private static final byte[] INVALID_EVENT_INDEX = "Invalid event index.".getBytes();
+    private static final byte[] EVENT_ENDED = "Donation failed. The event has already ended.".getBytes();
+    private static final byte[] INVALID_DONATION_AMOUNT = "Invalid donation amount.".getBytes();
+    private static final byte[] DONATION_SUCCESSFUL = "Donation successful. Thank you for your contribution!".getBytes();
+    private static final byte[] DONATION_IN_PROGRESS = "Donation is being processed.".getBytes();
+    private static final byte[] SERVER_BUSY = "Server busy. Please try again later.".getBytes();
+    private static final byte[] READ_ONLY_REPLICA =
+            "This server is a read-only replica. Send changes to the primary.".getBytes();
+    private static final EventStore.DonationResult[] DONATION_RESULTS = EventStore.DonationResult.values();
 
     /**
      * This method is the main method of the GoFundMeServer class. It starts the server and listens on a specified port for incoming client requests.
@@ -30,290 +141,1144 @@ public class GoFundMeServer {
      */
     public static void main(String[] args) {
         try {
-            serverSocket = new DatagramSocket(PORT);
-            System.out.println("---------------------------------");
-            System.out.println("Server started. Listening on port " + PORT);
+            ServerEngine engine = ServerEngine.forName(ENGINE);
 
+            if (!REPLICA_OF.isEmpty()) {
+                startReplica();
+            } else if (PERSISTENCE) {
+                EventLog eventLog = openEventLog();
+                if (REPLICATION_PORT > 0) {
+                    replicationPrimary = new ReplicationPrimary(store, eventLog, REPLICATION_BACKLOG_BYTES);
+                    replicationPrimary.start(REPLICATION_PORT);
+                }
+            } else if (REPLICATION_PORT > 0) {
+                throw new IllegalArgumentException("Replication streams the write-ahead log, so "
+                        + "gofundme.replicationPort needs gofundme.persistence=true.");
+            }
+            if (!SHARDS.isEmpty()) {
+                joinShards();
+            }
             startClientTimeoutChecker();
+            startExpirySweeper();
+            startHotEventFolder();
+            startLeaderboardDecay();
+            startSubscriptionPusher(engine);
+            ExecutorService workers = createWorkerPool();
+
+            engine.serve(PORT, workers);
+        } catch (BindException e) {
+            log.println(AsyncLogger.Level.ERROR, "---------------------------------");
+            log.println(AsyncLogger.Level.ERROR, "Could not start the server. Port " + PORT + " is already in use.");
+        } catch (IllegalArgumentException e) {
+            log.println(AsyncLogger.Level.ERROR, e.getMessage());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Parses the gofundme.logLevel property, falling back to INFO for an unknown level.
+     *
+     * @param name the name of the level
+     * @return the level
+     */
+    private static AsyncLogger.Level logLevel(String name) {
+        try {
+            return AsyncLogger.Level.valueOf(name.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Unknown log level " + name + ", using INFO.");
+            return AsyncLogger.Level.INFO;
+        }
+    }
+
+    /**
+     * Parses a per-request-type setting such as "LIST_EVENTS=10,BATCH=10" into an array indexed by opcode.
+     *
+     * @param property the name of the property, for error messages
+     * @param text the value of the property
+     * @param defaultValue the value of the request types that are not mentioned
+     * @return the value for each opcode
+     */
+    private static double[] perOpcode(String property, String text, double defaultValue) {
+        double[] values = new double[Protocol.OPCODE_COUNT];
+        Arrays.fill(values, defaultValue);
+        for (String part : text.split(",")) {
+            if (part.isBlank()) {
+                continue;
+            }
+            String[] pair = part.split("=");
+            byte opcode = 0;
+            for (byte candidate = 1; candidate < Protocol.OPCODE_COUNT; candidate++) {
+                if (Protocol.name(candidate).equals(pair[0].trim())) {
+                    opcode = candidate;
+                }
+            }
+            if (pair.length != 2 || opcode == 0) {
+                throw new IllegalArgumentException("Invalid " + property + ": " + text);
+            }
+            values[opcode] = Double.parseDouble(pair[1].trim());
+        }
+        return values;
+    }
+
+    /**
+     * Creates a token bucket, holding one second's worth of tokens, for each request type given a rate in
+     * gofundme.typeRates.
+     *
+     * @param text the value of gofundme.typeRates, such as "LIST_EVENTS=200"
+     * @return the bucket of each opcode, or null where the request type has no limit
+     */
+    private static TokenBucket[] typeLimits(String text) {
+        double[] rates = perOpcode("gofundme.typeRates", text, 0);
+        TokenBucket[] buckets = new TokenBucket[Protocol.OPCODE_COUNT];
+        for (int opcode = 1; opcode < Protocol.OPCODE_COUNT; opcode++) {
+            if (rates[opcode] > 0) {
+                buckets[opcode] = new TokenBucket(rates[opcode], Math.max(1, rates[opcode]));
+            }
+        }
+        return buckets;
+    }
 
-            byte[] receiveData = new byte[1024];
+    /**
+     * Recovers the event store from the data directory, attaches the write-ahead log to it and schedules snapshots.
+     *
+     * @return the write-ahead log
+     * @throws IOException if the data directory cannot be read or the log cannot be opened
+     */
+    private static EventLog openEventLog() throws IOException {
+        EventLog.FsyncPolicy fsyncPolicy;
+        try {
+            fsyncPolicy = EventLog.FsyncPolicy.valueOf(FSYNC_POLICY.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown fsync policy: " + FSYNC_POLICY
+                    + " (expected always, interval or never)");
+        }
 
-            while (true) {
-                DatagramPacket receivePacket = new DatagramPacket(receiveData, receiveData.length);
-                serverSocket.receive(receivePacket);
-                InetAddress clientAddress = receivePacket.getAddress();
-                int clientPort = receivePacket.getPort();
-                String clientKey = clientAddress.getHostAddress() + ":" + clientPort;
+        EventLog eventLog = new EventLog(Paths.get(DATA_DIR), fsyncPolicy, FSYNC_INTERVAL_MILLIS);
+        int replayed = eventLog.recover(store);
+        store.setJournal(eventLog);
+        log.println(AsyncLogger.Level.INFO, "Recovered " + store.events().size() + " event(s) from " + DATA_DIR
+                + " (" + replayed + " log record(s) replayed), fsync policy " + FSYNC_POLICY);
 
-                // Log new client connection
-                lastContactMap.computeIfAbsent(clientKey, k -> {
-                    System.out.println(getTimestamp() + ": New client connected: IP = " + clientAddress.getHostAddress()
-                            + ", Port = " + clientPort);
-                    return System.currentTimeMillis();
-                });
+        Executors.newSingleThreadScheduledExecutor().scheduleWithFixedDelay(() -> {
+            try {
+                eventLog.snapshot(store);
+            } catch (IOException e) {
+                log.log(AsyncLogger.Level.ERROR, "Could not write snapshot: " + e.getMessage());
+            }
+        }, SNAPSHOT_INTERVAL_MILLIS, SNAPSHOT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        return eventLog;
+    }
 
-                // Update last contact time
-                lastContactMap.put(clientKey, System.currentTimeMillis());
+    /**
+     * Makes this server a read-only replica of the primary at gofundme.replicaOf. A replica keeps no log of its own:
+     * it gets its events from the primary, with a snapshot when it starts, so it is rejected together with
+     * gofundme.replicationPort.
+     *
+     * @throws IllegalArgumentException if this server is also configured as a primary
+     */
+    private static void startReplica() {
+        if (REPLICATION_PORT > 0) {
+            throw new IllegalArgumentException("A server cannot be both a replica (gofundme.replicaOf) and a primary "
+                    + "(gofundme.replicationPort).");
+        }
+        replica = new Replica(store, REPLICA_OF);
+        replica.start();
+        log.println(AsyncLogger.Level.INFO, "Read-only replica of " + REPLICA_OF);
+    }
 
-                byte[] responseData = processData(receivePacket.getData(), clientAddress, clientPort);
+    /**
+     * Makes this server one shard of the nodes listed in gofundme.shards, found on the ring under gofundme.shardName
+     * (localhost and the server's port by default). New events only get ids the HashRing maps to this shard, so a
+     * ShardedClient built from the same list sends each event's requests here. Recovered events that the ring now
+     * maps to another shard, because the list changed, are still served but logged, since clients will not find them.
+     *
+     * @throws IllegalArgumentException if the list cannot be parsed or does not contain this server
+     */
+    private static void joinShards() {
+        HashRing ring = HashRing.parse(SHARDS);
+        int shard = ring.indexOf(SHARD_NAME);
+        if (shard < 0) {
+            throw new IllegalArgumentException("This server (" + SHARD_NAME + ") is not one of the shards " + SHARDS
+                    + "; set gofundme.shardName to its entry.");
+        }
+        store.setIdFilter(id -> ring.ownerOf(id) == shard);
 
-                DatagramPacket sendPacket = new DatagramPacket(responseData, responseData.length, clientAddress,
-                        clientPort);
-                serverSocket.send(sendPacket);
+        int misplaced = 0;
+        for (FundraisingEvent event : store.events()) {
+            if (ring.ownerOf(event.id) != shard) {
+                misplaced++;
             }
-        } catch (BindException e) {
-            System.err.println("---------------------------------");
-            System.err.println("Could not start the server. Port " + PORT + " is already in use.");
-        } catch (IOException e) {
-            e.printStackTrace();
+        }
+        log.println(AsyncLogger.Level.INFO, "Serving shard " + SHARD_NAME + ", one of " + ring.size() + " shard(s)");
+        if (misplaced > 0) {
+            log.println(AsyncLogger.Level.WARN, misplaced + " recovered event(s) belong to other shards under the "
+                    + "current shard list and have to be moved there");
         }
     }
 
     /**
-     * Starts a thread that periodically checks for clients that have not contacted the server within the timeout period.
-     * If a client is found to have timed out, it is removed from the lastContactMap and a message is printed to the console.
+     * Prints the startup banner once the engine has bound its socket.
+     *
+     * @param port the port the server is listening on
+     * @param socketType a short description of the socket the engine uses
      */
-    private static void startClientTimeoutChecker() {
-        Executors.newSingleThreadScheduledExecutor().scheduleAtFixedRate(() -> {
-            long currentTime = System.currentTimeMillis();
-            Iterator<Map.Entry<String, Long>> iterator = lastContactMap.entrySet().iterator();
-
-            while (iterator.hasNext()) {
-                Map.Entry<String, Long> entry = iterator.next();
-                if (currentTime - entry.getValue() > TIMEOUT_MILLIS) {
-                    System.out.println(getTimestamp() + ": Client disconnected: IP = " + entry.getKey().split(":")[0]
-                            + ", Port = " + entry.getKey().split(":")[1]);
-                    iterator.remove();
+    static void logServerStarted(int port, String socketType) {
+        log.println(AsyncLogger.Level.INFO, "---------------------------------");
+        log.println(AsyncLogger.Level.INFO, "Server started. Listening on port " + port + " (" + socketType + ")");
+    }
+
+    /**
+     * Decides whether a packet is processed, before it is decoded or any lock of the store is taken. Engines call this
+     * on their receive thread for every packet; it allocates nothing for a known client.
+     *
+     * It logs new client connections and extends the session of the client that sent the packet. It then sheds the
+     * packet, answering it with a busy response instead of handing it to the workers, when the client is over its rate
+     * limit (gofundme.clientRate, with each request type costing gofundme.requestCosts tokens), the request type is
+     * over its rate limit (gofundme.typeRates), or the work queue is full and the overflow policy is to drop. So a
+     * client flooding the server only uses up its own share, and overload is refused cheaply instead of queueing up.
+     *
+     * @param request the request, positioned at its first byte; the position is not changed
+     * @param clientAddress the IP address of the client
+     * @param clientPort the port number of the client
+     * @param busyResponse receives the busy response when the packet is shed; it is left empty if the request is too
+     *                     short to answer
+     * @return true to process the packet, false if it was shed and busyResponse should be sent instead
+     */
+    static boolean admit(ByteBuffer request, InetAddress clientAddress, int clientPort, ResponseBuffer busyResponse) {
+        byte opcode = Protocol.peekOpcode(request);
+        int index = opcode > 0 && opcode < Protocol.OPCODE_COUNT ? opcode : 0;
+        int contact = sessions.touch(clientAddress, clientPort, System.currentTimeMillis(),
+                Math.min(REQUEST_COSTS[index], CLIENT_BURST));
+        if ((contact & SessionTable.CONNECTED) != 0) {
+            log.logClient(AsyncLogger.Level.INFO, "New client connected:", null, clientAddress, clientPort);
+        }
+
+        int reason;
+        if ((contact & SessionTable.LIMITED) != 0) {
+            reason = ServerMetrics.SHED_CLIENT_LIMIT;
+        } else if (TYPE_LIMITS[index] != null && !TYPE_LIMITS[index].tryAcquire(System.nanoTime())) {
+            reason = ServerMetrics.SHED_TYPE_LIMIT;
+        } else if (workerPool != null && !"caller-runs".equalsIgnoreCase(OVERFLOW_POLICY)
+                && workerPool.getQueue().remainingCapacity() == 0) {
+            reason = ServerMetrics.SHED_OVERLOAD;
+        } else {
+            return true;
+        }
+
+        metrics.recordShed(reason);
+        writeBusy(request, opcode, busyResponse);
+        return false;
+    }
+
+    /**
+     * Writes the response to a shed request: STATUS_BUSY for a version 1 request, or a busy message for a legacy one,
+     * framed with the request id when the request was.
+     */
+    private static void writeBusy(ByteBuffer request, byte opcode, ResponseBuffer response) {
+        response.clear();
+        int position = request.position();
+        if (!request.hasRemaining()) {
+            return;
+        }
+        if (request.get(position) == Protocol.VERSION_1) {
+            if (request.remaining() >= Protocol.REQUEST_HEADER_SIZE) {
+                response.frame(request.getInt(position + 2));
+                response.putByte(Protocol.VERSION_1).putByte(opcode).putByte(Protocol.STATUS_BUSY);
+            }
+            return;
+        }
+        if (Protocol.isLegacyFramed(request)) {
+            if (request.remaining() < 12) {
+                return;
+            }
+            response.frame(request.getInt(position + 8));
+        }
+        response.putBytes(SERVER_BUSY);
+    }
+
+    /**
+     * Creates the pool of worker threads that process requests handed over by the receive loop.
+     * The pool has a fixed number of workers and a bounded queue. When the queue is full the request is either dropped
+     * (the client sees a lost packet, exactly as if the network had dropped it) or, with the "caller-runs" policy,
+     * processed on the receive thread, which slows down intake until the workers catch up. A dropped
+     * ServerEngine.PacketTask is told so, to give its pooled buffer back to the engine.
+     *
+     * @return the executor that runs the workers
+     */
+    private static ExecutorService createWorkerPool() {
+        RejectedExecutionHandler overflowHandler;
+        if ("caller-runs".equalsIgnoreCase(OVERFLOW_POLICY)) {
+            overflowHandler = new ThreadPoolExecutor.CallerRunsPolicy();
+        } else {
+            overflowHandler = (task, executor) -> {
+                if (task instanceof ServerEngine.PacketTask) {
+                    ((ServerEngine.PacketTask) task).dropped();
                 }
+                long dropped = droppedPackets.incrementAndGet();
+                // Only log every 1000th drop so a flood does not turn into a flood of console output
+                if (dropped % 1000 == 1) {
+                    log.log(AsyncLogger.Level.WARN, "Work queue full, dropped " + dropped + " packet(s) so far");
+                }
+            };
+        }
+
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(WORKER_THREADS, WORKER_THREADS, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(WORK_QUEUE_CAPACITY), createWorkerThreadFactory(), overflowHandler);
+        pool.prestartAllCoreThreads();
+        workerPool = pool;
+
+        log.println(AsyncLogger.Level.INFO, "Worker pool: " + WORKER_THREADS + (USE_VIRTUAL_THREADS ? " virtual" : " platform")
+                + " threads, queue capacity " + WORK_QUEUE_CAPACITY + ", overflow policy " + OVERFLOW_POLICY);
+        return pool;
+    }
+
+    /**
+     * Returns the thread factory for the worker pool. Virtual threads are looked up reflectively so the server still
+     * compiles and runs on JVMs that do not have them, in which case it falls back to platform threads.
+     *
+     * @return a thread factory creating the worker threads
+     */
+    private static ThreadFactory createWorkerThreadFactory() {
+        if (USE_VIRTUAL_THREADS) {
+            try {
+                Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+                Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                builder = builderType.getMethod("name", String.class, long.class)
+                        .invoke(builder, "gofundme-worker-", 0L);
+                return (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                log.println(AsyncLogger.Level.WARN,
+                        "Virtual threads are not available on this JVM, using platform threads.");
             }
-        }, TIMEOUT_MILLIS, TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        AtomicLong threadCount = new AtomicLong();
+        return runnable -> {
+            Thread thread = new Thread(runnable, "gofundme-worker-" + threadCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Starts a thread that advances the session timer wheel every tick. Each client that has not contacted the server
+     * within the timeout period loses its session and its subscriptions, and a message is logged.
+     */
+    private static void startClientTimeoutChecker() {
+        ScheduledExecutorService checker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "gofundme-session-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        checker.scheduleAtFixedRate(() -> sessions.expire(System.currentTimeMillis(), (address, port) -> {
+            subscriptions.drop(new InetSocketAddress(address, port));
+            log.logClient(AsyncLogger.Level.INFO, "Client disconnected:", null, address, port);
+        }), SESSION_TICK_MILLIS, SESSION_TICK_MILLIS, TimeUnit.MILLISECONDS);
     }
 
     /**
-     * This method processes the incoming data from the client and returns the appropriate response.
-     * It reads the request type from the input stream and switches on it to call the corresponding method.
-     * If the request type is invalid, it returns an error message.
-     * @param data the incoming data from the client
+     * Starts a thread that moves events whose deadline has passed from the current events to the past events, so
+     * listing never has to sort or partition the events. Listing also sweeps first, so a list is exact to the
+     * millisecond even between sweeps.
+     */
+    private static void startExpirySweeper() {
+        ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "gofundme-expiry-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweeper.scheduleAtFixedRate(() -> store.expireDue(System.currentTimeMillis()),
+                EXPIRY_SWEEP_MILLIS, EXPIRY_SWEEP_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Turns on hot event aggregation in the store, unless gofundme.hotEventRate is 0, and starts a thread that folds
+     * the aggregated donations every gofundme.hotEventStalenessMillis, which bounds how far cached totals of a hot
+     * event can lag.
+     */
+    private static void startHotEventFolder() {
+        if (HOT_EVENT_RATE <= 0) {
+            return;
+        }
+        store.aggregateHotEvents(HOT_EVENT_RATE);
+        ScheduledExecutorService folder = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "gofundme-hot-event-folder");
+            thread.setDaemon(true);
+            return thread;
+        });
+        folder.scheduleAtFixedRate(() -> store.foldHotEvents(System.currentTimeMillis()),
+                HOT_EVENT_STALENESS_MILLIS, HOT_EVENT_STALENESS_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts a thread that drops the donations older than an hour from the recent donations leaderboard, for the
+     * events that stopped taking donations. The events that keep taking donations are updated as they do.
+     */
+    private static void startLeaderboardDecay() {
+        ScheduledExecutorService decay = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "gofundme-leaderboard-decay");
+            thread.setDaemon(true);
+            return thread;
+        });
+        decay.scheduleAtFixedRate(() -> store.decayLeaderboards(System.currentTimeMillis()),
+                LEADERBOARD_DECAY_MILLIS, LEADERBOARD_DECAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Registers the subscriptions as the store's change listener and starts a thread that pushes the new totals of
+     * subscribed events every gofundme.pushIntervalMillis, so a subscriber gets at most one update per event per
+     * interval however fast the event takes donations.
+     *
+     * @param engine the engine that sends the pushed datagrams
+     */
+    private static void startSubscriptionPusher(ServerEngine engine) {
+        store.setChangeListener(subscriptions);
+        ScheduledExecutorService pusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "gofundme-subscription-pusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        pusher.scheduleAtFixedRate(() -> subscriptions.push(engine::push),
+                PUSH_INTERVAL_MILLIS, PUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * This method processes the incoming data from the client and writes the appropriate response.
+     * It reads the request type from the request buffer and switches on it to call the corresponding method.
+     * If the request type is invalid, it writes an error message.
+     * If the request is wrapped in a FRAMED envelope, the response is marked to be sent in chunks with the request id.
+     * @param request the incoming data from the client, positioned at the start of the request
+     * @param response the buffer the response is written into
      * @param clientAddress the IP address of the client
      * @param clientPort the port number of the client
-     * @return the response to be sent back to the client
      */
-    private static byte[] processData(byte[] data, InetAddress clientAddress, int clientPort) {
+    static void processData(ByteBuffer request, ResponseBuffer response, InetAddress clientAddress, int clientPort) {
+        long startNanos = System.nanoTime();
+        if (request.hasRemaining() && request.get(request.position()) == Protocol.VERSION_1) {
+            processBinary(request, response, clientAddress, clientPort, startNanos);
+            return;
+        }
+
+        byte opcode = 0;
+        boolean failed = false;
         try {
-            ByteArrayInputStream bais = new ByteArrayInputStream(data);
-            DataInputStream dis = new DataInputStream(bais);
-            String requestType = dis.readUTF();
+            String requestType = WireFormat.readUTF(request);
 
-            System.out.println(getTimestamp() + ": Received request: " + requestType +
-                    " from IP = " + clientAddress.getHostAddress() + ", Port = " + clientPort);
+            if (requestType.equals("FRAMED")) {
+                response.frame(request.getInt());
+                requestType = WireFormat.readUTF(request);
+            }
+
+            log.logRequest(requestType, clientAddress, clientPort);
 
             switch (requestType) {
                 case "CREATE_EVENT":
-                    return createEvent(dis);
+                    opcode = Protocol.CREATE_EVENT;
+                    createEvent(request, response);
+                    break;
                 case "LIST_EVENTS":
-                    return listEvents();
+                    opcode = Protocol.LIST_EVENTS;
+                    listEvents(response);
+                    break;
                 case "DONATE":
-                    return donate(dis);
+                    opcode = Protocol.DONATE;
+                    donate(request, response);
+                    break;
                 case "CHECK_DETAILS":
-                    return checkDetails(dis);
+                    opcode = Protocol.CHECK_DETAILS;
+                    checkDetails(request, response);
+                    break;
                 case "CHECK_EVENTS_EXIST":
-                    return checkEventsExist();
+                    opcode = Protocol.CHECK_EVENTS_EXIST;
+                    checkEventsExist(response);
+                    break;
+                case "LIST_EVENTS_PAGE":
+                    opcode = Protocol.LIST_EVENTS_PAGE;
+                    listEventsPage(request, response);
+                    break;
+                case "LIST_CHANGES_SINCE":
+                    opcode = Protocol.LIST_CHANGES_SINCE;
+                    listChangesSince(request, response);
+                    break;
+                case "CACHE_STATS":
+                    opcode = Protocol.CACHE_STATS;
+                    cacheStats(response);
+                    break;
+                case "BATCH":
+                    opcode = Protocol.BATCH;
+                    batch(request, response);
+                    break;
+                case "STATS":
+                    opcode = Protocol.STATS;
+                    stats(response);
+                    break;
+                case "SUBSCRIBE":
+                    opcode = Protocol.SUBSCRIBE;
+                    subscribe(request, response, clientAddress, clientPort);
+                    break;
+                case "SEARCH":
+                    opcode = Protocol.SEARCH;
+                    search(request, response);
+                    break;
+                case "LEADERBOARD":
+                    opcode = Protocol.LEADERBOARD;
+                    leaderboard(request, response);
+                    break;
+                case "RESEND":
+                    resendChunks(request.getInt(), request, response, clientAddress, clientPort);
+                    metrics.recordRequest(Protocol.RESEND, startNanos, false);
+                    return;
                 default:
-                    return "Invalid request type.".getBytes();
+                    response.putBytes(INVALID_REQUEST_TYPE);
             }
-        } catch (IOException e) {
-            return "Error processing request.".getBytes();
+        } catch (EventStore.ReadOnlyException e) {
+            response.truncate(0);
+            response.putBytes(READ_ONLY_REPLICA);
+        } catch (IOException | BufferUnderflowException e) {
+            failed = true;
+            response.truncate(0);
+            response.putBytes(ERROR_PROCESSING_REQUEST);
         }
+        if (response.isFramed() && !ResponseFramer.fits(response.length())) {
+            failed = true;
+            response.truncate(0);
+            response.putBytes(ERROR_PROCESSING_REQUEST);
+        }
+
+        metrics.recordRequest(opcode, startNanos, failed);
+        retainIfChunked(response, clientAddress, clientPort);
     }
 
-    
     /**
-     * Returns a string representation of the current timestamp in the format "yyyy-MM-dd HH:mm:ss".
+     * Processes a version 1 binary request (see Protocol). The response is always framed with the request id of the
+     * request and starts with the protocol version, the opcode and a status byte, followed by the payload when the
+     * status is STATUS_OK.
      *
-     * @return a string representation of the current timestamp
+     * @param request the incoming data from the client, positioned at the version byte
+     * @param response the buffer the response is written into
+     * @param clientAddress the IP address of the client
+     * @param clientPort the port number of the client
+     * @param startNanos System.nanoTime() when processing started, for the latency metrics
      */
-    private static String getTimestamp() {
-        return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date());
+    private static void processBinary(ByteBuffer request, ResponseBuffer response, InetAddress clientAddress,
+                                      int clientPort, long startNanos) {
+        if (request.remaining() < Protocol.REQUEST_HEADER_SIZE) {
+            response.putBytes(ERROR_PROCESSING_REQUEST); // Without a request id there is nothing to frame the reply with
+            metrics.recordRequest((byte) 0, startNanos, true);
+            return;
+        }
+        request.get();
+        byte opcode = request.get();
+        int requestId = request.getInt();
+
+        if (opcode == Protocol.RESEND) {
+            try {
+                resendChunks(requestId, request, response, clientAddress, clientPort);
+            } catch (BufferUnderflowException e) {
+                response.truncate(0);
+                response.writeDatagrams(); // Nothing to send
+            }
+            metrics.recordRequest(Protocol.RESEND, startNanos, false);
+            return;
+        }
+
+        log.logRequest(Protocol.name(opcode), clientAddress, clientPort);
+
+        response.frame(requestId);
+        response.putByte(Protocol.VERSION_1);
+        response.putByte(opcode);
+        int statusPosition = response.length();
+        response.putByte(Protocol.STATUS_OK);
+
+        boolean failed = false;
+        try {
+            switch (opcode) {
+                case Protocol.CREATE_EVENT:
+                    String name = WireFormat.readUTF(request);
+                    double targetAmount = request.getDouble();
+                    long deadline = request.getLong();
+                    FundraisingEvent created = store.createEvent(name, targetAmount, deadline);
+                    if (created == null) {
+                        response.setByte(statusPosition, Protocol.STATUS_INVALID_REQUEST);
+                    } else {
+                        response.putInt(created.id);
+                    }
+                    break;
+                case Protocol.LIST_EVENTS:
+                    listEvents(response);
+                    break;
+                case Protocol.DONATE:
+                    int eventId = request.getInt();
+                    double amount = request.getDouble();
+                    EventStore.DonationResult result = donateOnce(eventId, amount, request.getLong());
+                    response.setByte(statusPosition, result == null ? Protocol.STATUS_IN_PROGRESS : statusOf(result));
+                    break;
+                case Protocol.CHECK_DETAILS:
+                    FundraisingEvent event = store.get(request.getInt());
+                    if (event == null) {
+                        response.setByte(statusPosition, Protocol.STATUS_INVALID_EVENT);
+                    } else {
+                        writeDetails(event, response);
+                    }
+                    break;
+                case Protocol.CHECK_EVENTS_EXIST:
+                    checkEventsExist(response);
+                    break;
+                case Protocol.LIST_EVENTS_PAGE:
+                    listEventsPage(request, response);
+                    break;
+                case Protocol.LIST_CHANGES_SINCE:
+                    listChangesSince(request, response);
+                    break;
+                case Protocol.CACHE_STATS:
+                    cacheStats(response);
+                    break;
+                case Protocol.BATCH:
+                    batch(request, response);
+                    break;
+                case Protocol.STATS:
+                    stats(response);
+                    break;
+                case Protocol.SUBSCRIBE:
+                    subscribe(request, response, clientAddress, clientPort);
+                    break;
+                case Protocol.SEARCH:
+                    search(request, response);
+                    break;
+                case Protocol.LEADERBOARD:
+                    leaderboard(request, response);
+                    break;
+                default:
+                    response.setByte(statusPosition, Protocol.STATUS_INVALID_REQUEST);
+            }
+        } catch (EventStore.ReadOnlyException e) {
+            response.truncate(statusPosition);
+            response.putByte(Protocol.STATUS_READ_ONLY);
+        } catch (IOException | BufferUnderflowException e) {
+            failed = true;
+            response.truncate(statusPosition);
+            response.putByte(Protocol.STATUS_ERROR);
+        }
+        if (!ResponseFramer.fits(response.length())) {
+            failed = true;
+            response.truncate(statusPosition);
+            response.putByte(Protocol.STATUS_ERROR);
+        }
+
+        metrics.recordRequest(opcode, startNanos, failed);
+
+        retainIfChunked(response, clientAddress, clientPort);
+    }
+
+    /**
+     * Keeps a framed response that spans several datagrams, in case the client has to ask for some chunks again.
+     *
+     * @param response the response
+     * @param clientAddress the IP address of the client
+     * @param clientPort the port number of the client
+     */
+    private static void retainIfChunked(ResponseBuffer response, InetAddress clientAddress, int clientPort) {
+        if (response.isFramed() && ResponseFramer.chunkCount(response.length()) > 1) {
+            ResponseFramer.retain(clientAddress, clientPort, response.requestId(), response);
+        }
+    }
+
+    /**
+     * Returns the status byte that reports the result of a donation.
+     *
+     * @param result the result of the donation
+     * @return the status
+     */
+    private static byte statusOf(EventStore.DonationResult result) {
+        switch (result) {
+            case INVALID_EVENT:
+                return Protocol.STATUS_INVALID_EVENT;
+            case EVENT_ENDED:
+                return Protocol.STATUS_EVENT_ENDED;
+            case INVALID_AMOUNT:
+                return Protocol.STATUS_INVALID_REQUEST;
+            default:
+                return Protocol.STATUS_OK;
+        }
+    }
+
+    /**
+     * Sends again the chunks of a framed response that the client did not receive.
+     * If the response is no longer retained, nothing is sent and the client gives up on it after its retries.
+     *
+     * @param requestId the request id of the response
+     * @param request the buffer containing the number of chunks and their sequence numbers
+     * @param response the buffer the chunks asked for are written into, each as a whole datagram
+     * @param clientAddress the IP address of the client
+     * @param clientPort the port number of the client
+     */
+    private static void resendChunks(int requestId, ByteBuffer request, ResponseBuffer response,
+                                     InetAddress clientAddress, int clientPort) {
+        int[] chunks = new int[request.getShort() & 0xFFFF];
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = request.getShort() & 0xFFFF;
+        }
+
+        response.writeDatagrams();
+        ResponseFramer.RetainedResponse retained =
+                ResponseFramer.retained(clientAddress, clientPort, requestId);
+        if (retained == null) {
+            return;
+        }
+
+        int chunkCount = ResponseFramer.chunkCount(retained.length());
+        for (int chunk : chunks) {
+            if (chunk < chunkCount) {
+                retained.writeChunk(requestId, chunk, response);
+                response.endDatagram();
+            }
+        }
     }
 
+    
     /**
-     * Creates a new fundraising event with the given name, target amount, and deadline.
-     * Adds the new event to the list of events in a synchronized manner.
+     * Creates a new fundraising event with the given name, target amount, and deadline and adds it to the event store.
      * 
-     * @param dis the DataInputStream object used to read the name, target amount, and deadline of the event
-     * @return a byte array containing the message "Event created successfully."
-     * @throws IOException if there is an error reading from the input stream
+     * @param request the buffer used to read the name, target amount, and deadline of the event
+     * @param response the buffer the message "Event created successfully." or "Invalid target amount." is written into
+     * @throws IOException if the name in the request is malformed or the event cannot be written to the log
      */
-    private static byte[] createEvent(DataInputStream dis) throws IOException {
-        String name = dis.readUTF();
-        double targetAmount = dis.readDouble();
-        Date deadline = new Date(dis.readLong());
+    private static void createEvent(ByteBuffer request, ResponseBuffer response) throws IOException {
+        String name = WireFormat.readUTF(request);
+        double targetAmount = request.getDouble();
+        long deadline = request.getLong();
 
-        synchronized (events) {
-            FundraisingEvent newEvent = new FundraisingEvent(name, targetAmount, deadline);
-            events.add(newEvent);
+        if (store.createEvent(name, targetAmount, deadline) == null) {
+            response.putBytes(INVALID_TARGET_AMOUNT);
+            return;
         }
 
-        return "Event created successfully.".getBytes();
+        response.putBytes(EVENT_CREATED);
     }
 
     /**
-     * Returns a byte array containing the list of current and past fundraising events.
-     * The events are sorted by deadline and the byte array is generated using DataOutputStream.
-     * @return a byte array containing the list of current and past fundraising events.
-     * @throws IOException if an I/O error occurs.
+     * Writes the list of current and past fundraising events into the response.
+     * The events come from the store's deadline indexes, so they are already sorted by deadline (and by id for events
+     * with the same deadline). The list is a consistent snapshot: if a donation, a new event or an expiry sweep
+     * changes the store while the list is being written, the list is written again, up to LIST_SNAPSHOT_ATTEMPTS
+     * times, after which the last attempt is sent as is (each amount in it is still exact, they may just not all be
+     * from the same instant).
+     * @param response the buffer the list of current and past fundraising events is written into.
+     * @throws IOException if an event name cannot be encoded.
      */
-    private static byte[] listEvents() throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream dos = new DataOutputStream(baos);
-    
-        synchronized (events) {
-            List<FundraisingEvent> currentEvents = new ArrayList<>();
-            List<FundraisingEvent> pastEvents = new ArrayList<>();
+    private static void listEvents(ResponseBuffer response) throws IOException {
+        store.expireDue(System.currentTimeMillis());
+        if (responseCache != null) {
+            responseCache.writeEventList(response);
+            return;
+        }
+        int start = response.length();
+
+        for (int attempt = 1; ; attempt++) {
+            long version = store.version();
+            long indexSequence = store.indexSequence();
+
+            response.putInt(0);
+            response.putInt(0);
+            int currentCount = 0;
+            int pastCount = 0;
     
-            for (FundraisingEvent event : events) {
-                if (event.deadline.after(new Date())) {
-                    currentEvents.add(event);
-                } else {
-                    pastEvents.add(event);
-                }
+            for (FundraisingEvent event : store.currentEvents()) {
+                writeEvent(event, response);
+                currentCount++;
             }
     
-            // Sort the events by deadline
-            Comparator<FundraisingEvent> byDeadline = Comparator.comparing(e -> e.deadline);
-            currentEvents.sort(byDeadline);
-            pastEvents.sort(byDeadline);
-    
-            dos.writeInt(currentEvents.size());
-            dos.writeInt(pastEvents.size());
-    
-            for (FundraisingEvent event : currentEvents) {
-                dos.writeInt(event.id);
-                dos.writeUTF(event.name);
-                dos.writeDouble(event.targetAmount);
-                dos.writeDouble(event.currentAmount);
-                dos.writeLong(event.deadline.getTime());
+            for (FundraisingEvent event : store.pastEvents()) {
+                writeEvent(event, response);
+                pastCount++;
             }
-    
-            for (FundraisingEvent event : pastEvents) {
-                dos.writeInt(event.id);
-                dos.writeUTF(event.name);
-                dos.writeDouble(event.targetAmount);
-                dos.writeDouble(event.currentAmount);
-                dos.writeLong(event.deadline.getTime());
+
+            response.setInt(start, currentCount);
+            response.setInt(start + 4, pastCount);
+
+            boolean unchanged = store.version() == version && store.indexSequence() == indexSequence
+                    && indexSequence % 2 == 0;
+            if (unchanged || attempt == LIST_SNAPSHOT_ATTEMPTS) {
+                return;
             }
+            response.truncate(start);
         }
-    
-        return baos.toByteArray();
-    }    
+    }
 
     /**
-     * This method processes a donation by reading the event index and donation amount from the input stream.
+     * Writes one page of the event list, in id order. The request holds the cursor (the last id of the previous page,
+     * or -1 for the first page) and the page size, which is capped at MAX_PAGE_SIZE.
+     * The response holds the store epoch and version as of the first read, the number of events, the events, and the
+     * cursor for the next page (-1 after the last page). A client that pages through every event and then asks for
+     * the changes since that version has a complete, up-to-date copy of the store.
+     *
+     * @param request the buffer containing the cursor and the page size
+     * @param response the buffer the page is written into
+     * @throws IOException if an event name cannot be encoded
+     */
+    private static void listEventsPage(ByteBuffer request, ResponseBuffer response) throws IOException {
+        int afterId = request.getInt();
+        int limit = Math.max(1, Math.min(request.getInt(), MAX_PAGE_SIZE));
+
+        response.putLong(store.epoch());
+        response.putLong(store.version());
+        int countPosition = response.length();
+        response.putInt(0);
+
+        int count = 0;
+        int highestId = store.highestId();
+        int id = Math.max(afterId + 1, 0);
+        for (; id <= highestId && count < limit; id++) {
+            FundraisingEvent event = store.get(id);
+            if (event != null) {
+                writeEvent(event, response);
+                count++;
+            }
+        }
+
+        response.setInt(countPosition, count);
+        response.putInt(id <= highestId ? id - 1 : -1);
+    }
+
+    /**
+     * Writes one page of the events whose name matches a query, in id order. The request holds the query, the cursor
+     * (the last id of the previous page, or -1 for the first page) and the page size, which is capped at MAX_PAGE_SIZE.
+     * The response holds the number of events, the events, and the cursor for the next page (-1 after the last page).
+     * The matches come from the store's name index, so a page costs about the same however many events there are.
+     *
+     * @param request the buffer containing the query, the cursor and the page size
+     * @param response the buffer the page is written into
+     * @throws IOException if the query is malformed or an event name cannot be encoded
+     */
+    private static void search(ByteBuffer request, ResponseBuffer response) throws IOException {
+        String query = WireFormat.readUTF(request);
+        int afterId = request.getInt();
+        int limit = Math.max(1, Math.min(request.getInt(), MAX_PAGE_SIZE));
+
+        // One more than the page, to tell whether there is a next page
+        List<FundraisingEvent> matches = store.search(query, afterId, limit + 1);
+        int count = Math.min(matches.size(), limit);
+        response.putInt(count);
+        for (int i = 0; i < count; i++) {
+            writeEvent(matches.get(i), response);
+        }
+        response.putInt(matches.size() > limit ? matches.get(limit - 1).id : -1);
+    }
+
+    /**
+     * Writes the highest ranked events of a leaderboard. The request holds the board (see Protocol) and the number of
+     * events, which is capped at Leaderboards.CAPACITY. The response holds the number of events, then each event as an
+     * entry of the event list followed by the score it is ranked by. The boards are kept ranked as donations arrive
+     * (see Leaderboards), so this costs about the same however many events there are.
+     *
+     * @param request the buffer containing the board and the number of events
+     * @param response the buffer the events are written into
+     * @throws IOException if the board is unknown or an event name cannot be encoded
+     */
+    private static void leaderboard(ByteBuffer request, ResponseBuffer response) throws IOException {
+        byte board = request.get();
+        int limit = Math.max(1, Math.min(request.getInt(), Leaderboards.CAPACITY));
+
+        List<Leaderboards.Entry> top;
+        try {
+            top = store.leaderboard(board, limit);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+        response.putInt(top.size());
+        for (Leaderboards.Entry entry : top) {
+            writeEvent(entry.event, response);
+            // Amounts are in dollars on the wire, as everywhere else
+            response.putDouble(board == Protocol.LEADERBOARD_RAISED ? entry.score / 100.0 : entry.score);
+        }
+    }
+
+    /**
+     * Writes the events that changed after the store version in the request, oldest change first, with their current
+     * totals. The request holds the version and the maximum number of events, which is capped at MAX_PAGE_SIZE.
+     * The response holds the store epoch, the version to ask from next time, whether more changes are waiting, the
+     * number of events and the events. A different epoch means the server restarted and the client has to fetch every
+     * event again.
+     *
+     * @param request the buffer containing the version and the maximum number of events
+     * @param response the buffer the changed events are written into
+     * @throws IOException if an event name cannot be encoded
+     */
+    private static void listChangesSince(ByteBuffer request, ResponseBuffer response) throws IOException {
+        long sinceVersion = request.getLong();
+        int limit = Math.max(1, Math.min(request.getInt(), MAX_PAGE_SIZE));
+
+        EventStore.Changes changes = store.changesSince(sinceVersion, limit);
+        response.putLong(store.epoch());
+        response.putLong(changes.nextVersion);
+        response.putBoolean(changes.more);
+        response.putInt(changes.events.size());
+        for (FundraisingEvent event : changes.events) {
+            writeEvent(event, response);
+        }
+    }
+
+    /**
+     * Writes the id, name, target amount, current amount and deadline of an event, as one entry of the event list.
+     *
+     * @param event the event to write
+     * @param response the buffer to write into
+     * @throws IOException if the event name cannot be encoded
+     */
+    private static void writeEvent(FundraisingEvent event, ResponseBuffer response) throws IOException {
+        if (responseCache != null) {
+            response.putBytes(responseCache.listEntry(event));
+            return;
+        }
+        response.putInt(event.id);
+        response.putUTF(event.name);
+        response.putDouble(event.targetAmount());
+        response.putDouble(event.currentAmount());
+        response.putLong(event.deadline);
+    }
+
+    /**
+     * This method processes a donation by reading the event index and donation amount from the request.
      * It then checks if the event index is valid and if the event deadline has passed. If the event is still active,
-     * the donation amount is added to the current amount of the selected event. The method returns a message indicating
+     * the donation amount is added to the current amount of the selected event. The method writes a message indicating
      * whether the donation was successful or not.
+     * The request may end with a long idempotency key, in which case a duplicate of the request gets the same message.
      *
-     * @param dis the input stream to read the event index and donation amount from
-     * @return a byte array containing a message indicating whether the donation was successful or not
-     * @throws IOException if an I/O error occurs while reading from the input stream
+     * @param request the buffer to read the event index, donation amount and optional idempotency key from
+     * @param response the buffer a message indicating whether the donation was successful or not is written into
+     * @throws IOException if the donation cannot be written to the log
      */
-    private static byte[] donate(DataInputStream dis) throws IOException {
-        int eventIndex = dis.readInt();
-        double donationAmount = dis.readDouble();
+    private static void donate(ByteBuffer request, ResponseBuffer response) throws IOException {
+        int eventIndex = request.getInt();
+        double donationAmount = request.getDouble();
+        long idempotencyKey = request.remaining() >= 8 ? request.getLong() : 0;
 
-        synchronized (events) {
-            if (eventIndex < 0 || eventIndex >= events.size()) {
-                return "Invalid event index.".getBytes();
-            }
+        EventStore.DonationResult result = donateOnce(eventIndex, donationAmount, idempotencyKey);
+        if (result == null) {
+            response.putBytes(DONATION_IN_PROGRESS);
+            return;
+        }
+        switch (result) {
+            case INVALID_EVENT:
+                response.putBytes(INVALID_EVENT_INDEX);
+                break;
+            case EVENT_ENDED:
+                response.putBytes(EVENT_ENDED);
+                break;
+            case INVALID_AMOUNT:
+                response.putBytes(INVALID_DONATION_AMOUNT);
+                break;
+            default:
+                response.putBytes(DONATION_SUCCESSFUL);
+        }
+    }
 
-            FundraisingEvent selectedEvent = events.get(eventIndex);
+    /**
+     * Applies a donation unless a donation with the same idempotency key was already applied, in which case its
+     * result is returned again. The key is only released for another try when the store says the donation was not
+     * applied.
+     *
+     * @param eventId the id of the event
+     * @param amount the donation in dollars
+     * @param idempotencyKey the key chosen by the client, or 0 to apply the donation unconditionally
+     * @return the result of the donation, or null if a donation with the same key is being applied right now
+     * @throws IOException if the donation cannot be written to the log
+     */
+    private static EventStore.DonationResult donateOnce(int eventId, double amount, long idempotencyKey)
+            throws IOException {
+        if (idempotencyKey == 0) {
+            return store.donate(eventId, amount);
+        }
 
-            // Check if the event deadline has passed
-            if (selectedEvent.deadline.before(new Date())) {
-                return "Donation failed. The event has already ended.".getBytes();
-            }
+        int previous = donationDedup.claim(idempotencyKey);
+        if (previous == DonationDedup.IN_PROGRESS) {
+            return null;
+        }
+        if (previous != DonationDedup.CLAIMED) {
+            return DONATION_RESULTS[previous];
+        }
 
-            selectedEvent.currentAmount += donationAmount;
+        EventStore.DonationResult result;
+        try {
+            result = store.donate(eventId, amount);
+        } catch (IOException e) {
+            // The store throws IOException only before it applies a donation, so a retransmission may apply it
+            donationDedup.release(idempotencyKey);
+            throw e;
+        } catch (RuntimeException e) {
+            // Thrown while applying a donation that was accepted and logged: a retransmission must not apply it again
+            donationDedup.complete(idempotencyKey, (byte) EventStore.DonationResult.SUCCESS.ordinal());
+            throw e;
         }
+        donationDedup.complete(idempotencyKey, (byte) result.ordinal());
+        return result;
+    }
 
-        return "Donation successful. Thank you for your contribution!".getBytes();
+    /**
+     * This method checks the details of a fundraising event based on the event index provided in the request.
+     * If the event index is invalid, it writes an error message.
+     * Otherwise, it retrieves the details of the event and writes them into the response.
+     *
+     * @param request the buffer containing the event index
+     * @param response the buffer the details of the event, or an error message if the event index is invalid, are written into
+     * @throws IOException if the event name cannot be encoded
+     */
+    private static void checkDetails(ByteBuffer request, ResponseBuffer response) throws IOException {
+        int eventIndex = request.getInt();
+
+        FundraisingEvent event = store.get(eventIndex);
+        if (event == null) {
+            response.putBytes(INVALID_EVENT_INDEX);
+            return;
+        }
+
+        writeDetails(event, response);
     }
 
     /**
-     * This method checks the details of a fundraising event based on the event index provided in the DataInputStream.
-     * If the event index is invalid, it returns an error message as a byte array.
-     * Otherwise, it retrieves the details of the event and writes them to a ByteArrayOutputStream, which is then converted to a byte array and returned.
+     * Writes the name, target amount, current amount and deadline of an event, as in a CHECK_DETAILS response.
      *
-     * @param dis the DataInputStream containing the event index
-     * @return a byte array containing the details of the event, or an error message if the event index is invalid
-     * @throws IOException if there is an error reading from the DataInputStream
+     * @param event the event
+     * @param response the buffer to write into
+     * @throws IOException if the event name cannot be encoded
      */
-    private static byte[] checkDetails(DataInputStream dis) throws IOException {
-        int eventIndex = dis.readInt();
+    private static void writeDetails(FundraisingEvent event, ResponseBuffer response) throws IOException {
+        if (responseCache != null) {
+            responseCache.writeDetails(event, response);
+            return;
+        }
+        response.putUTF(event.name);
+        response.putDouble(event.targetAmount());
+        response.putDouble(event.currentAmount());
+        response.putLong(event.deadline);
+    }
 
-        synchronized (events) {
-            if (eventIndex < 0 || eventIndex >= events.size()) {
-                return "Invalid event index.".getBytes();
+    /**
+     * Processes a batch of DONATE and CHECK_DETAILS operations and writes one result per operation, in order.
+     * All donations of the batch are applied to the store in one pass (one log append and one wait for the log)
+     * before any details are read. The request and response layouts are described in BatchRequest.
+     *
+     * @param request the buffer containing the operations
+     * @param response the buffer the results are written into
+     * @throws IOException if the batch is malformed or the donations cannot be written to the log
+     */
+    private static void batch(ByteBuffer request, ResponseBuffer response) throws IOException {
+        int count = request.getInt();
+        if (count < 0 || count > BatchRequest.MAX_OPERATIONS) {
+            throw new IOException("Invalid batch size: " + count);
+        }
+
+        byte[] types = new byte[count];
+        int[] ids = new int[count];
+        int[] donationIds = new int[count];
+        double[] donationAmounts = new double[count];
+        int donationCount = 0;
+        for (int i = 0; i < count; i++) {
+            types[i] = request.get();
+            ids[i] = request.getInt();
+            if (types[i] == BatchRequest.DONATE) {
+                donationIds[donationCount] = ids[i];
+                donationAmounts[donationCount] = request.getDouble();
+                donationCount++;
+            } else if (types[i] != BatchRequest.CHECK_DETAILS) {
+                throw new IOException("Invalid batch operation: " + types[i]);
             }
+        }
 
-            FundraisingEvent event = events.get(eventIndex);
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            DataOutputStream dos = new DataOutputStream(baos);
-            dos.writeUTF(event.name);
-            dos.writeDouble(event.targetAmount);
-            dos.writeDouble(event.currentAmount);
-            dos.writeLong(event.deadline.getTime());
+        EventStore.DonationResult[] donationResults = new EventStore.DonationResult[donationCount];
+        store.donate(donationCount, donationIds, donationAmounts, donationResults);
 
-            return baos.toByteArray();
+        response.putInt(count);
+        int donation = 0;
+        for (int i = 0; i < count; i++) {
+            if (types[i] == BatchRequest.DONATE) {
+                response.putByte(statusOf(donationResults[donation++]));
+            } else {
+                FundraisingEvent event = store.get(ids[i]);
+                if (event == null) {
+                    response.putByte(BatchRequest.STATUS_INVALID_EVENT);
+                } else {
+                    response.putByte(BatchRequest.STATUS_OK);
+                    writeDetails(event, response);
+                }
+            }
         }
     }
 
     /**
-     * Represents a fundraising event with an ID, name, target amount, deadline, and current amount raised.
+     * Replaces the events the client is subscribed to with the ones in the request and writes the current total of
+     * each, so the client has a starting point for the updates pushed to it. Ids of events that do not exist are
+     * left out of the response, and a request with no ids unsubscribes the client.
+     *
+     * @param request the buffer containing the number of events and their ids
+     * @param response the buffer the store epoch, the number of subscribed events and their totals are written into
+     * @param clientAddress the IP address of the client
+     * @param clientPort the port number of the client
+     * @throws IOException if the request holds more than Subscriptions.MAX_EVENTS_PER_CLIENT ids
      */
-    private static class FundraisingEvent {
-        int id;
-        String name;
-        double targetAmount;
-        Date deadline;
-        double currentAmount;
+    private static void subscribe(ByteBuffer request, ResponseBuffer response, InetAddress clientAddress,
+                                  int clientPort) throws IOException {
+        int count = request.getInt();
+        if (count < 0 || count > Subscriptions.MAX_EVENTS_PER_CLIENT) {
+            throw new IOException("Invalid subscription count: " + count);
+        }
+        Map<Integer, FundraisingEvent> events = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            FundraisingEvent event = store.get(request.getInt());
+            if (event != null) {
+                events.put(event.id, event);
+            }
+        }
 
-        /**
-         * Constructs a new fundraising event with the given name, target amount, and deadline.
-         * 
-         * @param name the name of the fundraising event
-         * @param targetAmount the target amount to be raised
-         * @param deadline the deadline for the fundraising event
-         */
-        public FundraisingEvent(String name, double targetAmount, Date deadline) {
-            // this.id = events.size() + 1; // Change from events.size() to events.size() +
-            // 1
-            this.id = events.size();
-            this.name = name;
-            this.targetAmount = targetAmount;
-            this.deadline = deadline;
-            this.currentAmount = 0;
+        FundraisingEvent[] subscribed = events.values().toArray(new FundraisingEvent[0]);
+        subscriptions.subscribe(new InetSocketAddress(clientAddress, clientPort), subscribed);
+        response.putLong(store.epoch());
+        response.putInt(subscribed.length);
+        for (FundraisingEvent event : subscribed) {
+            long version = event.version(); // Read before the amount, so a later push is never taken for older
+            response.putInt(event.id);
+            response.putDouble(event.currentAmount());
+            response.putLong(version);
         }
     }
 
     /**
-     * Checks if there are any events in the events list and returns a byte array containing a boolean value indicating the result.
-     * 
-     * @return a byte array containing a boolean value indicating if there are any events in the events list.
+     * Writes the hit and miss counts of the response cache: list hits, list misses, details hits and details misses,
+     * as longs. All four are 0 when the cache is turned off.
+     *
+     * @param response the buffer the counts are written into
      */
-    private static byte[] checkEventsExist() {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        synchronized (events) {
-            try {
-                dos.writeBoolean(!events.isEmpty());
-            } catch (IOException e) {
-                // Handle exception - this should ideally never happen with a
-                // ByteArrayOutputStream
+    private static void cacheStats(ResponseBuffer response) {
+        if (responseCache != null) {
+            responseCache.writeStats(response);
+        } else {
+            for (int i = 0; i < 4; i++) {
+                response.putLong(0);
             }
         }
+    }
 
-        return baos.toByteArray();
+    /**
+     * Writes the text report of the server metrics, which also covers the response cache counts of CACHE_STATS.
+     *
+     * @param response the buffer the report is written into
+     */
+    private static void stats(ResponseBuffer response) {
+        ThreadPoolExecutor pool = workerPool;
+        String replicationStatus = replicationPrimary != null ? replicationPrimary.status()
+                : replica != null ? replica.status() : "";
+        String report = metrics.report(sessions.size(), pool != null ? pool.getQueue().size() : 0,
+                droppedPackets.get(), store, responseCache, subscriptions.status() + replicationStatus);
+        response.putBytes(report.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Checks if there are any events in the event store and writes a boolean value indicating the result.
+     * 
+     * @param response the buffer a boolean value indicating if there are any events in the event store is written into.
+     */
+    private static void checkEventsExist(ResponseBuffer response) {
+        response.putBoolean(!store.isEmpty());
     }
 }
@@ -0,0 +1,191 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The HashRing class assigns event ids to the shards of a sharded deployment by consistent hashing.
+ *
+ * Each node, named by its "host:port", is hashed onto a 64-bit ring at VIRTUAL_NODES points, and an event id belongs
+ * to the node of the first point at or after the hash of the id, wrapping round at the end. Adding a node to a ring of
+ * N nodes therefore takes over about 1/(N+1) of the ids, all of them from the existing nodes, and leaves the rest
+ * where they were, instead of reassigning almost every id as id % N would. The many points per node keep the shares
+ * even. Moving the events whose owner changed is left to the operator; the ring only decides who owns what.
+ *
+ * The server and the client build the ring from the same list of nodes (gofundme.shards), in any order, so they agree
+ * on every owner without talking to each other. The hashes are computed from the bytes of the names, not from
+ * String.hashCode, so they are the same in every JVM.
+ */
+final class HashRing {
+
+    static final int VIRTUAL_NODES = 128;
+
+    private final String[] nodes;
+    private final long[] points; // Sorted hashes of the virtual nodes
+    private final int[] owners; // The node index of each point
+
+    /**
+     * Constructs a ring.
+     *
+     * @param nodes the names of the nodes, as "host:port"
+     * @throws IllegalArgumentException if there are no nodes or a node is listed twice
+     */
+    HashRing(List<String> nodes) {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("A hash ring needs at least one node.");
+        }
+        this.nodes = nodes.toArray(new String[0]);
+        Arrays.sort(this.nodes); // So every process numbers the nodes alike, whatever order they were listed in
+        for (int i = 1; i < this.nodes.length; i++) {
+            if (this.nodes[i].equals(this.nodes[i - 1])) {
+                throw new IllegalArgumentException("Node " + this.nodes[i] + " is listed twice.");
+            }
+        }
+
+        long[] hashes = new long[this.nodes.length * VIRTUAL_NODES];
+        for (int node = 0; node < this.nodes.length; node++) {
+            for (int replica = 0; replica < VIRTUAL_NODES; replica++) {
+                hashes[node * VIRTUAL_NODES + replica] = hash(this.nodes[node] + "#" + replica);
+            }
+        }
+        // Sort the points together with their owners, ordering equal hashes by node so the owner is well defined
+        Integer[] order = new Integer[hashes.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> hashes[a] != hashes[b] ? Long.compare(hashes[a], hashes[b]) : a - b);
+        points = new long[hashes.length];
+        owners = new int[hashes.length];
+        for (int i = 0; i < order.length; i++) {
+            points[i] = hashes[order[i]];
+            owners[i] = order[i] / VIRTUAL_NODES;
+        }
+    }
+
+    /**
+     * Parses a comma-separated list of nodes, such as the value of gofundme.shards.
+     *
+     * @param text the list, such as "localhost:12345,localhost:12346"
+     * @return the ring
+     * @throws IllegalArgumentException if the list is empty or a node is not "host:port"
+     */
+    static HashRing parse(String text) {
+        List<String> nodes = new ArrayList<>();
+        for (String node : text.split(",")) {
+            node = node.trim();
+            if (node.isEmpty()) {
+                continue;
+            }
+            port(node); // Validates the name
+            nodes.add(node);
+        }
+        return new HashRing(nodes);
+    }
+
+    /**
+     * Returns the index of the node that owns an event id.
+     *
+     * @param eventId the event id
+     * @return the index of the owning node
+     */
+    int ownerOf(int eventId) {
+        return ownerOfHash(mix(eventId));
+    }
+
+    /**
+     * Returns the index of a node.
+     *
+     * @param node the name of the node, as "host:port"
+     * @return its index, or -1 if it is not on the ring
+     */
+    int indexOf(String node) {
+        int index = Arrays.binarySearch(nodes, node);
+        return index >= 0 ? index : -1;
+    }
+
+    /**
+     * Returns the name of a node.
+     *
+     * @param index the index of the node
+     * @return the name, as "host:port"
+     */
+    String node(int index) {
+        return nodes[index];
+    }
+
+    /**
+     * Returns the number of nodes.
+     *
+     * @return the number of nodes
+     */
+    int size() {
+        return nodes.length;
+    }
+
+    /**
+     * Returns the host part of a node name.
+     *
+     * @param node the name of the node, as "host:port"
+     * @return the host
+     */
+    static String host(String node) {
+        return node.substring(0, node.lastIndexOf(':'));
+    }
+
+    /**
+     * Returns the port part of a node name.
+     *
+     * @param node the name of the node, as "host:port"
+     * @return the port
+     * @throws IllegalArgumentException if the name is not "host:port"
+     */
+    static int port(String node) {
+        int colon = node.lastIndexOf(':');
+        try {
+            if (colon > 0) {
+                int port = Integer.parseInt(node.substring(colon + 1));
+                if (port > 0 && port <= 0xFFFF) {
+                    return port;
+                }
+            }
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        throw new IllegalArgumentException("Shard " + node + " is not host:port.");
+    }
+
+    private int ownerOfHash(long hash) {
+        int index = Arrays.binarySearch(points, hash);
+        if (index < 0) {
+            index = -index - 1;
+        } else {
+            while (index > 0 && points[index - 1] == hash) {
+                index--; // The first of several equal points
+            }
+        }
+        return owners[index == points.length ? 0 : index];
+    }
+
+    /**
+     * Hashes a string with 64-bit FNV-1a over its UTF-8 bytes, finished with mix to spread the high bits.
+     */
+    private static long hash(String text) {
+        long hash = 0xCBF29CE484222325L;
+        for (byte b : text.getBytes(StandardCharsets.UTF_8)) {
+            hash = (hash ^ (b & 0xFF)) * 0x100000001B3L;
+        }
+        return mix(hash);
+    }
+
+    /**
+     * The finalizer of MurmurHash3, which turns consecutive ids into unrelated points on the ring.
+     */
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xFF51AFD7ED558CCDL;
+        value ^= value >>> 33;
+        value *= 0xC4CEB9FE1A85EC53L;
+        value ^= value >>> 33;
+        return value;
+    }
+}
@@ -0,0 +1,102 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The LatencyHistogram class counts latencies in log-linear buckets, in the style of an HDR histogram: every power of
+ * two is split into SUB_BUCKETS equal buckets, so any recorded value is known to within about 3% while a range from one
+ * microsecond to hours fits in about a thousand counters.
+ *
+ * Recording is a single atomic increment with no allocation. The counters are split into a few stripes chosen by
+ * thread, so threads recording the same latency rarely write the same cache line. Reading sums the stripes, so a
+ * percentile may miss values recorded at that very moment, which does not matter for monitoring.
+ */
+final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 40; // About 12 days in microseconds
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+    private static final int STRIPES = 4;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS * STRIPES);
+
+    /**
+     * Records one value.
+     *
+     * @param micros the latency in microseconds
+     */
+    void record(long micros) {
+        int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+        counts.incrementAndGet(stripe * BUCKETS + bucketOf(Math.max(0, micros)));
+    }
+
+    /**
+     * Returns the number of values recorded.
+     *
+     * @return the count
+     */
+    long count() {
+        long count = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * Returns the values at the given quantiles, and the largest value, in one pass over the buckets. Each value is
+     * the upper bound of the bucket it falls in.
+     *
+     * @param quantiles the quantiles, in increasing order, between 0 and 1
+     * @return one value per quantile followed by the maximum, in microseconds; all 0 if nothing was recorded
+     */
+    long[] quantiles(double... quantiles) {
+        long[] merged = new long[BUCKETS];
+        long total = 0;
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                long count = counts.get(stripe * BUCKETS + bucket);
+                merged[bucket] += count;
+                total += count;
+            }
+        }
+
+        long[] values = new long[quantiles.length + 1];
+        if (total == 0) {
+            return values;
+        }
+        int next = 0;
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            if (merged[bucket] == 0) {
+                continue;
+            }
+            seen += merged[bucket];
+            while (next < quantiles.length && seen >= Math.ceil(quantiles[next] * total)) {
+                values[next++] = upperBoundOf(bucket);
+            }
+            values[quantiles.length] = upperBoundOf(bucket);
+        }
+        return values;
+    }
+
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int mantissa = (int) (value >>> (exponent - SUB_BUCKET_BITS));
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + (mantissa - SUB_BUCKETS);
+    }
+
+    private static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long mantissa = bucket % SUB_BUCKETS + SUB_BUCKETS;
+        return ((mantissa + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+}
@@ -0,0 +1,320 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The Leaderboards class ranks the events for the LEADERBOARD request without scanning or sorting the store: by amount
+ * raised, by fraction of the target raised, and by number of donations in the last hour.
+ *
+ * Each board is a skip list of the top CAPACITY events, ordered by score, highest first, then by id, with at most one
+ * entry per event. Entries never change: when the score of an event on a board changes, a new entry is added and the
+ * old one removed, in O(log CAPACITY), and an event that climbs above the last entry pushes that one off the board.
+ * An event that is not on a board and scores below its last entry, which is what most donations to most events are,
+ * costs a single comparison. The store calls update() for every change it records, so the boards follow donations,
+ * folds of hot events, recovery and replication alike, and lag an aggregated event's total by at most the fold
+ * interval, like the cached responses. The top K of a board is then a walk over its first K entries.
+ *
+ * The store only accepts donations of at least one cent (see FundraisingEvent.isValidDonation), so the amount raised
+ * and the fraction of the target raised only ever grow. An event pushed off one of those boards can therefore only
+ * get back on by raising more, when it is compared again, and the two boards are exact. Nothing is re-admitted from
+ * below the board when a score drops, so they would not stay exact if a total could shrink. Donations in the last
+ * hour also fall as they age. They are counted in one bucket per minute, kept only for the events that took a
+ * donation in the last hour. An update moves the donations the event took since the previous update into the bucket
+ * of the current minute, so the count is exact to the minute. Buckets age without any donation, so decay() has to be
+ * called regularly: it recounts the events on the board first and then compares every other event that took a
+ * donation in the last hour against the new last entry, so the board is exact again after each decay. After a
+ * restart, the donations replayed from the log count as made when they were replayed.
+ *
+ * Updates of the same event are serialized on its Standing. Readers take no lock: while an update swaps an entry, a
+ * reader may briefly see both the old and the new one, of which it keeps the first, so a top K is weakly consistent,
+ * like the store's other live views.
+ */
+final class Leaderboards {
+
+    /** The number of events ranked on each board, which is the most a LEADERBOARD request can list. */
+    static final int CAPACITY = 100;
+
+    /** The length of the window of the donation count, in minutes. */
+    static final int WINDOW_MINUTES = 60;
+
+    private static final int BOARD_COUNT = 3;
+    private static final long MINUTE_MILLIS = 60_000;
+    // Every update compares a score a few dozen times, so entries compare by a long key and an id of their own
+    private static final Comparator<Entry> BY_SCORE =
+            (a, b) -> a.key != b.key ? Long.compare(b.key, a.key) : Integer.compare(a.id, b.id);
+
+    private final Board[] boards = new Board[BOARD_COUNT];
+    private final Set<FundraisingEvent> recentlyDonated = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Constructs empty leaderboards.
+     */
+    Leaderboards() {
+        for (int board = 0; board < BOARD_COUNT; board++) {
+            boards[board] = new Board();
+        }
+    }
+
+    /**
+     * Starts ranking an event. The donations it already took do not count as recent.
+     *
+     * @param event the new event
+     */
+    void add(FundraisingEvent event) {
+        event.standing = new Standing(event.donationCount());
+    }
+
+    /**
+     * Moves an event to its current place on every board. Called by the store for every change it records.
+     *
+     * @param event the event that changed
+     * @param now the current time in milliseconds since the epoch
+     */
+    void update(FundraisingEvent event, long now) {
+        Standing standing = event.standing;
+        if (standing == null) {
+            return;
+        }
+        synchronized (standing) {
+            long donations = event.donationCount();
+            int recent = standing.countRecent(donations - standing.countedDonations, (int) (now / MINUTE_MILLIS));
+            standing.countedDonations = donations;
+
+            long raisedCents = event.raisedCents();
+            rank(event, standing, Protocol.LEADERBOARD_RAISED, raisedCents);
+            rank(event, standing, Protocol.LEADERBOARD_PERCENT_OF_TARGET,
+                    event.targetCents > 0 ? (double) raisedCents / event.targetCents : 0);
+            if (recent > 0) {
+                rank(event, standing, Protocol.LEADERBOARD_RECENT_DONATIONS, recent);
+                recentlyDonated.add(event);
+            } else {
+                Entry previous = standing.entries.getAndSet(Protocol.LEADERBOARD_RECENT_DONATIONS, null);
+                if (previous != null) {
+                    boards[Protocol.LEADERBOARD_RECENT_DONATIONS].remove(previous);
+                }
+                recentlyDonated.remove(event);
+            }
+        }
+    }
+
+    private void rank(FundraisingEvent event, Standing standing, int board, double score) {
+        Entry previous = standing.entries.get(board);
+        if (previous != null && previous.score == score) {
+            return;
+        }
+        Entry entry = new Entry(event, score);
+        if (previous == null && !boards[board].admits(entry)) {
+            return;
+        }
+        standing.entries.set(board, entry);
+        // Added before the previous entry is removed, so a reader never misses the event
+        boards[board].add(entry);
+        if (previous != null) {
+            boards[board].remove(previous);
+        }
+        boards[board].trim(board);
+    }
+
+    /**
+     * Updates the donation count of every event that took a donation in the last hour, so the donations that left
+     * the window are dropped even from events that take no more donations. The events on the recent donations board
+     * are updated first, so the others are compared against its entries as they are now.
+     *
+     * @param now the current time in milliseconds since the epoch
+     * @return the number of events that took a donation in the last hour, before this decay
+     */
+    synchronized int decay(long now) {
+        int events = recentlyDonated.size();
+        List<FundraisingEvent> ranked = new ArrayList<>(CAPACITY);
+        for (Entry entry : boards[Protocol.LEADERBOARD_RECENT_DONATIONS].entries) {
+            ranked.add(entry.event);
+        }
+        for (FundraisingEvent event : ranked) {
+            update(event, now);
+        }
+
+        for (FundraisingEvent event : recentlyDonated) {
+            if (event.standing.entries.get(Protocol.LEADERBOARD_RECENT_DONATIONS) == null) {
+                update(event, now);
+            }
+        }
+        return events;
+    }
+
+    /**
+     * Drops every event from the boards, as when a replica replaces its store with a snapshot. Serialized with decay,
+     * so a decay under way cannot put a dropped event back. The events dropped must no longer be updated.
+     */
+    synchronized void clear() {
+        for (Board board : boards) {
+            board.clear();
+        }
+        recentlyDonated.clear();
+    }
+
+    /**
+     * Returns the highest ranked events of a board.
+     *
+     * @param board LEADERBOARD_RAISED, LEADERBOARD_PERCENT_OF_TARGET or LEADERBOARD_RECENT_DONATIONS (see Protocol)
+     * @param limit the most events to return, at most CAPACITY
+     * @return the entries of the events, highest score first
+     * @throws IllegalArgumentException if there is no such board
+     */
+    List<Entry> top(int board, int limit) {
+        if (board < 0 || board >= BOARD_COUNT) {
+            throw new IllegalArgumentException("Unknown leaderboard: " + board);
+        }
+        List<Entry> top = new ArrayList<>(Math.min(limit, 64));
+        Set<FundraisingEvent> listed = new HashSet<>();
+        for (Entry entry : boards[board].entries) {
+            if (top.size() >= limit) {
+                break;
+            }
+            if (listed.add(entry.event)) {
+                top.add(entry);
+            }
+        }
+        return top;
+    }
+
+    /**
+     * Returns the number of events that took a donation in the last hour, as of their last update.
+     *
+     * @return the number of recently donated events
+     */
+    int recentlyDonatedCount() {
+        return recentlyDonated.size();
+    }
+
+    /**
+     * The place of one event on a board: the event and the score it was ranked by. For LEADERBOARD_RAISED the score is
+     * in cents, for LEADERBOARD_PERCENT_OF_TARGET it is a fraction (1 when the target is reached), and for
+     * LEADERBOARD_RECENT_DONATIONS it is a number of donations.
+     */
+    static final class Entry {
+        final FundraisingEvent event;
+        final double score;
+        private final long key;
+        private final int id;
+
+        Entry(FundraisingEvent event, double score) {
+            this.event = event;
+            this.score = score;
+            // The bits of a double, with those of a negative one flipped, order as signed longs like the doubles do
+            long bits = Double.doubleToLongBits(score);
+            this.key = bits ^ ((bits >> 63) & Long.MAX_VALUE);
+            this.id = event.id;
+        }
+    }
+
+    /**
+     * One ranking, which keeps at most CAPACITY entries, dropping the lowest. The size is counted separately because
+     * the size of a skip list is a walk over it.
+     */
+    private static final class Board {
+        final ConcurrentSkipListSet<Entry> entries = new ConcurrentSkipListSet<>(BY_SCORE);
+        private final AtomicInteger size = new AtomicInteger();
+
+        /**
+         * Tells whether an entry of an event that is not on the board ranks high enough to be added.
+         */
+        boolean admits(Entry entry) {
+            if (size.get() < CAPACITY) {
+                return true;
+            }
+            try {
+                return BY_SCORE.compare(entry, entries.last()) < 0;
+            } catch (NoSuchElementException e) {
+                return true;
+            }
+        }
+
+        void add(Entry entry) {
+            if (entries.add(entry)) {
+                size.incrementAndGet();
+            }
+        }
+
+        void remove(Entry entry) {
+            if (entries.remove(entry)) {
+                size.decrementAndGet();
+            }
+        }
+
+        void clear() {
+            entries.clear();
+            size.set(0);
+        }
+
+        /**
+         * Drops the lowest entries beyond CAPACITY. The dropped event is not locked, so its entry is only cleared
+         * if the event did not replace it meanwhile.
+         */
+        void trim(int board) {
+            while (size.get() > CAPACITY) {
+                Entry lowest = entries.pollLast();
+                if (lowest == null) {
+                    return;
+                }
+                size.decrementAndGet();
+                lowest.event.standing.entries.compareAndSet(board, lowest, null);
+            }
+        }
+    }
+
+    /**
+     * The entries of one event on every board, and its donation count per minute of the last hour. Updates are
+     * serialized on the Standing; the entries may also be cleared by a board dropping the event.
+     */
+    static final class Standing {
+        private final AtomicReferenceArray<Entry> entries = new AtomicReferenceArray<>(BOARD_COUNT);
+        private long countedDonations;
+        // Allocated while the event has donations in the window: the minute of each bucket and its donations
+        private int[] minutes;
+        private int[] counts;
+
+        Standing(long countedDonations) {
+            this.countedDonations = countedDonations;
+        }
+
+        /**
+         * Adds new donations to the bucket of the current minute and returns the donations in the window.
+         */
+        private int countRecent(long newDonations, int minute) {
+            if (newDonations > 0 && counts == null) {
+                minutes = new int[WINDOW_MINUTES];
+                counts = new int[WINDOW_MINUTES];
+            }
+            if (counts == null) {
+                return 0;
+            }
+            if (newDonations > 0) {
+                int slot = Math.floorMod(minute, WINDOW_MINUTES);
+                if (minutes[slot] != minute) {
+                    minutes[slot] = minute;
+                    counts[slot] = 0;
+                }
+                counts[slot] = (int) Math.min(Integer.MAX_VALUE, counts[slot] + newDonations);
+            }
+
+            long recent = 0;
+            for (int slot = 0; slot < WINDOW_MINUTES; slot++) {
+                if (minute - minutes[slot] < WINDOW_MINUTES) {
+                    recent += counts[slot];
+                }
+            }
+            if (recent == 0) {
+                minutes = null;
+                counts = null;
+            }
+            return (int) Math.min(Integer.MAX_VALUE, recent);
+        }
+    }
+}
@@ -0,0 +1,410 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The LoadGenerator class is a headless load test for the server. It simulates many concurrent clients, each of which
+ * runs a closed loop: pick an operation, send it, wait for the reply, then wait for its next turn. Requests are sent
+ * through a few GoFundMeAsyncClient instances, so they use the same version 1 encoding, timeouts and retransmission as
+ * the interactive client, and the simulated clients are spread over those sockets.
+ *
+ * Before the run it creates a number of events. Donations and detail lookups pick an event with a Zipf distribution
+ * over those events, so a few events are much more popular than the rest, as with real fundraisers. The operations
+ * are mixed by weight: "list" asks for one page of events (LIST_EVENTS_PAGE) and "listall" for the whole list
+ * (LIST_EVENTS), which is many datagrams once there are many events. The total request rate can be capped; without a
+ * cap every client sends its next request as soon as the previous one is answered.
+ *
+ * With a cap, every client follows a fixed schedule and the latency of a request is measured from the time it was
+ * scheduled to be sent, not from when it was actually sent. A client still waiting for a slow reply sends its
+ * overdue requests as soon as it can, and their latency includes the time they spent overdue. Otherwise a server
+ * stall would only show in the one request that was in flight (the coordinated omission problem).
+ *
+ * It prints the throughput every second and, after the run, a report per operation: how many completed, failed with a
+ * status other than STATUS_OK, or were lost (no reply after all retries), and the latency percentiles. It also reports
+ * how many requests had to be retransmitted. Requests during the warm-up period are not counted.
+ *
+ * The load test is configured with Java system properties, for example
+ * java -Dgofundme.load.clients=2000 -Dgofundme.load.rate=20000 LoadGenerator:
+ * - gofundme.load.host, gofundme.load.port: the server (defaults to localhost and 12345)
+ * - gofundme.load.clients: the number of simulated clients (defaults to 1000)
+ * - gofundme.load.sockets: the number of sockets the clients share (defaults to 8)
+ * - gofundme.load.virtualThreads: run the clients on virtual threads when the JVM supports them (defaults to true)
+ * - gofundme.load.mix: the weight of each operation, out of create, list, listall, donate and details (defaults to
+ *   "create=1,list=3,listall=1,donate=70,details=25")
+ * - gofundme.load.rate: the total requests per second, or 0 for no limit (defaults to 0)
+ * - gofundme.load.events: the number of events created before the run (defaults to 1000)
+ * - gofundme.load.zipf: the Zipf exponent of event popularity, 0 for uniform (defaults to 1.0)
+ * - gofundme.load.warmupSeconds, gofundme.load.durationSeconds: the length of the run (defaults to 5 and 30)
+ * - gofundme.load.timeoutMillis: the initial timeout before a request is sent again (defaults to 250)
+ */
+public class LoadGenerator {
+
+    private static final String HOST = System.getProperty("gofundme.load.host", "localhost");
+    private static final int PORT = Integer.getInteger("gofundme.load.port", 12345);
+    private static final int CLIENTS = Integer.getInteger("gofundme.load.clients", 1000);
+    private static final int SOCKETS = Integer.getInteger("gofundme.load.sockets", 8);
+    private static final boolean USE_VIRTUAL_THREADS =
+            Boolean.parseBoolean(System.getProperty("gofundme.load.virtualThreads", "true"));
+    private static final String MIX = System.getProperty("gofundme.load.mix",
+            "create=1,list=3,listall=1,donate=70,details=25");
+    private static final int RATE = Integer.getInteger("gofundme.load.rate", 0);
+    private static final int EVENTS = Integer.getInteger("gofundme.load.events", 1000);
+    private static final double ZIPF_EXPONENT = Double.parseDouble(System.getProperty("gofundme.load.zipf", "1.0"));
+    private static final int WARMUP_SECONDS = Integer.getInteger("gofundme.load.warmupSeconds", 5);
+    private static final int DURATION_SECONDS = Integer.getInteger("gofundme.load.durationSeconds", 30);
+    private static final long TIMEOUT_MILLIS = Long.getLong("gofundme.load.timeoutMillis", 250);
+
+    private static final String[] OPERATIONS = {"create", "list", "listall", "donate", "details"};
+    private static final int CREATE = 0;
+    private static final int LIST = 1;
+    private static final int LIST_ALL = 2;
+    private static final int DONATE = 3;
+    private static final int DETAILS = 4;
+    private static final int LIST_PAGE_SIZE = 50;
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private static GoFundMeAsyncClient[] clients;
+    private static int[] eventIds;
+    private static double[] popularity;
+    private static double[] mix;
+
+    // Replaced when the warm-up ends, so the report only counts the measured period
+    private static volatile Stats stats = new Stats();
+    private static volatile boolean running = true;
+
+    /**
+     * Runs the load test against the configured server and prints the report.
+     *
+     * @param args not used; the load test is configured with system properties
+     * @throws Exception if the clients cannot be created or the setup fails
+     */
+    public static void main(String[] args) throws Exception {
+        mix = parseMix(MIX);
+        clients = new GoFundMeAsyncClient[Math.max(1, SOCKETS)];
+        int inFlightPerSocket = (CLIENTS + clients.length - 1) / clients.length;
+        for (int i = 0; i < clients.length; i++) {
+            clients[i] = new GoFundMeAsyncClient(HOST, PORT, TIMEOUT_MILLIS,
+                    GoFundMeAsyncClient.DEFAULT_MAX_TIMEOUT_MILLIS, GoFundMeAsyncClient.DEFAULT_MAX_ATTEMPTS,
+                    Math.max(1, inFlightPerSocket));
+        }
+
+        System.out.println("Creating " + EVENTS + " events on " + HOST + ":" + PORT + "...");
+        eventIds = createEvents(EVENTS);
+        popularity = zipfDistribution(eventIds.length, ZIPF_EXPONENT);
+
+        ThreadFactory threadFactory = createThreadFactory();
+        System.out.println("Running " + CLIENTS + " clients on " + clients.length + " sockets ("
+                + (threadFactory == null ? "platform" : "virtual") + " threads), mix " + MIX + ", "
+                + (RATE > 0 ? RATE + " requests/s" : "no rate limit") + ", Zipf exponent " + ZIPF_EXPONENT);
+
+        long intervalNanos = RATE > 0 ? (long) (CLIENTS * 1e9 / RATE) : 0;
+        List<Thread> threads = new ArrayList<>(CLIENTS);
+        for (int i = 0; i < CLIENTS; i++) {
+            GoFundMeAsyncClient client = clients[i % clients.length];
+            Runnable loop = () -> clientLoop(client, intervalNanos);
+            Thread thread = threadFactory != null ? threadFactory.newThread(loop) : new Thread(loop, "load-client-" + i);
+            thread.setDaemon(true);
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+
+        long retransmissionsAtStart = 0;
+        long measuredStart = System.nanoTime();
+        long previousCount = 0;
+        for (int second = 1; second <= WARMUP_SECONDS + DURATION_SECONDS; second++) {
+            Thread.sleep(1000);
+            if (second == WARMUP_SECONDS) {
+                stats = new Stats();
+                retransmissionsAtStart = retransmissions();
+                measuredStart = System.nanoTime();
+                previousCount = 0;
+                System.out.println("Warm-up done, measuring for " + DURATION_SECONDS + " s");
+                continue;
+            }
+            long count = stats.completed();
+            System.out.println((second <= WARMUP_SECONDS ? "warm-up " : "") + second + " s: "
+                    + (count - previousCount) + " requests/s, " + stats.lost() + " lost so far");
+            previousCount = count;
+        }
+        running = false;
+        long measuredNanos = System.nanoTime() - measuredStart;
+        Stats measured = stats;
+        long retransmitted = retransmissions() - retransmissionsAtStart;
+
+        for (Thread thread : threads) {
+            thread.join(GoFundMeAsyncClient.DEFAULT_MAX_TIMEOUT_MILLIS * GoFundMeAsyncClient.DEFAULT_MAX_ATTEMPTS);
+        }
+        printReport(measured, measuredNanos, retransmitted);
+        for (GoFundMeAsyncClient client : clients) {
+            client.close();
+        }
+    }
+
+    /**
+     * The loop of one simulated client. With a rate limit each client is scheduled to send a request every
+     * intervalNanos, starting at a random offset so the clients do not send in step. A client that falls behind sends
+     * its overdue requests back to back until it is on schedule again, and each request's latency is measured from
+     * its scheduled time. Without a rate limit the latency is measured from the actual send.
+     */
+    private static void clientLoop(GoFundMeAsyncClient client, long intervalNanos) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long next = System.nanoTime() + (intervalNanos > 0 ? random.nextLong(intervalNanos) : 0);
+        while (running) {
+            if (intervalNanos > 0) {
+                long wait = next - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                    continue; // parkNanos may return early
+                }
+            }
+
+            int operation = pick(mix, random.nextDouble());
+            Stats current = stats;
+            long startNanos = intervalNanos > 0 ? next : System.nanoTime();
+            next += intervalNanos;
+            try {
+                boolean ok = perform(client, operation, random);
+                current.record(operation, startNanos, ok);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof TimeoutException) {
+                    current.recordLost(operation);
+                } else {
+                    current.record(operation, startNanos, false);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Sends one request and waits for its reply.
+     *
+     * @return true if the server answered with STATUS_OK
+     */
+    private static boolean perform(GoFundMeAsyncClient client, int operation, ThreadLocalRandom random)
+            throws ExecutionException, InterruptedException {
+        switch (operation) {
+            case CREATE:
+                client.createEvent("Load test event " + random.nextInt(1_000_000), 1000 + random.nextInt(100_000),
+                        System.currentTimeMillis() + 86_400_000L).get();
+                return true;
+            case LIST:
+                int afterId = random.nextInt(Math.max(1, eventIds.length)) - 1;
+                client.listEventsPage(afterId, LIST_PAGE_SIZE).get();
+                return true;
+            case LIST_ALL:
+                client.listEvents().get();
+                return true;
+            case DONATE:
+                return client.donate(randomEvent(random), 1 + random.nextInt(100)).get() == Protocol.STATUS_OK;
+            default:
+                return client.checkDetails(randomEvent(random)).get().isOk();
+        }
+    }
+
+    private static int randomEvent(ThreadLocalRandom random) {
+        return eventIds[pick(popularity, random.nextDouble())];
+    }
+
+    /**
+     * Creates the events used by the run, a window of requests at a time.
+     *
+     * @return the ids of the events, the most popular first
+     */
+    private static int[] createEvents(int count) throws InterruptedException, IOException {
+        int[] ids = new int[count];
+        int created = 0;
+        long deadline = System.currentTimeMillis() + 7 * 86_400_000L;
+        GoFundMeAsyncClient client = clients[0];
+        List<CompletableFuture<Integer>> window = new ArrayList<>();
+        for (int start = 0; start < count; start += GoFundMeAsyncClient.DEFAULT_MAX_IN_FLIGHT) {
+            window.clear();
+            for (int i = start; i < Math.min(count, start + GoFundMeAsyncClient.DEFAULT_MAX_IN_FLIGHT); i++) {
+                window.add(client.createEvent("Load test event " + i, 10_000 + i, deadline));
+            }
+            for (CompletableFuture<Integer> future : window) {
+                try {
+                    ids[created++] = future.get();
+                } catch (ExecutionException e) {
+                    created--;
+                }
+            }
+        }
+        if (created == 0) {
+            throw new IOException("Could not create any event on " + HOST + ":" + PORT + ".");
+        }
+        if (created < count) {
+            System.out.println("Only " + created + " of " + count + " events could be created.");
+        }
+        return Arrays.copyOf(ids, created);
+    }
+
+    /**
+     * Returns the cumulative distribution of a Zipf distribution over n ranks, where rank k has a weight of
+     * 1 / (k + 1)^exponent.
+     */
+    private static double[] zipfDistribution(int n, double exponent) {
+        double[] cumulative = new double[n];
+        double sum = 0;
+        for (int k = 0; k < n; k++) {
+            sum += 1 / Math.pow(k + 1, exponent);
+            cumulative[k] = sum;
+        }
+        for (int k = 0; k < n; k++) {
+            cumulative[k] /= sum;
+        }
+        return cumulative;
+    }
+
+    /**
+     * Parses the operation mix, such as "create=1,list=3,listall=1,donate=70,details=25", into a cumulative distribution over
+     * OPERATIONS. Operations that are not mentioned get a weight of 0.
+     */
+    private static double[] parseMix(String text) {
+        double[] weights = new double[OPERATIONS.length];
+        for (String part : text.split(",")) {
+            String[] pair = part.trim().split("=");
+            int operation = List.of(OPERATIONS).indexOf(pair[0].trim().toLowerCase());
+            if (pair.length != 2 || operation < 0) {
+                throw new IllegalArgumentException("Invalid operation mix: " + text);
+            }
+            weights[operation] = Double.parseDouble(pair[1].trim());
+        }
+        double sum = 0;
+        for (int i = 0; i < weights.length; i++) {
+            sum += weights[i];
+            weights[i] = sum;
+        }
+        if (sum <= 0) {
+            throw new IllegalArgumentException("Invalid operation mix: " + text);
+        }
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] /= sum;
+        }
+        return weights;
+    }
+
+    /**
+     * Returns the first index whose cumulative probability is at least u.
+     */
+    private static int pick(double[] cumulative, double u) {
+        int low = 0;
+        int high = cumulative.length - 1;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (cumulative[middle] < u) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private static long retransmissions() {
+        long total = 0;
+        for (GoFundMeAsyncClient client : clients) {
+            total += client.retransmissions();
+        }
+        return total;
+    }
+
+    /**
+     * Returns a factory for virtual threads, looked up reflectively as in GoFundMeServer, or null to use platform
+     * threads when they are turned off or the JVM does not have them.
+     */
+    private static ThreadFactory createThreadFactory() {
+        if (!USE_VIRTUAL_THREADS) {
+            return null;
+        }
+        try {
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderType.getMethod("name", String.class, long.class).invoke(builder, "load-client-", 0L);
+            return (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            System.out.println("Virtual threads are not available on this JVM, using platform threads.");
+            return null;
+        }
+    }
+
+    private static void printReport(Stats measured, long measuredNanos, long retransmitted) {
+        double seconds = measuredNanos / 1e9;
+        long completed = measured.completed();
+        long lost = measured.lost();
+        long sent = completed + lost;
+        System.out.println();
+        System.out.printf("Throughput: %.1f requests/s (%d requests in %.1f s)%n", completed / seconds, completed,
+                seconds);
+        System.out.printf("Lost: %d requests (%.3f%%), %d retransmissions (%.3f%% of requests)%n", lost,
+                sent == 0 ? 0.0 : lost * 100.0 / sent, retransmitted,
+                sent == 0 ? 0.0 : retransmitted * 100.0 / sent);
+        System.out.printf("%-8s %10s %8s %8s %9s %9s %9s %9s %9s%n",
+                "request", "count", "errors", "lost", "p50_us", "p90_us", "p99_us", "p99.9_us", "max_us");
+        for (int operation = 0; operation < OPERATIONS.length; operation++) {
+            long count = measured.latencies[operation].count();
+            if (count == 0 && measured.lost[operation].sum() == 0) {
+                continue;
+            }
+            long[] values = measured.latencies[operation].quantiles(QUANTILES);
+            System.out.printf("%-8s %10d %8d %8d %9d %9d %9d %9d %9d%n", OPERATIONS[operation], count,
+                    measured.errors[operation].sum(), measured.lost[operation].sum(), values[0], values[1],
+                    values[2], values[3], values[4]);
+        }
+    }
+
+    /**
+     * The counters of one period of the run.
+     */
+    private static final class Stats {
+        final LatencyHistogram[] latencies = new LatencyHistogram[OPERATIONS.length];
+        final LongAdder[] errors = new LongAdder[OPERATIONS.length];
+        final LongAdder[] lost = new LongAdder[OPERATIONS.length];
+
+        Stats() {
+            for (int i = 0; i < OPERATIONS.length; i++) {
+                latencies[i] = new LatencyHistogram();
+                errors[i] = new LongAdder();
+                lost[i] = new LongAdder();
+            }
+        }
+
+        void record(int operation, long startNanos, boolean ok) {
+            latencies[operation].record((System.nanoTime() - startNanos) / 1000);
+            if (!ok) {
+                errors[operation].increment();
+            }
+        }
+
+        void recordLost(int operation) {
+            lost[operation].increment();
+        }
+
+        long completed() {
+            long count = 0;
+            for (LatencyHistogram latency : latencies) {
+                count += latency.count();
+            }
+            return count;
+        }
+
+        long lost() {
+            long count = 0;
+            for (LongAdder adder : lost) {
+                count += adder.sum();
+            }
+            return count;
+        }
+    }
+}
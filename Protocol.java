@@ -0,0 +1,285 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The Protocol class defines version 1 of the binary request protocol, which replaces the writeUTF request type
+ * strings with a one-byte opcode.
+ *
+ * A version 1 request starts with the byte VERSION_1, then the byte opcode, an int request id and the fixed fields of
+ * the opcode. Legacy requests start with the two-byte length of their request type, whose first byte is always 0, so
+ * the server tells the two apart from the first byte and keeps serving legacy clients unchanged.
+ *
+ * Every version 1 response is framed by ResponseFramer with the request id of the request, so it can be matched to
+ * its request and may be of any size. The response body is the byte VERSION_1, the byte opcode of the request, a
+ * status byte and, when the status is STATUS_OK, the payload of the opcode:
+ * - CREATE_EVENT: UTF name, double target amount, long deadline; payload: int id of the new event
+ *   (STATUS_INVALID_REQUEST if the target is not a positive number of at most a trillion dollars)
+ * - LIST_EVENTS: no fields; payload: as the LIST_EVENTS response
+ * - DONATE: int event id, double amount, long idempotency key (0 for none); no payload (STATUS_INVALID_EVENT,
+ *   STATUS_EVENT_ENDED, or STATUS_INVALID_REQUEST if the amount is not a positive number of at most a billion
+ *   dollars, on failure). A DONATE sent again with the same non-zero key gets the original status instead
+ *   of being applied twice, or STATUS_IN_PROGRESS while the original is still being applied (see DonationDedup).
+ * - CHECK_DETAILS: int event id; payload: as the CHECK_DETAILS response (STATUS_INVALID_EVENT if there is no event)
+ * - CHECK_EVENTS_EXIST: no fields; payload: boolean
+ * - LIST_EVENTS_PAGE, LIST_CHANGES_SINCE, BATCH: fields and payload as the legacy request and response
+ * - CACHE_STATS: no fields; payload: as the CACHE_STATS response
+ * - STATS: no fields; payload: the server metrics report (see ServerMetrics) as UTF-8 text, to the end of the body
+ * - SUBSCRIBE: int count, then that many int event ids; replaces the events the client is subscribed to, and a count
+ *   of 0 unsubscribes it (see Subscriptions). Payload: long store epoch, int count, then for each event that exists
+ *   the int event id, the double current amount and the long store version of that amount
+ * - SEARCH: UTF query, int cursor (the last id of the previous page, or -1), int page size; payload: int count, that
+ *   many events as in the LIST_EVENTS_PAGE response, and the int cursor of the next page (-1 after the last). The
+ *   events are the ones whose name contains every word of the query, the last word as a prefix (see EventNameIndex)
+ * - LEADERBOARD: byte board (LEADERBOARD_RAISED, LEADERBOARD_PERCENT_OF_TARGET or LEADERBOARD_RECENT_DONATIONS), int
+ *   count (at most Leaderboards.CAPACITY); payload: int count, then that many events, highest ranked first, each as
+ *   in the LIST_EVENTS_PAGE response followed by the double score it is ranked by: the amount raised, the fraction of
+ *   the target raised (1 when the target is reached), or the donations in the last hour (see Leaderboards). An
+ *   unknown board gets STATUS_ERROR
+ * - RESEND: the request id is the id of the response to send again; fields: unsigned short count, then that many
+ *   unsigned short chunk sequence numbers. The chunks are sent exactly as they were the first time.
+ * A request that cannot be decoded gets STATUS_ERROR, and an unknown opcode gets STATUS_INVALID_REQUEST. A request
+ * whose response would take more than ResponseFramer.MAX_CHUNKS chunks, which the header cannot count, gets
+ * STATUS_ERROR too.
+ * A request the server sheds before processing it, because its client or its request type is over its rate limit or
+ * the server is overloaded, gets STATUS_BUSY with no payload; it had no effect, so it can be sent again later.
+ * A replica (see Replica) answers CREATE_EVENT, DONATE and a BATCH with donations with STATUS_READ_ONLY; they have to
+ * be sent to the primary.
+ *
+ * A server pushes the new totals of the events a client subscribed to in datagrams of their own, which are not
+ * framed: int PUSH_MAGIC, int count, then for each event the int event id, the double current amount and the long
+ * store version of that amount. Pushes may be lost or arrive out of order, so a client keeps the amount with the
+ * highest version it has seen, as long as the store epoch in its SUBSCRIBE replies stays the same.
+ */
+final class Protocol {
+
+    static final byte VERSION_1 = (byte) 0xB1;
+
+    static final byte CREATE_EVENT = 1;
+    static final byte LIST_EVENTS = 2;
+    static final byte DONATE = 3;
+    static final byte CHECK_DETAILS = 4;
+    static final byte CHECK_EVENTS_EXIST = 5;
+    static final byte LIST_EVENTS_PAGE = 6;
+    static final byte LIST_CHANGES_SINCE = 7;
+    static final byte CACHE_STATS = 8;
+    static final byte BATCH = 9;
+    static final byte RESEND = 10;
+    static final byte STATS = 11;
+    static final byte SUBSCRIBE = 12;
+    static final byte SEARCH = 13;
+    static final byte LEADERBOARD = 14;
+
+    /** One more than the highest opcode; 0 is not an opcode. */
+    static final int OPCODE_COUNT = 15;
+
+    static final byte STATUS_OK = 0;
+    static final byte STATUS_INVALID_EVENT = 1;
+    static final byte STATUS_EVENT_ENDED = 2;
+    static final byte STATUS_INVALID_REQUEST = 3;
+    static final byte STATUS_ERROR = 4;
+    static final byte STATUS_IN_PROGRESS = 5;
+    static final byte STATUS_BUSY = 6;
+    static final byte STATUS_READ_ONLY = 7;
+
+    /** The boards of a LEADERBOARD request. */
+    static final byte LEADERBOARD_RAISED = 0;
+    static final byte LEADERBOARD_PERCENT_OF_TARGET = 1;
+    static final byte LEADERBOARD_RECENT_DONATIONS = 2;
+
+    /** The size of the version, opcode and request id that start every request. */
+    static final int REQUEST_HEADER_SIZE = 6;
+
+    /** The first int of a pushed datagram, where a response chunk has ResponseFramer.MAGIC. */
+    static final int PUSH_MAGIC = 0x47464D50; // "GFMP"
+    /** The size of the header of a pushed datagram: the magic and the count. */
+    static final int PUSH_HEADER_SIZE = 8;
+    /** The size of the update of one event in a pushed datagram. */
+    static final int PUSH_UPDATE_SIZE = 20;
+
+    private static final String[] NAMES = {
+            "UNKNOWN", "CREATE_EVENT", "LIST_EVENTS", "DONATE", "CHECK_DETAILS", "CHECK_EVENTS_EXIST",
+            "LIST_EVENTS_PAGE", "LIST_CHANGES_SINCE", "CACHE_STATS", "BATCH", "RESEND", "STATS", "SUBSCRIBE",
+            "SEARCH", "LEADERBOARD"
+    };
+
+    // The writeUTF encoding of each legacy request type, for peekOpcode
+    private static final byte[][] LEGACY_TYPES = new byte[NAMES.length][];
+    private static final byte[] LEGACY_FRAMED = legacyType("FRAMED");
+
+    static {
+        for (int opcode = 1; opcode < NAMES.length; opcode++) {
+            LEGACY_TYPES[opcode] = legacyType(NAMES[opcode]);
+        }
+    }
+
+    private Protocol() {
+    }
+
+    /**
+     * Returns the name of an opcode, as the matching legacy request type.
+     *
+     * @param opcode the opcode
+     * @return the name, or "UNKNOWN"
+     */
+    static String name(byte opcode) {
+        return opcode > 0 && opcode < NAMES.length ? NAMES[opcode] : NAMES[0];
+    }
+
+    /**
+     * Returns the opcode of a request without decoding it or allocating, so the server can decide whether to accept
+     * it before doing any work. A legacy request gets the opcode of the same name, looking inside a FRAMED envelope.
+     *
+     * @param request the request, positioned at its first byte; the position is not changed
+     * @return the opcode, or 0 if the request type is unknown
+     */
+    static byte peekOpcode(ByteBuffer request) {
+        int position = request.position();
+        if (!request.hasRemaining()) {
+            return 0;
+        }
+        if (request.get(position) == VERSION_1) {
+            return request.remaining() >= 2 ? request.get(position + 1) : 0;
+        }
+        if (startsWith(request, position, LEGACY_FRAMED)) {
+            position += LEGACY_FRAMED.length + 4; // Skip the request id
+        }
+        for (byte opcode = 1; opcode < LEGACY_TYPES.length; opcode++) {
+            if (startsWith(request, position, LEGACY_TYPES[opcode])) {
+                return opcode;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Tells whether a legacy request is wrapped in a FRAMED envelope; its request id is the int that follows.
+     *
+     * @param request the request, positioned at its first byte; the position is not changed
+     * @return true if the request starts with the FRAMED request type
+     */
+    static boolean isLegacyFramed(ByteBuffer request) {
+        return startsWith(request, request.position(), LEGACY_FRAMED);
+    }
+
+    private static boolean startsWith(ByteBuffer buffer, int position, byte[] prefix) {
+        if (buffer.limit() - position < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (buffer.get(position + i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] legacyType(String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.US_ASCII);
+        byte[] encoded = new byte[2 + bytes.length];
+        encoded[0] = (byte) (bytes.length >>> 8);
+        encoded[1] = (byte) bytes.length;
+        System.arraycopy(bytes, 0, encoded, 2, bytes.length);
+        return encoded;
+    }
+
+    /**
+     * Encodes a version 1 request.
+     *
+     * @param opcode the opcode
+     * @param requestId the request id
+     * @param fields the fields of the opcode
+     * @return the request bytes
+     */
+    static byte[] encodeRequest(byte opcode, int requestId, byte[] fields) {
+        byte[] request = new byte[REQUEST_HEADER_SIZE + fields.length];
+        request[0] = VERSION_1;
+        request[1] = opcode;
+        request[2] = (byte) (requestId >>> 24);
+        request[3] = (byte) (requestId >>> 16);
+        request[4] = (byte) (requestId >>> 8);
+        request[5] = (byte) requestId;
+        System.arraycopy(fields, 0, request, REQUEST_HEADER_SIZE, fields.length);
+        return request;
+    }
+
+    /**
+     * Encodes the fields of a RESEND request.
+     *
+     * @param sequences the sequence numbers of the chunks to send again
+     * @param count the number of sequence numbers to use
+     * @return the fields
+     */
+    static byte[] resendFields(int[] sequences, int count) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(2 + 2 * count);
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            dos.writeShort(count);
+            for (int i = 0; i < count; i++) {
+                dos.writeShort(sequences[i]);
+            }
+        } catch (IOException e) {
+            throw new AssertionError(e); // Cannot happen when writing to memory
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * Decodes the body of a version 1 response.
+     *
+     * @param opcode the opcode of the request
+     * @param body the reassembled response
+     * @return the reply
+     * @throws IOException if the body is not a version 1 response to the opcode
+     */
+    static Reply decodeReply(byte opcode, byte[] body) throws IOException {
+        if (body.length < 3 || body[0] != VERSION_1) {
+            throw new IOException("Not a version 1 response.");
+        }
+        if (body[1] != opcode) {
+            throw new IOException("Response to " + name(body[1]) + " received for " + name(opcode) + ".");
+        }
+        return new Reply(body[2], body);
+    }
+
+    /**
+     * A decoded version 1 response: its status and its payload.
+     */
+    static final class Reply {
+        final byte status;
+        private final byte[] body;
+
+        Reply(byte status, byte[] body) {
+            this.status = status;
+            this.body = body;
+        }
+
+        boolean isOk() {
+            return status == STATUS_OK;
+        }
+
+        /**
+         * Returns a stream over the payload.
+         *
+         * @return the payload stream
+         */
+        DataInputStream payload() {
+            return new DataInputStream(new ByteArrayInputStream(body, 3, body.length - 3));
+        }
+
+        /**
+         * Returns the payload bytes.
+         *
+         * @return a copy of the payload
+         */
+        byte[] payloadBytes() {
+            byte[] payload = new byte[body.length - 3];
+            System.arraycopy(body, 3, payload, 0, payload.length);
+            return payload;
+        }
+    }
+}
@@ -0,0 +1,215 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+/**
+ * The Replica class keeps a read-only copy of a primary server's store up to date, so the server it runs in can serve
+ * LIST_EVENTS, CHECK_DETAILS and the other reads while the primary takes the writes.
+ *
+ * A single thread connects to the primary's ReplicationPrimary over TCP, sends the LSN of the last record it applied,
+ * and applies what comes back: a snapshot when the replica is new or too far behind, then the log records as the
+ * primary writes them. A snapshot replaces the whole store (see EventStore.reload), since the events the replica has
+ * may not match the primary's any more, for example after the primary lost its data directory and gave the ids of the
+ * events it lost to new ones. When the connection fails, or nothing arrives for DEAD_PRIMARY_MILLIS, the replica
+ * reconnects every RETRY_MILLIS and catches up from where it stopped.
+ *
+ * The replica reports its lag in the STATS report: replication_lag_records is how many records the primary had
+ * written, as of its last frame, that are not applied yet, and replication_lag_millis is how long ago the replica was
+ * last caught up (0 while it is). Since the primary sends a heartbeat at least every
+ * ReplicationPrimary.HEARTBEAT_MILLIS, a connected replica notices within that time when it is caught up.
+ */
+final class Replica {
+
+    static final long RETRY_MILLIS = 1000;
+    static final int DEAD_PRIMARY_MILLIS = 30 * (int) ReplicationPrimary.HEARTBEAT_MILLIS;
+    private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+
+    private final EventStore store;
+    private final String primaryHost;
+    private final int primaryPort;
+    private final CRC32 checksum = new CRC32();
+    private byte[] frame = new byte[64 * 1024]; // Only used by the replication thread
+
+    private volatile long appliedLsn;
+    private volatile long primaryLsn;
+    private volatile long caughtUpMillis = System.currentTimeMillis();
+    private volatile boolean connected;
+    private final LongAdder snapshotsLoaded = new LongAdder();
+    private final LongAdder recordsApplied = new LongAdder();
+
+    /**
+     * Constructs a replica of a primary. The store is made read-only.
+     *
+     * @param store the store to keep up to date
+     * @param primary the primary's replication address, as "host:port"
+     */
+    Replica(EventStore store, String primary) {
+        this.store = store;
+        this.primaryHost = HashRing.host(primary);
+        this.primaryPort = HashRing.port(primary);
+        store.setReadOnly();
+    }
+
+    /**
+     * Starts the replication thread.
+     */
+    void start() {
+        Thread thread = new Thread(this::replicate, "gofundme-replica");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Returns how many log records the primary had written, as of its last frame, that are not applied yet.
+     *
+     * @return the lag in records
+     */
+    long lagRecords() {
+        return Math.max(0, primaryLsn - appliedLsn);
+    }
+
+    /**
+     * Returns how long ago the replica was last caught up with the primary.
+     *
+     * @return the lag in milliseconds, or 0 if the replica is connected and caught up
+     */
+    long lagMillis() {
+        return connected && appliedLsn >= primaryLsn ? 0 : System.currentTimeMillis() - caughtUpMillis;
+    }
+
+    /**
+     * Returns the replication figures for the STATS report.
+     *
+     * @return one "name value" line per figure
+     */
+    String status() {
+        return "replication_role replica\n"
+                + "replication_connected " + connected + '\n'
+                + "replication_applied_lsn " + appliedLsn + '\n'
+                + "replication_lag_records " + lagRecords() + '\n'
+                + "replication_lag_millis " + lagMillis() + '\n'
+                + "replication_records_applied " + recordsApplied.sum() + '\n'
+                + "replication_snapshots_loaded " + snapshotsLoaded.sum() + '\n';
+    }
+
+    /**
+     * The body of the replication thread: connects, applies frames until the connection fails, and reconnects.
+     */
+    private void replicate() {
+        String primary = primaryHost + ":" + primaryPort;
+        while (true) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(primaryHost, primaryPort), CONNECT_TIMEOUT_MILLIS);
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout(DEAD_PRIMARY_MILLIS);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                out.writeLong(appliedLsn);
+                out.flush();
+                connected = true;
+                GoFundMeServer.log.println(AsyncLogger.Level.INFO, "Replicating from " + primary + " after LSN "
+                        + appliedLsn);
+
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+                while (true) {
+                    applyFrame(in);
+                }
+            } catch (IOException e) {
+                if (connected) {
+                    GoFundMeServer.log.println(AsyncLogger.Level.WARN, "Lost the primary " + primary + ": "
+                            + e.getMessage());
+                }
+                connected = false;
+            }
+
+            try {
+                Thread.sleep(RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Reads one frame from the primary and applies it.
+     *
+     * @param in the stream from the primary
+     * @throws IOException if the connection fails or the frame is malformed
+     */
+    private void applyFrame(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case ReplicationPrimary.SNAPSHOT_FRAME:
+                applySnapshot(in);
+                break;
+            case ReplicationPrimary.RECORDS_FRAME:
+                long lsn = in.readLong();
+                int length = in.readInt();
+                if (length < 0) {
+                    throw new IOException("Invalid frame length " + length);
+                }
+                if (length > frame.length) {
+                    frame = new byte[Math.max(length, frame.length * 2)];
+                }
+                in.readFully(frame, 0, length);
+                applyRecords(ByteBuffer.wrap(frame, 0, length));
+                primaryLsn = lsn;
+                break;
+            case ReplicationPrimary.HEARTBEAT_FRAME:
+                primaryLsn = in.readLong();
+                break;
+            default:
+                throw new IOException("Unknown replication frame " + type);
+        }
+        if (appliedLsn >= primaryLsn) {
+            caughtUpMillis = System.currentTimeMillis();
+        }
+    }
+
+    private void applyRecords(ByteBuffer records) throws IOException {
+        long applied = appliedLsn;
+        while (records.hasRemaining()) {
+            long lsn = EventLog.applyRecord(records, checksum, store, applied);
+            if (lsn < 0) {
+                throw new IOException("Corrupt log record after LSN " + applied);
+            }
+            if (lsn > applied) {
+                applied = lsn;
+                recordsApplied.increment();
+            }
+        }
+        appliedLsn = applied;
+    }
+
+    /**
+     * Reads a whole snapshot and replaces the store with it.
+     *
+     * @param in the stream from the primary, positioned after the frame type
+     * @throws IOException if the connection fails or the snapshot is malformed
+     */
+    private void applySnapshot(DataInputStream in) throws IOException {
+        long lsn = in.readLong();
+        int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("Invalid snapshot size " + count);
+        }
+        List<EventStore.EventState> events = new ArrayList<>(Math.min(count, 1 << 16));
+        for (int i = 0; i < count; i++) {
+            events.add(new EventStore.EventState(in.readInt(), in.readUTF(), in.readLong(), in.readLong(),
+                    in.readLong()));
+        }
+        store.reload(events);
+        appliedLsn = lsn;
+        primaryLsn = Math.max(primaryLsn, lsn);
+        snapshotsLoaded.increment();
+        GoFundMeServer.log.println(AsyncLogger.Level.INFO, "Loaded a snapshot of " + count + " event(s) at LSN " + lsn);
+    }
+}
@@ -0,0 +1,160 @@
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * The ReplicatedClient class is a client library for a primary server with read-only replicas (see ReplicationPrimary
+ * and Replica). It keeps a GoFundMeAsyncClient for the primary and one for each replica, sends CREATE_EVENT, DONATE
+ * and BATCH to the primary, and spreads LIST_EVENTS, CHECK_DETAILS and CHECK_EVENTS_EXIST over the replicas in turn.
+ * A read that a replica does not answer in time is sent to the primary instead, so a replica going down only costs its
+ * clients one timeout per read until it is back.
+ *
+ * Replicas apply the primary's log a little after the primary does (each replica reports how far behind it is in its
+ * STATS report), so a read from a replica may not show a donation the same client has just made. A caller that needs
+ * to read its own writes can send that read to primary().
+ */
+final class ReplicatedClient implements AutoCloseable {
+
+    private final GoFundMeAsyncClient primary;
+    private final GoFundMeAsyncClient[] replicas;
+    private final AtomicInteger nextReplica = new AtomicInteger();
+
+    /**
+     * Constructs a client, with the default timeouts.
+     *
+     * @param primary the primary server, as "host:port"
+     * @param replicas the replicas, as a comma-separated list of "host:port", or "" to send everything to the primary
+     * @throws IOException if a host cannot be resolved or a socket cannot be opened
+     */
+    ReplicatedClient(String primary, String replicas) throws IOException {
+        String[] names = replicas.isBlank() ? new String[0] : replicas.split(",");
+        this.replicas = new GoFundMeAsyncClient[names.length];
+        this.primary = new GoFundMeAsyncClient(HashRing.host(primary.trim()), HashRing.port(primary.trim()));
+        try {
+            for (int i = 0; i < names.length; i++) {
+                String replica = names[i].trim();
+                this.replicas[i] = new GoFundMeAsyncClient(HashRing.host(replica), HashRing.port(replica));
+            }
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the client of the primary, for writes and for reads that must see the caller's own writes.
+     *
+     * @return the client of the primary
+     */
+    GoFundMeAsyncClient primary() {
+        return primary;
+    }
+
+    /**
+     * Returns the client of the next replica in turn, or of the primary if there are no replicas.
+     *
+     * @return a client to read from
+     */
+    GoFundMeAsyncClient reader() {
+        if (replicas.length == 0) {
+            return primary;
+        }
+        return replicas[Math.floorMod(nextReplica.getAndIncrement(), replicas.length)];
+    }
+
+    /**
+     * Creates an event on the primary. See GoFundMeAsyncClient.createEvent.
+     *
+     * @param name the name of the event
+     * @param targetAmount the target amount
+     * @param deadline the deadline, in milliseconds since the epoch
+     * @return a future completed with the id of the new event
+     */
+    CompletableFuture<Integer> createEvent(String name, double targetAmount, long deadline) {
+        return primary.createEvent(name, targetAmount, deadline);
+    }
+
+    /**
+     * Donates to an event on the primary. See GoFundMeAsyncClient.donate.
+     *
+     * @param eventId the id of the event
+     * @param amount the donation in dollars
+     * @return a future completed with the status of the reply
+     */
+    CompletableFuture<Byte> donate(int eventId, double amount) {
+        return primary.donate(eventId, amount);
+    }
+
+    /**
+     * Sends a batch to the primary, since it may hold donations. See GoFundMeAsyncClient.batch.
+     *
+     * @param batch the batch
+     * @return a future completed with one result per operation
+     */
+    CompletableFuture<List<BatchRequest.Result>> batch(BatchRequest batch) {
+        return primary.batch(batch);
+    }
+
+    /**
+     * Gets the details of an event from a replica. See GoFundMeAsyncClient.checkDetails.
+     *
+     * @param eventId the id of the event
+     * @return a future completed with the reply
+     */
+    CompletableFuture<Protocol.Reply> checkDetails(int eventId) {
+        return read(client -> client.checkDetails(eventId));
+    }
+
+    /**
+     * Checks whether any event exists, on a replica.
+     *
+     * @return a future completed with true if there is at least one event
+     */
+    CompletableFuture<Boolean> eventsExist() {
+        return read(GoFundMeAsyncClient::eventsExist);
+    }
+
+    /**
+     * Gets the event list from a replica. See GoFundMeAsyncClient.listEvents.
+     *
+     * @return a future completed with the payload of the reply, laid out as a LIST_EVENTS response
+     */
+    CompletableFuture<DataInputStream> listEvents() {
+        return read(GoFundMeAsyncClient::listEvents);
+    }
+
+    /**
+     * Closes the clients of the primary and every replica.
+     */
+    @Override
+    public void close() {
+        if (primary != null) {
+            primary.close();
+        }
+        for (GoFundMeAsyncClient replica : replicas) {
+            if (replica != null) {
+                replica.close();
+            }
+        }
+    }
+
+    /**
+     * Sends a read to the next replica, and to the primary if the replica does not answer.
+     *
+     * @param request sends the read with a given client
+     * @return a future completed with the reply of the replica or, failing that, of the primary
+     */
+    private <T> CompletableFuture<T> read(Function<GoFundMeAsyncClient, CompletableFuture<T>> request) {
+        GoFundMeAsyncClient reader = reader();
+        CompletableFuture<T> reply = request.apply(reader);
+        if (reader == primary) {
+            return reply;
+        }
+        return reply.exceptionallyCompose(failure -> failure instanceof GoFundMeAsyncClient.ReplyException
+                || failure.getCause() instanceof GoFundMeAsyncClient.ReplyException
+                ? CompletableFuture.failedFuture(failure) : request.apply(primary));
+    }
+}
@@ -0,0 +1,273 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The ReplicationPrimary class streams the write-ahead log of a primary server to its replicas over TCP, so that
+ * read-only Replica servers can serve reads from copies of the store.
+ *
+ * It is the EventLog's listener: every batch of records the flusher writes is copied into an in-memory backlog, which
+ * keeps the most recent backlogLimit bytes of the log. Only written records reach it, so a replica never applies a
+ * mutation the primary could lose. A replica connects with the LSN of the last record it applied, and is sent the
+ * records after it from the backlog, then every new batch as it is written. A replica that is new, or that fell
+ * further behind than the backlog reaches, is first sent a snapshot: a copy of every event taken with the store paused
+ * and every record logged so far written, with the LSN it matches, after which the records that follow are streamed as
+ * usual. The replica replaces its whole store with the snapshot. Records are sent in their
+ * on-disk layout, checksums included, and applied by the replica with the same code that replays the log on startup.
+ *
+ * Frames from the primary start with a type byte:
+ * - SNAPSHOT_FRAME: long LSN, int count, then per event: int id, UTF name, long target cents, long deadline, long
+ *   raised cents
+ * - RECORDS_FRAME: long last LSN of the primary, int length, then that many bytes of whole log records
+ * - HEARTBEAT_FRAME: long last LSN of the primary, sent every HEARTBEAT_MILLIS when there is nothing else to send,
+ *   so an idle replica still knows it is caught up and a dead connection is noticed
+ *
+ * Each replica is served by its own thread, which blocks on its socket, so a slow replica only holds up itself.
+ */
+final class ReplicationPrimary implements EventLog.Listener {
+
+    static final byte SNAPSHOT_FRAME = 1;
+    static final byte RECORDS_FRAME = 2;
+    static final byte HEARTBEAT_FRAME = 3;
+    static final long HEARTBEAT_MILLIS = 100;
+
+    private final EventStore store;
+    private final EventLog eventLog;
+    private final long backlogLimit;
+
+    // Guarded by this: the most recent batches written, the first LSN they hold and the last LSN written
+    private final ArrayDeque<Chunk> backlog = new ArrayDeque<>();
+    private long backlogBytes;
+    private long firstLsn;
+    private long lastLsn;
+
+    private final AtomicInteger replicas = new AtomicInteger();
+    private final LongAdder snapshotsSent = new LongAdder();
+
+    /**
+     * Constructs a primary for a store whose log has been recovered, and makes it the log's listener.
+     *
+     * @param store the store
+     * @param eventLog the store's log
+     * @param backlogLimit the most bytes of recent log records kept for replicas that fall behind
+     */
+    ReplicationPrimary(EventStore store, EventLog eventLog, long backlogLimit) {
+        this.store = store;
+        this.eventLog = eventLog;
+        this.backlogLimit = backlogLimit;
+        synchronized (this) {
+            lastLsn = eventLog.lastLsn();
+            firstLsn = lastLsn + 1; // Records before this are only in the store, so they are sent as a snapshot
+        }
+        eventLog.setListener(this);
+    }
+
+    /**
+     * Starts accepting replicas on a TCP port, each on its own daemon thread.
+     *
+     * @param port the port
+     * @throws IOException if the port cannot be bound
+     */
+    void start(int port) throws IOException {
+        ServerSocket serverSocket = new ServerSocket(port);
+        Thread acceptor = new Thread(() -> {
+            while (true) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    Thread sender = new Thread(() -> serve(socket),
+                            "gofundme-replication-" + socket.getRemoteSocketAddress());
+                    sender.setDaemon(true);
+                    sender.start();
+                } catch (IOException e) {
+                    GoFundMeServer.log.log(AsyncLogger.Level.ERROR, "Replication listener failed: " + e.getMessage());
+                    return;
+                }
+            }
+        }, "gofundme-replication-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        GoFundMeServer.log.println(AsyncLogger.Level.INFO, "Replicating to replicas on TCP port " + port);
+    }
+
+    @Override
+    public void written(ByteBuffer records, long batchLsn) {
+        byte[] data = new byte[records.remaining()];
+        records.get(data);
+        Chunk chunk = new Chunk(EventLog.recordLsn(ByteBuffer.wrap(data), 0), batchLsn, data);
+        synchronized (this) {
+            backlog.addLast(chunk);
+            backlogBytes += data.length;
+            while (backlogBytes > backlogLimit && backlog.size() > 1) {
+                backlogBytes -= backlog.removeFirst().data.length;
+                firstLsn = backlog.getFirst().firstLsn;
+            }
+            lastLsn = batchLsn;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Returns the replication figures for the STATS report.
+     *
+     * @return one "name value" line per figure
+     */
+    String status() {
+        long last;
+        long bytes;
+        synchronized (this) {
+            last = lastLsn;
+            bytes = backlogBytes;
+        }
+        return "replication_role primary\n"
+                + "replication_replicas " + replicas.get() + '\n'
+                + "replication_last_lsn " + last + '\n'
+                + "replication_backlog_bytes " + bytes + '\n'
+                + "replication_snapshots_sent " + snapshotsSent.sum() + '\n';
+    }
+
+    /**
+     * Streams the log to one replica until its connection fails.
+     *
+     * @param socket the connection to the replica
+     */
+    private void serve(Socket socket) {
+        replicas.incrementAndGet();
+        String replica = socket.getRemoteSocketAddress().toString();
+        try (socket) {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+
+            long sentLsn = in.readLong();
+            GoFundMeServer.log.println(AsyncLogger.Level.INFO, "Replica " + replica + " connected at LSN " + sentLsn);
+            if (sentLsn > eventLog.lastLsn()) {
+                // The replica has records this log does not, such as after the primary lost its data directory
+                GoFundMeServer.log.println(AsyncLogger.Level.WARN, "Replica " + replica + " is ahead of the primary");
+                sentLsn = -1;
+            }
+
+            List<Chunk> pending = new ArrayList<>();
+            while (true) {
+                boolean behind;
+                long primaryLsn;
+                pending.clear();
+                synchronized (this) {
+                    long waitUntil = System.currentTimeMillis() + HEARTBEAT_MILLIS;
+                    long remaining;
+                    while (lastLsn <= sentLsn && sentLsn + 1 >= firstLsn
+                            && (remaining = waitUntil - System.currentTimeMillis()) > 0) {
+                        wait(remaining);
+                    }
+                    behind = sentLsn < 0 || sentLsn + 1 < firstLsn;
+                    if (!behind) {
+                        for (Chunk chunk : backlog) {
+                            if (chunk.lastLsn > sentLsn) {
+                                pending.add(chunk);
+                            }
+                        }
+                    }
+                    primaryLsn = lastLsn;
+                }
+
+                if (behind) {
+                    sentLsn = sendSnapshot(out);
+                } else if (pending.isEmpty()) {
+                    out.writeByte(HEARTBEAT_FRAME);
+                    out.writeLong(primaryLsn);
+                } else {
+                    for (Chunk chunk : pending) {
+                        sendRecords(chunk, sentLsn, primaryLsn, out);
+                        sentLsn = chunk.lastLsn;
+                    }
+                }
+                out.flush();
+            }
+        } catch (IOException e) {
+            GoFundMeServer.log.println(AsyncLogger.Level.INFO, "Replica " + replica + " disconnected: "
+                    + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            replicas.decrementAndGet();
+        }
+    }
+
+    /**
+     * Sends a copy of every event, taken with the store paused so that it matches the log exactly. The log is written
+     * out first, since the store may hold mutations whose records are only staged under the INTERVAL and NEVER
+     * policies, and a replica must not get a mutation the primary could still lose.
+     *
+     * @param out the stream to the replica
+     * @return the LSN the copy matches
+     * @throws IOException if the replica cannot be written to, or writing the log failed
+     */
+    private long sendSnapshot(DataOutputStream out) throws IOException {
+        long[] lsn = new long[1];
+        List<EventStore.EventState> events = store.checkpoint(() -> {
+            lsn[0] = eventLog.flush();
+            return lsn[0] < 0 ? null : store.copyState();
+        });
+        if (events == null) {
+            throw new IOException("The write-ahead log failed");
+        }
+        out.writeByte(SNAPSHOT_FRAME);
+        out.writeLong(lsn[0]);
+        out.writeInt(events.size());
+        for (EventStore.EventState event : events) {
+            out.writeInt(event.id);
+            out.writeUTF(event.name);
+            out.writeLong(event.targetCents);
+            out.writeLong(event.deadline);
+            out.writeLong(event.raisedCents);
+        }
+        snapshotsSent.increment();
+        return lsn[0];
+    }
+
+    /**
+     * Sends the records of a chunk that come after the ones the replica already has.
+     *
+     * @param chunk the chunk
+     * @param sentLsn the last LSN sent to the replica
+     * @param primaryLsn the last LSN written on the primary
+     * @param out the stream to the replica
+     * @throws IOException if the replica cannot be written to
+     */
+    private static void sendRecords(Chunk chunk, long sentLsn, long primaryLsn, DataOutputStream out)
+            throws IOException {
+        ByteBuffer records = ByteBuffer.wrap(chunk.data);
+        int start = 0;
+        while (start < chunk.data.length && EventLog.recordLsn(records, start) <= sentLsn) {
+            start += EventLog.recordSize(records, start);
+        }
+        out.writeByte(RECORDS_FRAME);
+        out.writeLong(primaryLsn);
+        out.writeInt(chunk.data.length - start);
+        out.write(chunk.data, start, chunk.data.length - start);
+    }
+
+    /**
+     * One batch of log records as the flusher wrote it.
+     */
+    private static final class Chunk {
+        final long firstLsn;
+        final long lastLsn;
+        final byte[] data;
+
+        Chunk(long firstLsn, long lastLsn, byte[] data) {
+            this.firstLsn = firstLsn;
+            this.lastLsn = lastLsn;
+            this.data = data;
+        }
+    }
+}
@@ -0,0 +1,316 @@
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The ResponseBuffer class is a growable, reusable buffer that the request handlers write their responses into.
+ * It replaces a new ByteArrayOutputStream and DataOutputStream per request: a buffer is cleared and written again for
+ * every response, and only grows when a response is bigger than anything it has held before.
+ * The buffer can be backed by heap memory (for DatagramSocket) or by direct memory (for DatagramChannel).
+ *
+ * Besides the bytes, the buffer records how the response is to be sent: as is, split into chunks by ResponseFramer
+ * for a client that sent its request in a FRAMED envelope or with the version 1 protocol, or as datagrams that were
+ * written whole, one after the other, such as the chunks a RESEND request asks for.
+ */
+final class ResponseBuffer {
+
+    private final boolean direct;
+    private ByteBuffer buffer;
+    private boolean framed;
+    private int requestId;
+    private boolean datagrams;
+    private int[] datagramEnds = new int[0];
+    private int datagramCount;
+    private byte[] sharedTail;
+    private int sharedTailOffset;
+
+    /**
+     * Constructs a new response buffer.
+     *
+     * @param initialCapacity the initial capacity of the buffer in bytes
+     * @param direct true to allocate direct memory, false for a heap buffer with an accessible array
+     */
+    ResponseBuffer(int initialCapacity, boolean direct) {
+        this.direct = direct;
+        this.buffer = allocate(initialCapacity);
+    }
+
+    /**
+     * Discards the current contents so the buffer can be reused for the next response.
+     */
+    void clear() {
+        buffer.clear();
+        framed = false;
+        requestId = 0;
+        datagrams = false;
+        datagramCount = 0;
+        sharedTail = null;
+    }
+
+    /**
+     * Marks the response to be sent in chunks, as the reply to the framed request with the given id.
+     *
+     * @param requestId the request id sent by the client
+     */
+    void frame(int requestId) {
+        this.framed = true;
+        this.requestId = requestId;
+    }
+
+    /**
+     * Marks the response as whole datagrams, each written with its header and ended with endDatagram, to be sent as
+     * they are. A response marked this way with no datagram sends nothing.
+     */
+    void writeDatagrams() {
+        this.datagrams = true;
+    }
+
+    /**
+     * Ends a datagram of a response marked with writeDatagrams at the current length.
+     */
+    void endDatagram() {
+        if (datagramCount == datagramEnds.length) {
+            datagramEnds = Arrays.copyOf(datagramEnds, Math.max(8, datagramCount * 2));
+        }
+        datagramEnds[datagramCount++] = buffer.position();
+    }
+
+    boolean isFramed() {
+        return framed;
+    }
+
+    int requestId() {
+        return requestId;
+    }
+
+    /**
+     * Tells whether the response is made of whole datagrams (see writeDatagrams).
+     *
+     * @return true if the datagrams are to be sent as they are
+     */
+    boolean hasDatagrams() {
+        return datagrams;
+    }
+
+    /**
+     * Returns the number of datagrams ended with endDatagram.
+     *
+     * @return the number of datagrams
+     */
+    int datagramCount() {
+        return datagramCount;
+    }
+
+    /**
+     * Returns where a datagram ends; it starts where the one before it ends, or at 0.
+     *
+     * @param index the index of the datagram
+     * @return the offset just past its last byte
+     */
+    int datagramEnd(int index) {
+        return datagramEnds[index];
+    }
+
+    /**
+     * Discards everything written after the first length bytes, so a partly written section can be written again.
+     *
+     * @param length the number of bytes to keep
+     */
+    void truncate(int length) {
+        buffer.position(length);
+        if (sharedTail != null && length < sharedTailOffset + sharedTail.length) {
+            sharedTail = null;
+        }
+    }
+
+    /**
+     * Returns the number of bytes written since the last clear.
+     *
+     * @return the length of the response written so far
+     */
+    int length() {
+        return buffer.position();
+    }
+
+    ResponseBuffer putByte(int value) {
+        ensureRemaining(1);
+        buffer.put((byte) value);
+        return this;
+    }
+
+    ResponseBuffer putBoolean(boolean value) {
+        return putByte(value ? 1 : 0);
+    }
+
+    ResponseBuffer putShort(int value) {
+        ensureRemaining(2);
+        buffer.putShort((short) value);
+        return this;
+    }
+
+    ResponseBuffer putInt(int value) {
+        ensureRemaining(4);
+        buffer.putInt(value);
+        return this;
+    }
+
+    ResponseBuffer putLong(long value) {
+        ensureRemaining(8);
+        buffer.putLong(value);
+        return this;
+    }
+
+    ResponseBuffer putDouble(double value) {
+        ensureRemaining(8);
+        buffer.putDouble(value);
+        return this;
+    }
+
+    ResponseBuffer putBytes(byte[] value) {
+        ensureRemaining(value.length);
+        buffer.put(value);
+        return this;
+    }
+
+    /**
+     * Overwrites four bytes that were already written, for example a length that is only known at the end.
+     *
+     * @param index the offset of the int from the start of the buffer
+     * @param value the value to write
+     */
+    void setInt(int index, int value) {
+        buffer.putInt(index, value);
+    }
+
+    /**
+     * Overwrites a byte that was already written, for example a status that is only known at the end.
+     *
+     * @param index the offset of the byte from the start of the buffer
+     * @param value the value to write
+     */
+    void setByte(int index, byte value) {
+        buffer.put(index, value);
+    }
+
+    ResponseBuffer putBytes(byte[] value, int offset, int length) {
+        ensureRemaining(length);
+        buffer.put(value, offset, length);
+        return this;
+    }
+
+    /**
+     * Copies an array that is shared between responses and never modified, such as a cached event list, and
+     * remembers it, so that a retained copy of the response can refer to the array instead of copying it again.
+     *
+     * @param value the shared array
+     * @return this buffer
+     */
+    ResponseBuffer putShared(byte[] value) {
+        int offset = buffer.position();
+        putBytes(value);
+        sharedTail = value;
+        sharedTailOffset = offset;
+        return this;
+    }
+
+    /**
+     * Returns the array written with putShared if the response ends with it.
+     *
+     * @return the shared array, or null if the response does not end with one
+     */
+    byte[] sharedTail() {
+        return sharedTail != null && sharedTailOffset + sharedTail.length == buffer.position() ? sharedTail : null;
+    }
+
+    /**
+     * Returns where the array returned by sharedTail starts in the response.
+     *
+     * @return the offset of the shared array
+     */
+    int sharedTailOffset() {
+        return sharedTailOffset;
+    }
+
+    /**
+     * Copies the remaining bytes of another buffer.
+     *
+     * @param value the buffer to copy from; its position is advanced to its limit
+     * @return this buffer
+     */
+    ResponseBuffer putBytes(ByteBuffer value) {
+        ensureRemaining(value.remaining());
+        buffer.put(value);
+        return this;
+    }
+
+    /**
+     * Writes a string in the same format as DataOutputStream.writeUTF.
+     *
+     * @param value the string to write
+     * @return this buffer
+     * @throws UTFDataFormatException if the encoded string is longer than 65535 bytes
+     */
+    ResponseBuffer putUTF(String value) throws UTFDataFormatException {
+        ensureRemaining(WireFormat.utfLength(value) + 2);
+        WireFormat.writeUTF(buffer, value);
+        return this;
+    }
+
+    /**
+     * Copies the bytes written so far into a new array.
+     *
+     * @return a copy of the response
+     */
+    byte[] toByteArray() {
+        return toByteArray(buffer.position());
+    }
+
+    /**
+     * Copies the first bytes written into a new array.
+     *
+     * @param length the number of bytes to copy, at most length()
+     * @return a copy of the start of the response
+     */
+    byte[] toByteArray(int length) {
+        byte[] copy = new byte[length];
+        ByteBuffer view = buffer.duplicate();
+        view.flip();
+        view.get(copy);
+        return copy;
+    }
+
+    /**
+     * Flips the buffer so the response can be sent: position 0 and limit at the end of the response.
+     * No more values may be written until the buffer is cleared.
+     *
+     * @return the underlying buffer, ready to be read
+     */
+    ByteBuffer contents() {
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Returns the backing array of a heap buffer. The response occupies the first length() bytes.
+     *
+     * @return the backing array
+     * @throws UnsupportedOperationException if the buffer is direct
+     */
+    byte[] array() {
+        return buffer.array();
+    }
+
+    private void ensureRemaining(int bytes) {
+        if (buffer.remaining() < bytes) {
+            int newCapacity = Math.max(buffer.capacity() * 2, buffer.position() + bytes);
+            ByteBuffer grown = allocate(newCapacity);
+            buffer.flip();
+            grown.put(buffer);
+            buffer = grown;
+        }
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+}
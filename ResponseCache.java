@@ -0,0 +1,195 @@
+import java.io.IOException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The ResponseCache class keeps LIST_EVENTS and CHECK_DETAILS responses already encoded, so reads, which make up most
+ * of the traffic, are a copy of cached bytes instead of a fresh encoding of every event.
+ *
+ * Each event caches its encoded list entry (id, name, target amount, current amount, deadline) tagged with the event
+ * version it was encoded at. A CHECK_DETAILS response is the same entry without the id. When a donation changes the
+ * event, the next read copies the old entry and patches only the current amount.
+ *
+ * The whole event list is cached tagged with the store version and index sequence it was built at. Any create,
+ * donation or expiry sweep changes one of them, and the next LIST_EVENTS rebuilds the list from the per-event entries,
+ * so only the events that actually changed are encoded again.
+ */
+final class ResponseCache {
+
+    private static final int ATTEMPTS = 3;
+    private static final ThreadLocal<ResponseBuffer> SCRATCH =
+            ThreadLocal.withInitial(() -> new ResponseBuffer(GoFundMeServer.RESPONSE_BUFFER_SIZE, false));
+
+    private final EventStore store;
+    private volatile CachedList cachedList;
+
+    private final LongAdder listHits = new LongAdder();
+    private final LongAdder listMisses = new LongAdder();
+    private final LongAdder detailHits = new LongAdder();
+    private final LongAdder detailMisses = new LongAdder();
+
+    ResponseCache(EventStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Writes the LIST_EVENTS response: the number of current and past events, then the current and past events in
+     * deadline order. Uses the cached list if the store has not changed since it was built.
+     *
+     * @param response the buffer to write into
+     * @throws IOException if an event name cannot be encoded
+     */
+    void writeEventList(ResponseBuffer response) throws IOException {
+        CachedList cached = cachedList;
+        if (cached != null && cached.version == store.version() && cached.indexSequence == store.indexSequence()) {
+            listHits.increment();
+            response.putShared(cached.bytes);
+            return;
+        }
+        listMisses.increment();
+
+        ResponseBuffer scratch = SCRATCH.get();
+        for (int attempt = 1; ; attempt++) {
+            long version = store.version();
+            long indexSequence = store.indexSequence();
+            scratch.clear();
+
+            scratch.putInt(0);
+            scratch.putInt(0);
+            int currentCount = 0;
+            int pastCount = 0;
+            for (FundraisingEvent event : store.currentEvents()) {
+                scratch.putBytes(listEntry(event));
+                currentCount++;
+            }
+            for (FundraisingEvent event : store.pastEvents()) {
+                scratch.putBytes(listEntry(event));
+                pastCount++;
+            }
+            scratch.setInt(0, currentCount);
+            scratch.setInt(4, pastCount);
+
+            boolean unchanged = store.version() == version && store.indexSequence() == indexSequence
+                    && indexSequence % 2 == 0;
+            if (unchanged) {
+                byte[] bytes = scratch.toByteArray();
+                cachedList = new CachedList(version, indexSequence, bytes);
+                response.putShared(bytes);
+                return;
+            }
+            if (attempt == ATTEMPTS) {
+                // Still changing under us: send this attempt, but do not cache it
+                response.putBytes(scratch.toByteArray());
+                return;
+            }
+        }
+    }
+
+    /**
+     * Writes the CHECK_DETAILS response for an event: its name, target amount, current amount and deadline.
+     *
+     * @param event the event
+     * @param response the buffer to write into
+     * @throws IOException if the event name cannot be encoded
+     */
+    void writeDetails(FundraisingEvent event, ResponseBuffer response) throws IOException {
+        EncodedEvent encoded = event.encoded;
+        if (encoded != null && encoded.version == event.version()) {
+            detailHits.increment();
+        } else {
+            detailMisses.increment();
+            encoded = encode(event);
+        }
+        response.putBytes(encoded.bytes, 4, encoded.bytes.length - 4);
+    }
+
+    /**
+     * Returns the encoded list entry of an event, encoding it again if the event changed since it was cached.
+     *
+     * @param event the event
+     * @return the id, name, target amount, current amount and deadline of the event, encoded as in LIST_EVENTS
+     * @throws IOException if the event name cannot be encoded
+     */
+    byte[] listEntry(FundraisingEvent event) throws IOException {
+        EncodedEvent encoded = event.encoded;
+        if (encoded == null || encoded.version != event.version()) {
+            encoded = encode(event);
+        }
+        return encoded.bytes;
+    }
+
+    /**
+     * Writes the cache hit and miss counts: list hits, list misses, details hits and details misses, as longs.
+     *
+     * @param response the buffer to write into
+     */
+    void writeStats(ResponseBuffer response) {
+        response.putLong(listHits.sum());
+        response.putLong(listMisses.sum());
+        response.putLong(detailHits.sum());
+        response.putLong(detailMisses.sum());
+    }
+
+    /**
+     * Returns the hit and miss counts: list hits, list misses, details hits and details misses.
+     *
+     * @return the four counts
+     */
+    long[] counts() {
+        return new long[] {listHits.sum(), listMisses.sum(), detailHits.sum(), detailMisses.sum()};
+    }
+
+    private static EncodedEvent encode(FundraisingEvent event) throws IOException {
+        // Read the version before the amount: the amount is then at least as new as the version it is tagged with
+        long version = event.version();
+        double currentAmount = event.currentAmount();
+        EncodedEvent previous = event.encoded;
+
+        byte[] bytes;
+        if (previous != null) {
+            // Only the current amount can have changed: patch it into a copy of the old entry
+            bytes = previous.bytes.clone();
+            long bits = Double.doubleToLongBits(currentAmount);
+            int offset = bytes.length - 16;
+            for (int i = 0; i < 8; i++) {
+                bytes[offset + i] = (byte) (bits >>> (56 - 8 * i));
+            }
+        } else {
+            ResponseBuffer buffer = new ResponseBuffer(64, false);
+            buffer.putInt(event.id);
+            buffer.putUTF(event.name);
+            buffer.putDouble(event.targetAmount());
+            buffer.putDouble(currentAmount);
+            buffer.putLong(event.deadline);
+            bytes = buffer.toByteArray();
+        }
+
+        EncodedEvent encoded = new EncodedEvent(version, bytes);
+        event.encoded = encoded;
+        return encoded;
+    }
+
+    /**
+     * An encoded list entry and the event version it was encoded at.
+     */
+    static final class EncodedEvent {
+        final long version;
+        final byte[] bytes;
+
+        EncodedEvent(long version, byte[] bytes) {
+            this.version = version;
+            this.bytes = bytes;
+        }
+    }
+
+    private static final class CachedList {
+        final long version;
+        final long indexSequence;
+        final byte[] bytes;
+
+        CachedList(long version, long indexSequence, byte[] bytes) {
+            this.version = version;
+            this.indexSequence = indexSequence;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,262 @@
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * The ResponseFramer class splits responses into datagrams small enough to never need IP fragmentation.
+ *
+ * A client asks for a framed response by wrapping its request in a FRAMED envelope: writeUTF("FRAMED"), an int
+ * request id, then the request exactly as it would be sent unframed. Every datagram of the response starts with a
+ * header of int MAGIC, int request id, unsigned short sequence number and unsigned short chunk count, followed by at
+ * most CHUNK_PAYLOAD_SIZE bytes of the response. Small responses are a single chunk.
+ *
+ * Responses of more than one chunk are kept for RETAIN_MILLIS so a client that lost some chunks can ask for just those
+ * with a RESEND request: writeUTF("RESEND"), the int request id, an unsigned short count and that many unsigned short
+ * sequence numbers. Only the chunks asked for are written, straight from the retained bytes, so a RESEND costs the
+ * chunks it gets back however long the response is. Responses are keyed by the client's full address, port and the
+ * request id, so only the client a response was sent to can fetch it again. A response that ends with a shared array,
+ * such as the cached event list, is kept as a copy of the bytes before that array and a reference to it, so any number
+ * of clients polling a large list pin one copy of it rather than one each. All the responses kept take at most
+ * MAX_RETAINED_BYTES, a shared array counting once however many refer to it; the oldest are dropped to make room for
+ * new ones. They are kept in the order they were retained, which is also the order they expire in, so dropping the
+ * expired ones only looks at those.
+ *
+ * A response longer than MAX_CHUNKS chunks cannot be framed, since the chunk count is an unsigned short; the server
+ * sends an error instead (see fits).
+ */
+final class ResponseFramer {
+
+    static final int MAGIC = 0x47464D46; // "GFMF"
+    static final int HEADER_SIZE = 12;
+    static final int CHUNK_PAYLOAD_SIZE = 1200;
+    static final int MAX_CHUNKS = 0xFFFF;
+
+    /** The most bytes the responses kept for RESEND requests take together. */
+    static final long MAX_RETAINED_BYTES = 64L * 1024 * 1024;
+
+    private static final long RETAIN_MILLIS = 10000;
+
+    // Guarded by retained: the responses in the order they were retained, the number of them that refer to each shared
+    // array, and the bytes they take
+    private static final LinkedHashMap<RetainedKey, RetainedResponse> retained = new LinkedHashMap<>();
+    private static final IdentityHashMap<byte[], Integer> sharedReferences = new IdentityHashMap<>();
+    private static long retainedBytes;
+
+    private ResponseFramer() {
+    }
+
+    /**
+     * Returns the number of chunks a response of the given length is split into.
+     *
+     * @param length the length of the response in bytes
+     * @return the number of chunks, at least 1
+     */
+    static int chunkCount(int length) {
+        return Math.max(1, (length + CHUNK_PAYLOAD_SIZE - 1) / CHUNK_PAYLOAD_SIZE);
+    }
+
+    /**
+     * Tells whether a response of the given length can be framed, that is whether its chunk count fits the header.
+     *
+     * @param length the length of the response in bytes
+     * @return true if the response is at most MAX_CHUNKS chunks
+     */
+    static boolean fits(int length) {
+        return chunkCount(length) <= MAX_CHUNKS;
+    }
+
+    /**
+     * Writes one chunk of a response, header included, into dest.
+     *
+     * @param response the whole response, from position 0 to its limit; its position and limit are restored
+     * @param requestId the request id of the response
+     * @param sequence the number of the chunk to write, from 0
+     * @param dest the buffer the chunk is written into
+     */
+    static void writeChunk(ByteBuffer response, int requestId, int sequence, ResponseBuffer dest) {
+        int length = response.limit();
+        int start = sequence * CHUNK_PAYLOAD_SIZE;
+        int end = Math.min(length, start + CHUNK_PAYLOAD_SIZE);
+
+        writeHeader(requestId, sequence, length, dest);
+        response.position(start).limit(end);
+        dest.putBytes(response);
+        response.limit(length).position(0);
+    }
+
+    private static void writeHeader(int requestId, int sequence, int length, ResponseBuffer dest) {
+        dest.putInt(MAGIC);
+        dest.putInt(requestId);
+        dest.putShort(sequence);
+        dest.putShort(chunkCount(length));
+    }
+
+    /**
+     * Keeps a multi-chunk response so lost chunks can be sent again, dropping the oldest responses kept if they take
+     * too much room. A response bigger than MAX_RETAINED_BYTES on its own is not kept.
+     *
+     * @param clientAddress the IP address of the client
+     * @param clientPort the port number of the client
+     * @param requestId the request id of the response
+     * @param response the whole response
+     */
+    static void retain(InetAddress clientAddress, int clientPort, int requestId, ResponseBuffer response) {
+        byte[] shared = response.sharedTail();
+        if (response.length() > MAX_RETAINED_BYTES) {
+            return;
+        }
+        byte[] head = response.toByteArray(shared != null ? response.sharedTailOffset() : response.length());
+        RetainedKey key = new RetainedKey(clientAddress, clientPort, requestId);
+        synchronized (retained) {
+            long now = System.currentTimeMillis();
+            RetainedResponse replaced = retained.remove(key);
+            if (replaced != null) {
+                release(replaced);
+            }
+            Iterator<RetainedResponse> oldest = retained.values().iterator();
+            while (oldest.hasNext()) {
+                RetainedResponse candidate = oldest.next();
+                if (candidate.expiresAt >= now && retainedBytes + addedBytes(head, shared) <= MAX_RETAINED_BYTES) {
+                    break;
+                }
+                oldest.remove();
+                release(candidate);
+            }
+            retainedBytes += addedBytes(head, shared);
+            if (shared != null) {
+                sharedReferences.merge(shared, 1, Integer::sum);
+            }
+            retained.put(key, new RetainedResponse(head, shared, now + RETAIN_MILLIS));
+        }
+    }
+
+    /**
+     * Returns a response kept by retain, if it has not expired.
+     *
+     * @param clientAddress the IP address of the client
+     * @param clientPort the port number of the client
+     * @param requestId the request id of the response
+     * @return the response, or null if it is no longer available
+     */
+    static RetainedResponse retained(InetAddress clientAddress, int clientPort, int requestId) {
+        RetainedResponse response;
+        synchronized (retained) {
+            response = retained.get(new RetainedKey(clientAddress, clientPort, requestId));
+        }
+        if (response == null || response.expiresAt < System.currentTimeMillis()) {
+            return null;
+        }
+        return response;
+    }
+
+    /**
+     * Returns the bytes all the responses kept take together.
+     *
+     * @return the retained bytes
+     */
+    static long retainedBytes() {
+        synchronized (retained) {
+            return retainedBytes;
+        }
+    }
+
+    /**
+     * Returns the bytes a new response would add to retainedBytes: its head, and its shared array unless another
+     * response already refers to it. Called with the lock held.
+     */
+    private static long addedBytes(byte[] head, byte[] shared) {
+        return head.length + (shared != null && !sharedReferences.containsKey(shared) ? shared.length : 0);
+    }
+
+    /**
+     * Takes a response that was just removed out of retainedBytes. Called with the lock held.
+     */
+    private static void release(RetainedResponse response) {
+        retainedBytes -= response.head.length;
+        if (response.shared != null) {
+            int references = sharedReferences.get(response.shared);
+            if (references == 1) {
+                sharedReferences.remove(response.shared);
+                retainedBytes -= response.shared.length;
+            } else {
+                sharedReferences.put(response.shared, references - 1);
+            }
+        }
+    }
+
+    /**
+     * A response kept for RESEND requests: a copy of its head, followed by a shared array if it ends with one.
+     */
+    static final class RetainedResponse {
+        private final byte[] head;
+        private final byte[] shared;
+        private final long expiresAt;
+
+        RetainedResponse(byte[] head, byte[] shared, long expiresAt) {
+            this.head = head;
+            this.shared = shared;
+            this.expiresAt = expiresAt;
+        }
+
+        /**
+         * Returns the length of the whole response.
+         *
+         * @return the length in bytes
+         */
+        int length() {
+            return head.length + (shared != null ? shared.length : 0);
+        }
+
+        /**
+         * Writes one chunk of the response, header included, as writeChunk does for a whole response, copying only
+         * the bytes of that chunk.
+         *
+         * @param requestId the request id of the response
+         * @param sequence the number of the chunk to write, from 0, less than the chunk count
+         * @param dest the buffer the chunk is written into
+         */
+        void writeChunk(int requestId, int sequence, ResponseBuffer dest) {
+            int length = length();
+            int start = sequence * CHUNK_PAYLOAD_SIZE;
+            int end = Math.min(length, start + CHUNK_PAYLOAD_SIZE);
+
+            writeHeader(requestId, sequence, length, dest);
+            if (start < head.length) {
+                dest.putBytes(head, start, Math.min(end, head.length) - start);
+            }
+            if (end > head.length) {
+                int from = Math.max(start, head.length) - head.length;
+                dest.putBytes(shared, from, end - head.length - from);
+            }
+        }
+    }
+
+    private static final class RetainedKey {
+        final InetAddress clientAddress;
+        final int clientPort;
+        final int requestId;
+
+        RetainedKey(InetAddress clientAddress, int clientPort, int requestId) {
+            this.clientAddress = clientAddress;
+            this.clientPort = clientPort;
+            this.requestId = requestId;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof RetainedKey)) {
+                return false;
+            }
+            RetainedKey key = (RetainedKey) other;
+            return key.clientPort == clientPort && key.requestId == requestId
+                    && key.clientAddress.equals(clientAddress);
+        }
+
+        @Override
+        public int hashCode() {
+            return (clientAddress.hashCode() * 31 + clientPort) * 31 + requestId;
+        }
+    }
+}
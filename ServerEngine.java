@@ -0,0 +1,58 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * A ServerEngine owns the server socket. It receives request packets, hands them to the worker pool and sends the
+ * responses produced by GoFundMeServer.processData back to the clients.
+ * The engine is chosen at startup with the gofundme.engine system property:
+ * - socket: DatagramSocketEngine, a blocking java.net.DatagramSocket (the default)
+ * - nio: DatagramChannelEngine, a non-blocking java.nio DatagramChannel with a Selector and pooled direct buffers
+ */
+interface ServerEngine {
+
+    /**
+     * A received packet handed to the worker pool that holds a resource of the engine, such as a pooled buffer. The
+     * pool's overflow handler calls dropped() instead of run() when it drops the packet, so the engine gets the
+     * resource back.
+     */
+    interface PacketTask extends Runnable {
+        void dropped();
+    }
+
+    /**
+     * Binds the server socket and serves requests until the server is stopped.
+     *
+     * @param port the port to listen on
+     * @param workers the pool that runs GoFundMeServer.processData for each request
+     * @throws IOException if the socket cannot be bound or fails while receiving
+     */
+    void serve(int port, ExecutorService workers) throws IOException;
+
+    /**
+     * Sends a datagram the client did not ask for, such as the totals pushed by Subscriptions. A datagram pushed before
+     * serve has bound the socket is dropped; no client can have subscribed yet.
+     *
+     * @param datagram the datagram
+     * @param client the address of the client
+     */
+    void push(byte[] datagram, InetSocketAddress client);
+
+    /**
+     * Creates the engine named by the gofundme.engine system property.
+     *
+     * @param name the engine name, "socket" or "nio"
+     * @return the engine
+     * @throws IllegalArgumentException if the name is not a known engine
+     */
+    static ServerEngine forName(String name) {
+        switch (name.toLowerCase()) {
+            case "socket":
+                return new DatagramSocketEngine();
+            case "nio":
+                return new DatagramChannelEngine();
+            default:
+                throw new IllegalArgumentException("Unknown server engine: " + name + " (expected socket or nio)");
+        }
+    }
+}
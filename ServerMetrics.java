@@ -0,0 +1,147 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The ServerMetrics class counts what the server does, cheaply enough to be left on all the time: a latency histogram
+ * and an error count per request type, and the packets and bytes received and sent. Everything is a LongAdder or a
+ * LatencyHistogram, so recording never takes a lock or allocates.
+ *
+ * Packets shed by admission control are counted by reason: their client was over its rate limit, their request type
+ * was over its rate limit, or the work queue was full.
+ *
+ * The STATS request returns report(), a plain text report of these counters together with figures read at report
+ * time: the number of active clients, the depth of the work queue, dropped packets, the number of words in the name
+ * index, the number of hot events, the number of events with donations in the last hour, the store's lock waits, the
+ * response cache hit counts, the subscriptions and pushes and, on a primary or a replica, the replication status.
+ */
+final class ServerMetrics {
+
+    static final int SHED_CLIENT_LIMIT = 0;
+    static final int SHED_TYPE_LIMIT = 1;
+    static final int SHED_OVERLOAD = 2;
+    private static final String[] SHED_NAMES = {"shed_client_limit", "shed_type_limit", "shed_overload"};
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final long startMillis = System.currentTimeMillis();
+    private final LatencyHistogram[] latencies = new LatencyHistogram[Protocol.OPCODE_COUNT];
+    private final LongAdder[] errors = new LongAdder[Protocol.OPCODE_COUNT];
+    private final LongAdder packetsIn = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder packetsOut = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder sendFailures = new LongAdder();
+    private final LongAdder[] shed = new LongAdder[SHED_NAMES.length];
+
+    ServerMetrics() {
+        for (int i = 0; i < Protocol.OPCODE_COUNT; i++) {
+            latencies[i] = new LatencyHistogram();
+            errors[i] = new LongAdder();
+        }
+        for (int i = 0; i < shed.length; i++) {
+            shed[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records a processed request.
+     *
+     * @param opcode the opcode of the request (legacy requests use the opcode of the same name)
+     * @param startNanos System.nanoTime() when processing started
+     * @param failed true if the request could not be processed
+     */
+    void recordRequest(byte opcode, long startNanos, boolean failed) {
+        int index = opcode > 0 && opcode < Protocol.OPCODE_COUNT ? opcode : 0;
+        latencies[index].record((System.nanoTime() - startNanos) / 1000);
+        if (failed) {
+            errors[index].increment();
+        }
+    }
+
+    void recordReceived(int bytes) {
+        packetsIn.increment();
+        bytesIn.add(bytes);
+    }
+
+    void recordSent(int bytes) {
+        packetsOut.increment();
+        bytesOut.add(bytes);
+    }
+
+    void recordSendFailure() {
+        sendFailures.increment();
+    }
+
+    /**
+     * Records a packet that was answered with STATUS_BUSY instead of being processed.
+     *
+     * @param reason SHED_CLIENT_LIMIT, SHED_TYPE_LIMIT or SHED_OVERLOAD
+     */
+    void recordShed(int reason) {
+        shed[reason].increment();
+    }
+
+    /**
+     * Builds the text report returned by the STATS request.
+     *
+     * @param activeClients the number of clients heard from within the client timeout
+     * @param queueDepth the number of requests waiting for a worker
+     * @param droppedPackets the number of requests dropped because the work queue was full
+     * @param store the event store, for its size and lock waits
+     * @param responseCache the response cache, or null if it is turned off
+     * @param statusLines the status lines of the Subscriptions, followed by those of the ReplicationPrimary or Replica
+     *                    if there is one
+     * @return the report
+     */
+    String report(int activeClients, int queueDepth, long droppedPackets, EventStore store,
+                  ResponseCache responseCache, String statusLines) {
+        long uptimeMillis = System.currentTimeMillis() - startMillis;
+        long requests = 0;
+        for (LatencyHistogram latency : latencies) {
+            requests += latency.count();
+        }
+
+        StringBuilder report = new StringBuilder(2048);
+        report.append("uptime_seconds ").append(uptimeMillis / 1000).append('\n');
+        report.append("requests ").append(requests).append('\n');
+        report.append("requests_per_second ")
+                .append(String.format("%.1f", requests * 1000.0 / Math.max(1, uptimeMillis))).append('\n');
+        report.append("packets_in ").append(packetsIn.sum()).append('\n');
+        report.append("bytes_in ").append(bytesIn.sum()).append('\n');
+        report.append("packets_out ").append(packetsOut.sum()).append('\n');
+        report.append("bytes_out ").append(bytesOut.sum()).append('\n');
+        report.append("send_failures ").append(sendFailures.sum()).append('\n');
+        report.append("dropped_packets ").append(droppedPackets).append('\n');
+        for (int reason = 0; reason < shed.length; reason++) {
+            report.append(SHED_NAMES[reason]).append(' ').append(shed[reason].sum()).append('\n');
+        }
+        report.append("active_clients ").append(activeClients).append('\n');
+        report.append("work_queue_depth ").append(queueDepth).append('\n');
+        report.append("events ").append(store.events().size()).append('\n');
+        report.append("indexed_words ").append(store.indexedWords()).append('\n');
+        report.append("hot_events ").append(store.hotEventCount()).append('\n');
+        report.append("recently_donated_events ").append(store.recentlyDonatedEvents()).append('\n');
+        report.append("store_lock_waits ").append(store.lockWaits()).append('\n');
+        report.append("store_lock_wait_micros ").append(store.lockWaitNanos() / 1000).append('\n');
+        if (responseCache != null) {
+            long[] cache = responseCache.counts();
+            report.append("cache_list_hits ").append(cache[0]).append('\n');
+            report.append("cache_list_misses ").append(cache[1]).append('\n');
+            report.append("cache_detail_hits ").append(cache[2]).append('\n');
+            report.append("cache_detail_misses ").append(cache[3]).append('\n');
+        }
+        report.append(statusLines);
+
+        report.append(String.format("%-20s %10s %8s %9s %9s %9s %9s %9s%n",
+                "request", "count", "errors", "p50_us", "p90_us", "p99_us", "p99.9_us", "max_us"));
+        for (int opcode = 0; opcode < Protocol.OPCODE_COUNT; opcode++) {
+            long count = latencies[opcode].count();
+            if (count == 0) {
+                continue;
+            }
+            long[] values = latencies[opcode].quantiles(QUANTILES);
+            report.append(String.format("%-20s %10d %8d %9d %9d %9d %9d %9d%n", Protocol.name((byte) opcode),
+                    count, errors[opcode].sum(), values[0], values[1], values[2], values[3], values[4]));
+        }
+        return report.toString();
+    }
+}
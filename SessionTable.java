@@ -0,0 +1,361 @@
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.Arrays;
+
+/**
+ * The SessionTable class keeps track of the clients the server has heard from recently, so it can log when a client
+ * connects and when it goes quiet for longer than the timeout.
+ *
+ * A client is identified by its address and port packed into a long: the IPv4 address in bits 16 to 47 and the port
+ * in bits 0 to 15. Inet4Address.hashCode() is the address itself, so packing allocates nothing and the key is exact.
+ * An IPv6 client is keyed by the hash code of its address with bit 63 set, which different addresses can share, so a
+ * lookup with an IPv6 key also compares the session's full address, and two clients whose keys collide get sessions,
+ * and rate limits, of their own. The keys live in an open-addressing table with linear probing that maps them to
+ * session numbers, and each session's fields live in parallel arrays indexed by that number, so recording a packet
+ * from a known client allocates nothing.
+ *
+ * Expiry is handled by a hierarchical timer wheel (as described by Varghese and Lauck): LEVELS wheels of SLOTS slots
+ * each, where a slot of level l covers SLOTS^l ticks. Each session sits in the slot of its deadline, in a doubly
+ * linked list threaded through the session arrays. A packet moves its session to another slot only when its new
+ * deadline falls in a different one, so most packets just store the new deadline. Every tick empties one slot of the
+ * first wheel, and whenever the first wheel comes round again, the due slot of the next level is moved down. So the
+ * work done per tick is proportional to the sessions whose slot comes due, not to the number of sessions.
+ *
+ * Each session also holds a token bucket for per-client rate limiting: it fills at ratePerSecond tokens a second up to
+ * burst tokens, and every packet takes the cost of its request type out of it. A packet that finds too few tokens is
+ * reported as LIMITED, so the server can shed it before doing any work.
+ *
+ * The engines record packets on their receive thread and the timer thread expires sessions, so every method is
+ * synchronized; the lock is held for a few array accesses per packet.
+ */
+final class SessionTable {
+
+    /**
+     * Receives the clients whose session expired.
+     */
+    interface ExpiryListener {
+        void expired(InetAddress address, int port);
+    }
+
+    /** Returned by touch when the client had no session, meaning it just connected. */
+    static final int CONNECTED = 1;
+    /** Returned by touch when the client is over its rate limit. */
+    static final int LIMITED = 2;
+
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int LEVELS = 4;
+    private static final int NONE = -1;
+    private static final long EMPTY = -1; // No packed key is -1: IPv4 keys use 48 bits, IPv6 keys leave bits 48-62 clear
+
+    private final long tickMillis;
+    private final long timeoutTicks;
+    private final double tokensPerMilli;
+    private final double burst;
+    private long currentTick;
+
+    // Open-addressing table from packed key to session number
+    private long[] keys;
+    private int[] sessionOfSlot;
+    private int mask;
+    private int size;
+
+    // Session fields, indexed by session number
+    private long[] sessionKeys;
+    private long[] deadlines;
+    private double[] tokens;
+    private long[] refillMillis;
+    private InetAddress[] addresses;
+    private int[] wheelSlots;
+    private int[] next;
+    private int[] previous;
+    private int freeList = NONE;
+    private int allocated;
+
+    // The head of each slot's list, indexed by level * SLOTS + slot
+    private final int[] heads = new int[LEVELS * SLOTS];
+
+    /**
+     * Constructs an empty table.
+     *
+     * @param timeoutMillis how long a client can stay quiet before its session expires
+     * @param tickMillis the resolution of the timer wheel
+     * @param nowMillis the current time
+     * @param ratePerSecond the tokens each client gets per second, or 0 for no rate limit
+     * @param burst the most tokens a client can save up
+     */
+    SessionTable(long timeoutMillis, long tickMillis, long nowMillis, double ratePerSecond, double burst) {
+        this.tokensPerMilli = ratePerSecond / 1000;
+        this.burst = burst;
+        this.tickMillis = Math.max(1, tickMillis);
+        this.timeoutTicks = Math.max(1, (timeoutMillis + this.tickMillis - 1) / this.tickMillis);
+        this.currentTick = nowMillis / this.tickMillis;
+        Arrays.fill(heads, NONE);
+        resizeTable(1024);
+        resizeSessions(512);
+    }
+
+    /**
+     * Records a packet from a client and takes its cost out of the client's token bucket.
+     *
+     * @param address the address of the client
+     * @param port the port of the client
+     * @param nowMillis the current time
+     * @param cost the tokens the request costs
+     * @return CONNECTED if the client had no session, plus LIMITED if it is over its rate limit, or 0
+     */
+    synchronized int touch(InetAddress address, int port, long nowMillis, double cost) {
+        long key = keyOf(address, port);
+        // expire has handled every tick before currentTick, so a clock that lags behind the wheel counts from there
+        long deadline = Math.max(nowMillis / tickMillis, currentTick - 1) + timeoutTicks;
+        int index = indexOf(key, address);
+        int session = sessionOfSlot[index];
+        boolean added = keys[index] == EMPTY;
+        if (added) {
+            session = allocateSession();
+            keys[index] = key;
+            sessionOfSlot[index] = session;
+            sessionKeys[session] = key;
+            addresses[session] = address;
+            wheelSlots[session] = NONE;
+            tokens[session] = burst;
+            refillMillis[session] = nowMillis;
+            if (++size * 2 > keys.length) {
+                resizeTable(keys.length * 2);
+            }
+        }
+
+        deadlines[session] = deadline;
+        int slot = slotOf(deadline);
+        if (slot != wheelSlots[session]) {
+            if (wheelSlots[session] != NONE) {
+                unlink(session);
+            }
+            link(session, slot);
+        }
+
+        int result = added ? CONNECTED : 0;
+        if (tokensPerMilli > 0) {
+            long elapsed = nowMillis - refillMillis[session];
+            double available = tokens[session];
+            if (elapsed > 0) {
+                available = Math.min(burst, available + elapsed * tokensPerMilli);
+                refillMillis[session] = nowMillis;
+            }
+            if (available >= cost) {
+                available -= cost;
+            } else {
+                result |= LIMITED;
+            }
+            tokens[session] = available;
+        }
+        return result;
+    }
+
+    /**
+     * Advances the wheel to the current time, removing every session whose deadline has passed.
+     *
+     * @param nowMillis the current time
+     * @param listener told about each expired session, while the lock is held
+     */
+    synchronized void expire(long nowMillis, ExpiryListener listener) {
+        long nowTick = nowMillis / tickMillis;
+        while (currentTick <= nowTick) {
+            // Move the due slot of each higher wheel down before emptying the slot of the first wheel
+            for (int level = LEVELS - 1; level > 0; level--) {
+                if ((currentTick & ((1L << (level * SLOT_BITS)) - 1)) == 0) {
+                    int session = detach(level * SLOTS + (int) ((currentTick >>> (level * SLOT_BITS)) & (SLOTS - 1)));
+                    while (session != NONE) {
+                        int following = next[session];
+                        link(session, slotOf(deadlines[session]));
+                        session = following;
+                    }
+                }
+            }
+
+            int session = detach((int) (currentTick & (SLOTS - 1)));
+            while (session != NONE) {
+                int following = next[session];
+                if (deadlines[session] <= currentTick) {
+                    InetAddress address = addresses[session];
+                    int port = (int) (sessionKeys[session] & 0xFFFF);
+                    remove(session);
+                    listener.expired(address, port);
+                } else {
+                    link(session, slotOf(deadlines[session]));
+                }
+                session = following;
+            }
+            currentTick++;
+        }
+    }
+
+    /**
+     * Returns the number of sessions, that is the clients heard from within the timeout.
+     *
+     * @return the number of sessions
+     */
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Packs the address and port of a client into a long, as described in the class comment. The key is exact for an
+     * IPv4 client but not for an IPv6 one.
+     *
+     * @param address the address of the client
+     * @param port the port of the client
+     * @return the packed key, never -1
+     */
+    static long keyOf(InetAddress address, int port) {
+        long key = ((address.hashCode() & 0xFFFFFFFFL) << 16) | (port & 0xFFFF);
+        return address instanceof Inet4Address ? key : key | Long.MIN_VALUE;
+    }
+
+    /**
+     * Returns the wheel slot, as level * SLOTS + slot, for a deadline. The level is the lowest whose wheel reaches
+     * the deadline; deadlines beyond the last wheel wait in its slots and are moved down when their slot comes due.
+     */
+    private int slotOf(long deadline) {
+        long delta = Math.max(0, deadline - currentTick);
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= (1L << ((level + 1) * SLOT_BITS))) {
+            level++;
+        }
+        long due = level == 0 ? Math.max(deadline, currentTick) : deadline;
+        return level * SLOTS + (int) ((due >>> (level * SLOT_BITS)) & (SLOTS - 1));
+    }
+
+    private void link(int session, int slot) {
+        int head = heads[slot];
+        next[session] = head;
+        previous[session] = NONE;
+        if (head != NONE) {
+            previous[head] = session;
+        }
+        heads[slot] = session;
+        wheelSlots[session] = slot;
+    }
+
+    private void unlink(int session) {
+        int before = previous[session];
+        int after = next[session];
+        if (before != NONE) {
+            next[before] = after;
+        } else {
+            heads[wheelSlots[session]] = after;
+        }
+        if (after != NONE) {
+            previous[after] = before;
+        }
+        wheelSlots[session] = NONE;
+    }
+
+    /**
+     * Empties a slot and returns the first session of its list, which stays linked through next.
+     */
+    private int detach(int slot) {
+        int head = heads[slot];
+        heads[slot] = NONE;
+        return head;
+    }
+
+    /**
+     * Removes a session that has already been taken off the wheel.
+     */
+    private void remove(int session) {
+        int index = hash(sessionKeys[session]);
+        while (keys[index] == EMPTY || sessionOfSlot[index] != session) {
+            index = (index + 1) & mask;
+        }
+        // Backward-shift deletion: move later entries of the probe sequence into the gap so lookups still find them
+        int gap = index;
+        int current = (gap + 1) & mask;
+        while (keys[current] != EMPTY) {
+            int home = hash(keys[current]);
+            if (((current - home) & mask) >= ((current - gap) & mask)) {
+                keys[gap] = keys[current];
+                sessionOfSlot[gap] = sessionOfSlot[current];
+                gap = current;
+            }
+            current = (current + 1) & mask;
+        }
+        keys[gap] = EMPTY;
+        size--;
+
+        addresses[session] = null;
+        wheelSlots[session] = NONE;
+        next[session] = freeList;
+        freeList = session;
+    }
+
+    /**
+     * Returns the table index holding a client, or the empty index where it would be inserted. An IPv6 key, which has
+     * bit 63 set, only matches a session of the same address.
+     */
+    private int indexOf(long key, InetAddress address) {
+        int index = hash(key);
+        while (keys[index] != EMPTY
+                && (keys[index] != key || key < 0 && !addresses[sessionOfSlot[index]].equals(address))) {
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+
+    /**
+     * Returns the first empty table index in the probe sequence of a key.
+     */
+    private int emptyIndexOf(long key) {
+        int index = hash(key);
+        while (keys[index] != EMPTY) {
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+
+    private int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    private int allocateSession() {
+        if (freeList != NONE) {
+            int session = freeList;
+            freeList = next[session];
+            return session;
+        }
+        if (allocated == deadlines.length) {
+            resizeSessions(allocated * 2);
+        }
+        return allocated++;
+    }
+
+    private void resizeTable(int capacity) {
+        long[] oldKeys = keys;
+        int[] oldSessions = sessionOfSlot;
+        keys = new long[capacity];
+        sessionOfSlot = new int[capacity];
+        mask = capacity - 1;
+        Arrays.fill(keys, EMPTY);
+        if (oldKeys != null) {
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != EMPTY) {
+                    int index = emptyIndexOf(oldKeys[i]);
+                    keys[index] = oldKeys[i];
+                    sessionOfSlot[index] = oldSessions[i];
+                }
+            }
+        }
+    }
+
+    private void resizeSessions(int capacity) {
+        sessionKeys = sessionKeys == null ? new long[capacity] : Arrays.copyOf(sessionKeys, capacity);
+        deadlines = deadlines == null ? new long[capacity] : Arrays.copyOf(deadlines, capacity);
+        tokens = tokens == null ? new double[capacity] : Arrays.copyOf(tokens, capacity);
+        refillMillis = refillMillis == null ? new long[capacity] : Arrays.copyOf(refillMillis, capacity);
+        addresses = addresses == null ? new InetAddress[capacity] : Arrays.copyOf(addresses, capacity);
+        wheelSlots = wheelSlots == null ? new int[capacity] : Arrays.copyOf(wheelSlots, capacity);
+        next = next == null ? new int[capacity] : Arrays.copyOf(next, capacity);
+        previous = previous == null ? new int[capacity] : Arrays.copyOf(previous, capacity);
+    }
+}
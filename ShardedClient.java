@@ -0,0 +1,291 @@
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The ShardedClient class is a client library for a deployment in which several servers split the events between
+ * them (see GoFundMeServer.joinShards). It keeps a GoFundMeAsyncClient per shard and builds the same HashRing as the
+ * servers from the list of shards, so it can send each request to the shard that owns its event without asking.
+ *
+ * DONATE and CHECK_DETAILS go to the owner of their event id. A new event has no id yet, so CREATE_EVENT goes to a
+ * random shard, which gives it one of the ids it owns; creating events this way spreads them evenly however they are
+ * named. LIST_EVENTS is sent to every shard and the lists are merged: each shard's current and past events are
+ * already sorted by deadline, then id, so merging them keeps that order. The merged list is not a snapshot of one
+ * instant, since the shards answer independently. CHECK_EVENTS_EXIST is true if it is true on any shard.
+ *
+ * Other requests, such as a BATCH, only make sense for one shard; shardOf returns the client of the shard that owns
+ * an event for them.
+ *
+ * Running the class starts a small check against running shards: java -Dgofundme.shards=localhost:12345,localhost:12346
+ * ShardedClient creates a few events, donates to each, and prints where each one went and the merged event list.
+ * run-shards.sh starts such a set of servers on localhost.
+ */
+final class ShardedClient implements AutoCloseable {
+
+    private static final Comparator<Event> BY_DEADLINE =
+            Comparator.<Event>comparingLong(e -> e.deadline).thenComparingInt(e -> e.id);
+
+    private final HashRing ring;
+    private final GoFundMeAsyncClient[] shards;
+
+    /**
+     * Constructs a client for a list of shards.
+     *
+     * @param shards the shards, as a comma-separated list of "host:port" in the same form as the servers' gofundme.shards
+     * @throws IOException if a host cannot be resolved or a socket cannot be opened
+     */
+    ShardedClient(String shards) throws IOException {
+        this(HashRing.parse(shards));
+    }
+
+    /**
+     * Constructs a client for the shards of a ring, with the default timeouts.
+     *
+     * @param ring the ring of shards
+     * @throws IOException if a host cannot be resolved or a socket cannot be opened
+     */
+    ShardedClient(HashRing ring) throws IOException {
+        this.ring = ring;
+        this.shards = new GoFundMeAsyncClient[ring.size()];
+        try {
+            for (int i = 0; i < shards.length; i++) {
+                String node = ring.node(i);
+                shards[i] = new GoFundMeAsyncClient(HashRing.host(node), HashRing.port(node));
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the client of the shard that owns an event.
+     *
+     * @param eventId the id of the event
+     * @return the client of its shard
+     */
+    GoFundMeAsyncClient shardOf(int eventId) {
+        return shards[ring.ownerOf(eventId)];
+    }
+
+    /**
+     * Returns the ring the shards are on.
+     *
+     * @return the ring
+     */
+    HashRing ring() {
+        return ring;
+    }
+
+    /**
+     * Creates an event on a random shard.
+     *
+     * @param name the name of the event
+     * @param targetAmount the target amount
+     * @param deadline the deadline, in milliseconds since the epoch
+     * @return a future completed with the id of the new event
+     */
+    CompletableFuture<Integer> createEvent(String name, double targetAmount, long deadline) {
+        return shards[ThreadLocalRandom.current().nextInt(shards.length)].createEvent(name, targetAmount, deadline);
+    }
+
+    /**
+     * Donates to an event on the shard that owns it. See GoFundMeAsyncClient.donate.
+     *
+     * @param eventId the id of the event
+     * @param amount the donation in dollars
+     * @return a future completed with the status of the reply
+     */
+    CompletableFuture<Byte> donate(int eventId, double amount) {
+        return shardOf(eventId).donate(eventId, amount);
+    }
+
+    /**
+     * Gets the details of an event from the shard that owns it. See GoFundMeAsyncClient.checkDetails.
+     *
+     * @param eventId the id of the event
+     * @return a future completed with the reply
+     */
+    CompletableFuture<Protocol.Reply> checkDetails(int eventId) {
+        return shardOf(eventId).checkDetails(eventId);
+    }
+
+    /**
+     * Checks whether any shard has an event.
+     *
+     * @return a future completed with true if there is at least one event
+     */
+    CompletableFuture<Boolean> eventsExist() {
+        List<CompletableFuture<Boolean>> replies = new ArrayList<>(shards.length);
+        for (GoFundMeAsyncClient shard : shards) {
+            replies.add(shard.eventsExist());
+        }
+        return CompletableFuture.allOf(replies.toArray(new CompletableFuture<?>[0]))
+                .thenApply(ignored -> replies.stream().anyMatch(CompletableFuture::join));
+    }
+
+    /**
+     * Lists the events of every shard, current events and past events each merged in deadline order.
+     *
+     * @return a future completed with the merged list, or exceptionally if any shard did not answer
+     */
+    CompletableFuture<EventList> listEvents() {
+        List<CompletableFuture<EventList>> replies = new ArrayList<>(shards.length);
+        for (GoFundMeAsyncClient shard : shards) {
+            replies.add(shard.listEvents().thenApply(ShardedClient::readEventList));
+        }
+        return CompletableFuture.allOf(replies.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+            List<List<Event>> current = new ArrayList<>(replies.size());
+            List<List<Event>> past = new ArrayList<>(replies.size());
+            for (CompletableFuture<EventList> reply : replies) {
+                current.add(reply.join().currentEvents);
+                past.add(reply.join().pastEvents);
+            }
+            return new EventList(merge(current), merge(past));
+        });
+    }
+
+    /**
+     * Closes the client of every shard.
+     */
+    @Override
+    public void close() {
+        for (GoFundMeAsyncClient shard : shards) {
+            if (shard != null) {
+                shard.close();
+            }
+        }
+    }
+
+    /**
+     * Merges lists that are each sorted by deadline, then id, keeping that order. A heap holds the next event of each
+     * list, so merging n events from k shards takes O(n log k).
+     *
+     * @param lists the sorted lists
+     * @return the merged list
+     */
+    static List<Event> merge(List<List<Event>> lists) {
+        int total = 0;
+        // Each entry is the index of a list and the position of its next event in it
+        PriorityQueue<int[]> heads = new PriorityQueue<>(Math.max(1, lists.size()),
+                (a, b) -> BY_DEADLINE.compare(lists.get(a[0]).get(a[1]), lists.get(b[0]).get(b[1])));
+        for (int i = 0; i < lists.size(); i++) {
+            total += lists.get(i).size();
+            if (!lists.get(i).isEmpty()) {
+                heads.add(new int[]{i, 0});
+            }
+        }
+
+        List<Event> merged = new ArrayList<>(total);
+        while (!heads.isEmpty()) {
+            int[] head = heads.poll();
+            List<Event> list = lists.get(head[0]);
+            merged.add(list.get(head[1]));
+            if (++head[1] < list.size()) {
+                heads.add(head);
+            }
+        }
+        return merged;
+    }
+
+    private static EventList readEventList(DataInputStream dis) {
+        try {
+            int currentCount = dis.readInt();
+            int pastCount = dis.readInt();
+            List<Event> current = new ArrayList<>(currentCount);
+            for (int i = 0; i < currentCount; i++) {
+                current.add(Event.read(dis));
+            }
+            List<Event> past = new ArrayList<>(pastCount);
+            for (int i = 0; i < pastCount; i++) {
+                past.add(Event.read(dis));
+            }
+            return new EventList(current, past);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Creates a few events on the shards in gofundme.shards, donates to each, and prints the shard each event went to
+     * and the merged event list.
+     *
+     * @param args not used
+     * @throws Exception if a shard does not answer
+     */
+    public static void main(String[] args) throws Exception {
+        String shardList = System.getProperty("gofundme.shards", "localhost:12345");
+        int events = Integer.getInteger("gofundme.shardCheck.events", 8);
+        try (ShardedClient client = new ShardedClient(shardList)) {
+            long deadline = System.currentTimeMillis() + 3_600_000;
+            for (int i = 0; i < events; i++) {
+                int id = client.createEvent("Sharded event " + i, 100 + i, deadline + i * 60_000L).get();
+                byte status = client.donate(id, i + 1).get();
+                Protocol.Reply details = client.checkDetails(id).get();
+                DataInputStream dis = GoFundMeAsyncClient.payloadOf(details);
+                dis.readUTF();
+                dis.readDouble();
+                System.out.println("Event " + id + " is on " + client.ring.node(client.ring.ownerOf(id))
+                        + ", donation status " + status + ", raised " + dis.readDouble());
+            }
+
+            EventList list = client.listEvents().get();
+            System.out.println("Current events (" + list.currentEvents.size() + "):");
+            for (Event event : list.currentEvents) {
+                System.out.println("  " + event);
+            }
+            System.out.println("Past events (" + list.pastEvents.size() + "):");
+            for (Event event : list.pastEvents) {
+                System.out.println("  " + event);
+            }
+        }
+    }
+
+    /**
+     * The current and past events of a LIST_EVENTS response, each sorted by deadline, then id.
+     */
+    static final class EventList {
+        final List<Event> currentEvents;
+        final List<Event> pastEvents;
+
+        EventList(List<Event> currentEvents, List<Event> pastEvents) {
+            this.currentEvents = currentEvents;
+            this.pastEvents = pastEvents;
+        }
+    }
+
+    /**
+     * An event as listed by a shard.
+     */
+    static final class Event {
+        final int id;
+        final String name;
+        final double targetAmount;
+        final double currentAmount;
+        final long deadline;
+
+        Event(int id, String name, double targetAmount, double currentAmount, long deadline) {
+            this.id = id;
+            this.name = name;
+            this.targetAmount = targetAmount;
+            this.currentAmount = currentAmount;
+            this.deadline = deadline;
+        }
+
+        static Event read(DataInputStream dis) throws IOException {
+            return new Event(dis.readInt(), dis.readUTF(), dis.readDouble(), dis.readDouble(), dis.readLong());
+        }
+
+        @Override
+        public String toString() {
+            return id + " " + name + ": $" + currentAmount + " of $" + targetAmount + " by " + new Date(deadline);
+        }
+    }
+}
@@ -0,0 +1,170 @@
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The Subscriptions class keeps track of the clients that asked, with a SUBSCRIBE request, to be told when the amount
+ * raised by some events changes, and pushes them the new totals instead of having them poll CHECK_DETAILS.
+ *
+ * The store reports every change to changed(), which only looks at the event's watched flag unless someone subscribed
+ * to it, so events nobody watches cost one volatile read per change. A watched event is added to a set of changed
+ * events, and every push interval push() drains the set and sends each subscriber one update per changed event, with
+ * the updates for the same client packed into as few datagrams as possible (see Protocol for the layout). However
+ * many donations an event takes, its subscribers therefore get at most one update per interval.
+ *
+ * A client is identified by its address and port, like its session in the SessionTable. Its subscriptions live as
+ * long as its session: the server drops them when the session expires, so a client keeps them by sending SUBSCRIBE
+ * again (or any other request) within the client timeout.
+ *
+ * Subscribing and dropping a client are synchronized, as is the part of a push that reads the subscribers; the
+ * datagrams are sent after the lock is released.
+ */
+final class Subscriptions implements EventStore.ChangeListener {
+
+    /**
+     * Receives the datagrams of a push.
+     */
+    interface Sender {
+        void send(byte[] datagram, InetSocketAddress client);
+    }
+
+    /** The most events one client can subscribe to. */
+    static final int MAX_EVENTS_PER_CLIENT = 256;
+
+    private static final int UPDATES_PER_DATAGRAM =
+            (ResponseFramer.HEADER_SIZE + ResponseFramer.CHUNK_PAYLOAD_SIZE - Protocol.PUSH_HEADER_SIZE)
+                    / Protocol.PUSH_UPDATE_SIZE;
+
+    private final Map<InetSocketAddress, FundraisingEvent[]> eventsOfClient = new HashMap<>();
+    private final Map<FundraisingEvent, Set<InetSocketAddress>> clientsOfEvent = new HashMap<>();
+    private final Set<FundraisingEvent> changed = ConcurrentHashMap.newKeySet();
+    private final LongAdder pushedUpdates = new LongAdder();
+    private final LongAdder pushedDatagrams = new LongAdder();
+
+    /**
+     * Replaces the events a client is subscribed to.
+     *
+     * @param client the address of the client
+     * @param events the events to subscribe to, without duplicates, or an empty array to unsubscribe
+     */
+    synchronized void subscribe(InetSocketAddress client, FundraisingEvent[] events) {
+        drop(client);
+        if (events.length == 0) {
+            return;
+        }
+        eventsOfClient.put(client, events);
+        for (FundraisingEvent event : events) {
+            clientsOfEvent.computeIfAbsent(event, e -> new HashSet<>()).add(client);
+            // Set before the caller reads the current amount, so any later donation reaches changed() as watched
+            event.watched = true;
+        }
+    }
+
+    /**
+     * Drops every subscription of a client, for example because its session expired.
+     *
+     * @param client the address of the client
+     */
+    synchronized void drop(InetSocketAddress client) {
+        FundraisingEvent[] events = eventsOfClient.remove(client);
+        if (events == null) {
+            return;
+        }
+        for (FundraisingEvent event : events) {
+            Set<InetSocketAddress> clients = clientsOfEvent.get(event);
+            if (clients != null && clients.remove(client) && clients.isEmpty()) {
+                clientsOfEvent.remove(event);
+                event.watched = false;
+            }
+        }
+    }
+
+    @Override
+    public void changed(FundraisingEvent event) {
+        if (event.watched) {
+            changed.add(event);
+        }
+    }
+
+    /**
+     * Sends every subscriber the new total of each of its events that changed since the last push.
+     *
+     * @param sender sends the datagrams
+     */
+    void push(Sender sender) {
+        if (changed.isEmpty()) {
+            return;
+        }
+
+        Map<InetSocketAddress, ByteBuffer> open = new HashMap<>();
+        List<InetSocketAddress> fullClients = new ArrayList<>();
+        List<byte[]> fullDatagrams = new ArrayList<>();
+        synchronized (this) {
+            for (Iterator<FundraisingEvent> iterator = changed.iterator(); iterator.hasNext(); ) {
+                FundraisingEvent event = iterator.next();
+                // Removed before the amount is read, so a donation arriving meanwhile is pushed next time
+                iterator.remove();
+                Set<InetSocketAddress> clients = clientsOfEvent.get(event);
+                if (clients == null) {
+                    continue;
+                }
+                long version = event.version();
+                double currentAmount = event.currentAmount();
+                for (InetSocketAddress client : clients) {
+                    ByteBuffer datagram = open.computeIfAbsent(client, c -> newDatagram());
+                    datagram.putInt(event.id).putDouble(currentAmount).putLong(version);
+                    datagram.putInt(4, datagram.getInt(4) + 1);
+                    if (!datagram.hasRemaining()) {
+                        fullClients.add(client);
+                        fullDatagrams.add(datagram.array());
+                        open.remove(client);
+                    }
+                }
+                pushedUpdates.add(clients.size());
+            }
+        }
+
+        for (int i = 0; i < fullClients.size(); i++) {
+            sender.send(fullDatagrams.get(i), fullClients.get(i));
+        }
+        for (Map.Entry<InetSocketAddress, ByteBuffer> entry : open.entrySet()) {
+            ByteBuffer datagram = entry.getValue();
+            byte[] bytes = new byte[datagram.position()];
+            System.arraycopy(datagram.array(), 0, bytes, 0, bytes.length);
+            sender.send(bytes, entry.getKey());
+        }
+        pushedDatagrams.add(fullClients.size() + open.size());
+    }
+
+    private static ByteBuffer newDatagram() {
+        ByteBuffer datagram = ByteBuffer.allocate(Protocol.PUSH_HEADER_SIZE
+                + UPDATES_PER_DATAGRAM * Protocol.PUSH_UPDATE_SIZE);
+        datagram.putInt(Protocol.PUSH_MAGIC).putInt(0);
+        return datagram;
+    }
+
+    /**
+     * Returns the STATS lines of the subscriptions: the subscribed clients, their subscriptions, and the updates and
+     * datagrams pushed so far.
+     *
+     * @return the status lines
+     */
+    synchronized String status() {
+        int subscriptions = 0;
+        for (FundraisingEvent[] events : eventsOfClient.values()) {
+            subscriptions += events.length;
+        }
+        return "subscribed_clients " + eventsOfClient.size() + '\n'
+                + "subscriptions " + subscriptions + '\n'
+                + "pushed_updates " + pushedUpdates.sum() + '\n'
+                + "pushed_datagrams " + pushedDatagrams.sum() + '\n';
+    }
+}
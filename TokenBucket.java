@@ -0,0 +1,44 @@
+/**
+ * The TokenBucket class is a token bucket shared by many threads: it fills at a fixed rate up to a capacity, and each
+ * request takes tokens out of it or is refused when there are not enough. The server keeps one per request type that
+ * has a rate limit (gofundme.typeRates); per-client buckets live in the SessionTable.
+ */
+final class TokenBucket {
+
+    private final double tokensPerNano;
+    private final double capacity;
+    private double tokens;
+    private long refillNanos;
+
+    /**
+     * Constructs a full bucket.
+     *
+     * @param ratePerSecond the tokens added per second
+     * @param capacity the most tokens the bucket holds
+     */
+    TokenBucket(double ratePerSecond, double capacity) {
+        this.tokensPerNano = ratePerSecond / 1e9;
+        this.capacity = capacity;
+        this.tokens = capacity;
+        this.refillNanos = System.nanoTime();
+    }
+
+    /**
+     * Takes one token if there is one.
+     *
+     * @param nowNanos System.nanoTime()
+     * @return true if a token was taken, false if the request is over the rate limit
+     */
+    synchronized boolean tryAcquire(long nowNanos) {
+        long elapsed = nowNanos - refillNanos;
+        if (elapsed > 0) {
+            tokens = Math.min(capacity, tokens + elapsed * tokensPerNano);
+            refillNanos = nowNanos;
+        }
+        if (tokens < 1) {
+            return false;
+        }
+        tokens--;
+        return true;
+    }
+}
@@ -0,0 +1,135 @@
+import java.io.EOFException;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+
+/**
+ * The WireFormat class contains helpers for reading and writing the request and response fields directly from and to
+ * ByteBuffers. Strings use the same modified UTF-8 encoding as DataInputStream.readUTF and DataOutputStream.writeUTF,
+ * and numbers use the same big-endian layout, so packets are byte-for-byte compatible with the stream based code in
+ * GoFundMeClient.
+ */
+final class WireFormat {
+
+    private WireFormat() {
+    }
+
+    /**
+     * Reads a string written with DataOutputStream.writeUTF from the buffer.
+     *
+     * @param buffer the buffer to read from, positioned at the two-byte length prefix
+     * @return the decoded string
+     * @throws EOFException if the buffer ends before the string does
+     * @throws UTFDataFormatException if the bytes are not valid modified UTF-8
+     */
+    static String readUTF(ByteBuffer buffer) throws EOFException, UTFDataFormatException {
+        if (buffer.remaining() < 2) {
+            throw new EOFException();
+        }
+        int length = buffer.getShort() & 0xFFFF;
+        if (buffer.remaining() < length) {
+            throw new EOFException();
+        }
+
+        char[] chars = new char[length];
+        int charCount = 0;
+        int end = buffer.position() + length;
+        int position = buffer.position();
+
+        // Fast path for the ASCII request types and names that make up nearly all traffic
+        while (position < end) {
+            int c = buffer.get(position) & 0xFF;
+            if (c > 0x7F) {
+                break;
+            }
+            chars[charCount++] = (char) c;
+            position++;
+        }
+
+        while (position < end) {
+            int c = buffer.get(position) & 0xFF;
+            switch (c >> 4) {
+                case 0: case 1: case 2: case 3: case 4: case 5: case 6: case 7:
+                    chars[charCount++] = (char) c;
+                    position++;
+                    break;
+                case 12: case 13: {
+                    if (position + 2 > end) {
+                        throw new UTFDataFormatException("malformed input: partial character at end");
+                    }
+                    int c2 = buffer.get(position + 1);
+                    if ((c2 & 0xC0) != 0x80) {
+                        throw new UTFDataFormatException("malformed input around byte " + position);
+                    }
+                    chars[charCount++] = (char) (((c & 0x1F) << 6) | (c2 & 0x3F));
+                    position += 2;
+                    break;
+                }
+                case 14: {
+                    if (position + 3 > end) {
+                        throw new UTFDataFormatException("malformed input: partial character at end");
+                    }
+                    int c2 = buffer.get(position + 1);
+                    int c3 = buffer.get(position + 2);
+                    if (((c2 & 0xC0) != 0x80) || ((c3 & 0xC0) != 0x80)) {
+                        throw new UTFDataFormatException("malformed input around byte " + position);
+                    }
+                    chars[charCount++] = (char) (((c & 0x0F) << 12) | ((c2 & 0x3F) << 6) | (c3 & 0x3F));
+                    position += 3;
+                    break;
+                }
+                default:
+                    throw new UTFDataFormatException("malformed input around byte " + position);
+            }
+        }
+
+        buffer.position(end);
+        return new String(chars, 0, charCount);
+    }
+
+    /**
+     * Returns the number of bytes writeUTF needs for the string, not counting the two-byte length prefix.
+     *
+     * @param value the string to measure
+     * @return the encoded length of the string in bytes
+     */
+    static int utfLength(String value) {
+        int length = value.length();
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c >= 0x80 || c == 0) {
+                length += (c >= 0x800) ? 2 : 1;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Writes a string in the DataOutputStream.writeUTF format. The caller makes sure the buffer has room for
+     * utfLength(value) + 2 bytes.
+     *
+     * @param buffer the buffer to write to
+     * @param value the string to write
+     * @throws UTFDataFormatException if the encoded string is longer than 65535 bytes
+     */
+    static void writeUTF(ByteBuffer buffer, String value) throws UTFDataFormatException {
+        int length = utfLength(value);
+        if (length > 0xFFFF) {
+            throw new UTFDataFormatException("encoded string too long: " + length + " bytes");
+        }
+
+        buffer.putShort((short) length);
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c != 0 && c < 0x80) {
+                buffer.put((byte) c);
+            } else if (c >= 0x800) {
+                buffer.put((byte) (0xE0 | ((c >> 12) & 0x0F)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            } else {
+                buffer.put((byte) (0xC0 | ((c >> 6) & 0x1F)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+}
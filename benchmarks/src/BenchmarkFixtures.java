@@ -0,0 +1,332 @@
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * The BenchmarkFixtures class sets up each benchmarked operation and hands it to the JMH benchmarks as a Supplier.
+ *
+ * JMH does not accept benchmarks in the default package, and code in a named package cannot refer to the server's
+ * classes, which live in the default package. So the benchmarks (in gofundme.benchmarks) look this class up by name
+ * once during setup, and each measured call is then a single interface call into code compiled right here.
+ */
+public final class BenchmarkFixtures {
+
+    private static final InetAddress CLIENT = InetAddress.getLoopbackAddress();
+    private static final int PAGE_SIZE = 500;
+    private static final int BATCH_SIZE = 100;
+    private static final int SEARCH_WORDS = 26 * 26 * 26;
+    private static final int LEADERBOARD_SIZE = 10;
+
+    private static int serverEvents;
+    // The store the search scenarios share: a million named events take hundreds of megabytes, too many for one each
+    private static EventStore searchStore;
+    private static int searchStoreEvents;
+    // The store the leaderboard scenarios share, for the same reason
+    private static EventStore leaderboardStore;
+    private static int leaderboardStoreEvents;
+
+    private BenchmarkFixtures() {
+    }
+
+    /**
+     * Creates the operation for a scenario.
+     *
+     * @param scenario the name of the scenario
+     * @param size the number of events the scenario needs, where it has a size
+     * @return the operation; each call performs it once and returns something for the Blackhole
+     * @throws IOException if setting up the scenario fails
+     */
+    public static Supplier<Object> create(String scenario, int size) throws IOException {
+        switch (scenario) {
+            case "legacyCheckEventsExist":
+                return serverRequest(1, BenchmarkRequests.legacy("CHECK_EVENTS_EXIST", dos -> { }));
+            case "legacyCheckDetails":
+                return serverRequest(1, BenchmarkRequests.legacy("CHECK_DETAILS", dos -> dos.writeInt(0)));
+            case "legacyDonate":
+                return serverRequest(1, BenchmarkRequests.legacy("DONATE", dos -> {
+                    dos.writeInt(0);
+                    dos.writeDouble(1.0);
+                }));
+            case "binaryCheckEventsExist":
+                return serverRequest(1, Protocol.encodeRequest(Protocol.CHECK_EVENTS_EXIST, 1, new byte[0]));
+            case "binaryCheckDetails":
+                return serverRequest(1, Protocol.encodeRequest(Protocol.CHECK_DETAILS, 2,
+                        BenchmarkRequests.fields(dos -> dos.writeInt(0))));
+            case "binaryDonate":
+                return serverRequest(1, Protocol.encodeRequest(Protocol.DONATE, 3, BenchmarkRequests.fields(dos -> {
+                    dos.writeInt(0);
+                    dos.writeDouble(1.0);
+                    dos.writeLong(0); // No idempotency key: every call is a new donation
+                })));
+            case "listUnchanged":
+                return serverRequest(size, BenchmarkRequests.legacy("LIST_EVENTS", dos -> { }));
+            case "listAfterDonation":
+                return listAfterDonation(size);
+            case "donate":
+                return donate(size, false);
+            case "donateAggregated":
+                return donate(size, true);
+            case "searchWord":
+                return search(size, "abc");
+            case "searchWords":
+                return search(size, "abc abd");
+            case "searchPrefix":
+                return search(size, "abc b");
+            case "searchShortPrefix":
+                return search(size, "b");
+            case "leaderboardRaised":
+                return leaderboard(size, Protocol.LEADERBOARD_RAISED);
+            case "leaderboardRecentDonations":
+                return leaderboard(size, Protocol.LEADERBOARD_RECENT_DONATIONS);
+            case "encodeDonate":
+                return encodeDonate();
+            case "encodeBatch":
+                return encodeBatch();
+            case "decodeEventPage":
+                return decodeEventPage();
+            case "decodeBatch":
+                return decodeBatch();
+            default:
+                throw new IllegalArgumentException("Unknown scenario: " + scenario);
+        }
+    }
+
+    /**
+     * Makes sure the server's store holds the given number of events, half of them past events. The store is static,
+     * so every scenario in one JVM shares it; JMH runs each benchmark and parameter value in its own JVM.
+     */
+    private static synchronized void populateServer(int events) throws IOException {
+        ResponseBuffer response = new ResponseBuffer(GoFundMeServer.RESPONSE_BUFFER_SIZE, false);
+        long now = System.currentTimeMillis();
+        for (int i = serverEvents; i < events; i++) {
+            long deadline = (i % 2 == 0) ? now + 86_400_000L + i * 1000L : now - 86_400_000L - i * 1000L;
+            response.clear();
+            GoFundMeServer.processData(ByteBuffer.wrap(
+                    BenchmarkRequests.legacyCreateEvent("Event number " + i, 1000, deadline)), response, CLIENT, 1);
+        }
+        serverEvents = Math.max(serverEvents, events);
+    }
+
+    /**
+     * Returns an operation that runs one request through GoFundMeServer.processData into its own response buffer.
+     */
+    private static Supplier<Object> serverRequest(int events, byte[] requestBytes) throws IOException {
+        populateServer(events);
+        ByteBuffer request = ByteBuffer.wrap(requestBytes);
+        ResponseBuffer response = new ResponseBuffer(GoFundMeServer.RESPONSE_BUFFER_SIZE, false);
+        return () -> {
+            request.rewind();
+            response.clear();
+            GoFundMeServer.processData(request, response, CLIENT, 40000);
+            return response;
+        };
+    }
+
+    private static Supplier<Object> listAfterDonation(int events) throws IOException {
+        Supplier<Object> donate = serverRequest(events, BenchmarkRequests.legacy("DONATE", dos -> {
+            dos.writeInt(0);
+            dos.writeDouble(1.0);
+        }));
+        Supplier<Object> list = serverRequest(events, BenchmarkRequests.legacy("LIST_EVENTS", dos -> { }));
+        return () -> {
+            donate.get();
+            return list.get();
+        };
+    }
+
+    /**
+     * Returns an operation that donates to a random event of a new store without a write-ahead log, optionally with
+     * hot event aggregation folded every 50 ms as the server does by default. It is safe to call from many threads
+     * at once.
+     */
+    private static Supplier<Object> donate(int events, boolean aggregated) throws IOException {
+        EventStore store = new EventStore();
+        for (int i = 0; i < events; i++) {
+            store.createEvent("Event " + i, 1000, Long.MAX_VALUE / 2);
+        }
+        if (aggregated) {
+            store.aggregateHotEvents(2000);
+            Thread folder = new Thread(() -> {
+                while (true) {
+                    store.foldHotEvents(System.currentTimeMillis());
+                    LockSupport.parkNanos(50_000_000L);
+                }
+            }, "benchmark-hot-event-folder");
+            folder.setDaemon(true);
+            folder.start();
+        }
+        return () -> {
+            int id = events == 1 ? 0 : ThreadLocalRandom.current().nextInt(events);
+            try {
+                return store.donate(id, 1.0);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+    }
+
+    /**
+     * Returns an operation that searches a store for a page of PAGE_SIZE matches, starting half way through the ids.
+     */
+    private static Supplier<Object> search(int events, String query) throws IOException {
+        EventStore store = searchStore(events);
+        return () -> store.search(query, events / 2, PAGE_SIZE);
+    }
+
+    /**
+     * Returns the store of the search scenarios, building it the first time a size is asked for. Each event is named
+     * with four words drawn from a vocabulary of SEARCH_WORDS three-letter words, skewed so that a few words are
+     * common, as in real campaign names.
+     */
+    private static synchronized EventStore searchStore(int events) throws IOException {
+        if (searchStore != null && searchStoreEvents == events) {
+            return searchStore;
+        }
+        searchStore = null; // Let the store of another size go before building this one
+
+        String[] words = new String[SEARCH_WORDS];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = new String(new char[] {(char) ('a' + i / 676), (char) ('a' + i / 26 % 26), (char) ('a' + i % 26)});
+        }
+        Random random = new Random(42);
+        EventStore store = new EventStore();
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i < events; i++) {
+            name.setLength(0);
+            for (int word = 0; word < 4; word++) {
+                double u = random.nextDouble();
+                name.append(words[(int) (u * u * words.length)]).append(' ');
+            }
+            store.createEvent(name.toString(), 1000, Long.MAX_VALUE / 2);
+        }
+        searchStore = store;
+        searchStoreEvents = events;
+        return store;
+    }
+
+    /**
+     * Returns an operation that reads the top LEADERBOARD_SIZE events of a board from the leaderboard store.
+     */
+    private static Supplier<Object> leaderboard(int events, byte board) throws IOException {
+        EventStore store = leaderboardStore(events);
+        return () -> store.leaderboard(board, LEADERBOARD_SIZE);
+    }
+
+    /**
+     * Returns the store of the given number of events the leaderboard scenarios read, building it on first use: as
+     * many donations as there are events, skewed so that a few events take most of them.
+     */
+    private static synchronized EventStore leaderboardStore(int events) throws IOException {
+        if (leaderboardStore != null && leaderboardStoreEvents == events) {
+            return leaderboardStore;
+        }
+        leaderboardStore = null; // Let the store of another size go before building this one
+
+        Random random = new Random(42);
+        EventStore store = new EventStore();
+        for (int i = 0; i < events; i++) {
+            store.createEvent("Event " + i, 100 + random.nextInt(10000), Long.MAX_VALUE / 2);
+        }
+        for (int i = 0; i < events; i++) {
+            double u = random.nextDouble();
+            store.donate((int) (u * u * events), 1 + random.nextInt(100));
+        }
+        leaderboardStore = store;
+        leaderboardStoreEvents = events;
+        return store;
+    }
+
+    private static Supplier<Object> encodeDonate() {
+        int[] requestId = {0};
+        return () -> {
+            try {
+                return Protocol.encodeRequest(Protocol.DONATE, requestId[0]++, BenchmarkRequests.fields(dos -> {
+                    dos.writeInt(42);
+                    dos.writeDouble(25.0);
+                    dos.writeLong(0x1234_5678_9abc_def0L);
+                }));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+    }
+
+    private static Supplier<Object> encodeBatch() throws IOException {
+        BatchRequest batch = batchRequest();
+        int[] requestId = {0};
+        return () -> {
+            try {
+                return Protocol.encodeRequest(Protocol.BATCH, requestId[0]++, batch.fields());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+    }
+
+    /**
+     * Returns an operation that decodes a version 1 LIST_EVENTS_PAGE reply of PAGE_SIZE events the way the client
+     * does, returning a checksum of the fields so nothing can be optimized away.
+     */
+    private static Supplier<Object> decodeEventPage() throws IOException {
+        populateServer(PAGE_SIZE);
+        byte[] reply = serverReply(Protocol.encodeRequest(Protocol.LIST_EVENTS_PAGE, 1,
+                BenchmarkRequests.fields(dos -> {
+                    dos.writeInt(-1);
+                    dos.writeInt(PAGE_SIZE);
+                })));
+        return () -> {
+            try {
+                DataInputStream dis = Protocol.decodeReply(Protocol.LIST_EVENTS_PAGE, reply).payload();
+                long checksum = dis.readLong() ^ dis.readLong();
+                int count = dis.readInt();
+                for (int i = 0; i < count; i++) {
+                    checksum += dis.readInt();
+                    checksum += dis.readUTF().length();
+                    checksum += Double.doubleToRawLongBits(dis.readDouble());
+                    checksum += Double.doubleToRawLongBits(dis.readDouble());
+                    checksum += dis.readLong();
+                }
+                return checksum + dis.readInt();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+    }
+
+    private static Supplier<Object> decodeBatch() throws IOException {
+        populateServer(BATCH_SIZE);
+        BatchRequest batch = batchRequest();
+        byte[] reply = serverReply(Protocol.encodeRequest(Protocol.BATCH, 2, batch.fields()));
+        return () -> {
+            try {
+                return batch.decode(Protocol.decodeReply(Protocol.BATCH, reply).payload());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+    }
+
+    private static BatchRequest batchRequest() throws IOException {
+        BatchRequest batch = new BatchRequest();
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            if (i % 2 == 0) {
+                batch.addDonation(i, 1.0);
+            } else {
+                batch.addDetails(i);
+            }
+        }
+        return batch;
+    }
+
+    private static byte[] serverReply(byte[] request) {
+        ResponseBuffer response = new ResponseBuffer(GoFundMeServer.RESPONSE_BUFFER_SIZE, false);
+        GoFundMeServer.processData(ByteBuffer.wrap(request), response, CLIENT, 1);
+        return response.toByteArray();
+    }
+}
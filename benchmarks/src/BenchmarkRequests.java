@@ -0,0 +1,44 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Builds the request packets used by the benchmarks.
+ */
+final class BenchmarkRequests {
+
+    private BenchmarkRequests() {
+    }
+
+    @FunctionalInterface
+    interface FieldWriter {
+        void write(DataOutputStream dos) throws IOException;
+    }
+
+    /**
+     * Encodes fields with a DataOutputStream, as the clients do.
+     */
+    static byte[] fields(FieldWriter writer) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        writer.write(new DataOutputStream(baos));
+        return baos.toByteArray();
+    }
+
+    /**
+     * Encodes a legacy request: the request type with writeUTF, then the fields.
+     */
+    static byte[] legacy(String requestType, FieldWriter writer) throws IOException {
+        return fields(dos -> {
+            dos.writeUTF(requestType);
+            writer.write(dos);
+        });
+    }
+
+    static byte[] legacyCreateEvent(String name, double targetAmount, long deadline) throws IOException {
+        return legacy("CREATE_EVENT", dos -> {
+            dos.writeUTF(name);
+            dos.writeDouble(targetAmount);
+            dos.writeLong(deadline);
+        });
+    }
+}
@@ -0,0 +1,44 @@
+package gofundme.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the client side of the wire format: encoding version 1 requests and decoding replies, including a full
+ * LIST_EVENTS_PAGE of 500 events and a BATCH of 100 operations.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dgofundme.logLevel=warn")
+public class ClientCodecBenchmark {
+
+    @Param({"encodeDonate", "encodeBatch", "decodeEventPage", "decodeBatch"})
+    public String operation;
+
+    private Supplier<Object> codec;
+
+    @Setup
+    public void setUp() throws ReflectiveOperationException {
+        codec = Fixtures.create(operation, 0);
+    }
+
+    @Benchmark
+    public Object codec() {
+        return codec.get();
+    }
+}
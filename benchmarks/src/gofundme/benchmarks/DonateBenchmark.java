@@ -0,0 +1,62 @@
+package gofundme.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures EventStore.donate under contention: all threads donate to one event, or spread over many events, at
+ * several thread counts, with and without hot event aggregation. The store has no write-ahead log attached, so this is
+ * the in-memory cost only.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DonateBenchmark {
+
+    @Param({"1", "1000"})
+    public int events;
+
+    @Param({"donate", "donateAggregated"})
+    public String mode;
+
+    private Supplier<Object> donate;
+
+    @Setup
+    public void setUp() throws ReflectiveOperationException {
+        donate = Fixtures.create(mode, events);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Object donate1Thread() {
+        return donate.get();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Object donate4Threads() {
+        return donate.get();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public Object donate16Threads() {
+        return donate.get();
+    }
+}
@@ -0,0 +1,19 @@
+package gofundme.benchmarks;
+
+import java.util.function.Supplier;
+
+/**
+ * Looks up the operations under test in BenchmarkFixtures, which lives in the default package with the server.
+ */
+final class Fixtures {
+
+    private Fixtures() {
+    }
+
+    @SuppressWarnings("unchecked")
+    static Supplier<Object> create(String scenario, int size) throws ReflectiveOperationException {
+        return (Supplier<Object>) Class.forName("BenchmarkFixtures")
+                .getMethod("create", String.class, int.class)
+                .invoke(null, scenario, size);
+    }
+}
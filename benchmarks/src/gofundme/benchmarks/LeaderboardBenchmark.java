@@ -0,0 +1,51 @@
+package gofundme.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures EventStore.leaderboard for the top 10 events at different store sizes, by amount raised and by donations
+ * in the last hour. The donation cost of keeping the boards ranked shows in DonateBenchmark.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dgofundme.logLevel=warn")
+public class LeaderboardBenchmark {
+
+    @Param({"1000", "1000000"})
+    public int events;
+
+    private Supplier<Object> leaderboardRaised;
+    private Supplier<Object> leaderboardRecentDonations;
+
+    @Setup
+    public void setUp() throws ReflectiveOperationException {
+        leaderboardRaised = Fixtures.create("leaderboardRaised", events);
+        leaderboardRecentDonations = Fixtures.create("leaderboardRecentDonations", events);
+    }
+
+    @Benchmark
+    public Object leaderboardRaised() {
+        return leaderboardRaised.get();
+    }
+
+    @Benchmark
+    public Object leaderboardRecentDonations() {
+        return leaderboardRecentDonations.get();
+    }
+}
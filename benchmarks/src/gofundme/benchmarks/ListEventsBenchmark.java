@@ -0,0 +1,52 @@
+package gofundme.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the serialization of a LIST_EVENTS response at different store sizes, both when nothing changed since the
+ * last list (the cached list is copied as is) and right after a donation (one cached entry has to be patched).
+ * Half of the events are past events.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dgofundme.logLevel=warn")
+public class ListEventsBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    public int events;
+
+    private Supplier<Object> listUnchanged;
+    private Supplier<Object> listAfterDonation;
+
+    @Setup
+    public void setUp() throws ReflectiveOperationException {
+        listUnchanged = Fixtures.create("listUnchanged", events);
+        listAfterDonation = Fixtures.create("listAfterDonation", events);
+    }
+
+    @Benchmark
+    public Object listUnchanged() {
+        return listUnchanged.get();
+    }
+
+    @Benchmark
+    public Object listAfterDonation() {
+        return listAfterDonation.get();
+    }
+}
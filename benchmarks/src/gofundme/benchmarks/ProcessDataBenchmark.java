@@ -0,0 +1,45 @@
+package gofundme.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures GoFundMeServer.processData for the small requests that make up most of the traffic, in both the legacy
+ * string protocol and the version 1 binary protocol, so the cost of decoding and dispatch can be compared.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dgofundme.logLevel=warn")
+public class ProcessDataBenchmark {
+
+    @Param({"legacyCheckEventsExist", "legacyCheckDetails", "legacyDonate",
+            "binaryCheckEventsExist", "binaryCheckDetails", "binaryDonate"})
+    public String request;
+
+    private Supplier<Object> operation;
+
+    @Setup
+    public void setUp() throws ReflectiveOperationException {
+        operation = Fixtures.create(request, 1);
+    }
+
+    @Benchmark
+    public Object processData() {
+        return operation.get();
+    }
+}
@@ -0,0 +1,65 @@
+package gofundme.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures EventStore.search for a page of 500 matches at different store sizes: one whole word, two whole words,
+ * a whole word with a prefix that hundreds of words start with, and that prefix alone.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dgofundme.logLevel=warn")
+public class SearchBenchmark {
+
+    @Param({"1000", "1000000"})
+    public int events;
+
+    private Supplier<Object> searchWord;
+    private Supplier<Object> searchWords;
+    private Supplier<Object> searchPrefix;
+    private Supplier<Object> searchShortPrefix;
+
+    @Setup
+    public void setUp() throws ReflectiveOperationException {
+        searchWord = Fixtures.create("searchWord", events);
+        searchWords = Fixtures.create("searchWords", events);
+        searchPrefix = Fixtures.create("searchPrefix", events);
+        searchShortPrefix = Fixtures.create("searchShortPrefix", events);
+    }
+
+    @Benchmark
+    public Object searchWord() {
+        return searchWord.get();
+    }
+
+    @Benchmark
+    public Object searchWords() {
+        return searchWords.get();
+    }
+
+    @Benchmark
+    public Object searchPrefix() {
+        return searchPrefix.get();
+    }
+
+    @Benchmark
+    public Object searchShortPrefix() {
+        return searchShortPrefix.get();
+    }
+}
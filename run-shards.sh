@@ -0,0 +1,36 @@
+#!/bin/sh
+# Starts a sharded deployment on localhost: one GoFundMeServer per shard, on consecutive ports from 12345, each with
+# its own data directory. Stop them all with Ctrl-C.
+#
+#   ./run-shards.sh [shards] [extra java options...]
+#
+# Then, from another terminal, with the list this script prints:
+#
+#   java -Dgofundme.shards=localhost:12345,localhost:12346,localhost:12347 ShardedClient
+#
+# Compile first with javac *.java.
+set -e
+
+count=${1:-3}
+[ $# -gt 0 ] && shift
+base_port=${GOFUNDME_BASE_PORT:-12345}
+
+shards=""
+i=0
+while [ "$i" -lt "$count" ]; do
+    shards="${shards:+$shards,}localhost:$((base_port + i))"
+    i=$((i + 1))
+done
+echo "Shards: $shards"
+
+pids=""
+trap 'kill $pids 2>/dev/null' INT TERM EXIT
+i=0
+while [ "$i" -lt "$count" ]; do
+    port=$((base_port + i))
+    java -Dgofundme.port="$port" -Dgofundme.shards="$shards" -Dgofundme.dataDir="gofundme-data-$port" "$@" \
+        GoFundMeServer &
+    pids="$pids $!"
+    i=$((i + 1))
+done
+wait
@@ -0,0 +1,90 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that CentsAccumulator loses no cents: single-threaded, when many threads add at once and inflate it into
+ * stripes, and while a reader sums it during the adds.
+ */
+class CentsAccumulatorTest {
+
+    private static final int THREADS = 8;
+    private static final int ADDS = 200_000;
+
+    @Test
+    void sumsAddsFromOneThread() {
+        CentsAccumulator total = new CentsAccumulator();
+        assertEquals(0, total.sum());
+        total.add(1250);
+        total.add(1);
+        total.add(FundraisingEvent.MAX_DONATION_CENTS);
+        assertEquals(1251 + FundraisingEvent.MAX_DONATION_CENTS, total.sum());
+    }
+
+    @Test
+    void concurrentAddsSumExactly() throws InterruptedException {
+        CentsAccumulator total = new CentsAccumulator();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            long cents = t + 1;
+            Thread thread = new Thread(() -> {
+                awaitUninterruptibly(start);
+                for (int i = 0; i < ADDS; i++) {
+                    total.add(cents);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        // Thread t adds t + 1 cents each time
+        assertEquals((long) ADDS * THREADS * (THREADS + 1) / 2, total.sum());
+    }
+
+    @Test
+    void sumNeverGoesBackWhileAddsRun() throws InterruptedException {
+        CentsAccumulator total = new CentsAccumulator();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            Thread thread = new Thread(() -> {
+                awaitUninterruptibly(start);
+                for (int i = 0; i < ADDS; i++) {
+                    total.add(3);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+
+        // Every add is positive, so each sum includes at least what the one before it did
+        long previous = 0;
+        while (threads.stream().anyMatch(Thread::isAlive)) {
+            long sum = total.sum();
+            assertTrue(sum >= previous && sum % 3 == 0, sum + " after " + previous);
+            previous = sum;
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(3L * ADDS * THREADS, total.sum());
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the states of an idempotency key in DonationDedup, within one generation and after the key's generation has
+ * become the previous one. The generations rotate on the clock, so these tests sleep through windows of WINDOW_MILLIS.
+ */
+class DonationDedupTest {
+
+    private static final long WINDOW_MILLIS = 400;
+    private static final byte RESULT = 2;
+
+    @Test
+    void replaysCompletedResult() {
+        DonationDedup dedup = new DonationDedup(60_000, 1024);
+        assertEquals(DonationDedup.CLAIMED, dedup.claim(42));
+        assertEquals(DonationDedup.IN_PROGRESS, dedup.claim(42));
+        dedup.complete(42, RESULT);
+        assertEquals(RESULT, dedup.claim(42));
+        assertEquals(DonationDedup.CLAIMED, dedup.claim(43));
+    }
+
+    @Test
+    void releasedKeyIsClaimedAgain() {
+        DonationDedup dedup = new DonationDedup(60_000, 1024);
+        assertEquals(DonationDedup.CLAIMED, dedup.claim(42));
+        dedup.release(42);
+        assertEquals(DonationDedup.CLAIMED, dedup.claim(42));
+        assertEquals(DonationDedup.IN_PROGRESS, dedup.claim(42));
+        dedup.complete(42, RESULT);
+        assertEquals(RESULT, dedup.claim(42));
+    }
+
+    @Test
+    void pendingKeySurvivesRotation() throws InterruptedException {
+        DonationDedup dedup = new DonationDedup(WINDOW_MILLIS, 1024);
+        assertEquals(DonationDedup.CLAIMED, dedup.claim(42));
+
+        // The claim rotates the stripe, so the key is now pending in the previous generation
+        Thread.sleep(WINDOW_MILLIS * 5 / 4);
+        assertEquals(DonationDedup.IN_PROGRESS, dedup.claim(42));
+        dedup.complete(42, RESULT);
+        assertEquals(RESULT, dedup.claim(42));
+    }
+
+    @Test
+    void releasedKeyInPreviousGenerationIsClaimedAgain() throws InterruptedException {
+        DonationDedup dedup = new DonationDedup(WINDOW_MILLIS, 1024);
+        assertEquals(DonationDedup.CLAIMED, dedup.claim(42));
+
+        Thread.sleep(WINDOW_MILLIS * 5 / 4);
+        dedup.release(42);
+        assertEquals(DonationDedup.CLAIMED, dedup.claim(42));
+        assertEquals(DonationDedup.IN_PROGRESS, dedup.claim(42));
+        dedup.complete(42, RESULT);
+        assertEquals(RESULT, dedup.claim(42));
+    }
+
+    @Test
+    void forgetsKeysAfterTwoWindows() throws InterruptedException {
+        DonationDedup dedup = new DonationDedup(WINDOW_MILLIS, 1024);
+        assertEquals(DonationDedup.CLAIMED, dedup.claim(42));
+        dedup.complete(42, RESULT);
+
+        Thread.sleep(WINDOW_MILLIS * 5 / 2);
+        assertEquals(DonationDedup.CLAIMED, dedup.claim(42));
+    }
+
+    @Test
+    void fullGenerationsDropOldestKeys() {
+        DonationDedup dedup = new DonationDedup(60_000, 1024);
+        assertEquals(DonationDedup.CLAIMED, dedup.claim(42));
+        dedup.complete(42, RESULT);
+
+        // Enough keys to fill every stripe's generations twice over, whatever stripe each key lands in
+        for (long key = 1000; key < 1000 + 64 * 1024; key++) {
+            assertEquals(DonationDedup.CLAIMED, dedup.claim(key));
+            dedup.complete(key, RESULT);
+        }
+        assertEquals(DonationDedup.CLAIMED, dedup.claim(42));
+    }
+}
@@ -0,0 +1,180 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests that an EventStore recovered from its EventLog matches the store that wrote it: after a crash that left a
+ * torn record at the end of a segment, and after snapshots that rolled the log over and deleted the old segments.
+ * Also tests that an event with an invalid target is neither created nor logged.
+ */
+class EventLogTest {
+
+    private static final long DEADLINE = System.currentTimeMillis() + 3_600_000;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void recoversEventsAndDonations() throws IOException {
+        EventStore store = open();
+        int id = store.createEvent("Library roof", 5000, DEADLINE).id;
+        store.donate(id, 10.25);
+        store.donate(id, 4.75);
+
+        EventStore recovered = new EventStore();
+        assertEquals(3, new EventLog(directory, EventLog.FsyncPolicy.ALWAYS, 0).recover(recovered));
+        FundraisingEvent event = recovered.get(id);
+        assertEquals("Library roof", event.name);
+        assertEquals(500_000, event.targetCents);
+        assertEquals(DEADLINE, event.deadline);
+        assertEquals(1500, event.raisedCents());
+    }
+
+    @Test
+    void stopsAtTornTailAndAppendsToNewSegment() throws IOException {
+        EventStore store = open();
+        int id = store.createEvent("Food bank", 1000, DEADLINE).id;
+        store.donate(id, 1);
+        store.donate(id, 2);
+        Path segment = lastSegment();
+
+        // A record whose header promises more bytes than the crash left on disk
+        ByteBuffer torn = ByteBuffer.allocate(16);
+        torn.putInt(21).putInt(0x12345678).putLong(4).flip();
+        append(segment, torn);
+
+        EventStore recovered = open();
+        assertEquals(300, recovered.get(id).raisedCents());
+        assertFalse(segment.equals(lastSegment()), "appends must not follow a torn tail");
+
+        recovered.donate(id, 3);
+        EventStore again = open();
+        assertEquals(600, again.get(id).raisedCents());
+    }
+
+    @Test
+    void dropsRecordWithBadChecksum() throws IOException {
+        EventStore store = open();
+        int id = store.createEvent("Animal shelter", 1000, DEADLINE).id;
+        store.donate(id, 1);
+        store.donate(id, 2);
+        Path segment = lastSegment();
+
+        // Flip the last byte of the last record, which is in the cents of the second donation
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer last = ByteBuffer.allocate(1);
+            channel.read(last, channel.size() - 1);
+            last.put(0, (byte) (last.get(0) ^ 1)).rewind();
+            channel.write(last, channel.size() - 1);
+        }
+
+        EventStore recovered = new EventStore();
+        assertEquals(2, new EventLog(directory, EventLog.FsyncPolicy.ALWAYS, 0).recover(recovered));
+        assertEquals(100, recovered.get(id).raisedCents());
+    }
+
+    @Test
+    void snapshotRollsLogAndDeletesCoveredSegments() throws IOException {
+        EventStore store = new EventStore();
+        EventLog log = new EventLog(directory, EventLog.FsyncPolicy.ALWAYS, 0);
+        log.recover(store);
+        store.setJournal(log);
+        int first = store.createEvent("Park benches", 800, DEADLINE).id;
+        store.donate(first, 50);
+        Path beforeSnapshot = lastSegment();
+
+        log.snapshot(store);
+        assertTrue(Files.exists(directory.resolve("events.snapshot")));
+        assertFalse(Files.exists(beforeSnapshot), "the snapshot covers the old segment");
+        Path afterSnapshot = lastSegment();
+
+        int second = store.createEvent("School trip", 300, DEADLINE).id;
+        store.donate(first, 25);
+        store.donate(second, 30);
+
+        // Only the records written after the snapshot are replayed
+        EventStore recovered = new EventStore();
+        assertEquals(3, new EventLog(directory, EventLog.FsyncPolicy.ALWAYS, 0).recover(recovered));
+        assertEquals(7500, recovered.get(first).raisedCents());
+        assertEquals(3000, recovered.get(second).raisedCents());
+        assertTrue(Files.exists(afterSnapshot));
+    }
+
+    @Test
+    void snapshotWithoutNewRecordsKeepsLog() throws IOException {
+        EventStore store = new EventStore();
+        EventLog log = new EventLog(directory, EventLog.FsyncPolicy.ALWAYS, 0);
+        log.recover(store);
+        store.setJournal(log);
+        int id = store.createEvent("Choir robes", 200, DEADLINE).id;
+        store.donate(id, 20);
+        log.snapshot(store);
+        List<Path> segments = segments();
+
+        log.snapshot(store);
+        assertEquals(segments, segments());
+
+        EventStore recovered = new EventStore();
+        assertEquals(0, new EventLog(directory, EventLog.FsyncPolicy.ALWAYS, 0).recover(recovered));
+        assertEquals(2000, recovered.get(id).raisedCents());
+    }
+
+    @Test
+    void rejectsInvalidTargetsWithoutLoggingThem() throws IOException {
+        EventStore store = open();
+        for (double target : new double[] {Double.NaN, Double.POSITIVE_INFINITY, -5, 0, 0.004, 1e300,
+                FundraisingEvent.MAX_TARGET_CENTS / 100.0 + 0.01}) {
+            assertNull(store.createEvent("Bad target", target, DEADLINE), "target " + target);
+        }
+        int id = store.createEvent("Largest target", FundraisingEvent.MAX_TARGET_CENTS / 100.0, DEADLINE).id;
+
+        EventStore recovered = new EventStore();
+        assertEquals(1, new EventLog(directory, EventLog.FsyncPolicy.ALWAYS, 0).recover(recovered));
+        assertEquals(FundraisingEvent.MAX_TARGET_CENTS, recovered.get(id).targetCents);
+    }
+
+    /**
+     * Recovers a new store from the directory and attaches the log to it, as the server does on startup.
+     */
+    private EventStore open() throws IOException {
+        EventStore store = new EventStore();
+        EventLog log = new EventLog(directory, EventLog.FsyncPolicy.ALWAYS, 0);
+        log.recover(store);
+        store.setJournal(log);
+        return store;
+    }
+
+    private List<Path> segments() throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "wal-*.log")) {
+            files.forEach(segments::add);
+        }
+        segments.sort(null);
+        return segments;
+    }
+
+    private Path lastSegment() throws IOException {
+        List<Path> segments = segments();
+        return segments.get(segments.size() - 1);
+    }
+
+    private static void append(Path segment, ByteBuffer bytes) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            channel.write(bytes);
+        }
+    }
+}
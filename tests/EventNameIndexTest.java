@@ -0,0 +1,126 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that EventNameIndex finds the same events as checking every name would: by whole words, by a short prefix
+ * looked up as a posting list of its own, by a longer prefix looked up as a union of the words it starts, and by a
+ * prefix that starts too many words, which is looked up through its short prefix and checked against the names.
+ */
+class EventNameIndexTest {
+
+    private final List<String> names = new ArrayList<>();
+    private final EventNameIndex index = new EventNameIndex(id -> id < names.size() ? names.get(id) : null);
+
+    @Test
+    void findsWholeWordsInIdOrder() {
+        add("Library Roof");
+        add("Roof for the school");
+        add("School library books");
+        add("roofing nails");
+
+        assertArrayEquals(new int[] {0}, index.search("ROOF lib", -1, 10), "the last word is a prefix");
+        assertArrayEquals(new int[] {0, 2}, index.search("Library,", -1, 10));
+        assertArrayEquals(new int[] {1}, index.search("school roof", -1, 10));
+        assertArrayEquals(new int[0], index.search("roo school", -1, 10), "only the last word is a prefix");
+        assertArrayEquals(new int[0], index.search("piano", -1, 10));
+        assertArrayEquals(new int[0], index.search(" -- ", -1, 10));
+    }
+
+    @Test
+    void findsShortAndLongPrefixes() {
+        add("Roof");
+        add("Rook rescue");
+        add("Room to grow");
+        add("Robot club");
+        add("Garden");
+
+        assertArrayEquals(new int[] {0, 1, 2, 3}, index.search("r", -1, 10));
+        assertArrayEquals(new int[] {0, 1, 2, 3}, index.search("ro", -1, 10));
+        assertArrayEquals(new int[] {0, 1, 2}, index.search("roo", -1, 10));
+        assertArrayEquals(new int[] {1}, index.search("rook", -1, 10));
+        assertArrayEquals(new int[] {1}, index.search("rescue ro", -1, 10));
+        assertArrayEquals(new int[0], index.search("rooz", -1, 10));
+    }
+
+    @Test
+    void pagesAfterTheCursor() {
+        for (int i = 0; i < 25; i++) {
+            add("Park bench " + i);
+        }
+        List<Integer> found = new ArrayList<>();
+        int cursor = -1;
+        while (true) {
+            int[] page = index.search("park be", cursor, 7);
+            if (page.length == 0) {
+                break;
+            }
+            Arrays.stream(page).forEach(found::add);
+            cursor = page[page.length - 1];
+        }
+        assertEquals(25, found.size());
+        for (int i = 0; i < found.size(); i++) {
+            assertEquals(i, found.get(i));
+        }
+    }
+
+    @Test
+    void prefixOfManyWordsIsCheckedAgainstTheNames() {
+        // Far more than MAX_UNION_TOKENS words start with "abc0", so that prefix falls back to the list of "ab"
+        List<Integer> expected = new ArrayList<>();
+        List<Integer> expectedWithFund = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            String word = String.format("abc0%03d", i);
+            switch (i % 4) {
+                case 0:
+                    expectedWithFund.add(add("Fund " + word));
+                    expected.add(expectedWithFund.get(expectedWithFund.size() - 1));
+                    break;
+                case 1:
+                    expected.add(add(word + " drive"));
+                    break;
+                case 2:
+                    add("ab-c0" + i); // Under "ab" too, but no word starts with "abc0"
+                    break;
+                default:
+                    add("Fund xabc0" + i + " abd" + i); // "abc0" inside a word only
+            }
+        }
+
+        assertEquals(expected, toList(index.search("abc0", -1, 1000)));
+        assertEquals(expectedWithFund, toList(index.search("fund abc0", -1, 1000)));
+        assertEquals(expected.subList(10, 15), toList(index.search("abc0", expected.get(9), 5)));
+        assertArrayEquals(new int[] {add("Abc0 again")}, index.search("abc0", expected.get(expected.size() - 1), 10));
+    }
+
+    @Test
+    void clearDropsEveryEvent() {
+        add("Library roof");
+        index.clear();
+        names.clear();
+        assertEquals(0, index.tokenCount());
+        assertArrayEquals(new int[0], index.search("li", -1, 10));
+        assertArrayEquals(new int[0], index.search("roof", -1, 10));
+
+        add("Roof again");
+        assertArrayEquals(new int[] {0}, index.search("roof", -1, 10));
+    }
+
+    private int add(String name) {
+        int id = names.size();
+        names.add(name);
+        index.add(id, name);
+        return id;
+    }
+
+    private static List<Integer> toList(int[] ids) {
+        List<Integer> list = new ArrayList<>();
+        Arrays.stream(ids).forEach(list::add);
+        return list;
+    }
+}
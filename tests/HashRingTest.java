@@ -0,0 +1,60 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that HashRing gives every process the same owners and moves few ids when a node joins.
+ */
+class HashRingTest {
+
+    private static final int IDS = 100_000;
+
+    @Test
+    void ownersDoNotDependOnNodeOrder() {
+        HashRing ring = HashRing.parse("a:1,b:2,c:3");
+        HashRing reordered = HashRing.parse("c:3, a:1, b:2");
+        for (int id = 0; id < IDS; id++) {
+            assertEquals(ring.node(ring.ownerOf(id)), reordered.node(reordered.ownerOf(id)));
+        }
+    }
+
+    @Test
+    void addingNodeOnlyMovesIdsToIt() {
+        HashRing ring = new HashRing(List.of("a:1", "b:2", "c:3", "d:4"));
+        HashRing grown = new HashRing(List.of("a:1", "b:2", "c:3", "d:4", "e:5"));
+        int moved = 0;
+        for (int id = 0; id < IDS; id++) {
+            String before = ring.node(ring.ownerOf(id));
+            String after = grown.node(grown.ownerOf(id));
+            if (!before.equals(after)) {
+                assertEquals("e:5", after, "id " + id + " moved between existing nodes");
+                moved++;
+            }
+        }
+        // About a fifth of the ids move to the fifth node
+        assertTrue(moved > IDS / 8 && moved < IDS * 3 / 10, moved + " ids moved");
+    }
+
+    @Test
+    void sharesAreEven() {
+        HashRing ring = HashRing.parse("a:1,b:2,c:3,d:4");
+        int[] owned = new int[ring.size()];
+        for (int id = 0; id < IDS; id++) {
+            owned[ring.ownerOf(id)]++;
+        }
+        for (int count : owned) {
+            assertTrue(count > IDS / 8 && count < IDS * 3 / 8, count + " of " + IDS + " ids on one node");
+        }
+    }
+
+    @Test
+    void rejectsBadNodeLists() {
+        assertThrows(IllegalArgumentException.class, () -> HashRing.parse(" , "));
+        assertThrows(IllegalArgumentException.class, () -> HashRing.parse("a:1,a:1"));
+        assertThrows(IllegalArgumentException.class, () -> HashRing.parse("a"));
+    }
+}
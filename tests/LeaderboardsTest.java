@@ -0,0 +1,132 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the order of each board in Leaderboards, ties included, that an event pushed off a full board gets back on
+ * when it climbs, and that donations leave the recent donations board once they are WINDOW_MINUTES old.
+ */
+class LeaderboardsTest {
+
+    private static final long MINUTE = 60_000;
+    private static final long START = 1_000_000 * MINUTE;
+
+    private final Leaderboards boards = new Leaderboards();
+    private final List<FundraisingEvent> events = new ArrayList<>();
+
+    @Test
+    void ordersByScoreThenId() {
+        FundraisingEvent small = event(1_000);
+        FundraisingEvent large = event(100_000);
+        FundraisingEvent tied = event(1_000);
+        FundraisingEvent none = event(500);
+        boards.update(none, START);
+
+        donate(small, START, 500, 300);
+        donate(large, START, 5_000);
+        donate(tied, START, 800);
+
+        // Raised: large 5000, then small and tied at 800 each, the lower id first, then none at 0
+        assertEquals(List.of(large.id, small.id, tied.id, none.id), ids(Protocol.LEADERBOARD_RAISED));
+        // Percent of target: small and tied at 0.8, large at 0.05
+        assertEquals(List.of(small.id, tied.id, large.id, none.id), ids(Protocol.LEADERBOARD_PERCENT_OF_TARGET));
+        // Recent donations: small took two, the others one each, and none is not on the board
+        assertEquals(List.of(small.id, large.id, tied.id), ids(Protocol.LEADERBOARD_RECENT_DONATIONS));
+        assertEquals(List.of(large.id, small.id), ids(boards.top(Protocol.LEADERBOARD_RAISED, 2)));
+
+        donate(tied, START, 1);
+        assertEquals(List.of(large.id, tied.id, small.id, none.id), ids(Protocol.LEADERBOARD_RAISED));
+        assertThrows(IllegalArgumentException.class, () -> boards.top(3, 10));
+    }
+
+    @Test
+    void eventPushedOffAFullBoardGetsBackOn() {
+        for (int i = 0; i < Leaderboards.CAPACITY + 20; i++) {
+            donate(event(1_000_000), START, 100 + i);
+        }
+        List<Integer> raised = ids(Protocol.LEADERBOARD_RAISED);
+        assertEquals(Leaderboards.CAPACITY, raised.size());
+        assertEquals(events.get(events.size() - 1).id, raised.get(0));
+        assertEquals(events.get(20).id, raised.get(raised.size() - 1));
+
+        FundraisingEvent first = events.get(0);
+        assertFalse(raised.contains(first.id));
+        donate(first, START, 1_000);
+        raised = ids(Protocol.LEADERBOARD_RAISED);
+        assertEquals(first.id, raised.get(0));
+        assertEquals(Leaderboards.CAPACITY, raised.size());
+        assertEquals(events.get(21).id, raised.get(raised.size() - 1));
+    }
+
+    @Test
+    void donationsLeaveTheRecentBoardAfterTheWindow() {
+        FundraisingEvent early = event(1_000);
+        FundraisingEvent later = event(1_000);
+        donate(early, START, 1, 1, 1);
+        donate(later, START + 30 * MINUTE, 1);
+        donate(early, START + 40 * MINUTE, 1);
+        assertEquals(List.of(early.id, later.id), ids(Protocol.LEADERBOARD_RECENT_DONATIONS));
+
+        // The three donations of the first minute drop out when it is WINDOW_MINUTES old, without a new donation
+        assertEquals(2, boards.decay(START + (Leaderboards.WINDOW_MINUTES - 1) * MINUTE));
+        assertEquals(List.of(early.id, later.id), ids(Protocol.LEADERBOARD_RECENT_DONATIONS));
+        assertEquals(4, recentScore(early));
+        assertEquals(2, boards.decay(START + Leaderboards.WINDOW_MINUTES * MINUTE));
+        assertEquals(1, recentScore(early));
+        assertEquals(1, recentScore(later));
+        assertEquals(List.of(early.id, later.id), ids(Protocol.LEADERBOARD_RECENT_DONATIONS));
+
+        assertEquals(2, boards.decay(START + 90 * MINUTE));
+        assertEquals(List.of(early.id), ids(Protocol.LEADERBOARD_RECENT_DONATIONS));
+        assertEquals(1, boards.decay(START + 100 * MINUTE));
+        assertEquals(List.of(), ids(Protocol.LEADERBOARD_RECENT_DONATIONS));
+        assertEquals(0, boards.recentlyDonatedCount());
+
+        // The other boards keep the totals
+        assertEquals(List.of(early.id, later.id), ids(Protocol.LEADERBOARD_RAISED));
+    }
+
+    private FundraisingEvent event(long targetCents) {
+        FundraisingEvent event = new FundraisingEvent(events.size(), "Event " + events.size(), targetCents,
+                Long.MAX_VALUE);
+        boards.add(event);
+        events.add(event);
+        return event;
+    }
+
+    /**
+     * Adds donations to an event and updates the boards after each, as the store does.
+     */
+    private void donate(FundraisingEvent event, long now, long... cents) {
+        for (long amount : cents) {
+            event.addDonation(amount);
+            boards.update(event, now);
+        }
+    }
+
+    private double recentScore(FundraisingEvent event) {
+        for (Leaderboards.Entry entry : boards.top(Protocol.LEADERBOARD_RECENT_DONATIONS, Leaderboards.CAPACITY)) {
+            if (entry.event == event) {
+                return entry.score;
+            }
+        }
+        return 0;
+    }
+
+    private List<Integer> ids(int board) {
+        return ids(boards.top(board, Leaderboards.CAPACITY));
+    }
+
+    private static List<Integer> ids(List<Leaderboards.Entry> entries) {
+        List<Integer> ids = new ArrayList<>();
+        for (Leaderboards.Entry entry : entries) {
+            ids.add(entry.event.id);
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,150 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the responses ResponseFramer keeps for RESEND requests: what they cost and which are dropped when the room
+ * runs out. The retained responses are shared by the whole server, so each test uses client ports of its own.
+ */
+class ResponseFramerTest {
+
+    private static final int LARGE = 8 * 1024 * 1024;
+    private static final InetAddress CLIENT = InetAddress.getLoopbackAddress();
+
+    @Test
+    void sharedTailCountsOnce() {
+        byte[] list = new byte[LARGE];
+        list[LARGE - 1] = 7;
+        long before = ResponseFramer.retainedBytes();
+        for (int client = 0; client < 100; client++) {
+            ResponseBuffer response = new ResponseBuffer(16, false);
+            response.putByte(client);
+            response.putShared(list);
+            ResponseFramer.retain(CLIENT, 1000 + client, 1, response);
+        }
+        // A private copy each would be far beyond MAX_RETAINED_BYTES, so older ones would have been dropped
+        assertTrue(ResponseFramer.retainedBytes() <= before + LARGE + 100);
+        for (int client = 0; client < 100; client++) {
+            assertNotNull(ResponseFramer.retained(CLIENT, 1000 + client, 1));
+        }
+
+        ResponseFramer.RetainedResponse retained = ResponseFramer.retained(CLIENT, 1042, 1);
+        assertNotNull(retained);
+        assertEquals(LARGE + 1, retained.length());
+        byte[] bytes = resendAll(retained);
+        assertEquals(42, bytes[0]);
+        assertEquals(7, bytes[LARGE]);
+    }
+
+    @Test
+    void resendWritesOnlyTheChunkAskedFor() {
+        byte[] list = new byte[LARGE];
+        for (int i = 0; i < LARGE; i++) {
+            list[i] = (byte) i;
+        }
+        ResponseBuffer response = new ResponseBuffer(16, false);
+        response.putBytes(new byte[1000]);
+        response.putShared(list);
+        ResponseFramer.retain(CLIENT, 5000, 3, response);
+
+        // The first chunk ends 200 bytes into the shared list
+        ResponseBuffer chunk = new ResponseBuffer(16, false);
+        ResponseFramer.retained(CLIENT, 5000, 3).writeChunk(3, 0, chunk);
+        assertEquals(ResponseFramer.HEADER_SIZE + ResponseFramer.CHUNK_PAYLOAD_SIZE, chunk.length());
+        byte[] bytes = chunk.toByteArray();
+        assertEquals(ResponseFramer.chunkCount(LARGE + 1000), ((bytes[10] & 0xFF) << 8) | (bytes[11] & 0xFF));
+        assertEquals(0, bytes[ResponseFramer.HEADER_SIZE + 999]);
+        assertEquals((byte) 199, bytes[bytes.length - 1]);
+
+        int last = ResponseFramer.chunkCount(LARGE + 1000) - 1;
+        chunk.clear();
+        ResponseFramer.retained(CLIENT, 5000, 3).writeChunk(3, last, chunk);
+        int lastLength = LARGE + 1000 - last * ResponseFramer.CHUNK_PAYLOAD_SIZE;
+        assertEquals(ResponseFramer.HEADER_SIZE + lastLength, chunk.length());
+        assertEquals((byte) (LARGE - 1), chunk.toByteArray()[chunk.length() - 1]);
+    }
+
+    @Test
+    void dropsOldestWhenFull() {
+        int count = (int) (ResponseFramer.MAX_RETAINED_BYTES / LARGE) + 2;
+        for (int client = 0; client < count; client++) {
+            ResponseBuffer response = new ResponseBuffer(LARGE, false);
+            response.putBytes(new byte[LARGE]);
+            ResponseFramer.retain(CLIENT, 2000 + client, 1, response);
+            assertTrue(ResponseFramer.retainedBytes() <= ResponseFramer.MAX_RETAINED_BYTES);
+        }
+        assertNull(ResponseFramer.retained(CLIENT, 2000, 1));
+        assertNotNull(ResponseFramer.retained(CLIENT, 2000 + count - 1, 1));
+    }
+
+    @Test
+    void sameRequestIdReplacesResponse() {
+        ResponseBuffer first = new ResponseBuffer(16, false);
+        first.putBytes(new byte[] {1, 2, 3});
+        ResponseFramer.retain(CLIENT, 3000, 9, first);
+        long before = ResponseFramer.retainedBytes();
+
+        ResponseBuffer second = new ResponseBuffer(16, false);
+        second.putBytes(new byte[] {4, 5});
+        ResponseFramer.retain(CLIENT, 3000, 9, second);
+        assertEquals(before - 1, ResponseFramer.retainedBytes());
+        assertArrayEquals(new byte[] {4, 5}, resendAll(ResponseFramer.retained(CLIENT, 3000, 9)));
+    }
+
+    @Test
+    void truncatedSharedTailIsCopied() {
+        ResponseBuffer response = new ResponseBuffer(16, false);
+        response.putByte(1);
+        response.putShared(new byte[] {2, 3, 4});
+        response.truncate(2);
+        response.putByte(9);
+        assertNull(response.sharedTail());
+        ResponseFramer.retain(CLIENT, 4000, 1, response);
+        assertArrayEquals(new byte[] {1, 2, 9}, resendAll(ResponseFramer.retained(CLIENT, 4000, 1)));
+    }
+
+    @Test
+    void onlyTheSameAddressCanFetchAResponse() throws UnknownHostException {
+        // Inet6Address.hashCode() adds up the four ints of the address, so swapping two of them keeps the hash
+        InetAddress owner = InetAddress.getByAddress(new byte[] {0x20, 1, 0x0d, (byte) 0xb8, 0, 0, 0, 0,
+                0, 0, 0, 0, 0, 0, 0, 1});
+        InetAddress other = InetAddress.getByAddress(new byte[] {0, 0, 0, 0, 0x20, 1, 0x0d, (byte) 0xb8,
+                0, 0, 0, 0, 0, 0, 0, 1});
+        assertEquals(owner.hashCode(), other.hashCode());
+
+        ResponseBuffer response = new ResponseBuffer(16, false);
+        response.putBytes(new byte[] {1, 2});
+        ResponseFramer.retain(owner, 6000, 1, response);
+        assertNull(ResponseFramer.retained(other, 6000, 1));
+        assertNull(ResponseFramer.retained(owner, 6001, 1));
+        assertArrayEquals(new byte[] {1, 2}, resendAll(ResponseFramer.retained(owner, 6000, 1)));
+    }
+
+    @Test
+    void chunkCountMustFitHeader() {
+        assertTrue(ResponseFramer.fits(ResponseFramer.MAX_CHUNKS * ResponseFramer.CHUNK_PAYLOAD_SIZE));
+        assertFalse(ResponseFramer.fits(ResponseFramer.MAX_CHUNKS * ResponseFramer.CHUNK_PAYLOAD_SIZE + 1));
+    }
+
+    /**
+     * Writes every chunk of a retained response, as a RESEND asking for all of them would, and joins their payloads.
+     */
+    private static byte[] resendAll(ResponseFramer.RetainedResponse retained) {
+        ResponseBuffer joined = new ResponseBuffer(16, false);
+        ResponseBuffer chunk = new ResponseBuffer(16, false);
+        for (int sequence = 0; sequence < ResponseFramer.chunkCount(retained.length()); sequence++) {
+            chunk.clear();
+            retained.writeChunk(1, sequence, chunk);
+            joined.putBytes(chunk.array(), ResponseFramer.HEADER_SIZE, chunk.length() - ResponseFramer.HEADER_SIZE);
+        }
+        return joined.toByteArray();
+    }
+}
@@ -0,0 +1,148 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that SessionTable expires every session exactly when its timeout has passed, wherever its deadline falls in
+ * the timer wheel: in the first wheel, on the boundaries between levels, beyond the last wheel, and after moving from
+ * slot to slot as the session is touched again.
+ */
+class SessionTableTest {
+
+    // A wheel tick of 1 ms, so a timeout in milliseconds is also a number of ticks
+    private static final long TICK_MILLIS = 1;
+    // Wheels of 64 slots, so a session moves down a level when its deadline is 64, 4096 or 262144 ticks away
+    private static final long[] TIMEOUTS = {1, 2, 63, 64, 65, 4095, 4096, 4097, 262_143, 262_144, 262_145,
+            16_777_216, 20_000_000};
+    private static final long[] STARTS = {1L << 24, (1L << 24) + 1, (1L << 24) + 63, (1L << 24) + 4095,
+            (1L << 24) + 262_143, (1L << 24) + 262_144 + 77};
+
+    private final InetAddress address;
+
+    SessionTableTest() throws UnknownHostException {
+        address = InetAddress.getByAddress(new byte[] {10, 0, 0, 1});
+    }
+
+    @Test
+    void expiresExactlyAtTimeoutOnLevelBoundaries() {
+        for (long timeout : TIMEOUTS) {
+            for (long start : STARTS) {
+                SessionTable sessions = new SessionTable(timeout, TICK_MILLIS, start, 0, 0);
+                assertEquals(SessionTable.CONNECTED, sessions.touch(address, 5000, start, 0));
+                List<Integer> expired = new ArrayList<>();
+
+                sessions.expire(start + timeout - 1, (expiredAddress, port) -> expired.add(port));
+                assertTrue(expired.isEmpty(), "expired early with timeout " + timeout + " from " + start);
+                sessions.expire(start + timeout, (expiredAddress, port) -> expired.add(port));
+                assertEquals(List.of(5000), expired, "timeout " + timeout + " from " + start);
+                assertEquals(0, sessions.size());
+            }
+        }
+    }
+
+    @Test
+    void touchPostponesExpiry() {
+        long start = 1_000_003;
+        long timeout = 5000;
+        SessionTable sessions = new SessionTable(timeout, TICK_MILLIS, start, 0, 0);
+        List<Integer> expired = new ArrayList<>();
+
+        // Each touch moves the deadline, from the second level back to the first as the wheel catches up
+        long now = start;
+        for (int i = 0; i < 20; i++) {
+            assertEquals(i == 0 ? SessionTable.CONNECTED : 0, sessions.touch(address, 5000, now, 0));
+            now += timeout - 1 - i * 200;
+            sessions.expire(now, (expiredAddress, port) -> expired.add(port));
+            assertTrue(expired.isEmpty());
+        }
+        long lastTouch = now;
+        sessions.touch(address, 5000, lastTouch, 0);
+        sessions.expire(lastTouch + timeout - 1, (expiredAddress, port) -> expired.add(port));
+        assertTrue(expired.isEmpty());
+        sessions.expire(lastTouch + timeout, (expiredAddress, port) -> expired.add(port));
+        assertEquals(List.of(5000), expired);
+    }
+
+    @Test
+    void expiresEverySessionOnTimeWithRandomTraffic() {
+        Random random = new Random(17);
+        long timeout = 70_000;
+        long start = 123_456_789;
+        SessionTable sessions = new SessionTable(timeout, TICK_MILLIS, start, 0, 0);
+        Map<Integer, Long> deadlines = new HashMap<>();
+
+        long now = start;
+        long previous = now;
+        while (now < start + 5 * timeout) {
+            for (int i = 0; i < 50; i++) {
+                int port = 1 + random.nextInt(20_000);
+                int result = sessions.touch(address, port, now, 0);
+                assertEquals(deadlines.containsKey(port) ? 0 : SessionTable.CONNECTED, result);
+                deadlines.put(port, now + timeout);
+            }
+            long last = previous;
+            long current = now;
+            sessions.expire(now, (expiredAddress, port) -> {
+                long deadline = deadlines.remove(port);
+                assertTrue(deadline > last && deadline <= current,
+                        "deadline " + deadline + " expired between " + last + " and " + current);
+            });
+            for (long deadline : deadlines.values()) {
+                assertTrue(deadline > now, "deadline " + deadline + " missed at " + now);
+            }
+            assertEquals(deadlines.size(), sessions.size());
+            previous = now;
+            now += 1 + random.nextInt(3000);
+        }
+
+        sessions.expire(now + timeout, (expiredAddress, port) -> deadlines.remove(port));
+        assertTrue(deadlines.isEmpty());
+        assertEquals(0, sessions.size());
+    }
+
+    @Test
+    void rateLimitsEachClient() {
+        SessionTable sessions = new SessionTable(60_000, 100, 0, 10, 2);
+        assertEquals(SessionTable.CONNECTED, sessions.touch(address, 5000, 0, 1));
+        assertEquals(0, sessions.touch(address, 5000, 0, 1));
+        assertEquals(SessionTable.LIMITED, sessions.touch(address, 5000, 0, 1));
+        assertEquals(SessionTable.CONNECTED, sessions.touch(address, 5001, 0, 1));
+        // 10 tokens a second is one every 100 ms
+        assertEquals(0, sessions.touch(address, 5000, 100, 1));
+    }
+
+    @Test
+    void collidingIpv6ClientsGetSessionsOfTheirOwn() throws UnknownHostException {
+        // Inet6Address.hashCode() adds up the four ints of the address, so swapping two of them keeps the packed key
+        InetAddress first = InetAddress.getByAddress(new byte[] {0x20, 1, 0x0d, (byte) 0xb8, 0, 0, 0, 0,
+                0, 0, 0, 0, 0, 0, 0, 1});
+        InetAddress second = InetAddress.getByAddress(new byte[] {0, 0, 0, 0, 0x20, 1, 0x0d, (byte) 0xb8,
+                0, 0, 0, 0, 0, 0, 0, 1});
+        assertEquals(SessionTable.keyOf(first, 5000), SessionTable.keyOf(second, 5000));
+
+        SessionTable sessions = new SessionTable(1000, TICK_MILLIS, 0, 10, 1);
+        assertEquals(SessionTable.CONNECTED, sessions.touch(first, 5000, 0, 1));
+        assertEquals(SessionTable.LIMITED, sessions.touch(first, 5000, 0, 1));
+        // The second client neither shares the first one's session nor its tokens
+        assertEquals(SessionTable.CONNECTED, sessions.touch(second, 5000, 0, 1));
+        assertEquals(2, sessions.size());
+
+        sessions.touch(second, 5000, 500, 0);
+        List<InetAddress> expired = new ArrayList<>();
+        sessions.expire(1000, (expiredAddress, port) -> expired.add(expiredAddress));
+        assertEquals(List.of(first), expired);
+        assertEquals(0, sessions.touch(second, 5000, 1000, 0));
+        sessions.expire(2000, (expiredAddress, port) -> expired.add(expiredAddress));
+        assertEquals(List.of(first, second), expired);
+        assertEquals(0, sessions.size());
+    }
+}